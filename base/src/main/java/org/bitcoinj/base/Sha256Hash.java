@@ -291,8 +291,11 @@ public class Sha256Hash implements Comparable<Sha256Hash> {
      * @throws BufferOverflowException if the hash doesn't fit the remaining buffer
      */
     public ByteBuffer write(ByteBuffer buf) throws BufferOverflowException {
+        if (buf.remaining() < LENGTH)
+            throw new BufferOverflowException();
         // we have to flip it around, as on the wire it's in little endian
-        buf.put(serialize());
+        for (int i = LENGTH - 1; i >= 0; i--)
+            buf.put(bytes[i]);
         return buf;
     }
 
@@ -19,15 +19,19 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.base.Network;
 import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.Buffers;
 import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.net.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -48,6 +52,8 @@ import static org.bitcoinj.base.internal.Preconditions.check;
 public class BitcoinSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    // Magic bytes followed by the packet header
+    private static final int WIRE_HEADER_LENGTH = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private final Network network;
     private final int packetMagic;
@@ -117,19 +123,8 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        ByteUtils.writeInt32BE(packetMagic, header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        ByteUtils.writeInt32LE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = new byte[WIRE_HEADER_LENGTH];
+        writeHeader(name, message.length, Sha256Hash.hashTwice(message), ByteBuffer.wrap(header));
         out.write(header);
         out.write(message);
 
@@ -142,11 +137,47 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(nameOf(message), message.serialize(), out);
+    }
+
+    /**
+     * Writes message into a header and a payload buffer obtained from the given pool. The payload is serialized
+     * directly into its buffer and checksummed in place, so no intermediate byte arrays are created.
+     */
+    @Override
+    public ByteBuffer[] serialize(Message message, ByteBufferPool pool) {
+        String name = nameOf(message);
+        ByteBuffer payload = pool.acquire(message.messageSize());
+        message.write(payload);
+        ((Buffer) payload).flip();
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload.duplicate());
+        byte[] hash = digest.digest(digest.digest());
+        ByteBuffer header = pool.acquire(WIRE_HEADER_LENGTH);
+        writeHeader(name, payload.remaining(), hash, header);
+        ((Buffer) header).flip();
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, ByteUtils.formatHex(Buffers.readBytes(header.duplicate(),
+                    WIRE_HEADER_LENGTH)) + ByteUtils.formatHex(Buffers.readBytes(payload.duplicate(), payload.remaining())));
+        return new ByteBuffer[] { header, payload };
+    }
+
+    private static String nameOf(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.serialize(), out);
+        return name;
+    }
+
+    private void writeHeader(String name, int length, byte[] hash, ByteBuffer buf) {
+        ByteUtils.writeInt32BE(packetMagic, buf);
+        // The command is NULL padded.
+        for (int i = 0; i < COMMAND_LEN; i++)
+            buf.put(i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        ByteUtils.writeInt32LE(length, buf);
+        buf.put(hash, 0, 4);
     }
 
     /**
@@ -189,12 +220,16 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        check(in.remaining() >= header.size, BufferUnderflowException::new);
+        // The payload is parsed in place, none of the messages keep a reference to it.
+        ByteBuffer payload = in.slice();
+        ((Buffer) payload).limit(header.size);
+        Buffers.skipBytes(in, header.size);
 
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload.duplicate());
+        byte[] hash = digest.digest(digest.digest());
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -204,18 +239,18 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    ByteUtils.formatHex(payloadBytes));
+                    ByteUtils.formatHex(Buffers.readBytes(payload.duplicate(), header.size)));
         }
 
         try {
-            return makeMessage(header.command, payloadBytes, hash);
+            return makeMessage(header.command, payload.duplicate());
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + ByteUtils.formatHex(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    ByteUtils.formatHex(Buffers.readBytes(payload, header.size)) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, byte[] payloadBytes, byte[] hash) throws ProtocolException {
-        ByteBuffer payload = ByteBuffer.wrap(payloadBytes);
+    private Message makeMessage(String command, ByteBuffer payload) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         if (command.equals("version")) {
             return VersionMessage.read(payload);
@@ -288,11 +323,12 @@ public class BitcoinSerializer extends MessageSerializer {
 
     /**
      * Make a block from the payload. Extension point for alternative
-     * serialization format support.
+     * serialization format support. The block is read through a {@link BlockView}, so the transaction IDs needed
+     * to check the merkle root are hashed from the payload rather than from reserialized transactions.
      */
     @Override
     public Block makeBlock(ByteBuffer payload) throws ProtocolException {
-        return Block.read(payload);
+        return BlockView.read(payload).toBlock();
     }
 
     /**
@@ -545,6 +545,25 @@ public class Block implements Message {
     }
 
     private List<Sha256Hash> buildMerkleTree(boolean useWTxId) {
+        List<Sha256Hash> leaves = new ArrayList<>(transactions.size());
+        for (Transaction tx : transactions) {
+            final Sha256Hash hash;
+            if (useWTxId && tx.isCoinBase())
+                hash = Sha256Hash.ZERO_HASH;
+            else
+                hash = useWTxId ? tx.getWTxId() : tx.getTxId();
+            leaves.add(hash);
+        }
+        return buildMerkleTree(leaves);
+    }
+
+    /**
+     * Builds the Merkle tree over the given transaction hashes.
+     *
+     * @param leaves transaction hashes, in block order
+     * @return the tree, starting with the leaves and ending with the root
+     */
+    static List<Sha256Hash> buildMerkleTree(List<Sha256Hash> leaves) {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -575,19 +594,11 @@ public class Block implements Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<Sha256Hash> tree = new ArrayList<>(transactions.size());
         // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash hash;
-            if (useWTxId && tx.isCoinBase())
-                hash = Sha256Hash.ZERO_HASH;
-            else
-                hash = useWTxId ? tx.getWTxId() : tx.getTxId();
-            tree.add(hash);
-        }
+        ArrayList<Sha256Hash> tree = new ArrayList<>(leaves);
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
             for (int left = 0; left < levelSize; left += 2) {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
@@ -0,0 +1,676 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Downloads the block chain from several peers at once, headers first.</p>
+ *
+ * <p>One of the peers, the headers peer, is asked for the chain of headers beyond our chain head. The bodies of those
+ * blocks (or filtered blocks, if Bloom filtering is used) are then requested in small batches from all peers. How
+ * many blocks may be outstanding at a peer is adapted to the speed of its connection by a
+ * {@link BlockDownloadWindow}, see {@link #getWindowSize(Peer)}. As blocks can arrive in any order, they are buffered and
+ * added to the block chain in the order of the headers. Blocks which were requested longer than the stall timeout ago
+ * are requested again, usually from another peer, and the requests of peers that disconnect are spread across the
+ * remaining peers. Headers of blocks older than the fast catchup time are added to the chain without their bodies.</p>
+ *
+ * <p>Progress is reported through the blocks downloaded listeners of the headers peer. The future returned by
+ * {@link #getFuture()} completes once the headers peer has no more headers for us and all blocks are added to the
+ * chain. It fails if the headers don't connect to our chain head, or a block is rejected by the chain, in which case
+ * the caller should fall back to downloading the chain from a single peer.</p>
+ *
+ * <p>This class is used by {@link PeerGroup} if {@link PeerGroup#setParallelBlockDownload(boolean)} is enabled.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** Default number of outstanding block requests per peer, before it is adapted to the peer's connection. */
+    public static final int DEFAULT_INITIAL_WINDOW = 16;
+    /** Default time after which an outstanding block request is given to another peer. */
+    public static final Duration DEFAULT_STALL_TIMEOUT = Duration.ofSeconds(10);
+    // Blocks are not requested further ahead of the chain head than this, which bounds the memory used for buffering.
+    private static final int MAX_BLOCKS_AHEAD = 1024;
+    // More headers are requested once fewer than this many are waiting to be connected.
+    private static final int HEADERS_LOW_WATER_MARK = HeadersMessage.MAX_HEADERS;
+
+    private enum State {
+        HEADER_ONLY, // doesn't need the body, the header is added to the chain as is
+        WAITING, // body needs to be requested
+        IN_FLIGHT, // body was requested
+        RECEIVED, // body was received and waits for the blocks before it
+        CONNECTING // is being added to the chain
+    }
+
+    private static class Entry {
+        final Block header;
+        State state;
+        @Nullable PeerState peer; // while in flight
+        @Nullable Instant requestTime; // while in flight
+        @Nullable Block block; // once received
+        @Nullable FilteredBlock filteredBlock; // once received
+        @Nullable Peer receivedFrom; // once received
+
+        Entry(Block header, State state) {
+            this.header = header;
+            this.state = state;
+        }
+    }
+
+    private static class PeerState {
+        final Peer peer;
+        final BlockDownloadWindow window;
+        int inFlight;
+        // We asked the peer for headers and it didn't answer yet
+        boolean headersRequested;
+        // The peer is about to receive a new Bloom filter. Bodies it sends before that are discarded.
+        boolean awaitingFilter;
+
+        PeerState(Peer peer, BlockDownloadWindow window) {
+            this.peer = peer;
+            this.window = window;
+        }
+    }
+
+    private final AbstractBlockChain chain;
+    private final Instant fastCatchupTime;
+    private final boolean useFilteredBlocks;
+    private final int initialWindow;
+    private final Duration stallTimeout;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    // Guards all fields below. Never held while calling into the chain or into listeners.
+    private final ReentrantLock lock = Threading.lock(BlockDownloadScheduler.class);
+    // Serializes adding blocks to the chain.
+    private final ReentrantLock connectLock = Threading.lock("BlockDownloadScheduler-connect");
+
+    // Headers we know of but didn't add to the chain yet, in chain order.
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<Sha256Hash, Entry> entriesByHash = new HashMap<>();
+    private final Map<Peer, PeerState> peers = new LinkedHashMap<>();
+    @Nullable private PeerState headersPeer;
+    private boolean headersDone;
+    private boolean awaitingFilter;
+    private long blocksConnected;
+    private long stalls;
+
+    /**
+     * Creates a scheduler with {@link #DEFAULT_INITIAL_WINDOW} and {@link #DEFAULT_STALL_TIMEOUT}.
+     *
+     * @param chain             chain to add the blocks to
+     * @param fastCatchupTime   blocks before this time are added as headers only
+     * @param useFilteredBlocks whether to request filtered blocks from peers that support Bloom filtering
+     */
+    public BlockDownloadScheduler(AbstractBlockChain chain, Instant fastCatchupTime, boolean useFilteredBlocks) {
+        this(chain, fastCatchupTime, useFilteredBlocks, DEFAULT_INITIAL_WINDOW, DEFAULT_STALL_TIMEOUT);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param chain             chain to add the blocks to
+     * @param fastCatchupTime   blocks before this time are added as headers only
+     * @param useFilteredBlocks whether to request filtered blocks from peers that support Bloom filtering
+     * @param initialWindow     number of outstanding block requests per peer, before it is adapted
+     * @param stallTimeout      time after which an outstanding block request is given to another peer
+     */
+    public BlockDownloadScheduler(AbstractBlockChain chain, Instant fastCatchupTime, boolean useFilteredBlocks,
+                                  int initialWindow, Duration stallTimeout) {
+        checkArgument(initialWindow >= BlockDownloadWindow.MIN_SIZE && initialWindow <= BlockDownloadWindow.MAX_SIZE,
+                () -> "initialWindow out of range: " + initialWindow);
+        checkArgument(stallTimeout.compareTo(Duration.ZERO) > 0, () -> "stallTimeout must be positive: " + stallTimeout);
+        this.chain = Objects.requireNonNull(chain);
+        this.fastCatchupTime = Objects.requireNonNull(fastCatchupTime);
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.initialWindow = initialWindow;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Adds a peer to download blocks from. The first peer that is added becomes the headers peer.
+     */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (future.isDone() || peers.containsKey(peer))
+                return;
+            PeerState state = new PeerState(peer,
+                    new BlockDownloadWindow(initialWindow, BlockDownloadWindow.DEFAULT_TARGET_QUEUE_DELAY));
+            // If we're waiting for a new filter, the peer might not have it yet either
+            state.awaitingFilter = awaitingFilter;
+            peers.put(peer, state);
+            if (headersPeer == null)
+                headersPeer = state;
+        } finally {
+            lock.unlock();
+        }
+        peer.setBlockDownloadScheduler(this);
+        schedule();
+    }
+
+    /**
+     * Makes the given peer the headers peer, adding it if necessary. Any outstanding headers request is sent again to
+     * the new headers peer.
+     */
+    public void setHeadersPeer(Peer peer) {
+        addPeer(peer);
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null || state == headersPeer)
+                return;
+            // An answer of the previous headers peer will be ignored, so ask the new one
+            headersPeer = state;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    /**
+     * Removes a peer, usually because it disconnected. Its outstanding requests are given to other peers.
+     */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.remove(peer);
+            if (state == null)
+                return;
+            for (Entry entry : entries) {
+                if (entry.state == State.IN_FLIGHT && entry.peer == state)
+                    resetLocked(entry);
+            }
+            if (state == headersPeer) {
+                headersPeer = peers.isEmpty() ? null : peers.values().iterator().next();
+            }
+        } finally {
+            lock.unlock();
+        }
+        peer.setBlockDownloadScheduler(null);
+        schedule();
+    }
+
+    /**
+     * Returns a future which completes once the chain is downloaded, or fails if the download had to be aborted.
+     */
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Called by {@link Peer} when it receives headers. Returns true if they were the answer to our request.
+     */
+    boolean headersReceived(Peer peer, HeadersMessage message) {
+        Sha256Hash chainHead = chain.getChainHead().getHeader().getHash();
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null || !state.headersRequested)
+                return false;
+            state.headersRequested = false;
+            if (state != headersPeer)
+                return true; // no longer the headers peer, we asked another peer meanwhile
+            List<Block> headers = message.getBlockHeaders();
+            Sha256Hash prev = entries.isEmpty() ? chainHead : entries.getLast().header.getHash();
+            for (Block header : headers) {
+                if (entriesByHash.containsKey(header.getHash()))
+                    continue; // overlap with headers we already have
+                if (!header.getPrevBlockHash().equals(prev)) {
+                    abort(new ProtocolException("Header " + header.getHash() + " doesn't connect to " + prev));
+                    return true;
+                }
+                Block.verifyHeader(header);
+                Entry entry = new Entry(header,
+                        header.time().isBefore(fastCatchupTime) ? State.HEADER_ONLY : State.WAITING);
+                entries.addLast(entry);
+                entriesByHash.put(header.getHash(), entry);
+                prev = header.getHash();
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS) {
+                headersDone = true;
+                log.info("{}: Received last headers, {} blocks to download", peer, entries.size());
+            }
+        } catch (VerificationException e) {
+            abort(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+        connectReady();
+        return true;
+    }
+
+    /**
+     * Called by {@link Peer} when it receives a block or a completed filtered block. Returns true if the block is part
+     * of this download, in which case the peer must not process it any further.
+     */
+    boolean blockReceived(Peer peer, @Nullable Block block, @Nullable FilteredBlock filteredBlock) {
+        Sha256Hash hash = block != null ? block.getHash() : Objects.requireNonNull(filteredBlock).getHash();
+        Instant now = TimeUtils.currentTime();
+        lock.lock();
+        try {
+            Entry entry = entriesByHash.get(hash);
+            if (entry == null)
+                return false;
+            PeerState state = peers.get(peer);
+            if (state != null && state.awaitingFilter) {
+                // Was requested before the filter was exhausted, so it might be missing transactions
+                return true;
+            }
+            if (entry.state != State.WAITING && entry.state != State.IN_FLIGHT)
+                return true; // duplicate
+            if (entry.state == State.IN_FLIGHT) {
+                PeerState requested = Objects.requireNonNull(entry.peer);
+                requested.inFlight--;
+                if (requested == state) {
+                    state.window.setRoundTripTime(peer.pingInterval().orElse(null));
+                    state.window.onDelivered(messageSize(block, filteredBlock),
+                            Duration.between(Objects.requireNonNull(entry.requestTime), now), now);
+                }
+            }
+            entry.state = State.RECEIVED;
+            entry.peer = null;
+            entry.requestTime = null;
+            entry.block = block;
+            entry.filteredBlock = filteredBlock;
+            entry.receivedFrom = peer;
+        } finally {
+            lock.unlock();
+        }
+        connectReady();
+        schedule();
+        return true;
+    }
+
+    private static int messageSize(@Nullable Block block, @Nullable FilteredBlock filteredBlock) {
+        if (block != null)
+            return block.messageSize();
+        int size = Objects.requireNonNull(filteredBlock).messageSize();
+        for (Transaction tx : filteredBlock.getAssociatedTransactions().values())
+            size += tx.messageSize();
+        return size;
+    }
+
+    /**
+     * Called by {@link Peer} after it sent a new Bloom filter to the remote peer. Once the peer acknowledged the filter
+     * with a pong, we request blocks from it again.
+     */
+    void filterSent(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (state == null || !state.awaitingFilter)
+                return;
+        } finally {
+            lock.unlock();
+        }
+        peer.sendPing().thenRun(() -> {
+            lock.lock();
+            try {
+                PeerState state = peers.get(peer);
+                if (state != null)
+                    state.awaitingFilter = false;
+                awaitingFilter = peers.values().stream().allMatch(s -> s.awaitingFilter);
+            } finally {
+                lock.unlock();
+            }
+            schedule();
+        });
+    }
+
+    /**
+     * Gives requests which are outstanding for longer than the stall timeout to other peers. Should be called
+     * periodically.
+     */
+    public void checkStalls() {
+        Instant cutoff = TimeUtils.currentTime().minus(stallTimeout);
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                if (entry.state == State.IN_FLIGHT && Objects.requireNonNull(entry.requestTime).isBefore(cutoff)) {
+                    log.info("{}: Request for block {} stalled, requesting it again", entry.peer.peer,
+                            entry.header.getHash());
+                    entry.peer.window.onStall();
+                    resetLocked(entry);
+                    stalls++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // Sends headers and block requests to peers that have room for them.
+    private void schedule() {
+        Map<Peer, List<InventoryItem>> requests = new LinkedHashMap<>();
+        Peer headersRequest = null;
+        Sha256Hash lastHeader = null;
+        lock.lock();
+        try {
+            if (future.isDone())
+                return;
+            if (headersPeer != null && !headersPeer.headersRequested && !headersDone &&
+                    entries.size() < HEADERS_LOW_WATER_MARK) {
+                headersPeer.headersRequested = true;
+                headersRequest = headersPeer.peer;
+                lastHeader = entries.isEmpty() ? null : entries.getLast().header.getHash();
+            }
+            if (!awaitingFilter) {
+                Instant now = TimeUtils.currentTime();
+                Iterator<Entry> it = entries.iterator();
+                for (int i = 0; i < MAX_BLOCKS_AHEAD && it.hasNext(); i++) {
+                    Entry entry = it.next();
+                    if (entry.state != State.WAITING)
+                        continue;
+                    PeerState state = leastBusyPeerLocked();
+                    if (state == null)
+                        break;
+                    state.inFlight++;
+                    entry.state = State.IN_FLIGHT;
+                    entry.peer = state;
+                    entry.requestTime = now;
+                    InventoryItem.Type type = useFilteredBlocks && state.peer.isBloomFilteringSupported() ?
+                            InventoryItem.Type.FILTERED_BLOCK : InventoryItem.Type.BLOCK;
+                    requests.computeIfAbsent(state.peer, p -> new ArrayList<>())
+                            .add(new InventoryItem(type, entry.header.getHash()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (headersRequest != null) {
+            BlockLocator locator = Peer.buildBlockLocator(chain);
+            if (lastHeader != null) {
+                List<Sha256Hash> hashes = new ArrayList<>(locator.size() + 1);
+                hashes.add(lastHeader);
+                hashes.addAll(locator.getHashes());
+                locator = new BlockLocator(hashes);
+            }
+            long protocolVersion = chain.params.getSerializer().getProtocolVersion();
+            headersRequest.sendMessage(new GetHeadersMessage(protocolVersion, locator, Sha256Hash.ZERO_HASH));
+        }
+        requests.forEach((peer, items) -> {
+            peer.sendMessage(new GetDataMessage(items));
+            // Filtered blocks are followed by their transactions, the pong marks the end of the last one.
+            if (items.get(0).type == InventoryItem.Type.FILTERED_BLOCK)
+                peer.sendMessage(Ping.random());
+        });
+    }
+
+    @Nullable
+    private PeerState leastBusyPeerLocked() {
+        // The peer with the largest share of its window still free
+        PeerState best = null;
+        double bestLoad = 1;
+        for (PeerState state : peers.values()) {
+            if (state.awaitingFilter)
+                continue;
+            double load = (double) state.inFlight / state.window.getSize();
+            if (load < bestLoad) {
+                best = state;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private void resetLocked(Entry entry) {
+        if (entry.state == State.IN_FLIGHT)
+            Objects.requireNonNull(entry.peer).inFlight--;
+        entry.state = State.WAITING;
+        entry.peer = null;
+        entry.requestTime = null;
+        entry.block = null;
+        entry.filteredBlock = null;
+        entry.receivedFrom = null;
+    }
+
+    // Adds the blocks at the front of the queue to the chain, as long as they are available. Only one thread does this
+    // at a time; a thread that finds another one busy leaves its block to that one.
+    private void connectReady() {
+        do {
+            if (!connectLock.tryLock())
+                return;
+            try {
+                Entry entry;
+                while ((entry = nextReady()) != null) {
+                    if (!connect(entry))
+                        return;
+                }
+                if (isFinished())
+                    future.complete(null);
+            } finally {
+                connectLock.unlock();
+            }
+        } while (isNextReady());
+    }
+
+    @Nullable
+    private Entry nextReady() {
+        lock.lock();
+        try {
+            if (future.isDone() || awaitingFilter)
+                return null;
+            Entry entry = entries.peekFirst();
+            if (entry == null || (entry.state != State.HEADER_ONLY && entry.state != State.RECEIVED))
+                return null;
+            entry.state = State.CONNECTING;
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isNextReady() {
+        lock.lock();
+        try {
+            Entry entry = entries.peekFirst();
+            return !future.isDone() && !awaitingFilter && entry != null &&
+                    (entry.state == State.HEADER_ONLY || entry.state == State.RECEIVED);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFinished() {
+        lock.lock();
+        try {
+            return headersDone && entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a block to the chain. Returns false if the download was stopped.
+    private boolean connect(Entry entry) {
+        Peer reportingPeer;
+        lock.lock();
+        try {
+            reportingPeer = headersPeer != null ? headersPeer.peer : entry.receivedFrom;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            boolean connected;
+            if (entry.filteredBlock != null) {
+                if (Objects.requireNonNull(entry.receivedFrom).checkForFilterExhaustion(entry.filteredBlock)) {
+                    filterExhausted(entry);
+                    return false;
+                }
+                connected = chain.add(entry.filteredBlock);
+            } else {
+                connected = chain.add(entry.block != null ? entry.block : entry.header);
+            }
+            if (!connected) {
+                abort(new VerificationException("Block " + entry.header.getHash() + " doesn't connect to the chain"));
+                return false;
+            }
+        } catch (VerificationException | PrunedException e) {
+            abort(e);
+            return false;
+        }
+        lock.lock();
+        try {
+            entries.pollFirst();
+            entriesByHash.remove(entry.header.getHash());
+            blocksConnected++;
+        } finally {
+            lock.unlock();
+        }
+        if (reportingPeer != null) {
+            reportingPeer.invokeOnBlocksDownloaded(entry.block != null ? entry.block : entry.header,
+                    entry.filteredBlock);
+        }
+        return true;
+    }
+
+    // The wallets need more keys and therefore a new Bloom filter, so the blocks from here on need to be downloaded
+    // again once it is sent. Requests from before are discarded.
+    private void filterExhausted(Entry entry) {
+        log.info("Bloom filter exhausted whilst processing block {}, waiting for a new filter", entry.header.getHash());
+        lock.lock();
+        try {
+            awaitingFilter = true;
+            for (PeerState state : peers.values())
+                state.awaitingFilter = true;
+            for (Entry e : entries) {
+                if (e.state != State.HEADER_ONLY)
+                    resetLocked(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void abort(Exception e) {
+        log.warn("Aborting parallel block download: {}", e.getMessage());
+        List<Peer> toDetach;
+        lock.lock();
+        try {
+            toDetach = new ArrayList<>(peers.keySet());
+        } finally {
+            lock.unlock();
+        }
+        future.completeExceptionally(e);
+        for (Peer peer : toDetach)
+            peer.setBlockDownloadScheduler(null);
+    }
+
+    /**
+     * Returns the number of blocks that may currently be requested at once from the given peer, or 0 if the peer is
+     * not part of this download.
+     */
+    public int getWindowSize(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            return state != null ? state.window.getSize() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the measured throughput of the given peer in bytes per second, or 0 if not yet known or the peer is not
+     * part of this download.
+     */
+    public double getThroughput(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            return state != null ? state.window.getThroughput() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of headers we know of that are not yet added to the chain. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of outstanding block requests across all peers. */
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (PeerState state : peers.values())
+                count += state.inFlight;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks added to the chain so far. */
+    public long getConnectedCount() {
+        lock.lock();
+        try {
+            return blocksConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of requests that were given to another peer because they stalled. */
+    public long getStallCount() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "BlockDownloadScheduler{peers=" + peers.size() + ", pending=" + entries.size() + ", connected=" +
+                    blocksConnected + ", stalls=" + stalls + "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
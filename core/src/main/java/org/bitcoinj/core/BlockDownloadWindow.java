@@ -0,0 +1,151 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Number of blocks that may be requested from a peer at once, adapted to the speed of the connection in a way
+ * similar to TCP congestion control.</p>
+ *
+ * <p>For each delivered block, the time it spent queueing is estimated as its request latency minus the round trip
+ * time of the peer. While that stays below the target queueing delay, the window grows: by one block per delivery
+ * until the slow start threshold is reached, and by one block per full window after that. Above the target, it shrinks
+ * by half a block per delivery, so a window's worth of slow deliveries halves it. A stalled request halves the window
+ * and the slow start threshold right away.</p>
+ *
+ * <p>The window is also capped to the number of blocks the peer can deliver, at its measured throughput, within its
+ * round trip time plus the target queueing delay. A fast link therefore keeps a deep pipeline, while a slow link
+ * doesn't accumulate requests that would only stall.</p>
+ *
+ * <p>Instances are not thread safe; {@link BlockDownloadScheduler} guards them with its lock.</p>
+ */
+public class BlockDownloadWindow {
+    /** Smallest window. */
+    public static final int MIN_SIZE = 1;
+    /** Largest window. */
+    public static final int MAX_SIZE = 128;
+    /** Default target for the time a request waits behind earlier requests. */
+    public static final Duration DEFAULT_TARGET_QUEUE_DELAY = Duration.ofSeconds(2);
+
+    // Weight of a new sample in the moving averages
+    private static final double SMOOTHING = 0.125;
+
+    private final Duration targetQueueDelay;
+    private double size;
+    private double slowStartThreshold = MAX_SIZE;
+    @Nullable private Duration roundTripTime;
+    @Nullable private Duration minLatency;
+    private double averageBlockSize;
+    private double throughput; // bytes per second
+    @Nullable private Instant lastDelivery;
+
+    /**
+     * Creates a window.
+     *
+     * @param initialSize      initial number of blocks that may be requested at once
+     * @param targetQueueDelay target for the time a request waits behind earlier requests
+     */
+    public BlockDownloadWindow(int initialSize, Duration targetQueueDelay) {
+        checkArgument(initialSize >= MIN_SIZE && initialSize <= MAX_SIZE, () ->
+                "initialSize out of range: " + initialSize);
+        checkArgument(!targetQueueDelay.isNegative(), () -> "targetQueueDelay must not be negative: " + targetQueueDelay);
+        this.size = initialSize;
+        this.targetQueueDelay = targetQueueDelay;
+    }
+
+    /**
+     * Sets the round trip time of the peer, usually its average ping time. Until it is known, the lowest latency of
+     * any delivered block is used instead.
+     */
+    public void setRoundTripTime(@Nullable Duration roundTripTime) {
+        this.roundTripTime = roundTripTime;
+    }
+
+    /**
+     * Adapts the window to a delivered block.
+     *
+     * @param bytes   size of the block
+     * @param latency time from requesting the block until it was received
+     * @param now     time the block was received
+     */
+    public void onDelivered(int bytes, Duration latency, Instant now) {
+        Objects.requireNonNull(latency);
+        averageBlockSize = averageBlockSize == 0 ? bytes : average(averageBlockSize, bytes);
+        if (lastDelivery != null) {
+            long intervalNanos = Math.max(Duration.between(lastDelivery, now).toNanos(), 1_000_000);
+            double rate = bytes * 1e9 / intervalNanos;
+            throughput = throughput == 0 ? rate : average(throughput, rate);
+        }
+        lastDelivery = now;
+        if (minLatency == null || latency.compareTo(minLatency) < 0)
+            minLatency = latency;
+
+        Duration baseLatency = baseLatency();
+        Duration queueDelay = latency.minus(baseLatency);
+        if (queueDelay.compareTo(targetQueueDelay) <= 0)
+            size += size < slowStartThreshold ? 1 : 1 / size;
+        else
+            size -= 0.5;
+
+        if (throughput > 0 && averageBlockSize > 0) {
+            double seconds = baseLatency.plus(targetQueueDelay).toNanos() / 1e9;
+            double deliverable = throughput * seconds / averageBlockSize;
+            size = Math.min(size, Math.max(MIN_SIZE, deliverable));
+        }
+        size = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+
+    /**
+     * Halves the window and the slow start threshold, because a request stalled.
+     */
+    public void onStall() {
+        size = Math.max(MIN_SIZE, size / 2);
+        slowStartThreshold = size;
+    }
+
+    private Duration baseLatency() {
+        if (roundTripTime != null)
+            return roundTripTime;
+        return minLatency != null ? minLatency : Duration.ZERO;
+    }
+
+    private static double average(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+
+    /** Returns the number of blocks that may currently be requested at once. */
+    public int getSize() {
+        return (int) size;
+    }
+
+    /** Returns the measured throughput in bytes per second, or 0 if not yet known. */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockDownloadWindow{size=" + getSize() + ", throughput=" + (long) throughput + " B/s, rtt=" +
+                baseLatency().toMillis() + " ms}";
+    }
+}
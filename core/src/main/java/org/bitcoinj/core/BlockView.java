@@ -0,0 +1,333 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.Buffers;
+
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.base.internal.Preconditions.check;
+
+/**
+ * <p>A lazily parsed view of a serialized {@link Block}. Reading a view only walks the transactions to record where
+ * each of them starts and where its witness data is, without creating any {@link Transaction},
+ * {@link TransactionInput} or {@link TransactionOutput} objects or copying any scripts. Transaction IDs are calculated
+ * by hashing the relevant slices of the original buffer in place, and transactions are only parsed when asked for.
+ * This makes it cheap to look at a large block when only the header, the IDs or a few of its transactions are of
+ * interest, e.g. to check the merkle root or to pick out the transactions relevant to a wallet.</p>
+ *
+ * <p>The view keeps a reference to the buffer it was read from, so its contents must not be changed afterwards.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class BlockView {
+    private final ByteBuffer payload;
+    private final Block header;
+    // True if the message was just a header, without even a transaction count.
+    private final boolean headerOnly;
+    // Offsets into payload. Transaction i spans offsets[i] (inclusive) to offsets[i + 1] (exclusive).
+    private final int[] offsets;
+    // Offsets of the witness data of each transaction, or -1 if it is serialized without witnesses.
+    private final int[] witnessOffsets;
+    private final Transaction[] transactions;
+    private final Sha256Hash[] txIds;
+    // Reused for all hashing of transaction IDs.
+    private final MessageDigest digest = Sha256Hash.newDigest();
+
+    private BlockView(ByteBuffer payload, Block header, boolean headerOnly, int[] offsets, int[] witnessOffsets) {
+        this.payload = payload;
+        this.header = header;
+        this.headerOnly = headerOnly;
+        this.offsets = offsets;
+        this.witnessOffsets = witnessOffsets;
+        this.transactions = new Transaction[witnessOffsets.length];
+        this.txIds = new Sha256Hash[witnessOffsets.length];
+    }
+
+    /**
+     * Read a view of a block message from a given payload. The payload's position is advanced past the block, but
+     * its content is referenced by the view rather than copied.
+     *
+     * @param payload payload to read from
+     * @return view of the block
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     * @throws ProtocolException if the message is not compliant with the protocol
+     */
+    public static BlockView read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        ByteBuffer view = payload.slice();
+        check(view.remaining() >= Block.HEADER_SIZE, BufferUnderflowException::new);
+        ByteBuffer headerBytes = view.duplicate();
+        ((Buffer) headerBytes).limit(Block.HEADER_SIZE);
+        Block header = Block.read(headerBytes);
+        ((Buffer) view).position(Block.HEADER_SIZE);
+        boolean headerOnly = !view.hasRemaining();
+        int[] offsets;
+        int[] witnessOffsets;
+        if (!headerOnly) {
+            VarInt numTransactionsVarInt = VarInt.read(view);
+            check(numTransactionsVarInt.fitsInt(), BufferUnderflowException::new);
+            int numTransactions = numTransactionsVarInt.intValue();
+            // Every transaction takes at least 10 bytes, so this bounds the allocation by the actual payload size.
+            check(numTransactions <= view.remaining() / 10, BufferUnderflowException::new);
+            offsets = new int[numTransactions + 1];
+            witnessOffsets = new int[numTransactions];
+            for (int i = 0; i < numTransactions; i++) {
+                offsets[i] = view.position();
+                witnessOffsets[i] = skipTransaction(view);
+            }
+            offsets[numTransactions] = view.position();
+        } else {
+            // just a header
+            offsets = new int[] { Block.HEADER_SIZE };
+            witnessOffsets = new int[0];
+        }
+        ((Buffer) view).flip();
+        Buffers.skipBytes(payload, view.limit());
+        return new BlockView(view, header, headerOnly, offsets, witnessOffsets);
+    }
+
+    /**
+     * Skips over a transaction, in the same way {@link Transaction#read(ByteBuffer)} would read it.
+     *
+     * @return offset of the witness data, or -1 if there is none
+     */
+    private static int skipTransaction(ByteBuffer buf) throws BufferUnderflowException, ProtocolException {
+        Buffers.skipBytes(buf, 4); // version
+        int witnessOffset = -1;
+        byte flags = 0;
+        long numInputs = skipInputs(buf);
+        if (numInputs == 0) {
+            // We read a dummy or an empty input
+            flags = buf.get();
+            if (flags != 0) {
+                numInputs = skipInputs(buf);
+                skipOutputs(buf);
+            }
+        } else {
+            skipOutputs(buf);
+        }
+        if ((flags & 1) != 0) {
+            flags ^= 1;
+            witnessOffset = buf.position();
+            boolean hasWitnesses = false;
+            for (long i = 0; i < numInputs; i++) {
+                long pushCount = readLength(buf);
+                hasWitnesses |= pushCount > 0;
+                for (long j = 0; j < pushCount; j++)
+                    Buffers.skipBytes(buf, readLength(buf));
+            }
+            if (!hasWitnesses)
+                throw new ProtocolException("Superfluous witness record");
+        }
+        if (flags != 0)
+            throw new ProtocolException("Unknown transaction optional data");
+        Buffers.skipBytes(buf, 4); // lock_time
+        return witnessOffset;
+    }
+
+    private static long skipInputs(ByteBuffer buf) throws BufferUnderflowException {
+        long numInputs = readLength(buf);
+        for (long i = 0; i < numInputs; i++) {
+            Buffers.skipBytes(buf, 36); // outpoint
+            Buffers.skipBytes(buf, readLength(buf)); // script
+            Buffers.skipBytes(buf, 4); // sequence
+        }
+        return numInputs;
+    }
+
+    private static void skipOutputs(ByteBuffer buf) throws BufferUnderflowException {
+        long numOutputs = readLength(buf);
+        for (long i = 0; i < numOutputs; i++) {
+            Buffers.skipBytes(buf, 8); // value
+            Buffers.skipBytes(buf, readLength(buf)); // script
+        }
+    }
+
+    private static int readLength(ByteBuffer buf) throws BufferUnderflowException {
+        VarInt length = VarInt.read(buf);
+        check(length.fitsInt(), BufferUnderflowException::new);
+        return length.intValue();
+    }
+
+    /**
+     * Returns the header of the block.
+     *
+     * @return header-only block
+     */
+    public Block getHeader() {
+        return header;
+    }
+
+    /** Returns the hash of the block, as calculated from its header. */
+    public Sha256Hash getHash() {
+        return header.getHash();
+    }
+
+    /** Returns true if the block contains at least one transaction. */
+    public boolean hasTransactions() {
+        return witnessOffsets.length > 0;
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return witnessOffsets.length;
+    }
+
+    /**
+     * Returns the serialized size of a transaction, including its witnesses.
+     *
+     * @param index position of the transaction in the block
+     * @return size in bytes
+     */
+    public int getTransactionSize(int index) {
+        checkIndex(index);
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Returns the ID of a transaction, calculated from the serialized transaction without parsing it.
+     *
+     * @param index position of the transaction in the block
+     * @return transaction ID
+     */
+    public Sha256Hash getTxId(int index) {
+        checkIndex(index);
+        Sha256Hash txId = txIds[index];
+        if (txId == null) {
+            int start = offsets[index];
+            int end = offsets[index + 1];
+            int witnessOffset = witnessOffsets[index];
+            if (witnessOffset < 0) {
+                update(start, end - start);
+            } else {
+                // Leave out the marker and flag bytes after the version, as well as the witnesses.
+                update(start, 4);
+                update(start + 6, witnessOffset - start - 6);
+                update(end - 4, 4);
+            }
+            txId = Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+            txIds[index] = txId;
+        }
+        return txId;
+    }
+
+    /**
+     * Returns the witness ID of a transaction, calculated from the serialized transaction without parsing it.
+     *
+     * @param index position of the transaction in the block
+     * @return witness transaction ID
+     */
+    public Sha256Hash getWTxId(int index) {
+        checkIndex(index);
+        if (witnessOffsets[index] < 0)
+            return getTxId(index);
+        update(offsets[index], offsets[index + 1] - offsets[index]);
+        return Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+    }
+
+    private void checkIndex(int index) {
+        check(index >= 0 && index < witnessOffsets.length, () -> new IndexOutOfBoundsException(
+                "index " + index + ", transactions " + witnessOffsets.length));
+    }
+
+    private void update(int offset, int length) {
+        if (payload.hasArray()) {
+            digest.update(payload.array(), payload.arrayOffset() + offset, length);
+        } else {
+            ByteBuffer slice = payload.duplicate();
+            ((Buffer) slice).limit(offset + length).position(offset);
+            digest.update(slice);
+        }
+    }
+
+    /**
+     * Returns a transaction of the block, parsing it on first access. The transaction ID calculated in place is
+     * handed to the transaction, so it doesn't have to serialize itself again to calculate it.
+     *
+     * @param index position of the transaction in the block
+     * @return transaction
+     * @throws ProtocolException if the transaction is not compliant with the protocol
+     */
+    public Transaction getTransaction(int index) throws ProtocolException {
+        checkIndex(index);
+        Transaction tx = transactions[index];
+        if (tx == null) {
+            ByteBuffer buf = payload.duplicate();
+            ((Buffer) buf).limit(offsets[index + 1]).position(offsets[index]);
+            tx = Transaction.read(buf);
+            tx.setCachedTxId(getTxId(index));
+            transactions[index] = tx;
+        }
+        return tx;
+    }
+
+    /**
+     * Calculates the merkle root from the transaction IDs, without parsing any transaction.
+     *
+     * @return merkle root, or {@link Sha256Hash#ZERO_HASH} if there are no transactions
+     */
+    public Sha256Hash calculateMerkleRoot() {
+        if (!hasTransactions())
+            return Sha256Hash.ZERO_HASH;
+        List<Sha256Hash> leaves = new ArrayList<>(witnessOffsets.length);
+        for (int i = 0; i < witnessOffsets.length; i++)
+            leaves.add(getTxId(i));
+        List<Sha256Hash> tree = Block.buildMerkleTree(leaves);
+        return tree.get(tree.size() - 1);
+    }
+
+    /**
+     * Checks the transactions of the block against the merkle root of its header, without parsing any transaction.
+     *
+     * @throws VerificationException if the merkle root doesn't match
+     */
+    public void verifyMerkleRoot() throws VerificationException {
+        Sha256Hash calculatedRoot = calculateMerkleRoot();
+        if (!calculatedRoot.equals(header.getMerkleRoot()))
+            throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " +
+                    header.getMerkleRoot());
+    }
+
+    /**
+     * Parses all remaining transactions and returns the full block.
+     *
+     * @return block with transactions, or just the header if the message had none
+     * @throws ProtocolException if a transaction is not compliant with the protocol
+     */
+    public Block toBlock() throws ProtocolException {
+        if (headerOnly)
+            return header;
+        List<Transaction> transactions = new ArrayList<>(witnessOffsets.length);
+        for (int i = 0; i < witnessOffsets.length; i++)
+            transactions.add(getTransaction(i));
+        return new Block(header.getVersion(), header.getPrevBlockHash(), header.getMerkleRoot(), header.time(),
+                header.difficultyTarget(), header.getNonce(), transactions);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockView{hash=" + getHash() + ", transactions=" + witnessOffsets.length + ", size=" +
+                payload.limit() + "}";
+    }
+}
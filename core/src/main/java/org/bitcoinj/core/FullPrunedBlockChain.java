@@ -25,7 +25,6 @@ import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
-import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
 import org.slf4j.Logger;
@@ -33,18 +32,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -67,6 +59,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    private final ScriptVerificationEngine scriptVerificationEngine;
+    // Whether the engine was created by this chain, and is therefore shut down by close().
+    private final boolean ownsScriptVerificationEngine;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -84,12 +80,32 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     }
 
     /**
-     * Constructs a block chain connected to the given list of wallets and a store.
+     * Constructs a block chain connected to the given list of wallets and a store. The chain verifies scripts on an
+     * engine of its own, which is shut down by {@link #close()}.
      */
     public FullPrunedBlockChain(NetworkParameters params, List<Wallet> listeners,
                                 FullPrunedBlockStore blockStore) throws BlockStoreException {
+        this(params, listeners, blockStore, new ScriptVerificationEngine(), true);
+    }
+
+    /**
+     * Constructs a block chain connected to the given list of wallets and a store, verifying scripts on the given
+     * engine. Use this to size the verification thread pool, or to share it between chains. The engine is not shut
+     * down by {@link #close()}, that is up to the caller.
+     */
+    public FullPrunedBlockChain(NetworkParameters params, List<Wallet> listeners,
+                                FullPrunedBlockStore blockStore,
+                                ScriptVerificationEngine scriptVerificationEngine) throws BlockStoreException {
+        this(params, listeners, blockStore, scriptVerificationEngine, false);
+    }
+
+    private FullPrunedBlockChain(NetworkParameters params, List<Wallet> listeners, FullPrunedBlockStore blockStore,
+                                 ScriptVerificationEngine scriptVerificationEngine,
+                                 boolean ownsScriptVerificationEngine) throws BlockStoreException {
         super(params, listeners, blockStore);
         this.blockStore = blockStore;
+        this.scriptVerificationEngine = Objects.requireNonNull(scriptVerificationEngine);
+        this.ownsScriptVerificationEngine = ownsScriptVerificationEngine;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
     }
@@ -131,40 +147,22 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    /**
+     * Shuts down the script verification engine, if it was created by this chain. The chain can't verify scripts
+     * anymore afterwards. The block store is not closed.
+     */
+    public void close() {
+        if (ownsScriptVerificationEngine)
+            scriptVerificationEngine.shutdown();
+    }
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    // TODO: Remove lots of duplicated code in the two connectTransactions
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Returns the engine that verifies scripts while connecting blocks, e.g. to read its counters.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
-
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInput(index).getScriptSig().correctlySpends(tx, index, null, null, prevOutIt.next(),
-                            verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
-        }
+    public ScriptVerificationEngine getScriptVerificationEngine() {
+        return scriptVerificationEngine;
     }
 
     /**
@@ -210,10 +208,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        ScriptVerificationEngine.Batch scriptVerification = scriptVerificationEngine.newBatch();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -237,6 +232,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
                 final List<Script> prevOutScripts = new LinkedList<>();
+                final List<Coin> prevOutValues = new LinkedList<>();
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -265,6 +261,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         }
 
                         prevOutScripts.add(prevOut.getScript());
+                        prevOutValues.add(prevOut.getValue());
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
@@ -296,29 +293,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
                 }
             }
             if (params.network().exceedsMaxMoney(totalFees) || getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.verify();
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -343,6 +325,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.Batch scriptVerification = scriptVerificationEngine.newBatch();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -360,9 +343,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -370,6 +350,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
                     final List<Script> prevOutScripts = new LinkedList<>();
+                    final List<Coin> prevOutValues = new LinkedList<>();
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -391,6 +372,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             // TODO: Enforce DER signature format
 
                             prevOutScripts.add(prevOut.getScript());
+                            prevOutValues.add(prevOut.getValue());
 
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -423,28 +405,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
 
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
                     }
                 }
                 if (params.network().exceedsMaxMoney(totalFees) || getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.verify();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -459,7 +426,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -0,0 +1,236 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.internal.FutureUtils;
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Verifies the checksums of received message payloads and parses them on a pool of worker threads, rather than on
+ * the network thread which read them. A large block then no longer stalls reading from every other connection that
+ * shares the network thread, and the messages of several connections, or several messages of one connection, are
+ * parsed in parallel.</p>
+ *
+ * <p>The payloads waiting to be decoded are bounded by their total size. Once that is exceeded, payloads are decoded
+ * directly on the calling network thread, which slows down reading until the workers catch up. The messages of each
+ * handler that are decoded but not yet processed are bounded by their number, see
+ * {@link #getMaxPendingMessages()}. Once that is reached, the handler stops reading from its connection, without
+ * holding up the network thread, until half of its messages have been processed.</p>
+ *
+ * <p>Set a decoder on a {@link PeerSocketHandler} or {@link PeerGroup} to use it; the handler takes care of
+ * processing the decoded messages in the order they were received. A decoder can be shared by many handlers, and
+ * should be {@link #shutdown()} when none of them is used any more.</p>
+ */
+public class MessageDecoder {
+    /** Default limit for the total size of payloads waiting to be decoded. */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+    /** Default limit for the number of messages of a handler that are handed to the decoder but not yet processed. */
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 1000;
+
+    private final ExecutorService executor;
+    private final long maxQueuedBytes;
+    private final int maxPendingMessages;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final LongAdder decodedMessages = new LongAdder();
+    private final LongAdder inlineMessages = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+
+    /**
+     * Creates a decoder with one worker thread per available processor.
+     */
+    public MessageDecoder() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Creates a decoder.
+     *
+     * @param threads        number of worker threads
+     * @param maxQueuedBytes limit for the total size of payloads waiting to be decoded
+     */
+    public MessageDecoder(int threads, long maxQueuedBytes) {
+        this(threads, maxQueuedBytes, DEFAULT_MAX_PENDING_MESSAGES);
+    }
+
+    /**
+     * Creates a decoder.
+     *
+     * @param threads            number of worker threads
+     * @param maxQueuedBytes     limit for the total size of payloads waiting to be decoded
+     * @param maxPendingMessages limit for the number of messages of a handler that are handed to the decoder but not
+     *                           yet processed
+     */
+    public MessageDecoder(int threads, long maxQueuedBytes, int maxPendingMessages) {
+        checkArgument(threads > 0, () -> "threads must be positive: " + threads);
+        checkArgument(maxQueuedBytes >= 0, () -> "maxQueuedBytes must not be negative: " + maxQueuedBytes);
+        checkArgument(maxPendingMessages > 0, () -> "maxPendingMessages must be positive: " + maxPendingMessages);
+        this.executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("MessageDecoder"));
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxPendingMessages = maxPendingMessages;
+    }
+
+    /**
+     * Verifies the checksum of a payload and parses it, usually on a worker thread. The payload is released to the
+     * given pool once it is parsed.
+     *
+     * @param serializer serializer to parse the payload with
+     * @param header     header of the message
+     * @param payload    payload of the message, which was taken from the pool
+     * @param pool       pool to release the payload to
+     * @return future for the parsed message
+     */
+    CompletableFuture<Message> decode(MessageSerializer serializer, BitcoinSerializer.BitcoinPacketHeader header,
+                                      ByteBuffer payload, ByteBufferPool pool) {
+        long submitted = System.nanoTime();
+        int size = payload.remaining();
+        long queued = queuedBytes.addAndGet(size);
+        // A single payload is always allowed to queue, so that even huge messages leave the network thread.
+        if (queued > maxQueuedBytes && queued != size) {
+            // Too much is waiting already, so decode right here
+            queuedBytes.addAndGet(-size);
+            return decodeInline(serializer, header, payload, pool, submitted);
+        }
+        queuedMessages.incrementAndGet();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                Message message = null;
+                Exception failure = null;
+                try {
+                    message = decodeNow(serializer, header, payload, pool, submitted);
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    // Before completing, because the message may be processed right away
+                    dequeue(size);
+                }
+                if (failure == null)
+                    future.complete(message);
+                else
+                    future.completeExceptionally(failure);
+            });
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            // We've been shut down, or a worker thread couldn't be started, e.g. because there is no context
+            dequeue(size);
+            return decodeInline(serializer, header, payload, pool, submitted);
+        } catch (RuntimeException | Error e) {
+            dequeue(size);
+            pool.release(payload);
+            throw e;
+        }
+        return future;
+    }
+
+    private void dequeue(int size) {
+        queuedBytes.addAndGet(-size);
+        queuedMessages.decrementAndGet();
+    }
+
+    private CompletableFuture<Message> decodeInline(MessageSerializer serializer,
+                                                    BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload,
+                                                    ByteBufferPool pool, long submitted) {
+        inlineMessages.increment();
+        try {
+            return CompletableFuture.completedFuture(decodeNow(serializer, header, payload, pool, submitted));
+        } catch (Exception e) {
+            return FutureUtils.failedFuture(e);
+        }
+    }
+
+    private Message decodeNow(MessageSerializer serializer, BitcoinSerializer.BitcoinPacketHeader header,
+                              ByteBuffer payload, ByteBufferPool pool, long submitted) throws ProtocolException {
+        long started = System.nanoTime();
+        try {
+            return serializer.deserializePayload(header, payload);
+        } finally {
+            pool.release(payload);
+            long finished = System.nanoTime();
+            decodeNanos.add(finished - started);
+            latencyNanos.add(finished - submitted);
+            decodedMessages.increment();
+        }
+    }
+
+    /**
+     * Stops the worker threads. Payloads which are already queued are still decoded, later ones are decoded on the
+     * calling thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the limit for the number of messages of a handler that are handed to the decoder but not yet processed.
+     */
+    public int getMaxPendingMessages() {
+        return maxPendingMessages;
+    }
+
+    /** Returns the number of payloads waiting for a worker thread or being decoded by one. */
+    public int getQueueDepth() {
+        return queuedMessages.get();
+    }
+
+    /** Returns the total size of the payloads waiting for a worker thread or being decoded by one, in bytes. */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** Returns the number of decoded payloads, including those that were decoded on the calling thread. */
+    public long getDecodedCount() {
+        return decodedMessages.sum();
+    }
+
+    /** Returns the number of payloads that were decoded on the calling thread, because too much was queued. */
+    public long getInlineCount() {
+        return inlineMessages.sum();
+    }
+
+    /** Returns the average time from handing a payload to the decoder until it was decoded, including queueing. */
+    public Duration getAverageLatency() {
+        long count = decodedMessages.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(latencyNanos.sum() / count);
+    }
+
+    /** Returns the average time it took to verify and parse a payload. */
+    public Duration getAverageDecodeTime() {
+        long count = decodedMessages.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(decodeNanos.sum() / count);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageDecoder{queued=" + getQueueDepth() + ", queuedBytes=" + getQueuedBytes() + ", decoded=" +
+                getDecodedCount() + ", inline=" + getInlineCount() + ", avgLatency=" + getAverageLatency() +
+                ", avgDecode=" + getAverageDecodeTime() + "}";
+    }
+}
@@ -18,8 +18,12 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
@@ -124,5 +128,29 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Writes message into buffers obtained from the given pool, ready to be written to the network. The default
+     * implementation serializes to a byte array first; implementations should serialize directly into the buffers.
+     *
+     * @param message message to serialize
+     * @param pool pool to obtain the buffers from
+     * @return buffers which together hold the serialized message, each flipped for reading
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public ByteBuffer[] serialize(Message message, ByteBufferPool pool) throws UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            serialize(message, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen
+        }
+        ByteBuffer buf = pool.acquire(out.size());
+        buf.put(out.toByteArray());
+        ((Buffer) buf).flip();
+        return new ByteBuffer[] { buf };
+    }
 }
@@ -111,6 +111,9 @@ public class Peer extends PeerSocketHandler {
     // primary peer. This is to avoid redundant work and concurrency problems with downloading the same chain
     // in parallel.
     private volatile boolean vDownloadData;
+    // If set, blocks, filtered blocks and headers that are part of a parallel chain download are handed to it instead
+    // of being processed here.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // The version data to announce to the other side of the connections we make: useful for setting our "user agent"
     // equivalent and other things.
     private final VersionMessage versionMessage;
@@ -618,6 +621,9 @@ public class Peer extends PeerSocketHandler {
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
         // request the full blocks from that point on instead.
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.headersReceived(this, m))
+            return;
         boolean downloadBlockBodies;
         Instant fastCatchupTime;
 
@@ -943,6 +949,9 @@ public class Peer extends PeerSocketHandler {
         }
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m, m.getHash())) return;
+        // Was this block requested as part of a parallel chain download?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m, null)) return;
         if (blockChain == null) {
             if (log.isDebugEnabled())
                 log.debug("Received block but was not configured with an AbstractBlockChain");
@@ -1004,6 +1013,8 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, null, m)) return;
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1101,7 +1112,7 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    private boolean checkForFilterExhaustion(FilteredBlock m) {
+    boolean checkForFilterExhaustion(FilteredBlock m) {
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
             exhausted |= wallet.checkForFilterExhaustion(m);
@@ -1122,7 +1133,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1441,7 +1452,7 @@ public class Peer extends PeerSocketHandler {
         sendMessage(message);
     }
 
-    private static BlockLocator buildBlockLocator(AbstractBlockChain blockChain) {
+    static BlockLocator buildBlockLocator(AbstractBlockChain blockChain) {
         BlockStore store = Objects.requireNonNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
         List<Sha256Hash> hashList = new ArrayList<>(100);
@@ -1471,9 +1482,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(() -> registration.listener.onChainDownloadStarted(Peer.this, blocksLeft));
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1484,6 +1493,32 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Starts a download of the block chain from several peers, using the given scheduler with this peer as the
+     * headers peer. This peer itself doesn't download data while the scheduler is running.
+     */
+    void startBlockChainDownload(BlockDownloadScheduler scheduler) {
+        setDownloadData(false);
+        final int blocksLeft = getPeerBlockHeightDifference();
+        if (blocksLeft >= 0)
+            invokeOnChainDownloadStarted(blocksLeft);
+        scheduler.setHeadersPeer(this);
+    }
+
+    /**
+     * Sets the scheduler of a parallel chain download this peer takes part in, or {@code null} once the download is
+     * over. Blocks, filtered blocks and headers that belong to the download are handed to the scheduler.
+     */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
+    }
+
+    private void invokeOnChainDownloadStarted(int blocksLeft) {
+        for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
+            registration.executor.execute(() -> registration.listener.onChainDownloadStarted(Peer.this, blocksLeft));
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public final CompletableFuture<Duration> future;
@@ -1732,6 +1767,9 @@ public class Peer extends PeerSocketHandler {
             sendMessage(filter);
             if (andQueryMemPool)
                 sendMessage(new MemoryPoolMessage());
+            BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+            if (scheduler != null)
+                scheduler.filterSent(this);
             maybeRestartChainDownload();
         } else {
             log.info("{}: Peer does not support bloom filtering.", this);
@@ -1808,6 +1846,13 @@ public class Peer extends PeerSocketHandler {
         vDownloadTxDependencyDepth = depth;
     }
 
+    /**
+     * Returns true if the peer supports bloom filtering according to BIP37 and BIP111.
+     */
+    boolean isBloomFilteringSupported() {
+        return isBloomFilteringSupported(vPeerVersionMessage);
+    }
+
     /**
      * Returns true if the peer supports bloom filtering according to BIP37 and BIP111.
      */
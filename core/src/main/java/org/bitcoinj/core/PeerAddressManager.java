@@ -0,0 +1,583 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.utils.ExponentialBackoff;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Keeps track of the addresses of peers we know of, so that a restarted {@link PeerGroup} can connect to known good
+ * peers right away, instead of waiting for peer discovery. The table is organized like the address manager of Bitcoin
+ * Core.</p>
+ *
+ * <p>Addresses learned from peer discovery or from {@code addr}/{@code addrv2} gossip go to one of the "new" buckets,
+ * chosen by the network group of the address and the network group of the peer that told us about it. Once we
+ * connected to an address successfully, it moves to one of the "tried" buckets, chosen by its own network group.
+ * Buckets have a fixed size, so a single peer or network can only ever fill a small part of the table. The placement
+ * is keyed by a random secret, so it can't be predicted by others.</p>
+ *
+ * <p>The table can be backed by a file, which is read when the manager is created and written by {@link #save()}.
+ * Along with the addresses, it stores the time of the last successful connection and the {@link ExponentialBackoff}
+ * state of each address.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ */
+public class PeerAddressManager {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressManager.class);
+
+    /** Number of buckets for addresses we haven't connected to yet. */
+    public static final int NEW_BUCKET_COUNT = 256;
+    /** Number of buckets for addresses we connected to successfully. */
+    public static final int TRIED_BUCKET_COUNT = 64;
+    /** Number of addresses per bucket. */
+    public static final int BUCKET_SIZE = 64;
+    /** Addresses not seen for longer than this are evicted first. */
+    public static final Duration HORIZON = Duration.ofDays(30);
+    /** Back off used by default, the same as the one {@link PeerGroup} uses. */
+    public static final ExponentialBackoff.Params DEFAULT_BACKOFF_PARAMS =
+            new ExponentialBackoff.Params(Duration.ofSeconds(1), 1.5f, Duration.ofMinutes(10));
+
+    // Number of new buckets the addresses of one source group can spread over
+    private static final int NEW_BUCKETS_PER_SOURCE_GROUP = 64;
+    // Number of tried buckets the addresses of one group can spread over
+    private static final int TRIED_BUCKETS_PER_GROUP = 8;
+    // Addresses we never connected to are evicted first after this many failed attempts
+    private static final int MAX_FAILURES = 3;
+
+    private static final byte[] FILE_MAGIC = "bitcoinj-peers-1".getBytes(StandardCharsets.US_ASCII);
+    private static final int KEY_LENGTH = 32;
+
+    private final ReentrantLock lock = Threading.lock(PeerAddressManager.class);
+    @Nullable private final File file;
+    private final ExponentialBackoff.Params backoffParams;
+    private final byte[] key;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    @GuardedBy("lock") private final List<List<Entry>> newBuckets = buckets(NEW_BUCKET_COUNT);
+    @GuardedBy("lock") private final List<List<Entry>> triedBuckets = buckets(TRIED_BUCKET_COUNT);
+
+    private static class Entry {
+        PeerAddress address;
+        final byte[] sourceGroup;
+        boolean tried;
+        int bucket;
+        @Nullable Instant lastSuccess;
+        @Nullable Instant lastAttempt;
+        int failures;
+        ExponentialBackoff backoff;
+
+        Entry(PeerAddress address, byte[] sourceGroup, ExponentialBackoff backoff) {
+            this.address = address;
+            this.sourceGroup = sourceGroup;
+            this.backoff = backoff;
+        }
+
+        // Worth evicting before anything else
+        boolean isTerrible(Instant now) {
+            if (address.time().isBefore(now.minus(HORIZON)))
+                return true;
+            return lastSuccess == null && failures >= MAX_FAILURES;
+        }
+    }
+
+    /**
+     * Creates a manager that is kept in memory only.
+     */
+    public PeerAddressManager() {
+        this(null, DEFAULT_BACKOFF_PARAMS);
+    }
+
+    /**
+     * Creates a manager backed by the given file. If the file exists, the addresses are read from it. If it can't be
+     * read, the manager starts out empty and the file will be overwritten by {@link #save()}.
+     *
+     * @param file file to read the addresses from and write them to
+     */
+    public PeerAddressManager(File file) {
+        this(Objects.requireNonNull(file), DEFAULT_BACKOFF_PARAMS);
+    }
+
+    /**
+     * Creates a manager, optionally backed by a file.
+     *
+     * @param file          file to read the addresses from and write them to, or {@code null} to keep them in memory
+     * @param backoffParams back off for connection attempts to each address
+     */
+    public PeerAddressManager(@Nullable File file, ExponentialBackoff.Params backoffParams) {
+        this.file = file;
+        this.backoffParams = Objects.requireNonNull(backoffParams);
+        ByteBuffer buf = null;
+        byte[] key = null;
+        if (file != null && file.exists()) {
+            try {
+                buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                key = readHeader(buf);
+            } catch (IOException | BufferUnderflowException | ProtocolException e) {
+                log.warn("Could not read peer addresses from {}, starting over: {}", file, e.toString());
+                buf = null;
+            }
+        }
+        if (key == null) {
+            key = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+        }
+        this.key = key;
+        if (buf != null) {
+            lock.lock();
+            try {
+                readEntries(buf);
+                log.info("Read {} peer addresses from {}", entries.size(), file);
+            } catch (BufferUnderflowException | ProtocolException e) {
+                log.warn("Could not read peer addresses from {}, starting over: {}", file, e.toString());
+                clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds an address we learned about, or updates the time it was last seen if we already know it.
+     *
+     * @param address address to add
+     * @param source  peer that told us about the address, or {@code null} if it comes from peer discovery
+     * @return true if the address was added, false if it was known already or is of an unsupported type
+     */
+    public boolean add(PeerAddress address, @Nullable PeerAddress source) {
+        if (!isSupported(address))
+            return false;
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry != null) {
+                if (address.time().isAfter(entry.address.time()))
+                    entry.address = address;
+                return false;
+            }
+            entry = new Entry(address, source != null ? group(source) : new byte[0],
+                    new ExponentialBackoff(backoffParams));
+            placeNew(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we are trying to connect to the given address. */
+    public void markAttempt(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry != null)
+                entry.lastAttempt = TimeUtils.currentTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that we connected to the given address successfully. The address moves to the tried buckets, and its
+     * back off is reset.
+     */
+    public void markGood(PeerAddress address) {
+        if (!isSupported(address))
+            return;
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null) {
+                add(address, address);
+                entry = entries.get(address.toSocketAddress());
+                if (entry == null)
+                    return;
+            }
+            entry.lastSuccess = TimeUtils.currentTime();
+            entry.failures = 0;
+            entry.backoff.trackSuccess();
+            if (!entry.tried) {
+                newBuckets.get(entry.bucket).remove(entry);
+                placeTried(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we could not connect to the given address. Its back off is increased. */
+    public void markFailed(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry != null) {
+                entry.failures++;
+                entry.backoff.trackFailure();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns addresses to connect to, best first: the addresses from the tried buckets by most recent successful
+     * connection, then the addresses from the new buckets by most recently seen. Addresses that keep failing or
+     * weren't seen for a long time are left out.
+     *
+     * @param maxCount maximum number of addresses to return
+     * @return addresses to connect to
+     */
+    public List<PeerAddress> getAddresses(int maxCount) {
+        Instant now = TimeUtils.currentTime();
+        List<Entry> tried = new ArrayList<>();
+        List<Entry> fresh = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                if (entry.tried)
+                    tried.add(entry);
+                else if (!entry.isTerrible(now))
+                    fresh.add(entry);
+            }
+            tried.sort(Comparator.comparing((Entry e) -> e.lastSuccess).reversed());
+            fresh.sort(Comparator.comparing((Entry e) -> e.address.time()).reversed());
+            List<PeerAddress> result = new ArrayList<>(Math.min(maxCount, tried.size() + fresh.size()));
+            for (Entry entry : tried) {
+                if (result.size() >= maxCount)
+                    return result;
+                result.add(entry.address);
+            }
+            for (Entry entry : fresh) {
+                if (result.size() >= maxCount)
+                    return result;
+                result.add(entry.address);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the back off of connection attempts to the given address, or {@code null} if the address is
+     * not known.
+     */
+    @Nullable
+    public ExponentialBackoff getBackoff(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null)
+                return null;
+            return new ExponentialBackoff(backoffParams, entry.backoff.backoff(), entry.backoff.retryTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the time we last connected to the given address successfully, or {@code null} if we never did or the
+     * address is not known.
+     */
+    @Nullable
+    public Instant getLastSuccess(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry != null ? entry.lastSuccess : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of known addresses. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses we connected to successfully. */
+    public int getTriedCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (List<Entry> bucket : triedBuckets)
+                count += bucket.size();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the addresses to the file this manager is backed by, replacing it atomically. Does nothing if the
+     * manager is kept in memory only.
+     *
+     * @throws IOException if the file could not be written
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        byte[] bytes;
+        lock.lock();
+        try {
+            bytes = write();
+        } finally {
+            lock.unlock();
+        }
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            raf.write(bytes);
+            raf.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @GuardedBy("lock")
+    private void placeNew(Entry entry) {
+        int bucketIndex = newBucket(entry.address, entry.sourceGroup);
+        List<Entry> bucket = newBuckets.get(bucketIndex);
+        if (bucket.size() >= BUCKET_SIZE) {
+            Instant now = TimeUtils.currentTime();
+            Entry victim = null;
+            for (Entry candidate : bucket) {
+                if (candidate.isTerrible(now)) {
+                    victim = candidate;
+                    break;
+                }
+                if (victim == null || candidate.address.time().isBefore(victim.address.time()))
+                    victim = candidate;
+            }
+            bucket.remove(victim);
+            entries.remove(victim.address.toSocketAddress());
+        }
+        entry.tried = false;
+        entry.bucket = bucketIndex;
+        bucket.add(entry);
+        entries.put(entry.address.toSocketAddress(), entry);
+    }
+
+    @GuardedBy("lock")
+    private void placeTried(Entry entry) {
+        int bucketIndex = triedBucket(entry.address);
+        List<Entry> bucket = triedBuckets.get(bucketIndex);
+        if (bucket.size() >= BUCKET_SIZE) {
+            // Make room by moving the address we least recently connected to back to the new buckets
+            Entry oldest = null;
+            for (Entry candidate : bucket) {
+                if (oldest == null || candidate.lastSuccess.isBefore(oldest.lastSuccess))
+                    oldest = candidate;
+            }
+            bucket.remove(oldest);
+            placeNew(oldest);
+        }
+        entry.tried = true;
+        entry.bucket = bucketIndex;
+        bucket.add(entry);
+        entries.put(entry.address.toSocketAddress(), entry);
+    }
+
+    private int newBucket(PeerAddress address, byte[] sourceGroup) {
+        long hash1 = hash(group(address), sourceGroup) % NEW_BUCKETS_PER_SOURCE_GROUP;
+        return (int) (hash(sourceGroup, ByteBuffer.allocate(Long.BYTES).putLong(hash1).array()) % NEW_BUCKET_COUNT);
+    }
+
+    private int triedBucket(PeerAddress address) {
+        long hash1 = hash(identity(address)) % TRIED_BUCKETS_PER_GROUP;
+        return (int) (hash(group(address), ByteBuffer.allocate(Long.BYTES).putLong(hash1).array()) % TRIED_BUCKET_COUNT);
+    }
+
+    private long hash(byte[]... parts) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(key);
+        for (byte[] part : parts) {
+            digest.update((byte) part.length);
+            digest.update(part);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong() & Long.MAX_VALUE;
+    }
+
+    // The network group of an address: the /16 of IPv4 addresses, the /32 of IPv6 addresses and the whole address of
+    // onion addresses.
+    @VisibleForTesting
+    static byte[] group(PeerAddress address) {
+        InetAddress addr = address.getAddr();
+        if (addr instanceof Inet4Address) {
+            byte[] bytes = addr.getAddress();
+            return new byte[] { 4, bytes[0], bytes[1] };
+        } else if (addr instanceof Inet6Address) {
+            byte[] bytes = addr.getAddress();
+            return new byte[] { 6, bytes[0], bytes[1], bytes[2], bytes[3] };
+        } else {
+            return identity(address);
+        }
+    }
+
+    private static byte[] identity(PeerAddress address) {
+        byte[] host = address.getAddr() != null ? address.getAddr().getAddress() :
+                address.getHostname().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(host.length + 2).put(host).putShort((short) address.getPort()).array();
+    }
+
+    // Only addresses that can be written as addrv2 are kept
+    private static boolean isSupported(PeerAddress address) {
+        if (address.getAddr() != null)
+            return true;
+        String hostname = address.getHostname();
+        return hostname != null && hostname.toLowerCase(Locale.ROOT).endsWith(".onion");
+    }
+
+    private static List<List<Entry>> buckets(int count) {
+        List<List<Entry>> buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            buckets.add(new ArrayList<>(0));
+        return buckets;
+    }
+
+    @GuardedBy("lock")
+    private void clear() {
+        entries.clear();
+        for (List<Entry> bucket : newBuckets)
+            bucket.clear();
+        for (List<Entry> bucket : triedBuckets)
+            bucket.clear();
+    }
+
+    // File format, big endian:
+    //   magic
+    //   32 bytes key
+    //   4 bytes number of entries
+    //   for each entry:
+    //     2 bytes length, address in addrv2 format
+    //     1 byte tried flag
+    //     1 byte length, source group
+    //     8 bytes last success in millis, or -1
+    //     8 bytes last attempt in millis, or -1
+    //     4 bytes failures
+    //     8 bytes back off interval in millis
+    //     8 bytes retry time in millis
+    @GuardedBy("lock")
+    private byte[] write() {
+        List<byte[]> addresses = new ArrayList<>(entries.size());
+        int size = FILE_MAGIC.length + KEY_LENGTH + Integer.BYTES;
+        for (Entry entry : entries.values()) {
+            byte[] address = entry.address.serialize(2);
+            addresses.add(address);
+            size += Short.BYTES + address.length + 1 + 1 + entry.sourceGroup.length + 4 * Long.BYTES + Integer.BYTES;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(FILE_MAGIC);
+        buf.put(key);
+        buf.putInt(entries.size());
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            byte[] address = addresses.get(i++);
+            buf.putShort((short) address.length);
+            buf.put(address);
+            buf.put((byte) (entry.tried ? 1 : 0));
+            buf.put((byte) entry.sourceGroup.length);
+            buf.put(entry.sourceGroup);
+            buf.putLong(entry.lastSuccess != null ? entry.lastSuccess.toEpochMilli() : -1);
+            buf.putLong(entry.lastAttempt != null ? entry.lastAttempt.toEpochMilli() : -1);
+            buf.putInt(entry.failures);
+            buf.putLong(entry.backoff.backoff().toMillis());
+            buf.putLong(entry.backoff.retryTime().toEpochMilli());
+        }
+        return buf.array();
+    }
+
+    // Returns the key
+    private static byte[] readHeader(ByteBuffer buf) throws ProtocolException, BufferUnderflowException {
+        byte[] magic = new byte[FILE_MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, FILE_MAGIC))
+            throw new ProtocolException("not a peer address file");
+        byte[] key = new byte[KEY_LENGTH];
+        buf.get(key);
+        return key;
+    }
+
+    @GuardedBy("lock")
+    private void readEntries(ByteBuffer buf) throws ProtocolException, BufferUnderflowException {
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] addressBytes = new byte[buf.getShort() & 0xffff];
+            buf.get(addressBytes);
+            PeerAddress address = PeerAddress.read(ByteBuffer.wrap(addressBytes), 2);
+            boolean tried = buf.get() != 0;
+            byte[] sourceGroup = new byte[buf.get() & 0xff];
+            buf.get(sourceGroup);
+            long lastSuccess = buf.getLong();
+            long lastAttempt = buf.getLong();
+            int failures = buf.getInt();
+            Duration backoff = Duration.ofMillis(buf.getLong());
+            Instant retryTime = Instant.ofEpochMilli(buf.getLong());
+            if (!isSupported(address) || entries.containsKey(address.toSocketAddress()))
+                continue;
+            Entry entry = new Entry(address, sourceGroup, new ExponentialBackoff(backoffParams, backoff, retryTime));
+            entry.lastSuccess = lastSuccess >= 0 ? Instant.ofEpochMilli(lastSuccess) : null;
+            entry.lastAttempt = lastAttempt >= 0 ? Instant.ofEpochMilli(lastAttempt) : null;
+            entry.failures = failures;
+            if (tried && entry.lastSuccess != null)
+                placeTried(entry);
+            else
+                placeNew(entry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerAddressManager{" + size() + " addresses, " + getTriedCount() + " tried" +
+                (file != null ? ", file=" + file : "") + "}";
+    }
+}
@@ -33,6 +33,7 @@ import org.bitcoinj.core.listeners.AddressEventListener;
 import org.bitcoinj.core.listeners.BlockchainDownloadEventListener;
 import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
 import org.bitcoinj.core.listeners.ChainDownloadStartedEventListener;
+import org.bitcoinj.core.listeners.DownloadPeerSwitchedEventListener;
 import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.core.listeners.GetDataEventListener;
 import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
@@ -43,6 +44,7 @@ import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
 import org.bitcoinj.net.ClientConnectionManager;
 import org.bitcoinj.net.FilterMerger;
 import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.net.VirtualThreadClientManager;
 import org.bitcoinj.net.discovery.MultiplexingDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscoveryException;
@@ -71,6 +73,7 @@ import java.net.SocketAddress;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -84,6 +87,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.OptionalLong;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -176,6 +180,9 @@ public class PeerGroup implements TransactionBroadcaster {
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
         = new CopyOnWriteArrayList<>();
+    /** Callbacks for the chain download being moved away from a slow peer */
+    private final CopyOnWriteArrayList<ListenerRegistration<DownloadPeerSwitchedEventListener>> downloadPeerSwitchedEventListeners
+        = new CopyOnWriteArrayList<>();
     /** Callbacks for events related to peers connecting */
     protected final CopyOnWriteArrayList<ListenerRegistration<PeerConnectedEventListener>> peerConnectedEventListeners
         = new CopyOnWriteArrayList<>();
@@ -194,6 +201,11 @@ public class PeerGroup implements TransactionBroadcaster {
         = new CopyOnWriteArrayList<>();
     // Discover peers via addr and addrv2 messages?
     private volatile boolean vDiscoverPeersViaP2P = false;
+    // Remembers peer addresses across restarts
+    @Nullable private volatile PeerAddressManager vAddressManager;
+    // Maximum number of addresses taken from the address manager as candidates for connections
+    private static final int MAX_ADDRESSES_FROM_ADDRESS_MANAGER = 1000;
+    private static final Duration ADDRESS_MANAGER_SAVE_INTERVAL = Duration.ofMinutes(5);
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private final CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
 
@@ -312,6 +324,13 @@ public class PeerGroup implements TransactionBroadcaster {
          */
         @Override
         public void onAddr(Peer peer, AddressMessage message) {
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null) {
+                for (PeerAddress address : message.getAddresses()) {
+                    if (address.getServices().has(requiredServices))
+                        addressManager.add(address, peer.getAddress());
+                }
+            }
             if (!vDiscoverPeersViaP2P)
                 return;
             List<PeerAddress> addresses = new LinkedList<>(message.getAddresses());
@@ -368,6 +387,24 @@ public class PeerGroup implements TransactionBroadcaster {
     public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
     private volatile Duration vConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
 
+    /** How long connection attempts may be pending before another address is raced against them */
+    public static final Duration CONNECTION_RACE_DELAY = Duration.ofMillis(250);
+    // Connection attempts allowed on top of the missing connections, see setConnectionRaceWidth()
+    private volatile int vConnectionRaceWidth = 0;
+    // Pending connection attempts started to fill up the connections, which are cancelled once there are enough peers
+    @GuardedBy("lock") private final Set<Peer> racingPeers = new HashSet<>();
+    // Connection attempts that were cancelled, which are not counted as failures
+    @GuardedBy("lock") private final Set<Peer> cancelledPeers = new HashSet<>();
+
+    /** Decoder which parses received messages off the network thread, if any */
+    @Nullable private volatile MessageDecoder vMessageDecoder;
+
+    /** Whether to download the chain from all peers at once */
+    private volatile boolean vParallelBlockDownload = false;
+    // The running parallel chain download, if any, and the task which checks it for stalled requests
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler blockDownloadScheduler;
+    @Nullable @GuardedBy("lock") private ScheduledFuture<?> blockDownloadStallTask;
+
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
@@ -391,6 +428,17 @@ public class PeerGroup implements TransactionBroadcaster {
         this(network, chain, new NioClientManager());
     }
 
+    /**
+     * Creates a PeerGroup for the given network and chain, which connects to peers with blocking I/O on one virtual
+     * thread per connection, rather than with non-blocking I/O. See {@link VirtualThreadClientManager}.
+     * @param network the P2P network to connect to
+     * @param chain used to process blocks
+     * @return new PeerGroup
+     */
+    public static PeerGroup newWithVirtualThreads(Network network, @Nullable AbstractBlockChain chain) {
+        return new PeerGroup(network, chain, new VirtualThreadClientManager());
+    }
+
     /**
      * Create a PeerGroup for the given network, chain and connection manager.
      * @param network the P2P network to connect to
@@ -555,6 +603,9 @@ public class PeerGroup implements TransactionBroadcaster {
                     return;
                 }
 
+                if (!isConnectionNeeded())
+                    return;
+
                 boolean havePeerWeCanTry = !inactives.isEmpty() && backoffMap.get(inactives.peek()).retryTime().isBefore(now);
                 doDiscovery = !havePeerWeCanTry;
             } finally {
@@ -610,16 +661,50 @@ public class PeerGroup implements TransactionBroadcaster {
                     executor.schedule(this, delay.toMillis(), TimeUnit.MILLISECONDS);
                     return;
                 }
-                connectTo(addrToTry, false, vConnectTimeout);
+                Peer peer = connectTo(addrToTry, false, vConnectTimeout);
+                if (peer != null)
+                    racingPeers.add(peer);
             } finally {
                 lock.unlock();
             }
             if (countConnectedAndPendingPeers() < getMaxConnections()) {
                 executor.execute(this);   // Try next peer immediately.
+            } else if (vConnectionRaceWidth > 0) {
+                // Race another peer if none of the pending attempts completed by then.
+                executor.schedule(this, CONNECTION_RACE_DELAY.toMillis(), TimeUnit.MILLISECONDS);
             }
         }
     };
 
+    // Whether to start another connection attempt: we need more peers, and there are less pending attempts than
+    // needed plus the race width.
+    @GuardedBy("lock")
+    private boolean isConnectionNeeded() {
+        int connected = peers.size();
+        return connected < maxConnections && connected + pendingPeers.size() < maxConnections + vConnectionRaceWidth;
+    }
+
+    /**
+     * <p>Sets how many connection attempts may be made on top of those needed to reach the maximum number of
+     * connections. Whenever connection attempts are pending for {@link #CONNECTION_RACE_DELAY} without any of them
+     * completing, another address is tried alongside, up to the given number of extra attempts. Once there are enough
+     * peers, the attempts still pending are cancelled, without counting as failures of their addresses. This way,
+     * addresses that don't respond don't hold up building the set of peers until the connect timeout.</p>
+     *
+     * <p>Defaults to 0, meaning there are never more attempts than needed.</p>
+     *
+     * @param connectionRaceWidth number of extra connection attempts
+     */
+    public void setConnectionRaceWidth(int connectionRaceWidth) {
+        checkArgument(connectionRaceWidth >= 0, () -> "connectionRaceWidth must not be negative: " + connectionRaceWidth);
+        this.vConnectionRaceWidth = connectionRaceWidth;
+    }
+
+    /** Returns the number of extra connection attempts, see {@link #setConnectionRaceWidth(int)}. */
+    public int getConnectionRaceWidth() {
+        return vConnectionRaceWidth;
+    }
+
     private void triggerConnections() {
         // Run on a background thread due to the need to potentially retry and back off in the background.
         if (!executor.isShutdown())
@@ -767,6 +852,19 @@ public class PeerGroup implements TransactionBroadcaster {
             peer.addChainDownloadStartedEventListener(executor, listener);
     }
 
+    /** See {@link PeerGroup#addDownloadPeerSwitchedEventListener(Executor, DownloadPeerSwitchedEventListener)} */
+    public void addDownloadPeerSwitchedEventListener(DownloadPeerSwitchedEventListener listener) {
+        addDownloadPeerSwitchedEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * <p>Adds a listener that will be notified on the given executor when the chain download is moved away from a
+     * peer that serves the block chain too slowly. See {@link #setStallThreshold(int, int)}.</p>
+     */
+    public void addDownloadPeerSwitchedEventListener(Executor executor, DownloadPeerSwitchedEventListener listener) {
+        downloadPeerSwitchedEventListeners.add(new ListenerRegistration<>(Objects.requireNonNull(listener), executor));
+    }
+
     /** See {@link Peer#addConnectedEventListener(PeerConnectedEventListener)} */
     public void addConnectedEventListener(PeerConnectedEventListener listener) {
         addConnectedEventListener(Threading.USER_THREAD, listener);
@@ -874,6 +972,11 @@ public class PeerGroup implements TransactionBroadcaster {
         return result;
     }
 
+    /** The given event listener will no longer be called with events. */
+    public boolean removeDownloadPeerSwitchedEventListener(DownloadPeerSwitchedEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, downloadPeerSwitchedEventListeners);
+    }
+
     /** The given event listener will no longer be called with events. */
     public boolean removeConnectedEventListener(PeerConnectedEventListener listener) {
         boolean result = ListenerRegistration.removeFromList(listener, peerConnectedEventListeners);
@@ -987,12 +1090,16 @@ public class PeerGroup implements TransactionBroadcaster {
     // Adds peerAddress to backoffMap map and inactives queue.
     // Returns true if it was added, false if it was already there.
     private boolean addInactive(PeerAddress peerAddress, int priority) {
+        return addInactive(peerAddress, priority, new ExponentialBackoff(peerBackoffParams));
+    }
+
+    private boolean addInactive(PeerAddress peerAddress, int priority, ExponentialBackoff backoff) {
         lock.lock();
         try {
             // Deduplicate
             if (backoffMap.containsKey(peerAddress))
                 return false;
-            backoffMap.put(peerAddress, new ExponentialBackoff(peerBackoffParams));
+            backoffMap.put(peerAddress, backoff);
             if (priority != 0)
                 priorityMap.put(peerAddress, priority);
             inactives.offer(peerAddress);
@@ -1060,6 +1167,48 @@ public class PeerGroup implements TransactionBroadcaster {
         setDiscoverPeersViaP2P(true);
     }
 
+    /**
+     * <p>Sets the manager that remembers the addresses of peers across restarts. Its best addresses are added to the
+     * candidates for connections right away, so that on startup we can connect to peers we know without waiting for
+     * peer discovery. From then on, the manager learns about addresses from peer discovery and from addresses gossiped
+     * by peers, and about the outcome of connection attempts. It is saved periodically and when the group stops.</p>
+     *
+     * @param addressManager manager to use, or {@code null} to not remember addresses
+     */
+    public void setAddressManager(@Nullable PeerAddressManager addressManager) {
+        vAddressManager = addressManager;
+        if (addressManager == null)
+            return;
+        int added = 0;
+        for (PeerAddress address : addressManager.getAddresses(MAX_ADDRESSES_FROM_ADDRESS_MANAGER)) {
+            ExponentialBackoff backoff = addressManager.getBackoff(address);
+            if (addInactive(address, 0, backoff != null ?
+                    new ExponentialBackoff(peerBackoffParams, backoff.backoff(), backoff.retryTime()) :
+                    new ExponentialBackoff(peerBackoffParams)))
+                added++;
+        }
+        log.info("Added {} addresses from {}", added, addressManager);
+        if (added > 0 && isRunning())
+            triggerConnections();
+    }
+
+    /** Returns the manager that remembers the addresses of peers across restarts, if any. */
+    @Nullable
+    public PeerAddressManager getAddressManager() {
+        return vAddressManager;
+    }
+
+    private void saveAddressManager() {
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager == null)
+            return;
+        try {
+            addressManager.save();
+        } catch (IOException e) {
+            log.warn("Could not save peer addresses", e);
+        }
+    }
+
     /** Returns number of discovered peers. */
     protected int discoverPeers() {
         // Don't hold the lock whilst doing peer discovery: it can take a long time and cause high API latency.
@@ -1080,8 +1229,11 @@ public class PeerGroup implements TransactionBroadcaster {
             if (addressList.size() >= maxPeersToDiscoverCount) break;
         }
         if (!addressList.isEmpty()) {
+            PeerAddressManager addressManager = vAddressManager;
             for (PeerAddress address : addressList) {
                 addInactive(address, 0);
+                if (addressManager != null)
+                    addressManager.add(address, null);
             }
             final Set<PeerAddress> peersDiscoveredSet = Collections.unmodifiableSet(new HashSet<>(addressList));
             for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
@@ -1155,6 +1307,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 channels.awaitRunning();
                 triggerConnections();
                 setupPinging();
+                executor.scheduleWithFixedDelay(this::saveAddressManager, ADDRESS_MANAGER_SAVE_INTERVAL.toMillis(),
+                        ADDRESS_MANAGER_SAVE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
             } catch (Throwable e) {
                 log.error("Exception when starting up", e);  // The executor swallows exceptions :(
             }
@@ -1182,6 +1336,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                     peerDiscovery.shutdown();
                 }
+                saveAddressManager();
                 vRunning = false;
                 log.info("Stopped, took {}.", watch);
             } catch (Throwable e) {
@@ -1491,7 +1646,11 @@ public class PeerGroup implements TransactionBroadcaster {
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageDecoder(vMessageDecoder);
         pendingPeers.add(peer);
+        PeerAddressManager addressManager = vAddressManager;
+        if (addressManager != null)
+            addressManager.markAttempt(address);
 
         try {
             log.info("Attempting connection to {}     ({} connected, {} pending, {} max)", address,
@@ -1531,6 +1690,22 @@ public class PeerGroup implements TransactionBroadcaster {
         this.vConnectTimeout = connectTimeout;
     }
 
+    /**
+     * Sets the {@link MessageDecoder} which verifies and parses messages received from peers on its worker threads,
+     * so that large messages don't stall reading from other peers. This does not apply to currently connected or
+     * pending peers. The decoder is not shut down when this group is stopped.
+     * @param messageDecoder decoder to use, or {@code null} to parse messages on the network thread
+     */
+    public void setMessageDecoder(@Nullable MessageDecoder messageDecoder) {
+        this.vMessageDecoder = messageDecoder;
+    }
+
+    /** Returns the decoder set by {@link #setMessageDecoder(MessageDecoder)}, or {@code null}. */
+    @Nullable
+    public MessageDecoder getMessageDecoder() {
+        return vMessageDecoder;
+    }
+
     /** @deprecated use {@link #setConnectTimeout(Duration)} */
     @Deprecated
     public void setConnectTimeoutMillis(int connectTimeoutMillis) {
@@ -1600,21 +1775,35 @@ public class PeerGroup implements TransactionBroadcaster {
 
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
+        List<Peer> cancelled = Collections.emptyList();
         lock.lock();
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null)
+                addressManager.markGood(peer.getAddress());
 
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
             peers.add(peer);
             newSize = peers.size();
             log.info("{}: New peer      ({} connected, {} pending, {} max)", peer, newSize, pendingPeers.size(), maxConnections);
+            racingPeers.remove(peer);
+            if (newSize >= maxConnections && !racingPeers.isEmpty()) {
+                // We have enough peers, so the attempts still racing are surplus.
+                log.info("Cancelling {} pending connection attempts", racingPeers.size());
+                cancelled = new ArrayList<>(racingPeers);
+                cancelledPeers.addAll(cancelled);
+                racingPeers.clear();
+            }
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.addPeer(peer);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1654,6 +1843,8 @@ public class PeerGroup implements TransactionBroadcaster {
         } finally {
             lock.unlock();
         }
+        for (Peer cancelledPeer : cancelled)
+            cancelledPeer.close();
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
@@ -1766,12 +1957,20 @@ public class PeerGroup implements TransactionBroadcaster {
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            boolean neverConnected = pendingPeers.remove(peer);
             peers.remove(peer);
+            racingPeers.remove(peer);
+            boolean cancelled = cancelledPeers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerAddressManager addressManager = vAddressManager;
+            if (addressManager != null && neverConnected && !cancelled)
+                addressManager.markFailed(address);
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.removePeer(peer);
+            downloadThroughput.remove(peer);
             if (peer == downloadPeer) {
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
@@ -1786,9 +1985,13 @@ public class PeerGroup implements TransactionBroadcaster {
             numPeers = peers.size() + pendingPeers.size();
             numConnectedPeers = peers.size();
 
-            groupBackoff.trackFailure();
+            if (!cancelled)
+                groupBackoff.trackFailure();
 
-            if (exception instanceof NoRouteToHostException) {
+            if (cancelled) {
+                // We didn't wait for the connection attempt to complete, so put it back as it was.
+                inactives.offer(address);
+            } else if (exception instanceof NoRouteToHostException) {
                 if (address.getAddr() instanceof Inet6Address && !ipv6Unreachable) {
                     ipv6Unreachable = true;
                     log.warn("IPv6 peer connect failed due to routing failure, ignoring IPv6 addresses from now on");
@@ -1833,13 +2036,21 @@ public class PeerGroup implements TransactionBroadcaster {
 
     @GuardedBy("lock") private int stallPeriodSeconds = 10;
     @GuardedBy("lock") private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 10;
+    // Average download speed of peers while they were the download peer, in bytes per second
+    @GuardedBy("lock") private final Map<Peer, Long> downloadThroughput = new HashMap<>();
+    @GuardedBy("lock") private int downloadPeerSwitches;
+
+    // How many seconds of download speed are kept for getDownloadThroughputHistory()
+    private static final int THROUGHPUT_HISTORY_SECONDS = 60;
 
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
      * unacceptably slowly. Once a peer has served us data slower than the given data rate for the given
-     * number of seconds, it is considered stalled and will be disconnected, forcing the chain download to continue
-     * from a different peer. The defaults are chosen conservatively, but if you are running on a platform that is
-     * CPU constrained or on a very slow network e.g. EDGE, the default settings may need adjustment to
+     * number of seconds, it is considered stalled. The chain download is then moved to the fastest other peer, and
+     * continues from the current chain head. Peers that were already measured below the given data rate are not
+     * chosen again. If there is no other peer, the stalled peer is disconnected, forcing the chain download to
+     * continue from a different peer. The defaults are chosen conservatively, but if you are running on a platform
+     * that is CPU constrained or on a very slow network e.g. EDGE, the default settings may need adjustment to
      * avoid false stalls.
      *
      * @param periodSecs How many seconds the download speed must be below blocksPerSec, defaults to 10.
@@ -1902,14 +2113,19 @@ public class PeerGroup implements TransactionBroadcaster {
             }
         }
 
+        // Download speed of the last seconds, oldest first
+        private final ArrayDeque<Long> history = new ArrayDeque<>(THROUGHPUT_HISTORY_SECONDS);
+
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            boolean parallelDownload;
 
             lock.lock();
             try {
                 minSpeedBytesPerSec = stallMinSpeedBytesSec;
                 period = stallPeriodSeconds;
+                parallelDownload = blockDownloadScheduler != null;
             } finally {
                 lock.unlock();
             }
@@ -1930,6 +2146,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 }
 
                 if (!syncDone) {
+                    if (history.size() == THROUGHPUT_HISTORY_SECONDS)
+                        history.removeFirst();
+                    history.addLast(bytesInLastSecond);
+
                     // Calculate the moving average.
                     samples[cursor++] = bytesInLastSecond;
                     if (cursor == samples.length) cursor = 0;
@@ -1945,6 +2165,9 @@ public class PeerGroup implements TransactionBroadcaster {
                             minSpeedBytesPerSec / 1024.0, samples.length);
                     if (maxStalls <= 0) {
                         log.info(statsString + ", stall disabled " + thresholdString);
+                    } else if (parallelDownload) {
+                        // The block download scheduler moves requests away from slow peers itself.
+                        log.info(statsString + ", stalls handled by the block download scheduler");
                     } else if (warmupSeconds > 0) {
                         warmupSeconds--;
                         if (bytesInLastSecond > 0)
@@ -1952,6 +2175,8 @@ public class PeerGroup implements TransactionBroadcaster {
                                     + String.format(Locale.US, " (warming up %d more seconds)", warmupSeconds));
                     } else if (average < minSpeedBytesPerSec) {
                         log.info(statsString + ", STALLED " + thresholdString);
+                        Peer peer = getDownloadPeer();
+                        recordDownloadThroughput(peer, (long) average);
                         maxStalls--;
                         if (maxStalls == 0) {
                             // We could consider starting to drop the Bloom filtering FP rate at this point, because
@@ -1962,18 +2187,20 @@ public class PeerGroup implements TransactionBroadcaster {
                             // as they don't give us a whole lot of privacy either way that's not inherently a big
                             // deal.
                             log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
-                        } else {
-                            Peer peer = getDownloadPeer();
-                            log.warn(String.format(Locale.US,
-                                    "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s, %d stalls left",
-                                    average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer, maxStalls));
-                            peer.close();
+                        } else if (peer != null) {
+                            if (!switchDownloadPeer(peer, (long) average, minSpeedBytesPerSec)) {
+                                log.warn(String.format(Locale.US,
+                                        "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s, %d stalls left",
+                                        average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer, maxStalls));
+                                peer.close();
+                            }
                             // Reset the sample buffer and give the next peer time to get going.
                             samples = null;
                             warmupSeconds = period;
                         }
                     } else {
                         log.info(statsString + ", not stalled " + thresholdString);
+                        recordDownloadThroughput(getDownloadPeer(), (long) average);
                     }
                 }
                 blocksInLastSecond = 0;
@@ -1985,8 +2212,130 @@ public class PeerGroup implements TransactionBroadcaster {
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
+    void recordDownloadThroughput(@Nullable Peer peer, long bytesPerSecond) {
+        lock.lock();
+        try {
+            if (peer != null && peers.contains(peer))
+                downloadThroughput.put(peer, bytesPerSecond);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the chain download from the given stalled peer to the best other peer, if there is one. The download
+     * continues from the current chain head. While downloading from all peers at once, slow peers are taken care of
+     * by the {@link BlockDownloadScheduler} instead.
+     *
+     * @return true if the download was moved, false if there is no other peer to move it to
+     */
+    boolean switchDownloadPeer(Peer stalledPeer, long bytesPerSecond, int minSpeedBytesPerSec) {
+        final Peer newPeer;
+        lock.lock();
+        try {
+            if (downloadPeer != stalledPeer || blockDownloadScheduler != null)
+                return false;
+            newPeer = selectFasterDownloadPeer(stalledPeer, minSpeedBytesPerSec);
+            if (newPeer == null)
+                return false;
+            log.warn(String.format(Locale.US,
+                    "Chain download stalled: received %.2f KB/sec, require average of %.2f KB/sec, switching from %s to %s",
+                    bytesPerSecond / 1024.0, minSpeedBytesPerSec / 1024.0, stalledPeer, newPeer));
+            downloadPeerSwitches++;
+            startBlockChainDownloadFromPeer(newPeer, false);
+        } finally {
+            lock.unlock();
+        }
+        for (final ListenerRegistration<DownloadPeerSwitchedEventListener> registration : downloadPeerSwitchedEventListeners /* COW */) {
+            registration.executor.execute(() ->
+                    registration.listener.onDownloadPeerSwitched(stalledPeer, newPeer, bytesPerSecond));
+        }
+        return true;
+    }
+
+    /**
+     * Selects the peer to take over the chain download from a stalled peer: the fastest peer that was measured at or
+     * above the stall speed before, otherwise the unmeasured peer with the lowest ping time. Peers must be able to
+     * serve the chain at least up to the height most peers agree on.
+     */
+    @Nullable
+    @GuardedBy("lock")
+    private Peer selectFasterDownloadPeer(Peer stalledPeer, int minSpeedBytesPerSec) {
+        int mostCommonChainHeight = getMostCommonChainHeight(peers);
+        Peer best = null;
+        long bestThroughput = -1;
+        Duration bestPing = null;
+        for (Peer peer : peers) {
+            if (peer == stalledPeer || peer.getBestHeight() < mostCommonChainHeight)
+                continue;
+            if (!peer.getPeerVersionMessage().services().has(Services.NODE_NETWORK))
+                continue;
+            Long throughput = downloadThroughput.get(peer);
+            if (throughput != null) {
+                if (throughput >= minSpeedBytesPerSec && throughput > bestThroughput) {
+                    best = peer;
+                    bestThroughput = throughput;
+                }
+            } else if (bestThroughput < 0) {
+                Duration ping = peer.pingInterval().orElse(ChronoUnit.FOREVER.getDuration());
+                if (bestPing == null || ping.compareTo(bestPing) < 0) {
+                    best = peer;
+                    bestPing = ping;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the average download speed the given peer achieved while it was downloading the block chain, in bytes
+     * per second, or empty if it was never measured.
+     */
+    public OptionalLong getDownloadThroughput(Peer peer) {
+        lock.lock();
+        try {
+            Long throughput = downloadThroughput.get(peer);
+            return throughput != null ? OptionalLong.of(throughput) : OptionalLong.empty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the chain download speed of each of the last seconds, up to a minute, oldest first, in bytes per second.
+     * Empty if no chain download was started, and no longer updated once the chain is in sync.
+     */
+    public List<Long> getDownloadThroughputHistory() {
+        ChainDownloadSpeedCalculator calculator;
+        lock.lock();
+        try {
+            calculator = chainDownloadSpeedCalculator;
+        } finally {
+            lock.unlock();
+        }
+        if (calculator == null)
+            return Collections.emptyList();
+        synchronized (calculator) {
+            return new ArrayList<>(calculator.history);
+        }
+    }
+
+    /** Returns how often the chain download was moved away from a stalled peer. */
+    public int getDownloadPeerSwitchCount() {
+        lock.lock();
+        try {
+            return downloadPeerSwitches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // For testing only
     void startBlockChainDownloadFromPeer(Peer peer) {
+        startBlockChainDownloadFromPeer(peer, vParallelBlockDownload && chain != null);
+    }
+
+    private void startBlockChainDownloadFromPeer(Peer peer, boolean parallel) {
         lock.lock();
         try {
             setDownloadPeer(peer);
@@ -1998,8 +2347,89 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (parallel) {
+                startParallelBlockChainDownload(peer);
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startParallelBlockChainDownload(Peer headersPeer) {
+        BlockDownloadScheduler scheduler = blockDownloadScheduler;
+        if (scheduler == null) {
+            scheduler = new BlockDownloadScheduler(Objects.requireNonNull(chain), fastCatchupTime,
+                    bloomFilterMerger.getLastFilter() != null);
+            blockDownloadScheduler = scheduler;
+            log.info("Starting parallel chain download from {} peers", peers.size());
+            // The headers peer goes first, so that it is the one asked for headers
+            scheduler.addPeer(headersPeer);
+            for (Peer peer : peers)
+                scheduler.addPeer(peer);
+            blockDownloadStallTask = executor.scheduleAtFixedRate(scheduler::checkStalls, 1, 1, TimeUnit.SECONDS);
+            final BlockDownloadScheduler finalScheduler = scheduler;
+            scheduler.getFuture().whenCompleteAsync((v, t) -> parallelBlockChainDownloadDone(finalScheduler, t),
+                    executor);
+        }
+        headersPeer.startBlockChainDownload(scheduler);
+    }
+
+    private void parallelBlockChainDownloadDone(BlockDownloadScheduler scheduler, @Nullable Throwable failure) {
+        lock.lock();
+        try {
+            if (blockDownloadScheduler != scheduler)
+                return;
+            blockDownloadScheduler = null;
+            if (blockDownloadStallTask != null) {
+                blockDownloadStallTask.cancel(false);
+                blockDownloadStallTask = null;
+            }
+            for (Peer peer : peers)
+                peer.setBlockDownloadScheduler(null);
+            if (failure != null)
+                log.warn("Parallel chain download failed, continuing from a single peer: {}", failure.getMessage());
+            else
+                log.info("Parallel chain download done: {}", scheduler);
+            // Catch up with blocks that were found meanwhile, and follow the chain from now on
+            if (downloadPeer != null)
+                startBlockChainDownloadFromPeer(downloadPeer, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets whether to download the block chain from all connected peers at once. The headers are downloaded from
+     * the download peer first, then the blocks (or filtered blocks) are requested in small batches from all peers, and
+     * added to the chain in order. Requests which stall are given to other peers. Once the chain is downloaded, new
+     * blocks are received from the download peer as usual.</p>
+     *
+     * <p>This applies to chain downloads that start after the call. Defaults to false.</p>
+     *
+     * @param parallelBlockDownload whether to download the block chain from all peers at once
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        this.vParallelBlockDownload = parallelBlockDownload;
+    }
+
+    /** Returns whether the block chain is downloaded from all connected peers at once. */
+    public boolean isParallelBlockDownload() {
+        return vParallelBlockDownload;
+    }
+
+    /**
+     * Returns the running parallel chain download, for example to monitor the request windows of peers, or
+     * {@code null} if there is none.
+     */
+    @Nullable
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        lock.lock();
+        try {
+            return blockDownloadScheduler;
         } finally {
             lock.unlock();
         }
@@ -18,6 +18,7 @@ package org.bitcoinj.core;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.bitcoinj.base.internal.FutureUtils;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
@@ -28,7 +29,7 @@ import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -39,6 +40,7 @@ import java.nio.channels.NotYetConnectedException;
 import java.time.Duration;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
@@ -54,6 +56,7 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
     private final SocketTimeoutTask timeoutTask;
 
     private final MessageSerializer serializer;
+    private final ByteBufferPool bufferPool = ByteBufferPool.shared();
     protected final PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -62,11 +65,22 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It is taken
+    // from the buffer pool as soon as the header of such a message is read, and handed back once it is deserialized.
+    private ByteBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
+    // If set, payloads are verified and parsed by the decoder's worker threads. Messages are still processed in the
+    // order they were received, by chaining each of them onto the processing of the previous one. Only touched by the
+    // network thread, apart from decodeFailed which is only touched by the chained processing, and pendingMessages
+    // which counts the messages handed to the decoder that aren't processed yet.
+    @Nullable private MessageDecoder decoder;
+    private CompletableFuture<Void> lastProcessed = CompletableFuture.completedFuture(null);
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    // Whether reading from the connection is stopped because too many messages are pending, guarded by lock.
+    private boolean readingPaused = false;
+    private boolean decodeFailed = false;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         this(params, PeerAddress.simple(remoteIp));
     }
@@ -101,17 +115,33 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            // Serialized into pooled buffers, which the write target releases once they are written
+            return writeTarget.writeBuffers(serializer.serialize(message, bufferPool), bufferPool);
         } catch (IOException e) {
             exceptionCaught(e);
             return FutureUtils.failedFuture(e);
         }
     }
 
+    /**
+     * Sets the {@link MessageDecoder} which verifies and parses the messages received from the peer on its worker
+     * threads, instead of on the network thread. Messages are still passed to {@link #processMessage(Message)} one
+     * at a time and in the order they were received, but not necessarily on the network thread. Must be called
+     * before the connection is opened.
+     *
+     * @param decoder decoder to use, or {@code null} to parse messages on the network thread
+     */
+    public void setMessageDecoder(@Nullable MessageDecoder decoder) {
+        lock.lock();
+        try {
+            checkState(writeTarget == null, () -> "connection is already open");
+            this.decoder = decoder;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -143,62 +173,78 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
-            // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
-            boolean firstMessage = true;
+            // Repeatedly try to frame and deserialize messages until we run out of bytes
             while (true) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
                 if (largeReadBuffer != null) {
-                    // This can only happen in the first iteration
-                    checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.remaining());
+                    ByteBuffer bytes = buff.slice();
+                    ((Buffer) bytes).limit(bytesToGet);
+                    largeReadBuffer.put(bytes);
+                    ((Buffer) buff).position(buff.position() + bytesToGet);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                    if (largeReadBuffer.hasRemaining())
+                        return buff.position(); // ...just returning if we don't have enough bytes yet
+                    // ...processing a message if one is available
+                    ((Buffer) largeReadBuffer).flip();
+                    if (decoder != null) {
+                        // The decoder takes over the buffer and releases it
+                        ByteBuffer payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        decodeLater(header, payload);
                         header = null;
-                        firstMessage = false;
-                    } else // ...or just returning if we don't have enough bytes yet
-                        return buff.position();
-                }
-                // Now try to deserialize any messages left in buff
-                Message message;
-                int preSerializePosition = buff.position();
-                try {
-                    message = serializer.deserialize(buff);
-                } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
-                    if (firstMessage && buff.limit() == buff.capacity()) {
-                        // ...so reposition the buffer to 0 and read the next message header
-                        ((Buffer) buff).position(0);
+                    } else {
+                        Message message;
                         try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
-                        } catch (BufferUnderflowException e1) {
-                            // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
-                            // that we use to deserialize the magic+header, but that is rather complicated when the buff
-                            // should probably be at least that big anyway (for efficiency)
-                            throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
+                            message = serializer.deserializePayload(header, largeReadBuffer);
+                        } finally {
+                            bufferPool.release(largeReadBuffer);
+                            largeReadBuffer = null;
+                            header = null;
                         }
-                    } else {
-                        // Reposition the buffer to its original position, which saves us from skipping messages by
-                        // seeking past part of the magic bytes before all of them are in the buffer
-                        ((Buffer) buff).position(preSerializePosition);
+                        processMessage(message);
                     }
+                }
+                // Now try to frame the next message in buff
+                int preHeaderPosition = buff.position();
+                BitcoinSerializer.BitcoinPacketHeader nextHeader;
+                try {
+                    serializer.seekPastMagicBytes(buff);
+                    nextHeader = serializer.deserializeHeader(buff);
+                } catch (BufferUnderflowException e) {
+                    // If we went through a whole buffer's worth of bytes without getting a header, give up
+                    // In cases where the buff is just really small, we could create a second largeReadBuffer
+                    // that we use to deserialize the magic+header, but that is rather complicated when the buff
+                    // should probably be at least that big anyway (for efficiency)
+                    if (preHeaderPosition == 0 && buff.limit() == buff.capacity())
+                        throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
+                    // Reposition the buffer to its original position, which saves us from skipping messages by
+                    // seeking past part of the magic bytes before all of them are in the buffer
+                    ((Buffer) buff).position(preHeaderPosition);
+                    return buff.position();
+                }
+                if (buff.remaining() >= nextHeader.size && decoder != null) {
+                    // The whole message is in buff, but buff will be reused, so copy its payload for the decoder
+                    ByteBuffer payload = bufferPool.acquire(nextHeader.size);
+                    ByteBuffer bytes = buff.slice();
+                    ((Buffer) bytes).limit(nextHeader.size);
+                    payload.put(bytes);
+                    ((Buffer) payload).flip();
+                    ((Buffer) buff).position(buff.position() + nextHeader.size);
+                    decodeLater(nextHeader, payload);
+                } else if (buff.remaining() >= nextHeader.size) {
+                    // The whole message is in buff, deserialize it in place
+                    processMessage(serializer.deserializePayload(nextHeader, buff));
+                } else if (buff.position() - preHeaderPosition + nextHeader.size <= buff.capacity()) {
+                    // The message will fit into buff once more bytes are read, so wait for them
+                    ((Buffer) buff).position(preHeaderPosition);
                     return buff.position();
+                } else {
+                    // The message will never fit into buff, so collect its payload in a pooled buffer
+                    header = nextHeader;
+                    largeReadBuffer = bufferPool.acquire(nextHeader.size);
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
-                firstMessage = false;
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -206,6 +252,69 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         }
     }
 
+    /**
+     * Hands a framed payload to the decoder, and queues the decoded message for processing after all messages that
+     * were received before it. If decoding or processing a message fails, the connection is closed and no further
+     * messages are processed. If too many messages are pending, reading from the connection stops until half of them
+     * have been processed, so that a peer sending faster than we process can't make us hold on to an unbounded number
+     * of messages. If the connection can't stop reading, this waits for the pending messages instead.
+     */
+    private void decodeLater(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload) {
+        pendingMessages.incrementAndGet();
+        CompletableFuture<Message> decoded = decoder.decode(serializer, header, payload, bufferPool);
+        lastProcessed = lastProcessed.thenCompose(v -> decoded.handle(this::processDecoded));
+        if (!updateReading() && pendingMessages.get() >= decoder.getMaxPendingMessages())
+            lastProcessed.handle((v, t) -> null).join(); // failures are reported by processDecoded()
+    }
+
+    /**
+     * Stops reading from the connection once too many messages are pending, and resumes once no more than half of
+     * them are. Called after every change of the number of pending messages, so the last call always sees the latest
+     * number.
+     *
+     * @return false if reading should be stopped but the connection can't do that
+     */
+    private boolean updateReading() {
+        int maxPending = decoder.getMaxPendingMessages();
+        lock.lock();
+        try {
+            int pending = pendingMessages.get();
+            if (!readingPaused && pending >= maxPending) {
+                if (writeTarget == null || !writeTarget.setReadingPaused(true))
+                    return false;
+                readingPaused = true;
+            } else if (readingPaused && pending <= maxPending / 2) {
+                writeTarget.setReadingPaused(false);
+                readingPaused = false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Void processDecoded(@Nullable Message message, @Nullable Throwable failure) {
+        try {
+            if (decodeFailed)
+                return null;
+            if (failure == null) {
+                try {
+                    processMessage(message);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                decodeFailed = true;
+                exceptionCaught(failure instanceof Exception ? (Exception) failure : new RuntimeException(failure));
+            }
+            return null;
+        } finally {
+            pendingMessages.decrementAndGet();
+            updateReading();
+        }
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
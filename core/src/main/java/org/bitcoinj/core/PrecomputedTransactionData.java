@@ -0,0 +1,166 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.Buffers;
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.bitcoinj.base.internal.ByteUtils.writeInt32LE;
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>The parts of the BIP143 signature hash that are the same for all inputs of a transaction: the hashes of all
+ * outpoints, of all sequence numbers and of all outputs. {@link Transaction#hashForWitnessSignature(int, byte[], Coin,
+ * byte)} computes these for every input, which makes signing or verifying all inputs quadratic in the number of
+ * inputs. Computing them once per transaction makes the remaining work per input constant.</p>
+ *
+ * <p>Instances are immutable snapshots of the transaction they were created from and can be used by many threads
+ * without locking. Signatures don't cover input scripts or witnesses, so an instance stays valid while inputs are
+ * being signed, but it must be recreated if inputs or outputs are added, removed or reordered, or if sequence numbers,
+ * version or lock time change.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a>.</p>
+ */
+public final class PrecomputedTransactionData {
+    private final long version;
+    private final long lockTime;
+    private final TransactionOutPoint[] outpoints;
+    private final long[] sequences;
+    private final byte[][] outputs;
+    private final Sha256Hash hashPrevouts;
+    private final Sha256Hash hashSequence;
+    private final Sha256Hash hashOutputs;
+
+    private PrecomputedTransactionData(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        this.version = tx.getVersion();
+        this.lockTime = tx.lockTime().rawValue();
+        this.outpoints = new TransactionOutPoint[inputs.size()];
+        this.sequences = new long[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            outpoints[i] = inputs.get(i).getOutpoint();
+            sequences[i] = inputs.get(i).getSequenceNumber();
+        }
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        this.outputs = new byte[txOutputs.size()][];
+        int outputsLength = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            TransactionOutput output = txOutputs.get(i);
+            ByteBuffer bufOutput = ByteBuffer.allocate(Coin.BYTES +
+                    Buffers.lengthPrefixedBytesSize(output.getScriptBytes()));
+            output.getValue().write(bufOutput);
+            Buffers.writeLengthPrefixedBytes(bufOutput, output.getScriptBytes());
+            outputs[i] = bufOutput.array();
+            outputsLength += outputs[i].length;
+        }
+
+        ByteBuffer bufHashPrevouts = ByteBuffer.allocate(outpoints.length * (Sha256Hash.LENGTH + 4));
+        for (TransactionOutPoint outpoint : outpoints) {
+            outpoint.hash().write(bufHashPrevouts);
+            writeInt32LE(outpoint.index(), bufHashPrevouts);
+        }
+        this.hashPrevouts = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufHashPrevouts.array()));
+
+        ByteBuffer bufSequence = ByteBuffer.allocate(sequences.length * 4);
+        for (long sequence : sequences)
+            writeInt32LE(sequence, bufSequence);
+        this.hashSequence = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufSequence.array()));
+
+        ByteBuffer bufHashOutputs = ByteBuffer.allocate(outputsLength);
+        for (byte[] output : outputs)
+            bufHashOutputs.put(output);
+        this.hashOutputs = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufHashOutputs.array()));
+    }
+
+    /**
+     * Precomputes the signature hash data of the given transaction in its current state.
+     * @param tx transaction to precompute for
+     * @return precomputed data
+     */
+    public static PrecomputedTransactionData of(Transaction tx) {
+        synchronized (tx) {
+            return new PrecomputedTransactionData(tx);
+        }
+    }
+
+    /**
+     * Calculates the BIP143 signature hash of an input. This is equivalent to, but much cheaper than,
+     * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, byte)} on the transaction this data was
+     * precomputed from.
+     *
+     * @param inputIndex   input the signature is being calculated for
+     * @param scriptCode   the script that should be in the given input during signing
+     * @param prevValue    the value of the coin being spent
+     * @param sigHashType  signature hash type, including the anyone-can-pay flag
+     * @return signature hash
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue, byte sigHashType) {
+        checkArgument(inputIndex >= 0 && inputIndex < outpoints.length, () -> "input index out of range: " +
+                inputIndex);
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
+
+        Sha256Hash hashPrevouts = anyoneCanPay ? Sha256Hash.ZERO_HASH : this.hashPrevouts;
+        Sha256Hash hashSequence = !anyoneCanPay && signAll ? this.hashSequence : Sha256Hash.ZERO_HASH;
+        Sha256Hash hashOutputs = Sha256Hash.ZERO_HASH;
+        if (signAll) {
+            hashOutputs = this.hashOutputs;
+        } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.length) {
+            hashOutputs = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(outputs[inputIndex]));
+        }
+
+        TransactionOutPoint outpoint = outpoints[inputIndex];
+        ByteBuffer buf = ByteBuffer.allocate(4 + Sha256Hash.LENGTH * 3 + 4 +
+                Buffers.lengthPrefixedBytesSize(scriptCode) + Coin.BYTES + 4 + Sha256Hash.LENGTH + 4 + 4);
+        writeInt32LE(version, buf);
+        hashPrevouts.write(buf);
+        hashSequence.write(buf);
+        outpoint.hash().write(buf);
+        writeInt32LE(outpoint.index(), buf);
+        Buffers.writeLengthPrefixedBytes(buf, scriptCode);
+        prevValue.write(buf);
+        writeInt32LE(sequences[inputIndex], buf);
+        hashOutputs.write(buf);
+        writeInt32LE(lockTime, buf);
+        writeInt32LE(0x000000ff & sigHashType, buf);
+        return Sha256Hash.twiceOf(buf.array());
+    }
+
+    /**
+     * Calculates the BIP143 signature hash of an input.
+     *
+     * @param inputIndex   input the signature is being calculated for
+     * @param scriptCode   the script that should be in the given input during signing
+     * @param prevValue    the value of the coin being spent
+     * @param type         signature hash type
+     * @param anyoneCanPay anyone-can-pay flag
+     * @return signature hash
+     */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, Script scriptCode, Coin prevValue, SigHash type,
+                                              boolean anyoneCanPay) {
+        int sigHash = TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+        return hashForWitnessSignature(inputIndex, scriptCode.program(), prevValue, (byte) sigHash);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+import static org.bitcoinj.base.internal.Preconditions.checkState;
+
+/**
+ * <p>Verifies the input scripts of the transactions of a block in parallel, on a long-lived {@link ForkJoinPool}.</p>
+ *
+ * <p>Input checks of all transactions of a block are collected into a {@link Batch}. Every
+ * {@link #DEFAULT_CHUNK_SIZE} inputs a chunk is handed to the pool, so verification overlaps with the UTXO
+ * bookkeeping that happens while the block is being connected. Idle workers steal work from busy ones, so a
+ * transaction with thousands of inputs doesn't hold up the block behind a single thread. {@link Batch#verify()} then
+ * waits for all chunks and throws the first failure. The signature hash data of a segwit transaction is precomputed
+ * once, when it is added, and shared by the checks of all its inputs.</p>
+ *
+ * <p>An engine can be shared by several {@link FullPrunedBlockChain}s. The counters exposed by this class are
+ * cumulative over the lifetime of the engine.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** Number of inputs handed to the pool as one task. */
+    public static final int DEFAULT_CHUNK_SIZE = 32;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong transactionsVerified = new AtomicLong();
+    private final AtomicLong batchesVerified = new AtomicLong();
+    private final AtomicLong verificationNanos = new AtomicLong();
+
+    /**
+     * Creates an engine with one worker per available processor.
+     */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine with the given number of workers.
+     * @param parallelism number of worker threads
+     */
+    public ScriptVerificationEngine(int parallelism) {
+        this(parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates an engine with the given number of workers.
+     * @param parallelism number of worker threads
+     * @param chunkSize number of inputs handed to the pool as one task
+     */
+    public ScriptVerificationEngine(int parallelism, int chunkSize) {
+        checkArgument(parallelism > 0, () -> "parallelism must be positive: " + parallelism);
+        checkArgument(chunkSize > 0, () -> "chunkSize must be positive: " + chunkSize);
+        this.chunkSize = chunkSize;
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = p -> {
+            final Context context = Context.get();
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(p) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Context.propagate(context);
+                }
+            };
+            thread.setName("Script verification " + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.pool = new ForkJoinPool(parallelism, threadFactory, Threading.uncaughtExceptionHandler, false);
+    }
+
+    /**
+     * Starts collecting the input checks of a new block.
+     */
+    public Batch newBatch() {
+        checkState(!pool.isShutdown(), () -> "engine is shut down");
+        return new Batch();
+    }
+
+    /** Returns the number of worker threads. */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /** Returns the number of inputs that were verified successfully. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the number of transactions whose inputs were verified successfully. */
+    public long getTransactionsVerified() {
+        return transactionsVerified.get();
+    }
+
+    /** Returns the number of batches (usually blocks) that were verified successfully. */
+    public long getBatchesVerified() {
+        return batchesVerified.get();
+    }
+
+    /**
+     * Returns the number of inputs verified per second of batch time, measured from the first input check of a batch
+     * until its verification completed.
+     */
+    public double getInputsVerifiedPerSecond() {
+        long nanos = verificationNanos.get();
+        return nanos == 0 ? 0 : inputsVerified.get() / (nanos / 1e9);
+    }
+
+    /**
+     * Stops the workers. Batches that are still being verified fail.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d workers, %d inputs in %d transactions verified, %.0f inputs/s",
+                getParallelism(), getInputsVerified(), getTransactionsVerified(), getInputsVerifiedPerSecond());
+    }
+
+    /**
+     * The input checks of one block. A batch must be used by a single thread, and is finished by either
+     * {@link #verify()} or {@link #cancel()}.
+     */
+    public class Batch {
+        private final List<ForkJoinTask<?>> submitted = new ArrayList<>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private Transaction[] txs = new Transaction[chunkSize];
+        private int[] indexes = new int[chunkSize];
+        private Script[] scriptPubKeys = new Script[chunkSize];
+        private Coin[] values = new Coin[chunkSize];
+        private PrecomputedTransactionData[] precomputedData = new PrecomputedTransactionData[chunkSize];
+        private Set<VerifyFlag>[] flags = newFlagsArray(chunkSize);
+        private int pending;
+        private int inputs;
+        private int transactions;
+        private long startNanos;
+        private boolean finished;
+
+        private Batch() {
+        }
+
+        /**
+         * Adds the checks of all inputs of a transaction, without their witnesses.
+         * @param tx transaction to check
+         * @param prevOutScripts scripts of the spent outputs, in input order
+         * @param verifyFlags flags to verify with
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            add(tx, prevOutScripts, null, verifyFlags);
+        }
+
+        /**
+         * Adds the checks of all inputs of a transaction. If the values of the spent outputs are given, the witnesses
+         * of the inputs are checked too.
+         * @param tx transaction to check
+         * @param prevOutScripts scripts of the spent outputs, in input order
+         * @param prevOutValues values of the spent outputs, in input order, or null to ignore witnesses
+         * @param verifyFlags flags to verify with
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, @Nullable List<Coin> prevOutValues,
+                        Set<VerifyFlag> verifyFlags) {
+            checkState(!finished, () -> "batch is finished");
+            checkArgument(prevOutScripts.size() == tx.getInputs().size(), () ->
+                    "expected " + tx.getInputs().size() + " scripts, got " + prevOutScripts.size());
+            checkArgument(prevOutValues == null || prevOutValues.size() == tx.getInputs().size(), () ->
+                    "expected " + tx.getInputs().size() + " values, got " + prevOutValues.size());
+            if (startNanos == 0)
+                startNanos = System.nanoTime();
+            // Computed here, rather than per input, because all inputs share it. Only segwit inputs need it.
+            PrecomputedTransactionData txPrecomputedData = prevOutValues != null && tx.hasWitnesses() ?
+                    PrecomputedTransactionData.of(tx) : null;
+            Iterator<Coin> valueIterator = prevOutValues != null ? prevOutValues.iterator() : null;
+            int index = 0;
+            for (Script scriptPubKey : prevOutScripts) {
+                txs[pending] = tx;
+                values[pending] = valueIterator != null ? valueIterator.next() : null;
+                precomputedData[pending] = txPrecomputedData;
+                indexes[pending] = index++;
+                scriptPubKeys[pending] = scriptPubKey;
+                flags[pending] = verifyFlags;
+                if (++pending == chunkSize)
+                    submitPending();
+            }
+            inputs += index;
+            transactions++;
+        }
+
+        /**
+         * Waits for all input checks of this batch to complete.
+         * @throws VerificationException the first input that failed verification
+         */
+        public void verify() throws VerificationException {
+            checkState(!finished, () -> "batch is finished");
+            finished = true;
+            if (pending > 0) {
+                if (submitted.isEmpty()) {
+                    // Too small to be worth handing off.
+                    new Chunk(txs, indexes, scriptPubKeys, values, precomputedData, flags, pending).compute();
+                } else {
+                    submitPending();
+                }
+            }
+            for (ForkJoinTask<?> task : submitted) {
+                try {
+                    task.join();
+                } catch (RuntimeException x) {
+                    // The pool was shut down underneath us.
+                    failure.compareAndSet(null, new VerificationException("Script verification was cancelled", x));
+                }
+            }
+            VerificationException e = failure.get();
+            if (e != null)
+                throw e;
+            if (startNanos != 0)
+                verificationNanos.addAndGet(System.nanoTime() - startNanos);
+            inputsVerified.addAndGet(inputs);
+            transactionsVerified.addAndGet(transactions);
+            batchesVerified.incrementAndGet();
+        }
+
+        /**
+         * Abandons this batch. Input checks that have not started yet are skipped.
+         */
+        public void cancel() {
+            finished = true;
+            failure.compareAndSet(null, new VerificationException("Script verification was cancelled"));
+        }
+
+        private void submitPending() {
+            Chunk chunk = new Chunk(txs, indexes, scriptPubKeys, values, precomputedData, flags, pending);
+            submitted.add(pool.submit(chunk));
+            txs = new Transaction[chunkSize];
+            indexes = new int[chunkSize];
+            scriptPubKeys = new Script[chunkSize];
+            values = new Coin[chunkSize];
+            precomputedData = new PrecomputedTransactionData[chunkSize];
+            flags = newFlagsArray(chunkSize);
+            pending = 0;
+        }
+
+        private class Chunk extends RecursiveAction {
+            private final Transaction[] txs;
+            private final int[] indexes;
+            private final Script[] scriptPubKeys;
+            private final Coin[] values;
+            private final PrecomputedTransactionData[] precomputedData;
+            private final Set<VerifyFlag>[] flags;
+            private final int size;
+
+            Chunk(Transaction[] txs, int[] indexes, Script[] scriptPubKeys, Coin[] values,
+                  PrecomputedTransactionData[] precomputedData, Set<VerifyFlag>[] flags, int size) {
+                this.txs = txs;
+                this.indexes = indexes;
+                this.scriptPubKeys = scriptPubKeys;
+                this.values = values;
+                this.precomputedData = precomputedData;
+                this.flags = flags;
+                this.size = size;
+            }
+
+            @Override
+            protected void compute() {
+                for (int i = 0; i < size && failure.get() == null; i++) {
+                    Transaction tx = txs[i];
+                    int index = indexes[i];
+                    TransactionInput input = tx.getInput(index);
+                    Coin value = values[i];
+                    try {
+                        input.getScriptSig().correctlySpends(tx, index, value != null ? input.getWitness() : null,
+                                value, scriptPubKeys[i], flags[i], precomputedData[i]);
+                    } catch (VerificationException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException e) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                        failure.compareAndSet(null, new VerificationException(
+                                "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.",
+                                e));
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<VerifyFlag>[] newFlagsArray(int size) {
+        return (Set<VerifyFlag>[]) new Set<?>[size];
+    }
+}
@@ -49,9 +49,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.RoundingMode;
+import java.nio.Buffer;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,6 +72,7 @@ import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 import static org.bitcoinj.core.ProtocolVersion.WITNESS_VERSION;
 import static org.bitcoinj.base.internal.ByteUtils.writeInt32LE;
+import static org.bitcoinj.base.internal.ByteUtils.writeInt64LE;
 
 /**
  * <p>A transaction represents the movement of coins from some addresses to some other addresses. It can also represent
@@ -378,6 +381,11 @@ public class Transaction implements Message {
         return cachedWTxId;
     }
 
+    /** sets the cached transaction ID, as calculated from the serialized transaction when it was read */
+    void setCachedTxId(Sha256Hash txId) {
+        cachedTxId = txId;
+    }
+
     /** invalidates cache for both transaction IDs */
     private void invalidateCachedTxIds() {
         cachedTxId = null;
@@ -1239,19 +1247,9 @@ public class Transaction implements Message {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-        // It would not be thread-safe to change the attributes of the transaction object itself.
-        Transaction tx = Transaction.read(ByteBuffer.wrap(serialize()));
-
-        // Clear input scripts in preparation for signing. If we're signing a fresh
-        // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-        // EC math so we'll do it anyway.
-        for (int i = 0; i < tx.inputs.size(); i++) {
-            TransactionInput input = tx.getInput(i);
-            input = input.withoutScriptBytes();
-            input = input.withoutWitness();
-            tx.replaceInput(i, input);
-        }
+        // The signature hash is computed over a modified copy of this transaction. Rather than creating that copy,
+        // the modified serialization is streamed into the digest, so this costs no allocations per input or output.
+        TransactionInput signedInput = inputs.get(inputIndex);
 
         // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
         // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
@@ -1262,60 +1260,136 @@ public class Transaction implements Message {
         // do it, we could split off the best chain.
         connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
 
-        // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-        // the signature covers the hash of the prevout transaction which obviously includes the output script
-        // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-        TransactionInput input = tx.getInput(inputIndex);
-        input = input.withScriptBytes(connectedScript);
-        tx.replaceInput(inputIndex, input);
-
-        if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-            tx.outputs = new ArrayList<>(0);
-            // The signature isn't broken by new versions of the transaction issued by other parties.
-            for (int i = 0; i < tx.inputs.size(); i++)
-                if (i != inputIndex)
-                    tx.replaceInput(i, tx.getInput(i).withSequence(0));
-        } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-            if (inputIndex >= tx.outputs.size()) {
-                // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                // any transaction output that is signed in this case will result in both the signed output
-                // and any future outputs to this public key being steal-able by anyone who has
-                // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        int basicSigHashType = sigHashType & 0x1f;
+        // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+        boolean signNone = basicSigHashType == SigHash.NONE.value;
+        // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+        boolean signSingle = basicSigHashType == SigHash.SINGLE.value;
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+        // of other inputs. For example, this is useful for building assurance contracts.
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+
+        if (signSingle && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
+
+        SigHashWriter writer = new SigHashWriter();
+        writer.writeInt32(version);
+        if (anyoneCanPay) {
+            writer.writeVarInt(1);
+            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose
+            // as the signature covers the hash of the prevout transaction which obviously includes the output script
+            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
+            writer.writeInput(signedInput, connectedScript, signedInput.getSequenceNumber());
+        } else {
+            writer.writeVarInt(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                if (i == inputIndex) {
+                    writer.writeInput(input, connectedScript, input.getSequenceNumber());
+                } else {
+                    // Other input scripts are cleared. If not all outputs are signed, the signature isn't broken by
+                    // new versions of the transaction issued by other parties.
+                    long sequence = signNone || signSingle ? 0 : input.getSequenceNumber();
+                    writer.writeInput(input, SigHashWriter.EMPTY_SCRIPT, sequence);
+                }
             }
+        }
+        if (signNone) {
+            writer.writeVarInt(0);
+        } else if (signSingle) {
             // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
             // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-            tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-            for (int i = 0; i < inputIndex; i++)
-                tx.outputs.set(i, new TransactionOutput(tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-            // The signature isn't broken by new versions of the transaction issued by other parties.
-            for (int i = 0; i < tx.inputs.size(); i++)
-                if (i != inputIndex)
-                    tx.replaceInput(i, tx.getInput(i).withSequence(0));
-        }
-
-        if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-            // of other inputs. For example, this is useful for building assurance contracts.
-            tx.inputs = new ArrayList<>();
-            tx.inputs.add(input);
+            writer.writeVarInt(inputIndex + 1);
+            for (int i = 0; i < inputIndex; i++) {
+                writer.writeInt64(Coin.NEGATIVE_SATOSHI.value);
+                writer.writeVarInt(0);
+            }
+            writer.writeOutput(outputs.get(inputIndex));
+        } else {
+            writer.writeVarInt(outputs.size());
+            for (TransactionOutput output : outputs)
+                writer.writeOutput(output);
         }
-
-        ByteBuffer buf = ByteBuffer.allocate(tx.messageSize() + 4);
-        tx.write(buf, false);
+        writer.writeInt32(vLockTime.rawValue());
         // We also have to write a hash type (sigHashType is actually an unsigned char)
-        writeInt32LE(0x000000ff & sigHashType, buf);
+        writer.writeInt32(0x000000ff & sigHashType);
         // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
         // however then we would expect that it IS reversed.
-        Sha256Hash hash = Sha256Hash.twiceOf(buf.array());
+        return writer.hashTwice();
+    }
+
+    /**
+     * Streams the modified serialization of a transaction that legacy signature hashes are computed over into a
+     * digest, through a small reusable buffer.
+     */
+    private static class SigHashWriter {
+        static final byte[] EMPTY_SCRIPT = new byte[0];
+
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private ByteBuffer buf = ByteBuffer.allocate(256);
+
+        void writeInt32(long value) {
+            ensureRemaining(4);
+            writeInt32LE(value, buf);
+        }
+
+        void writeInt64(long value) {
+            ensureRemaining(8);
+            writeInt64LE(value, buf);
+        }
+
+        void writeVarInt(long value) {
+            ensureRemaining(VarInt.sizeOf(value));
+            if (value >= 0 && value < 0xfd)
+                buf.put((byte) value);
+            else
+                VarInt.of(value).write(buf);
+        }
+
+        void writeBytes(byte[] bytes) {
+            flush();
+            digest.update(bytes);
+        }
+
+        void writeInput(TransactionInput input, byte[] scriptBytes, long sequence) {
+            ensureRemaining(TransactionOutPoint.BYTES);
+            input.getOutpoint().write(buf);
+            writeVarInt(scriptBytes.length);
+            writeBytes(scriptBytes);
+            writeInt32(sequence);
+        }
+
+        void writeOutput(TransactionOutput output) {
+            ensureRemaining(output.messageSize());
+            output.write(buf);
+        }
+
+        Sha256Hash hashTwice() {
+            flush();
+            return Sha256Hash.wrap(digest.digest(digest.digest()));
+        }
+
+        private void ensureRemaining(int length) {
+            if (buf.remaining() < length) {
+                flush();
+                if (buf.capacity() < length)
+                    buf = ByteBuffer.allocate(length);
+            }
+        }
 
-        return hash;
+        private void flush() {
+            digest.update(buf.array(), 0, buf.position());
+            ((Buffer) buf).clear();
+        }
     }
 
     public TransactionSignature calculateWitnessSignature(
@@ -1362,7 +1436,7 @@ public class Transaction implements Message {
         return calculateWitnessSignature(inputIndex, key, aesKey, scriptCode.program(), value, hashType, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
@@ -1387,7 +1461,7 @@ public class Transaction implements Message {
      * @param type         Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             Script scriptCode,
             Coin prevValue,
@@ -1396,68 +1470,14 @@ public class Transaction implements Message {
         return hashForWitnessSignature(inputIndex, scriptCode.program(), prevValue, type, anyoneCanPay);
     }
 
-    public synchronized Sha256Hash hashForWitnessSignature(
+    public Sha256Hash hashForWitnessSignature(
             int inputIndex,
             byte[] scriptCode,
             Coin prevValue,
             byte sigHashType) {
-        Sha256Hash hashPrevouts = Sha256Hash.ZERO_HASH;
-        Sha256Hash hashSequence = Sha256Hash.ZERO_HASH;
-        Sha256Hash hashOutputs = Sha256Hash.ZERO_HASH;
-        int basicSigHashType = sigHashType & 0x1f;
-        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
-        boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
-
-        if (!anyoneCanPay) {
-            ByteBuffer bufHashPrevouts = ByteBuffer.allocate(this.inputs.size() * (Sha256Hash.LENGTH + 4));
-            for (TransactionInput input : this.inputs) {
-                input.getOutpoint().hash().write(bufHashPrevouts);
-                writeInt32LE(input.getOutpoint().index(), bufHashPrevouts);
-            }
-            hashPrevouts = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufHashPrevouts.array()));
-        }
-
-        if (!anyoneCanPay && signAll) {
-            ByteBuffer bufSequence = ByteBuffer.allocate(this.inputs.size() * 4);
-            for (TransactionInput input : this.inputs) {
-                writeInt32LE(input.getSequenceNumber(), bufSequence);
-            }
-            hashSequence = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufSequence.array()));
-        }
-
-        if (signAll) {
-            ByteBuffer bufHashOutputs = ByteBuffer.allocate(this.outputs.stream().mapToInt(
-                    output -> Coin.BYTES + Buffers.lengthPrefixedBytesSize(output.getScriptBytes())
-            ).sum());
-            for (TransactionOutput output : this.outputs) {
-                output.getValue().write(bufHashOutputs);
-                Buffers.writeLengthPrefixedBytes(bufHashOutputs, output.getScriptBytes());
-            }
-            hashOutputs = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufHashOutputs.array()));
-        } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
-            TransactionOutput output = this.outputs.get(inputIndex);
-            byte[] scriptBytes = output.getScriptBytes();
-            ByteBuffer bufHashOutputs = ByteBuffer.allocate(Coin.BYTES +
-                    Buffers.lengthPrefixedBytesSize(scriptBytes));
-            output.getValue().write(bufHashOutputs);
-            Buffers.writeLengthPrefixedBytes(bufHashOutputs, scriptBytes);
-            hashOutputs = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bufHashOutputs.array()));
-        }
-
-        ByteBuffer buf = ByteBuffer.allocate(4 + Sha256Hash.LENGTH * 3 + 4 +
-                Buffers.lengthPrefixedBytesSize(scriptCode) + Coin.BYTES + 4 + Sha256Hash.LENGTH + 4 + 4);
-        writeInt32LE(version, buf);
-        hashPrevouts.write(buf);
-        hashSequence.write(buf);
-        inputs.get(inputIndex).getOutpoint().hash().write(buf);
-        writeInt32LE(inputs.get(inputIndex).getOutpoint().index(), buf);
-        Buffers.writeLengthPrefixedBytes(buf, scriptCode);
-        prevValue.write(buf);
-        writeInt32LE(inputs.get(inputIndex).getSequenceNumber(), buf);
-        hashOutputs.write(buf);
-        writeInt32LE(this.vLockTime.rawValue(), buf);
-        writeInt32LE(0x000000ff & sigHashType, buf);
-        return Sha256Hash.twiceOf(buf.array());
+        // Takes the lock only to snapshot the transaction. To sign or verify several inputs, precompute the data once.
+        return PrecomputedTransactionData.of(this).hashForWitnessSignature(inputIndex, scriptCode, prevValue,
+                sigHashType);
     }
 
     @Override
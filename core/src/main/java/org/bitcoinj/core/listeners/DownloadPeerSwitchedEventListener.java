@@ -0,0 +1,36 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+
+/**
+ * <p>Implementors are called when a {@link PeerGroup} moves the chain download away from a peer that serves the
+ * block chain too slowly.</p>
+ */
+public interface DownloadPeerSwitchedEventListener {
+
+    /**
+     * Called after the chain download was moved to another peer. The download continues from the current chain head.
+     *
+     * @param oldPeer              the peer that was downloading too slowly
+     * @param newPeer              the peer now downloading the chain
+     * @param oldPeerBytesPerSecond average download speed of the old peer, in bytes per second
+     */
+    void onDownloadPeerSwitched(Peer oldPeer, Peer newPeer, long oldPeerBytesPerSecond);
+}
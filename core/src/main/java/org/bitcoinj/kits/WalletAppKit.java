@@ -30,6 +30,7 @@ import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.net.VirtualThreadClientManager;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.store.BlockStore;
@@ -108,6 +109,7 @@ public class WalletAppKit extends AbstractIdleService implements Closeable {
     protected boolean autoStop = true;
     protected InputStream checkpoints;
     protected boolean blockingStartup = true;
+    protected boolean useVirtualThreads = false;
     protected String userAgent, version;
     @Nonnull protected WalletProtobufSerializer.WalletFactory walletFactory = WalletProtobufSerializer.WalletFactory.DEFAULT;
     @Nullable protected DeterministicSeed restoreFromSeed;
@@ -265,6 +267,16 @@ public class WalletAppKit extends AbstractIdleService implements Closeable {
         return this;
     }
 
+    /**
+     * If true, peer connections are made with a {@link VirtualThreadClientManager}, i.e. with blocking I/O on one
+     * virtual thread per connection. If false (the default), non-blocking I/O is used. Virtual threads need Java 21 or
+     * later.
+     */
+    public WalletAppKit setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
     /**
      * Sets the string that will appear in the subver field of the version message.
      * @param userAgent A short string that should be the name of your app, e.g. "My Wallet"
@@ -517,7 +529,7 @@ public class WalletAppKit extends AbstractIdleService implements Closeable {
     }
 
     protected PeerGroup createPeerGroup() {
-        return new PeerGroup(network, vChain);
+        return useVirtualThreads ? PeerGroup.newWithVirtualThreads(network, vChain) : new PeerGroup(network, vChain);
     }
 
     private void installShutdownHook() {
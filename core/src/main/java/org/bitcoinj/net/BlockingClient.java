@@ -18,6 +18,7 @@ package org.bitcoinj.net;
 
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.Peer;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +34,8 @@ import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -49,9 +52,18 @@ public class BlockingClient implements MessageWriteTarget {
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
+    // Creates a platform thread per connection.
+    static final ThreadFactory DAEMON_THREADS = runnable -> {
+        Thread t = new Thread(runnable);
+        t.setDaemon(true);
+        return t;
+    };
+
     private Socket socket;
     private volatile boolean vCloseRequested = false;
     private CompletableFuture<SocketAddress> connectFuture;
+    // Not a synchronized method, so that a virtual thread blocked in a write doesn't pin its carrier thread.
+    private final ReentrantLock writeLock = Threading.lock(BlockingClient.class);
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamConnection} to decode the data.
@@ -67,13 +79,31 @@ public class BlockingClient implements MessageWriteTarget {
     public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
                           final Duration connectTimeout, final SocketFactory socketFactory,
                           @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, connection, connectTimeout, socketFactory, clientSet, DAEMON_THREADS);
+    }
+
+    /**
+     * <p>Creates a new client like {@link #BlockingClient(SocketAddress, StreamConnection, Duration, SocketFactory, Set)},
+     * but runs its network event processing on a thread created by the given factory, for example one that creates
+     * virtual threads.</p>
+     *
+     * @param connectTimeout The connect timeout set on the connection. ZERO is interpreted as no timeout.
+     * @param socketFactory An object that creates {@link Socket} objects on demand, which may be customised to control
+     *                      how this client connects to the internet. If not sure, use SocketFactory.getDefault()
+     * @param clientSet A set which this object will add itself to after initialization, and then remove itself from
+     * @param threadFactory creates the network event processing thread, which should not keep the JVM alive
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
+                          final Duration connectTimeout, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet, ThreadFactory threadFactory)
+            throws IOException {
         connectFuture = new CompletableFuture<>();
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesn't get too large or have to call read too often.
         connection.setWriteTarget(this);
         socket = socketFactory.createSocket();
         final Context context = Context.get();
-        Thread t = new Thread(() -> {
+        Thread t = threadFactory.newThread(() -> {
             Context.propagate(context);
             if (clientSet != null)
                 clientSet.add(BlockingClient.this);
@@ -100,7 +130,6 @@ public class BlockingClient implements MessageWriteTarget {
             }
         });
         t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
         t.start();
     }
 
@@ -146,7 +175,8 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     @Override
-    public synchronized CompletableFuture<Void> writeBytes(byte[] message) throws IOException {
+    public CompletableFuture<Void> writeBytes(byte[] message) throws IOException {
+        writeLock.lock();
         try {
             OutputStream stream = socket.getOutputStream();
             stream.write(message);
@@ -156,6 +186,8 @@ public class BlockingClient implements MessageWriteTarget {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -28,6 +28,7 @@ import java.util.Iterator;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * <p>A thin wrapper around a set of {@link BlockingClient}s.</p>
@@ -38,12 +39,13 @@ import java.util.concurrent.CompletableFuture;
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
     private final SocketFactory socketFactory;
+    private final ThreadFactory threadFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private Duration connectTimeout = Duration.ofSeconds(1);
 
     public BlockingClientManager() {
-        socketFactory = SocketFactory.getDefault();
+        this(SocketFactory.getDefault());
     }
 
     /**
@@ -51,7 +53,16 @@ public class BlockingClientManager extends AbstractIdleService implements Client
      * bitcoinj connects to the P2P network.
      */
     public BlockingClientManager(SocketFactory socketFactory) {
+        this(socketFactory, BlockingClient.DAEMON_THREADS);
+    }
+
+    /**
+     * Creates a blocking client manager that will obtain sockets from the given factory, and run the network event
+     * processing of each client on a thread created by the given thread factory.
+     */
+    protected BlockingClientManager(SocketFactory socketFactory, ThreadFactory threadFactory) {
         this.socketFactory = Objects.requireNonNull(socketFactory);
+        this.threadFactory = Objects.requireNonNull(threadFactory);
     }
 
     @Override
@@ -59,7 +70,8 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         try {
             if (!isRunning())
                 throw new IllegalStateException();
-            return new BlockingClient(serverAddress, connection, connectTimeout, socketFactory, clients).getConnectFuture();
+            return new BlockingClient(serverAddress, connection, connectTimeout, socketFactory, clients, threadFactory)
+                    .getConnectFuture();
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
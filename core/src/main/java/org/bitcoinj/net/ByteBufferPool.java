@@ -0,0 +1,179 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of direct {@link ByteBuffer}s, shared by many connections. Buffers are handed out in size classes of
+ * powers of two, so that a released buffer can be reused for any later request of up to its capacity. Requests larger
+ * than the largest size class are rare, and are served by heap buffers which are left to the garbage collector.</p>
+ *
+ * <p>Each size class retains only a bounded number of bytes, so the pool doesn't keep the peak demand allocated
+ * forever. The pool counts how many requests it could serve from retained buffers (hits), and how many needed a new
+ * allocation (misses), which helps to size it.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class ByteBufferPool {
+    private static final int MIN_SIZE_SHIFT = 6; // 64 bytes
+    private static final ByteBufferPool SHARED = new ByteBufferPool(4 * 1024 * 1024, 4 * 1024 * 1024);
+
+    private final int maxPooledSize;
+    private final Queue<ByteBuffer>[] pools;
+    private final AtomicInteger[] pooledCounts;
+    private final int[] maxPooledCounts;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxPooledSize            size of the largest size class, rounded up to a power of two
+     * @param maxRetainedBytesPerClass bytes each size class retains at most, but at least one buffer
+     */
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(int maxPooledSize, int maxRetainedBytesPerClass) {
+        checkArgument(maxPooledSize > 0 && maxPooledSize <= 1 << 30, () ->
+                "maxPooledSize out of range: " + maxPooledSize);
+        checkArgument(maxRetainedBytesPerClass >= 0, () ->
+                "maxRetainedBytesPerClass must not be negative: " + maxRetainedBytesPerClass);
+        int numClasses = sizeClass(maxPooledSize) + 1;
+        this.maxPooledSize = classSize(numClasses - 1);
+        this.pools = new Queue[numClasses];
+        this.pooledCounts = new AtomicInteger[numClasses];
+        this.maxPooledCounts = new int[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+            maxPooledCounts[i] = Math.max(1, maxRetainedBytesPerClass / classSize(i));
+        }
+    }
+
+    /**
+     * Returns the pool that is shared by all connections, unless configured otherwise.
+     *
+     * @return shared pool
+     */
+    public static ByteBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets a buffer of at least the given size. Its position is zero, and its limit is the requested size. Its
+     * content is undefined.
+     *
+     * @param size requested size in bytes
+     * @return buffer, which should be {@link #release(ByteBuffer)}d once it's not needed any more
+     */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0, () -> "size must not be negative: " + size);
+        ByteBuffer buf;
+        if (size <= maxPooledSize) {
+            int sizeClass = sizeClass(size);
+            buf = pools[sizeClass].poll();
+            if (buf != null) {
+                pooledCounts[sizeClass].decrementAndGet();
+                hits.increment();
+            } else {
+                buf = ByteBuffer.allocateDirect(classSize(sizeClass));
+                misses.increment();
+            }
+        } else {
+            buf = ByteBuffer.allocate(size);
+            oversized.increment();
+        }
+        ((Buffer) buf).limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards, and must not be released
+     * more than once. Buffers which were not obtained from a pool are ignored.
+     *
+     * @param buf buffer to release
+     */
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (!buf.isDirect() || capacity > maxPooledSize || Integer.bitCount(capacity) != 1)
+            return;
+        int sizeClass = sizeClass(capacity);
+        if (classSize(sizeClass) != capacity)
+            return;
+        if (pooledCounts[sizeClass].incrementAndGet() > maxPooledCounts[sizeClass]) {
+            pooledCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        ((Buffer) buf).clear();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        pools[sizeClass].offer(buf);
+    }
+
+    /** Releases all given buffers, see {@link #release(ByteBuffer)}. */
+    public void release(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs)
+            release(buf);
+    }
+
+    /** Returns the number of buffers currently retained by the pool. */
+    public int getPooledCount() {
+        int count = 0;
+        for (AtomicInteger pooledCount : pooledCounts)
+            count += pooledCount.get();
+        return count;
+    }
+
+    /** Returns the number of requests which were served from a retained buffer. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of requests for which a new direct buffer had to be allocated. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the number of requests which were larger than the largest size class. */
+    public long getOversizedCount() {
+        return oversized.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferPool{hits=" + getHitCount() + ", misses=" + getMissCount() + ", oversized=" +
+                getOversizedCount() + ", pooled=" + getPooledCount() + "}";
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    private static int classSize(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+}
@@ -56,6 +56,8 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Maximum number of buffers handed to a single gathering write
+    private static final int MAX_GATHERED_BUFFERS = 64;
 
     @GuardedBy("lock") private final ByteBuffer readBuff;
     @GuardedBy("lock") private final SocketChannel channel;
@@ -64,16 +66,31 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final LinkedList<BuffersAndFuture> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
 
-    private static class BytesAndFuture {
-        public final ByteBuffer bytes;
+    private static class BuffersAndFuture {
+        public final ByteBuffer[] buffers;
+        @Nullable public final ByteBufferPool pool;
         public final CompletableFuture<Void> future;
 
-        public BytesAndFuture(ByteBuffer bytes, CompletableFuture<Void> future) {
-            this.bytes = bytes;
+        public BuffersAndFuture(ByteBuffer[] buffers, @Nullable ByteBufferPool pool, CompletableFuture<Void> future) {
+            this.buffers = buffers;
+            this.pool = pool;
             this.future = future;
         }
+
+        boolean isWritten() {
+            for (ByteBuffer buf : buffers)
+                if (buf.hasRemaining())
+                    return false;
+            return true;
+        }
+
+        void release() {
+            if (pool != null)
+                pool.release(buffers);
+        }
     }
 
     private Set<ConnectionHandler> connectedHandlers;
@@ -125,15 +142,37 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
+            // Push as much of the outbound queue as possible into the OS' network buffer, gathering the buffers of
+            // several messages into each write.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                long gatheredBytes = 0;
+                for (BuffersAndFuture pending : bytesToWrite) {
+                    if (count > 0 && count + pending.buffers.length > MAX_GATHERED_BUFFERS)
+                        break;
+                    for (int i = 0; i < pending.buffers.length && count < MAX_GATHERED_BUFFERS; i++) {
+                        gatheredBuffers[count++] = pending.buffers[i];
+                        gatheredBytes += pending.buffers[i].remaining();
+                    }
+                }
+                long written;
+                try {
+                    written = channel.write(gatheredBuffers, 0, count);
+                } finally {
+                    Arrays.fill(gatheredBuffers, 0, count, null);
+                }
+                bytesToWriteRemaining -= written;
+                Iterator<BuffersAndFuture> iterator = bytesToWrite.iterator();
+                while (iterator.hasNext()) {
+                    BuffersAndFuture pending = iterator.next();
+                    if (!pending.isWritten())
+                        break;
                     iterator.remove();
-                    bytesAndFuture.future.complete(null);
-                } else {
+                    pending.release();
+                    pending.future.complete(null);
+                }
+                if (written < gatheredBytes) {
+                    // The OS' network buffer is full, wait until we can write again
                     setWriteOps();
                     break;
                 }
@@ -149,6 +188,16 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public CompletableFuture<Void> writeBytes(byte[] message) throws IOException {
+        // The message is copied, as the caller may reuse its array. Use writeBuffers() to avoid that.
+        return enqueue(new ByteBuffer[] { ByteBuffer.wrap(Arrays.copyOf(message, message.length)) }, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeBuffers(ByteBuffer[] buffers, ByteBufferPool pool) throws IOException {
+        return enqueue(buffers, Objects.requireNonNull(pool));
+    }
+
+    private CompletableFuture<Void> enqueue(ByteBuffer[] buffers, @Nullable ByteBufferPool pool) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -156,25 +205,37 @@ class ConnectionHandler implements MessageWriteTarget {
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buf : buffers)
+                length += buf.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
             final CompletableFuture<Void> future = new CompletableFuture<>();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            BuffersAndFuture pending = new BuffersAndFuture(buffers, pool, future);
+            bytesToWrite.offer(pending);
+            bytesToWriteRemaining += length;
+            try {
+                setWriteOps();
+            } catch (CancelledKeyException e) {
+                bytesToWrite.remove(pending);
+                bytesToWriteRemaining -= length;
+                throw e;
+            }
             return future;
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
+            if (pool != null)
+                pool.release(buffers);
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         } catch (CancelledKeyException e) {
             lock.unlock();
             andUnlock = false;
+            if (pool != null)
+                pool.release(buffers);
             log.warn("Error writing message to connection, closing connection", e);
             closeConnection();
             throw new IOException(e);
@@ -184,6 +245,25 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public boolean setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                // Don't bother waking up the selector here, since we're just removing an op, not adding
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed anyway
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -202,6 +282,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Hand back the buffers of messages which will never be written
+            for (BuffersAndFuture pending : bytesToWrite)
+                pending.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
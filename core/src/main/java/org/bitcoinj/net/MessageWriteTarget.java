@@ -17,6 +17,7 @@
 package org.bitcoinj.net;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -28,6 +29,38 @@ public interface MessageWriteTarget {
      * have been written to the OS network buffer.
      */
     CompletableFuture<Void> writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of the given buffers, in order, to the remote server. The target takes ownership of
+     * the buffers and releases them to the given pool once they are written or the write failed, so the caller must
+     * not touch them afterwards. The returned future will complete when all bytes have been written to the OS network
+     * buffer.
+     * <p>
+     * The default implementation copies the buffers into a byte array for {@link #writeBytes(byte[])}.
+     */
+    default CompletableFuture<Void> writeBuffers(ByteBuffer[] buffers, ByteBufferPool pool) throws IOException {
+        int length = 0;
+        for (ByteBuffer buf : buffers)
+            length += buf.remaining();
+        byte[] message = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buf : buffers) {
+            int remaining = buf.remaining();
+            buf.get(message, offset, remaining);
+            offset += remaining;
+        }
+        pool.release(buffers);
+        return writeBytes(message);
+    }
+    /**
+     * Stops or resumes reading from the connection, so that a receiver which can't keep up doesn't have to hold on to
+     * everything the remote server sends. Bytes that were already read are still handed to the connection. Returns
+     * false if reading can't be stopped, in which case the receiver may simply block the thread it was called on.
+     * <p>
+     * The default implementation does nothing and returns false.
+     */
+    default boolean setReadingPaused(boolean paused) {
+        return false;
+    }
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -132,4 +132,15 @@ public class NioClient implements MessageWriteTarget {
     public synchronized CompletableFuture<Void> writeBytes(byte[] message) throws IOException {
         return handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized CompletableFuture<Void> writeBuffers(ByteBuffer[] buffers, ByteBufferPool pool)
+            throws IOException {
+        return handler.writeTarget.writeBuffers(buffers, pool);
+    }
+
+    @Override
+    public boolean setReadingPaused(boolean paused) {
+        return handler.writeTarget.setReadingPaused(paused);
+    }
 }
@@ -39,6 +39,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
@@ -48,16 +49,21 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    private final int threadPriority;
 
     static class PendingConnect {
         SocketChannel sc;
         StreamConnection connection;
         SocketAddress address;
         CompletableFuture<SocketAddress> future = new CompletableFuture<>();
+        // True for channels which are already connected, e.g. accepted by a server
+        boolean connected;
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
     final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+    // Connections which were handed to us but are not connected yet
+    private final AtomicInteger pendingConnectionCount = new AtomicInteger();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -68,6 +74,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
             // Create a ConnectionHandler and hook everything together
             PendingConnect data = (PendingConnect) key.attachment();
+            pendingConnectionCount.decrementAndGet();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
             ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
@@ -105,6 +112,14 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Creates a new client manager whose network processing thread runs with the given priority.
+     */
+    NioClientManager(int threadPriority) {
+        this.threadPriority = threadPriority;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
@@ -112,18 +127,40 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    // Register a new channel with our selector, runs in the network processing thread
+    private void register(PendingConnect conn) throws IOException {
+        if (!conn.connected) {
+            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+            key.attach(conn);
+            return;
+        }
+        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_READ);
+        pendingConnectionCount.decrementAndGet();
+        ConnectionHandler handler = new ConnectionHandler(conn.connection, key, connectedHandlers);
+        key.attach(handler);
+        try {
+            conn.connection.connectionOpened();
+            conn.future.complete(conn.address);
+        } catch (RuntimeException e) {
+            log.warn("Error opening connection to {}", conn.address, e);
+            handler.closeConnection();
+            conn.future.completeExceptionally(e);
+        }
+    }
+
     @Override
     public void run() {
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            Thread.currentThread().setPriority(threadPriority);
             while (isRunning()) {
                 PendingConnect conn;
                 while ((conn = newConnectionChannels.poll()) != null) {
                     try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
+                        register(conn);
                     } catch (ClosedChannelException e) {
                         log.warn("SocketChannel was closed before it could be registered");
+                        pendingConnectionCount.decrementAndGet();
+                        conn.future.completeExceptionally(e);
                     }
                 }
 
@@ -168,6 +205,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            pendingConnectionCount.incrementAndGet();
             newConnectionChannels.offer(data);
             selector.wakeup();
             return data.future;
@@ -176,6 +214,23 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    /**
+     * Takes over a channel which is already connected, e.g. one accepted by a {@link NioServer}, and services it in
+     * the network processing thread. {@link StreamConnection#connectionOpened()} is called from that thread once the
+     * channel is registered.
+     */
+    CompletableFuture<SocketAddress> registerConnected(SocketChannel sc, StreamConnection connection) throws IOException {
+        if (!isRunning())
+            throw new IllegalStateException();
+        sc.configureBlocking(false);
+        PendingConnect data = new PendingConnect(sc, connection, sc.getRemoteAddress());
+        data.connected = true;
+        pendingConnectionCount.incrementAndGet();
+        newConnectionChannels.offer(data);
+        selector.wakeup();
+        return data.future;
+    }
+
     @Override
     public void triggerShutdown() {
         selector.wakeup();
@@ -186,6 +241,11 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         return connectedHandlers.size();
     }
 
+    /** Returns the number of connections this manager services or is about to service, for load balancing. */
+    int getLoad() {
+        return connectedHandlers.size() + pendingConnectionCount.get();
+    }
+
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
@@ -0,0 +1,174 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import org.bitcoinj.base.internal.FutureUtils;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Manages a set of client connections like {@link NioClientManager}, but shards them across several event loops,
+ * each with its own selector and network processing thread. Reading, deserializing and dispatching messages of one
+ * connection then only competes with the other connections of the same loop, so throughput scales with the number of
+ * loops when there are many busy peers.</p>
+ *
+ * <p>Each new connection is assigned to a loop according to an {@link Assignment} policy, and stays on that loop for
+ * its lifetime. A group can also service the connections accepted by a {@link NioServer}.</p>
+ */
+public class NioEventLoopGroup extends AbstractIdleService implements ClientConnectionManager {
+    /** How new connections are assigned to event loops. */
+    public enum Assignment {
+        /** Cycle through the loops in turn. */
+        ROUND_ROBIN,
+        /** Pick the loop which currently services the fewest connections. */
+        LEAST_LOADED
+    }
+
+    private final List<NioClientManager> loops;
+    private final Assignment assignment;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Creates a group with one event loop per available processor, assigning connections round-robin.
+     */
+    public NioEventLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors(), Assignment.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a group of event loops.
+     *
+     * @param numLoops   number of event loops, and thus network processing threads
+     * @param assignment how new connections are assigned to the loops
+     */
+    public NioEventLoopGroup(int numLoops, Assignment assignment) {
+        checkArgument(numLoops > 0, () -> "numLoops must be positive: " + numLoops);
+        this.assignment = Objects.requireNonNull(assignment);
+        List<NioClientManager> loops = new ArrayList<>(numLoops);
+        for (int i = 0; i < numLoops; i++)
+            loops.add(new NioClientManager(Thread.NORM_PRIORITY));
+        this.loops = Collections.unmodifiableList(loops);
+    }
+
+    @Override
+    protected void startUp() {
+        for (NioClientManager loop : loops)
+            loop.startAsync();
+        for (NioClientManager loop : loops)
+            loop.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() {
+        for (NioClientManager loop : loops)
+            loop.stopAsync();
+        for (NioClientManager loop : loops)
+            loop.awaitTerminated();
+    }
+
+    @Override
+    public CompletableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        return nextLoop().openConnection(serverAddress, connection);
+    }
+
+    /**
+     * Services a channel which is already connected, e.g. one accepted by a {@link NioServer}, on one of the loops.
+     */
+    CompletableFuture<SocketAddress> registerConnected(SocketChannel sc, StreamConnection connection) {
+        if (!isRunning())
+            return FutureUtils.failedFuture(new IllegalStateException("not running"));
+        try {
+            return nextLoop().registerConnected(sc, connection);
+        } catch (IOException e) {
+            return FutureUtils.failedFuture(e);
+        }
+    }
+
+    private NioClientManager nextLoop() {
+        if (assignment == Assignment.ROUND_ROBIN)
+            return loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+        NioClientManager leastLoaded = loops.get(0);
+        int leastLoad = leastLoaded.getLoad();
+        for (int i = 1; i < loops.size(); i++) {
+            NioClientManager loop = loops.get(i);
+            int load = loop.getLoad();
+            if (load < leastLoad) {
+                leastLoaded = loop;
+                leastLoad = load;
+            }
+        }
+        return leastLoaded;
+    }
+
+    @Override
+    protected Executor executor() {
+        return command -> new ContextPropagatingThreadFactory("NioEventLoopGroup").newThread(command).start();
+    }
+
+    /** Returns the number of event loops. */
+    public int getLoopCount() {
+        return loops.size();
+    }
+
+    /**
+     * Returns the number of connected peers of each event loop.
+     *
+     * @return connection counts, indexed by loop
+     */
+    public int[] getConnectedClientCounts() {
+        return loops.stream().mapToInt(NioClientManager::getConnectedClientCount).toArray();
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        return loops.stream().mapToInt(NioClientManager::getConnectedClientCount).sum();
+    }
+
+    /** Closes n peer connections, taking them from the busiest loops first. */
+    @Override
+    public void closeConnections(int n) {
+        while (n-- > 0) {
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager loop : loops) {
+                int count = loop.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = loop;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
@@ -32,22 +33,34 @@ import java.util.Iterator;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. By default the connections are serviced by the accepting thread; given a {@link NioEventLoopGroup},
+ * they are spread across its event loops instead.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final Logger log = LoggerFactory.getLogger(NioServer.class);
 
+    // Pending connections the OS queues for us before refusing more. The default of 50 is easily exceeded when
+    // hundreds of peers connect at once while the accepting thread competes with busy event loops.
+    private static final int ACCEPT_BACKLOG = 1024;
+
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
     // For testing only
     final Selector selector;
+    @Nullable private final NioEventLoopGroup workers;
 
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a stream connection as an attachment
             SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
+            if (workers != null) {
+                handOver(newChannel);
+                return;
+            }
             newChannel.configureBlocking(false);
             SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
             try {
@@ -64,6 +77,27 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    // Hand a newly accepted channel over to one of the worker loops
+    private void handOver(SocketChannel newChannel) throws IOException {
+        StreamConnection connection = connectionFactory.getNewConnection(newChannel.socket().getInetAddress(),
+                newChannel.socket().getPort());
+        if (connection == null) {
+            log.error("Error handling new connection: factory.getNewConnection returned null");
+            newChannel.close();
+            return;
+        }
+        workers.registerConnected(newChannel, connection).whenComplete((address, t) -> {
+            if (t != null) {
+                log.warn("Error handing over connection", t);
+                try {
+                    newChannel.close();
+                } catch (IOException e) {
+                    log.error("Error closing channel", e);
+                }
+            }
+        });
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
@@ -71,11 +105,26 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, null);
+    }
+
+    /**
+     * Creates a new server which accepts incoming connections in its own thread, but services them with the event
+     * loops of the given group. The group is not started or stopped by the server, so it can be shared with outbound
+     * connections. Connections accepted while the group isn't running are closed.
+     *
+     * @param workers event loops to service the accepted connections, or {@code null} to service them in the accepting
+     *                thread
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     @Nullable NioEventLoopGroup workers) throws IOException {
         this.connectionFactory = connectionFactory;
+        this.workers = workers;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
-        sc.socket().bind(bindAddress);
+        sc.socket().bind(bindAddress, ACCEPT_BACKLOG);
         selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
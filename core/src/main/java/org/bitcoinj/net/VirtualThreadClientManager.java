@@ -0,0 +1,72 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A {@link BlockingClientManager} which runs each {@link BlockingClient} on a virtual thread rather than on a
+ * platform thread. This keeps the simple blocking I/O model, but as a blocked virtual thread only holds on to its
+ * small heap-allocated stack, it scales to thousands of peer connections.</p>
+ *
+ * <p>Virtual threads require Java 21 or later. On older runtimes this manager falls back to one platform thread per
+ * connection, like {@link BlockingClientManager}; use {@link #isSupported()} to find out which is the case.</p>
+ */
+public class VirtualThreadClientManager extends BlockingClientManager {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadClientManager.class);
+
+    @Nullable
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    public VirtualThreadClientManager() {
+        this(SocketFactory.getDefault());
+    }
+
+    /**
+     * Creates a virtual thread client manager that will obtain sockets from the given factory. Useful for customising
+     * how bitcoinj connects to the P2P network.
+     */
+    public VirtualThreadClientManager(SocketFactory socketFactory) {
+        super(socketFactory, VIRTUAL_THREADS != null ? VIRTUAL_THREADS : BlockingClient.DAEMON_THREADS);
+        if (VIRTUAL_THREADS == null)
+            log.warn("Virtual threads are not supported by this runtime, falling back to platform threads");
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads, i.e. if connections are really serviced by virtual threads.
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    // Thread.ofVirtual().factory(), looked up reflectively as it's not available at our language level.
+    @Nullable
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not Java 21 or later, or a preview API which is not enabled
+            return null;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.bitcoinj.base.Coin;
 import org.bitcoinj.core.LockTime;
 import org.bitcoinj.crypto.ECKey;
 import org.bitcoinj.base.LegacyAddress;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.base.SegwitAddress;
 import org.bitcoinj.base.Sha256Hash;
@@ -50,7 +51,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -59,7 +59,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -207,7 +206,6 @@ public class Script {
         CHECKSEQUENCEVERIFY // Enable CHECKSEQUENCEVERIFY operation
     }
     public static final EnumSet<VerifyFlag> ALL_VERIFY_FLAGS = EnumSet.allOf(VerifyFlag.class);
-    private static final BigInteger LOCKTIME_THRESHOLD_BIG = BigInteger.valueOf(LockTime.THRESHOLD);
 
     private static final Logger log = LoggerFactory.getLogger(Script.class);
     public static final int MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
@@ -219,6 +217,15 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    // Results pushed by the interpreter. They are shared and must not be modified.
+    private static final byte[] FALSE = new byte[0];
+    private static final byte[] TRUE = new byte[] {1};
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = serializeNumber(i);
+    }
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     private final List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -853,26 +860,26 @@ public class Script {
     }
 
     /**
-     * Cast a script chunk to a BigInteger.
+     * Cast a script chunk to a number.
      *
-     * @see #castToBigInteger(byte[], int, boolean) for values with different maximum
+     * @see #castToLong(byte[], int, boolean) for values with different maximum
      * sizes.
      * @throws ScriptException if the chunk is longer than 4 bytes.
      */
-    private static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
-        return castToBigInteger(chunk, 4, requireMinimal);
+    private static long castToLong(byte[] chunk, final boolean requireMinimal) throws ScriptException {
+        return castToLong(chunk, 4, requireMinimal);
     }
 
     /**
-     * Cast a script chunk to a BigInteger. Normally you would want
-     * {@link #castToBigInteger(byte[], boolean)} instead, this is only for cases where
+     * Cast a script chunk to a number. Normally you would want
+     * {@link #castToLong(byte[], boolean)} instead, this is only for cases where
      * the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
      *
-     * @param maxLength the maximum length in bytes.
+     * @param maxLength the maximum length in bytes, at most 8.
      * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
      * @throws ScriptException if the chunk is longer than the specified maximum.
      */
-    /* package private */ static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+    /* package private */ static long castToLong(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
 
@@ -895,7 +902,42 @@ public class Script {
             }
         }
 
-        return ByteUtils.decodeMPI(ByteUtils.reverseBytes(chunk), false);
+        if (chunk.length == 0)
+            return 0;
+        // Little-endian magnitude, with the sign in the most significant bit of the last byte.
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xff) << (8 * i);
+        int last = chunk.length - 1;
+        if ((chunk[last] & 0x80) != 0)
+            return -(result & ~(0x80L << (8 * last)));
+        return result;
+    }
+
+    /**
+     * Encodes a number the way the script interpreter pushes it: little-endian magnitude with the sign in the most
+     * significant bit, and zero as the empty array. The arrays for -1 to 16 are shared and must not be modified.
+     */
+    /* package private */ static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        return serializeNumber(value);
+    }
+
+    private static byte[] serializeNumber(long value) {
+        if (value == 0)
+            return new byte[0];
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int length = (Long.SIZE - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+        // If the most significant bit is taken, the sign needs an extra byte.
+        boolean extraByte = ((magnitude >>> (8 * (length - 1))) & 0x80) != 0;
+        byte[] result = new byte[extraByte ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (negative)
+            result[result.length - 1] |= 0x80;
+        return result;
     }
 
     /**
@@ -907,15 +949,32 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack);
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, verifyFlags);
+        } finally {
+            // The interpreter shares constant elements like TRUE and FALSE between runs, so the caller gets copies.
+            stack.clear();
+            for (byte[] element : scriptStack.toList())
+                stack.add(element.clone());
+        }
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index,
+                                      Script script, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
-        
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
+
+        ScriptStack altstack = new ScriptStack();
+        // Instead of a stack of booleans, the OP_IF nesting depth and the depth of the first false condition, if any.
+        // That's all that's needed to know if we're executing, see ConditionStack in Bitcoin Core.
+        int ifDepth = 0;
+        int ifFirstFalse = -1;
 
         int nextLocationInScript = 0;
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = ifFirstFalse < 0;
             int opcode = chunk.opcode;
             nextLocationInScript += chunk.size();
 
@@ -940,48 +999,46 @@ public class Script {
 
             if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
                 // Check minimal push
-                if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
-                    stack.add(new byte[]{});
+                    stack.push(FALSE);
                 else
-                    stack.add(chunk.data);
+                    stack.push(chunk.data);
             } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)){
 
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL,
+                                    opcode == OP_IF ? "Attempted OP_IF on an empty stack" : "Attempted OP_NOTIF on an empty stack");
+                        if (castToBool(stack.pop()) == (opcode == OP_NOTIF))
+                            ifFirstFalse = ifDepth;
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifDepth++;
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    if (ifFirstFalse < 0)
+                        ifFirstFalse = ifDepth - 1;
+                    else if (ifFirstFalse == ifDepth - 1)
+                        ifFirstFalse = -1;
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (ifDepth == 0)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    ifDepth--;
+                    if (ifFirstFalse == ifDepth)
+                        ifFirstFalse = -1;
                     continue;
 
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -999,14 +1056,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -1014,158 +1071,118 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    stack.roll(5);
+                    stack.roll(5);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    stack.swap(3, 1);
+                    stack.swap(2, 0);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek()))
+                        stack.push(stack.peek());
                     break;
                 case OP_DEPTH:
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek());
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                    long val = castToLong(stack.pop(), requireMinimal);
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
                     if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                        stack.roll((int) val);
+                    else
+                        stack.push(stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.roll(2);
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    stack.swap(1, 0);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(stack.peek(1));
                     break;
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek().length));
                     break;
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE : FALSE);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1176,39 +1193,34 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                                        
+                    // Operands are at most 4 bytes, so neither they nor the results can overflow a long.
+                    long numericOPnum = castToLong(stack.pop(), requireMinimal);
+
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum != 0 ? 1 : 0;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
-                    
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(numericOPnum, false)));
+
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_ADD:
                 case OP_SUB:
@@ -1224,115 +1236,80 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    long numericOPnum2 = castToLong(stack.pop(), requireMinimal);
+                    long numericOPnum1 = castToLong(stack.pop(), requireMinimal);
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
-                    
-                    stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(numericOPresult, false)));
+
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop(), requireMinimal);
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop(), requireMinimal);
+
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop(), requireMinimal);
+                    long OPWITHINnum2 = castToLong(stack.pop(), requireMinimal);
+                    long OPWITHINnum1 = castToLong(stack.pop(), requireMinimal);
+                    stack.push(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? encodeNumber(1) : encodeNumber(0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
-                    byte[] dataToHash = stack.pollLast();
-                    byte[] ripmeMdHash = CryptoUtils.digestRipeMd160(dataToHash);
-                    stack.add(ripmeMdHash);
+                    stack.push(CryptoUtils.digestRipeMd160(stack.pop()));
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1340,17 +1317,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.push(Sha256Hash.hash(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                    stack.add(CryptoUtils.sha256hash160(stack.pollLast()));
+                    stack.push(CryptoUtils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = nextLocationInScript;
@@ -1409,33 +1386,33 @@ public class Script {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Stack size exceeded range");
         }
         
-        if (!ifStack.isEmpty())
+        if (ifDepth != 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final long nLockTime = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         LockTime txContainingThisLockTime = txContainingThis.lockTime();
         if (!(
-            ((txContainingThisLockTime instanceof LockTime.HeightLock) && (nLockTime.compareTo(LOCKTIME_THRESHOLD_BIG)) < 0) ||
-            ((txContainingThisLockTime instanceof LockTime.TimeLock) && (nLockTime.compareTo(LOCKTIME_THRESHOLD_BIG)) >= 0))
+            ((txContainingThisLockTime instanceof LockTime.HeightLock) && nLockTime < LockTime.THRESHOLD) ||
+            ((txContainingThisLockTime instanceof LockTime.TimeLock) && nLockTime >= LockTime.THRESHOLD))
         )
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Lock time requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThisLockTime.rawValue())) > 0)
+        if (nLockTime > txContainingThisLockTime.rawValue())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Lock time requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1452,7 +1429,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1465,7 +1442,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1524,19 +1501,37 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode, 
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
-        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
-            || verifyFlags.contains(VerifyFlag.DERSIG)
-            || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
-        byte[] prog = script.program();
+        byte[] prog = script.getQuickProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        boolean sigValid = checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey, verifyFlags);
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? TRUE : FALSE);
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+    }
+
+    /**
+     * Checks a legacy signature the way OP_CHECKSIG does. The signature is removed from the connected script before
+     * that is used for the signature hash.
+     * @return true if the signature is valid, false if it isn't or can't be decoded
+     * @throws ScriptException if the signature isn't canonical but the flags require it to be
+     */
+    private static boolean checkSignature(Transaction txContainingThis, int index, byte[] connectedScript,
+                                          byte[] sigBytes, byte[] pubKey,
+                                          Set<VerifyFlag> verifyFlags) throws ScriptException {
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
 
         ByteArrayOutputStream outStream = new ByteArrayOutputStream(sigBytes.length + 1);
         try {
@@ -1554,7 +1549,7 @@ public class Script {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = SignatureCache.verifyWithDefault(hash, sig, pubKey);
         } catch (VerificationException.NoncanonicalSignature e) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Script contains non-canonical signature");
         } catch (SignatureDecodeException e) {
@@ -1568,15 +1563,10 @@ public class Script {
         } catch (Exception e) {
             log.warn("Signature checking failed!", e);
         }
-
-        if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
-        else if (opcode == OP_CHECKSIGVERIFY)
-            if (!sigValid)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+        return sigValid;
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, 
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1584,7 +1574,7 @@ public class Script {
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1593,25 +1583,21 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<>();
-        for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
-            pubkeys.add(pubKey);
-        }
+        byte[][] pubkeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubkeys[i] = stack.pop();
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<>();
-        for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
-            sigs.add(sig);
-        }
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
 
-        byte[] prog = script.program();
+        byte[] prog = script.getQuickProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
         for (byte[] sig : sigs) {
@@ -1625,33 +1611,35 @@ public class Script {
         }
 
         boolean valid = true;
-        while (sigs.size() > 0) {
-            byte[] pubKey = pubkeys.pollFirst();
+        int nextSig = 0;
+        int nextPubKey = 0;
+        while (nextSig < sigCount) {
+            byte[] pubKey = pubkeys[nextPubKey++];
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical, false);
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs[nextSig], requireCanonical, false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
+                if (SignatureCache.verifyWithDefault(hash, sig, pubKey))
+                    nextSig++;
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                 // Because I can't verify there aren't more, we use a very generic Exception catch
             }
 
-            if (sigs.size() > pubkeys.size()) {
+            if (sigCount - nextSig > pubKeyCount - nextPubKey) {
                 valid = false;
                 break;
             }
         }
 
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = stack.pop();
         if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
+            stack.push(valid ? TRUE : FALSE);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
@@ -1671,57 +1659,116 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, int scriptSigIndex, @Nullable TransactionWitness witness, @Nullable Coin value,
             Script scriptPubKey, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, witness, value, scriptPubKey, verifyFlags, null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey. Pass the same
+     * {@link PrecomputedTransactionData} when verifying several inputs of a transaction, so that the segwit signature
+     * hash data is computed only once.
+     * @param txContainingThis The transaction in which this input scriptSig resides.
+     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param witness Transaction witness belonging to the transaction input containing this script. Needed for segwit.
+     * @param value Value of the output. Needed for segwit scripts.
+     * @param verifyFlags Each flag enables one validation rule.
+     * @param precomputedData Signature hash data precomputed from txContainingThis, or null to compute it as needed.
+     */
+    public void correctlySpends(Transaction txContainingThis, int scriptSigIndex, @Nullable TransactionWitness witness, @Nullable Coin value,
+            Script scriptPubKey, Set<VerifyFlag> verifyFlags,
+            @Nullable PrecomputedTransactionData precomputedData) throws ScriptException {
+        // Standard templates are checked directly, with the same result the interpreter would come to. Anything that
+        // doesn't match a template exactly, including pushes the interpreter would reject, is interpreted.
+        if (verifyFlags == null)
+            verifyFlags = Collections.emptySet(); // tolerated by the templates in the past
         if (ScriptPattern.isP2WPKH(scriptPubKey)) {
-            // For segwit, full validation isn't implemented. So we simply check the signature. P2SH_P2WPKH is handled
-            // by the P2SH code for now.
-            if (witness.getPushCount() < 2)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_WITNESS_EMPTY, witness.toString());
-            TransactionSignature signature;
-            try {
-                signature = TransactionSignature.decodeFromBitcoin(witness.getPush(0), true, true);
-            } catch (SignatureDecodeException x) {
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
-            }
-            ECKey pubkey = ECKey.fromPublicOnly(witness.getPush(1));
-            Script scriptCode = ScriptBuilder.createP2PKHOutputScript(pubkey);
-            Sha256Hash sigHash = txContainingThis.hashForWitnessSignature(scriptSigIndex, scriptCode, value,
-                    signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
-            if (!validSig)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
-        } else if (ScriptPattern.isP2PKH(scriptPubKey)) {
-            if (chunks.size() != 2)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Invalid size: " + chunks.size());
-            TransactionSignature signature;
-            try {
-                signature = TransactionSignature.decodeFromBitcoin(chunks.get(0).data, true, true);
-            } catch (SignatureDecodeException x) {
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
-            }
-            ECKey pubkey = ECKey.fromPublicOnly(chunks.get(1).data);
-            Sha256Hash sigHash = txContainingThis.hashForSignature(scriptSigIndex, scriptPubKey,
-                    signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
-            if (!validSig)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
-        } else if (ScriptPattern.isP2PK(scriptPubKey)) {
-            if (chunks.size() != 1)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Invalid size: " + chunks.size());
-            TransactionSignature signature;
-            try {
-                signature = TransactionSignature.decodeFromBitcoin(chunks.get(0).data, false, false);
-            } catch (SignatureDecodeException x) {
-                throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
-            }
-            ECKey pubkey = ECKey.fromPublicOnly(ScriptPattern.extractKeyFromP2PK(scriptPubKey));
-            Sha256Hash sigHash = txContainingThis.hashForSignature(scriptSigIndex, scriptPubKey,
-                    signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
-            if (!validSig)
-                throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
+            // For segwit, full validation isn't implemented. So we simply check the key hash and the signature.
+            if (!chunks.isEmpty())
+                throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_MALLEATED, "Non-empty scriptSig: " + this);
+            correctlySpendsP2WPKH(txContainingThis, scriptSigIndex, witness, value,
+                    ScriptPattern.extractHashFromP2WH(scriptPubKey), verifyFlags, precomputedData);
+        } else if (witness != null && value != null && verifyFlags.contains(VerifyFlag.P2SH) &&
+                ScriptPattern.isP2SH(scriptPubKey) && isP2SHP2WPKHScriptSig()) {
+            byte[] redeemScript = chunks.get(0).data;
+            if (!Arrays.equals(CryptoUtils.sha256hash160(redeemScript), ScriptPattern.extractHashFromP2SH(scriptPubKey)))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Redeem script doesn't match script hash");
+            correctlySpendsP2WPKH(txContainingThis, scriptSigIndex, witness, value,
+                    Arrays.copyOfRange(redeemScript, 2, redeemScript.length), verifyFlags, precomputedData);
+        } else if (ScriptPattern.isP2PKH(scriptPubKey) && chunks.size() == 2 &&
+                isTemplatePush(chunks.get(0), verifyFlags) && isTemplatePush(chunks.get(1), verifyFlags) &&
+                isTemplatePush(scriptPubKey.chunks.get(2), verifyFlags)) {
+            byte[] sigBytes = chunks.get(0).data;
+            byte[] pubKey = chunks.get(1).data;
+            if (!Arrays.equals(CryptoUtils.sha256hash160(pubKey), ScriptPattern.extractHashFromP2PKH(scriptPubKey)))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
+            if (!checkSignature(txContainingThis, scriptSigIndex, scriptPubKey.getQuickProgram(), sigBytes, pubKey,
+                    verifyFlags))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Invalid signature");
+        } else if (ScriptPattern.isP2PK(scriptPubKey) && chunks.size() == 1 &&
+                isTemplatePush(chunks.get(0), verifyFlags) && isTemplatePush(scriptPubKey.chunks.get(0), verifyFlags)) {
+            byte[] sigBytes = chunks.get(0).data;
+            byte[] pubKey = ScriptPattern.extractKeyFromP2PK(scriptPubKey);
+            if (!checkSignature(txContainingThis, scriptSigIndex, scriptPubKey.getQuickProgram(), sigBytes, pubKey,
+                    verifyFlags))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Invalid signature");
         } else {
-            correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+            correctlySpendsInterpreted(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+        }
+    }
+
+    // Checks a P2WPKH spend with the same result as interpreting its script code, <pubKey> <sig> DUP HASH160
+    // <pubKeyHash> EQUALVERIFY CHECKSIG, would have.
+    private static void correctlySpendsP2WPKH(Transaction txContainingThis, int index,
+            @Nullable TransactionWitness witness, @Nullable Coin value, byte[] pubKeyHash, Set<VerifyFlag> verifyFlags,
+            @Nullable PrecomputedTransactionData precomputedData) throws ScriptException {
+        if (witness == null || witness.getPushCount() == 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_WITNESS_EMPTY, String.valueOf(witness));
+        if (witness.getPushCount() != 2)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_MISMATCH, witness.toString());
+        if (value == null)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Value of the spent output is needed for segwit");
+        for (int i = 0; i < 2; i++)
+            if (witness.getPush(i).length > MAX_SCRIPT_ELEMENT_SIZE)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_PUSH_SIZE, "Attempted to push a data string larger than 520 bytes");
+        byte[] pubKey = witness.getPush(1);
+        if (!Arrays.equals(CryptoUtils.sha256hash160(pubKey), pubKeyHash))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
+        boolean validSig = false;
+        try {
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(witness.getPush(0),
+                    requireCanonical, verifyFlags.contains(VerifyFlag.LOW_S));
+            byte[] scriptCode = ScriptBuilder.createP2PKHOutputScript(pubKeyHash).program();
+            byte sigHashType = (byte) signature.sighashFlags;
+            Sha256Hash sigHash = precomputedData != null ?
+                    precomputedData.hashForWitnessSignature(index, scriptCode, value, sigHashType) :
+                    txContainingThis.hashForWitnessSignature(index, scriptCode, value, sigHashType);
+            validSig = SignatureCache.verifyWithDefault(sigHash, signature, pubKey);
+        } catch (VerificationException.NoncanonicalSignature e) {
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Script contains non-canonical signature");
+        } catch (SignatureDecodeException | RuntimeException e) {
+            // The signature can't be decoded or the public key can't be parsed, like in checkSignature().
         }
+        if (!validSig)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack");
+    }
+
+    // A scriptSig of the form <0 <20 bytes>>, as used to spend P2SH-wrapped P2WPKH.
+    private boolean isP2SHP2WPKHScriptSig() {
+        if (chunks.size() != 1)
+            return false;
+        ScriptChunk chunk = chunks.get(0);
+        return chunk.opcode == 22 && chunk.data != null && chunk.data.length == 22 && chunk.data[0] == OP_0 &&
+                chunk.data[1] == 20;
+    }
+
+    // A push that the interpreter would execute without failing.
+    private static boolean isTemplatePush(ScriptChunk chunk, Set<VerifyFlag> verifyFlags) {
+        return chunk.data != null && chunk.opcode <= OP_PUSHDATA4 && chunk.data.length <= MAX_SCRIPT_ELEMENT_SIZE &&
+                (!verifyFlags.contains(VerifyFlag.MINIMALDATA) || chunk.isShortestPossiblePushData());
     }
 
     /**
@@ -1736,6 +1783,12 @@ public class Script {
     @Deprecated
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpendsInterpreted(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags);
+    }
+
+    // Verifies the spend by running the interpreter on both scripts, without the template fast paths.
+    void correctlySpendsInterpreted(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                    Set<VerifyFlag> verifyFlags) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
@@ -1746,21 +1799,20 @@ public class Script {
         if (program().length > MAX_SCRIPT_SIZE || scriptPubKey.program().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
+        ScriptStack stack = new ScriptStack();
+        ScriptStack p2shStack = null;
         
         executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
+            p2shStack = stack.copy();
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
         
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
 
-        List<byte[]> stackCopy = new LinkedList<>(stack);
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.peek()))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                    "Script resulted in a non-true stack: " + Utils.toString(stackCopy));
+                    "Script resulted in a non-true stack: " + Utils.toString(stack.toList()));
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
         // program but it has "useless" form that if evaluated as a normal program always returns true.
@@ -1780,7 +1832,7 @@ public class Script {
                 if (!chunk.isPushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained the script op " + chunk);
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = Script.parse(scriptPubKeyBytes);
             
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
@@ -1788,10 +1840,9 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
             
-            List<byte[]> p2shStackCopy = new LinkedList<>(p2shStack);
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.peek()))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
-                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStackCopy));
+                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStack.toList()));
         }
     }
 
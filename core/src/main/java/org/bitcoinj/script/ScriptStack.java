@@ -0,0 +1,129 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The data stack of the script interpreter, backed by an array. Elements are references to byte arrays, usually the
+ * data of the pushing {@link ScriptChunk}, and are never copied or modified by the interpreter. Pushing and popping
+ * doesn't allocate, except when the array needs to grow.
+ */
+class ScriptStack {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[INITIAL_CAPACITY][];
+    }
+
+    ScriptStack(Collection<byte[]> elements) {
+        this.elements = elements.toArray(new byte[Math.max(elements.size(), INITIAL_CAPACITY)][]);
+        this.size = elements.size();
+    }
+
+    private ScriptStack(ScriptStack other) {
+        this.elements = Arrays.copyOf(other.elements, Math.max(other.size, INITIAL_CAPACITY));
+        this.size = other.size;
+    }
+
+    /** Returns a copy of this stack. The elements themselves are shared. */
+    ScriptStack copy() {
+        return new ScriptStack(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    /** Removes and returns the top element. The stack must not be empty. */
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    /** Returns the top element. The stack must not be empty. */
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /**
+     * Returns an element without removing it.
+     * @param depth 0 for the top element, 1 for the one below it and so on
+     */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /**
+     * Removes and returns an element.
+     * @param depth 0 for the top element, 1 for the one below it and so on
+     */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /**
+     * Moves an element to the top.
+     * @param depth 0 for the top element, 1 for the one below it and so on
+     */
+    void roll(int depth) {
+        push(remove(depth));
+    }
+
+    /** Swaps two elements, given by their depths. */
+    void swap(int depth1, int depth2) {
+        int index1 = size - 1 - depth1;
+        int index2 = size - 1 - depth2;
+        byte[] element = elements[index1];
+        elements[index1] = elements[index2];
+        elements[index2] = element;
+    }
+
+    void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    /** Returns the elements from bottom to top. */
+    List<byte[]> toList() {
+        List<byte[]> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            list.add(elements[i]);
+        return list;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers (sighash, public key, signature) triples that were found to be valid, so that a transaction that is
+ * verified again, e.g. first when it is relayed and later when it is included in a block, or after a re-org, doesn't
+ * pay for ECDSA verification twice. It is modelled after the signature cache of Bitcoin Core.</p>
+ *
+ * <p>Only valid signatures are cached, so a cache hit can never turn an invalid signature into a valid one, and the
+ * cache can't be used to fill memory with garbage. Entries are identified by a SHA-256 of a random per-instance salt
+ * and the triple, so an attacker can't predict or collide cache positions. Each entry can live in one of two slots; if
+ * both are taken, one of them is evicted at random. The cache is lock-free and safe to use from any number of
+ * threads.</p>
+ *
+ * <p>{@link Script} consults the {@link #getDefault() default cache} for all signature checks, and with it
+ * {@link org.bitcoinj.core.FullPrunedBlockChain} and everything else that calls
+ * {@link Script#correctlySpends(org.bitcoinj.core.Transaction, int, org.bitcoinj.core.TransactionWitness,
+ * org.bitcoinj.base.Coin, Script, java.util.Set)}.</p>
+ */
+public class SignatureCache {
+    /** Default number of entries, roughly 20 MB once full. */
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 18;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_ENTRIES);
+
+    private final byte[] salt = new byte[32];
+    private final AtomicReferenceArray<Sha256Hash> entries;
+    private final int mask;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     * @param maxEntries maximum number of signatures to remember, rounded up to a power of two
+     */
+    public SignatureCache(int maxEntries) {
+        checkArgument(maxEntries > 0 && maxEntries <= 1 << 30, () -> "maxEntries out of range: " + maxEntries);
+        int size = maxEntries == 1 ? 2 : Integer.highestOneBit(maxEntries - 1) << 1;
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Returns the cache that is used by {@link Script}, or {@code null} if signature caching is disabled.
+     */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replaces the cache that is used by {@link Script}, e.g. to change its size.
+     * @param cache new cache, or {@code null} to disable signature caching
+     */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Verifies a signature, consulting the cache first and remembering it if valid.
+     * @param sigHash hash of the signed data
+     * @param signature signature to verify
+     * @param pubKey public key bytes
+     * @return true if the signature is valid
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        Sha256Hash entry = entry(sigHash, signature, pubKey);
+        if (contains(entry)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            add(entry);
+        return valid;
+    }
+
+    /**
+     * Same as {@link #verify(Sha256Hash, ECKey.ECDSASignature, byte[])}, but uses the default cache if there is one
+     * and otherwise just verifies.
+     */
+    static boolean verifyWithDefault(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        SignatureCache cache = defaultCache;
+        return cache != null ? cache.verify(sigHash, signature, pubKey) :
+                ECKey.verify(sigHash.getBytes(), signature, pubKey);
+    }
+
+    /** Returns the number of verifications that were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of verifications that needed ECDSA. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of valid signatures that had to be forgotten to make room for new ones. */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Returns the maximum number of entries. */
+    public int getMaxEntries() {
+        return entries.length();
+    }
+
+    /** Forgets all signatures. */
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++)
+            entries.set(i, null);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %d max entries", getHits(), getMisses(),
+                getEvictions(), getMaxEntries());
+    }
+
+    private Sha256Hash entry(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(sigHash.getBytes());
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature.encodeToDER());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private boolean contains(Sha256Hash entry) {
+        return entry.equals(entries.get(slot1(entry))) || entry.equals(entries.get(slot2(entry)));
+    }
+
+    private void add(Sha256Hash entry) {
+        int slot1 = slot1(entry);
+        int slot2 = slot2(entry);
+        if (entries.compareAndSet(slot1, null, entry) || entries.compareAndSet(slot2, null, entry))
+            return;
+        if (entry.equals(entries.get(slot1)) || entry.equals(entries.get(slot2)))
+            return;
+        entries.set(ThreadLocalRandom.current().nextBoolean() ? slot1 : slot2, entry);
+        evictions.incrementAndGet();
+    }
+
+    private int slot1(Sha256Hash entry) {
+        return ByteBuffer.wrap(entry.getBytes()).getInt(0) & mask;
+    }
+
+    private int slot2(Sha256Hash entry) {
+        return ByteBuffer.wrap(entry.getBytes()).getInt(4) & mask;
+    }
+}
@@ -18,7 +18,9 @@
 package org.bitcoinj.signers;
 
 import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
@@ -67,6 +69,8 @@ public class LocalTransactionSigner implements TransactionSigner {
     @Override
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
+        // Signing only replaces input scripts and witnesses, which aren't covered by BIP143 signature hashes.
+        PrecomputedTransactionData precomputedData = PrecomputedTransactionData.of(tx);
         int numInputs = tx.getInputs().size();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
@@ -82,7 +86,7 @@ public class LocalTransactionSigner implements TransactionSigner {
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
                 txIn.getScriptSig().correctlySpends(tx, i, txIn.getWitness(), connectedOutput.getValue(),
-                        connectedOutput.getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
+                        connectedOutput.getScriptPubKey(), MINIMUM_VERIFY_FLAGS, precomputedData);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptException e) {
@@ -132,7 +136,9 @@ public class LocalTransactionSigner implements TransactionSigner {
                 } else if (ScriptPattern.isP2WPKH(scriptPubKey)) {
                     Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key);
                     Coin value = txIn.getValue();
-                    TransactionSignature signature = tx.calculateWitnessSignature(i, key, scriptCode, value,
+                    Sha256Hash sigHash = precomputedData.hashForWitnessSignature(i, scriptCode, value,
+                            Transaction.SigHash.ALL, false);
+                    TransactionSignature signature = new TransactionSignature(key.sign(sigHash),
                             Transaction.SigHash.ALL, false);
                     txIn = txIn.withScriptSig(ScriptBuilder.createEmpty());
                     txIn = txIn.withWitness(TransactionWitness.redeemP2WPKH(signature, key));
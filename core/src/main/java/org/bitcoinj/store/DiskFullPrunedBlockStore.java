@@ -0,0 +1,1012 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Network;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.Buffers;
+import org.bitcoinj.base.internal.ByteArray;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that persists {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link UTXO}s
+ * to a directory on disk, so that a fully verifying node can be restarted without replaying the chain.</p>
+ *
+ * <p>The store is log-structured: every change is appended to the current segment file and existing data is never
+ * overwritten in place. Changes are written in frames, each protected by a length and a CRC32 checksum. A database
+ * batch (see {@link #beginDatabaseBatchWrite()}) is written as a single frame and forced to disk on commit, so after a
+ * crash the store either contains the whole batch or none of it. A torn frame at the end of the log is discarded when
+ * the store is opened.</p>
+ *
+ * <p>A memory-mapped index, see {@link MappedLogIndex}, maps each key to the location and length of its latest value
+ * in the log; values themselves are only read from disk when needed. Once the log has grown to more than twice the
+ * size of the live data, it is compacted: all live values are copied into a fresh segment and the old segments are
+ * deleted. A small snapshot file with the heights of the undoable blocks is written after each compaction and on
+ * {@link #close()}. If the store wasn't closed cleanly, the index is rebuilt from the log when it is opened.</p>
+ *
+ * <p>Compaction currently happens synchronously on the thread that commits the batch that crossed the threshold.</p>
+ */
+public class DiskFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(DiskFullPrunedBlockStore.class);
+
+    /** The default maximum size of a single segment file. */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Key types, the first byte of each key.
+    private static final byte TYPE_BLOCK = 1;
+    private static final byte TYPE_UNDO = 2;
+    private static final byte TYPE_UTXO = 3;
+    private static final byte TYPE_META = 4;
+
+    // Operations within a frame.
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final ByteArray KEY_CHAIN_HEAD = new ByteArray(new byte[] { TYPE_META, 1 });
+    private static final ByteArray KEY_VERIFIED_CHAIN_HEAD = new ByteArray(new byte[] { TYPE_META, 2 });
+
+    // Marks a deleted key in a pending batch.
+    private static final byte[] DELETED = new byte[0];
+
+    private static final byte[] SNAPSHOT_MAGIC = "FPS2".getBytes(StandardCharsets.US_ASCII);
+    private static final String SNAPSHOT_FILE_NAME = "index.snapshot";
+    private static final int NO_UNDO_HEIGHT = -1;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final int FRAME_HEADER_BYTES = 8; // 4 bytes length, 4 bytes CRC32
+    private static final int COMPACTION_FRAME_BYTES = 1024 * 1024;
+
+    // Snapshot file format:
+    //   4 magic header bytes = "FPS1"
+    //   4 bytes number of the oldest segment still referenced
+    //   4 bytes number of the segment and 8 bytes offset up to which the log is covered by the snapshot
+    //   8 bytes number of live bytes
+    //   4 bytes number of undoable blocks, then for each: 4 bytes height, 1 byte key length and the key
+    //
+    // Log file format:
+    //   A sequence of frames, each consisting of:
+    //     4 bytes length of the payload
+    //     4 bytes CRC32 of the payload
+    //     the payload, a sequence of operations:
+    //       1 byte operation (put or delete)
+    //       1 byte key length
+    //       the key, starting with a key type byte
+    //       for a put only: 4 bytes value length followed by the value
+    //
+    // Index locations are packed into a long: the segment number in the upper 24 bits and the file offset of the 4
+    // value length bytes in the lower 40 bits.
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final long maxSegmentSize;
+
+    private final FileLock directoryLock;
+    private final RandomAccessFile directoryLockFile;
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private FileChannel activeSegment;
+    private int activeSegmentNumber;
+    private long activeSegmentLength;
+
+    private MappedLogIndex index;
+    // Keys of the undoable blocks in the index by height, to prune them once they are deeper than fullStoreDepth.
+    private final HashMap<Integer, Set<ByteArray>> undoKeysByHeight = new HashMap<>();
+    private long logBytes;
+    private long liveBytes;
+
+    private final ThreadLocal<LinkedHashMap<ByteArray, byte[]>> batch = new ThreadLocal<>();
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if it's missing. This operation will block on disk.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory directory to store the log segments and index snapshot in
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @throws BlockStoreException if something goes wrong
+     */
+    public DiskFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it's missing. This operation will block on disk.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory directory to store the log segments and index snapshot in
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param maxSegmentSize size in bytes after which a new segment file is started
+     * @throws BlockStoreException if something goes wrong
+     */
+    public DiskFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                    long maxSegmentSize) throws BlockStoreException {
+        this.params = Objects.requireNonNull(params);
+        this.directory = Objects.requireNonNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        checkArgument(maxSegmentSize > 0 && maxSegmentSize < (1L << 40), () ->
+                "maxSegmentSize out of range: " + maxSegmentSize);
+        this.maxSegmentSize = maxSegmentSize;
+        RandomAccessFile lockFile = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory: " + directory);
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            FileLock lock;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException x) {
+                lock = null; // Locked by this process.
+            }
+            directoryLock = lock;
+            if (directoryLock == null)
+                throw new ChainFileLockedException("Store directory is already locked by another process");
+            directoryLockFile = lockFile;
+            open();
+            if (index.size() == 0) {
+                log.info("Creating new full pruned block store in: " + directory);
+                insertGenesis();
+            } else {
+                log.info("Using existing full pruned block store in: {} ({} keys, {} log bytes)", directory,
+                        index.size(), logBytes);
+                chainHead = readHead(KEY_CHAIN_HEAD);
+                verifiedChainHead = readHead(KEY_VERIFIED_CHAIN_HEAD);
+            }
+        } catch (IOException | ProtocolException | BufferUnderflowException e) {
+            closeQuietly(lockFile);
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly(lockFile);
+            throw e;
+        }
+    }
+
+    private void insertGenesis() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = new LinkedList<>();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        write(blockKey(block.getHeader().getHash()), serializeBlock(block, false));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        write(undoKey(hash), serializeUndoableBlock(storedBlock.getHeight(), undoableBlock));
+        write(blockKey(hash), serializeBlock(storedBlock, true));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        ByteBuffer value = read(blockKey(hash));
+        if (value == null)
+            return null;
+        ((Buffer) value).position(1);
+        return deserializeBlock(value);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        ByteBuffer value = read(blockKey(hash));
+        if (value == null || value.get() == 0)
+            return null;
+        return deserializeBlock(value);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        ByteBuffer value = read(undoKey(hash));
+        if (value == null)
+            return null;
+        try {
+            return deserializeUndoableBlock(hash, value);
+        } catch (ProtocolException | BufferUnderflowException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.chainHead = chainHead;
+        write(KEY_CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.verifiedChainHead = chainHead;
+        write(KEY_VERIFIED_CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+        if (this.chainHead == null || this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // The keys leave undoKeysByHeight once the deletes are committed, so an aborted batch prunes them again later.
+        Set<ByteArray> prunable = undoKeysByHeight.get(chainHead.getHeight() - fullStoreDepth);
+        if (prunable != null)
+            for (ByteArray undoKey : new ArrayList<>(prunable))
+                write(undoKey, DELETED);
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        ByteBuffer value = read(utxoKey(hash, index));
+        return value == null ? null : deserializeUTXO(hash, index, value);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        write(utxoKey(out.getHash(), out.getIndex()), serializeUTXO(out));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        ByteArray key = utxoKey(out.getHash(), out.getIndex());
+        if (!contains(key))
+            throw new BlockStoreException("Tried to remove a UTXO from DiskFullPrunedBlockStore that it didn't have!");
+        write(key, DELETED);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        for (int i = 0; i < numOutputs; i++)
+            if (contains(utxoKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batch.get() == null)
+            batch.set(new LinkedHashMap<>());
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        LinkedHashMap<ByteArray, byte[]> pending = batch.get();
+        batch.remove();
+        if (pending == null || pending.isEmpty())
+            return;
+        try {
+            append(pending, true);
+            maybeCompact();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        try {
+            writeSnapshot();
+            index.close(activeSegmentNumber, activeSegmentLength);
+            index = null;
+            for (FileChannel segment : segments.values())
+                segment.close();
+            segments.clear();
+            directoryLock.release();
+            directoryLockFile.close();
+            closed = true;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public Network network() {
+        return params.network();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        // Like MemoryFullPrunedBlockStore, this goes through all the outputs and selects the ones we are looking for.
+        List<String> addresses = new ArrayList<>(keys.size());
+        for (ECKey key : keys) {
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            Address address = key.toAddress(ScriptType.P2PKH, params.network());
+            addresses.add(address.toString());
+        }
+        try {
+            checkOpen();
+            List<UTXO> foundOutputs = new ArrayList<>();
+            for (long slot = 0; slot < index.slotCount(); slot++) {
+                byte[] keyBytes = index.key(slot);
+                if (keyBytes == null || keyBytes[0] != TYPE_UTXO)
+                    continue;
+                Sha256Hash hash = Sha256Hash.wrap(Arrays.copyOfRange(keyBytes, 1, 33));
+                long outputIndex = ByteBuffer.wrap(keyBytes, 33, 4).getInt() & 0xFFFFFFFFL;
+                UTXO output = getTransactionOutput(hash, outputIndex);
+                if (output != null && addresses.contains(output.getAddress()))
+                    foundOutputs.add(output);
+            }
+            return foundOutputs;
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    /** Returns the number of bytes currently used by the log segments, including superseded values. */
+    public synchronized long getLogBytes() {
+        return logBytes;
+    }
+
+    /** Returns the number of bytes of the log that hold live values. */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Rewrites all live values into a fresh segment, deletes the old segments and saves a snapshot of the index. This
+     * is done automatically when enough of the log is garbage, but may also be invoked manually, for example before a
+     * backup.
+     * @throws BlockStoreException if something goes wrong
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        checkArgument(batch.get() == null, () -> "cannot compact during a database batch write");
+        try {
+            compactInternal();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Reading and writing keys
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("DiskFullPrunedBlockStore is closed");
+    }
+
+    private void write(ByteArray key, byte[] value) throws BlockStoreException {
+        LinkedHashMap<ByteArray, byte[]> pending = batch.get();
+        if (pending != null) {
+            pending.put(key, value);
+            return;
+        }
+        try {
+            append(Collections.singletonMap(key, value), false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean contains(ByteArray key) {
+        LinkedHashMap<ByteArray, byte[]> pending = batch.get();
+        if (pending != null) {
+            byte[] value = pending.get(key);
+            if (value != null)
+                return value != DELETED;
+        }
+        return index.find(key.bytes()) >= 0;
+    }
+
+    @Nullable
+    private ByteBuffer read(ByteArray key) throws BlockStoreException {
+        LinkedHashMap<ByteArray, byte[]> pending = batch.get();
+        if (pending != null) {
+            byte[] value = pending.get(key);
+            if (value != null)
+                return value == DELETED ? null : ByteBuffer.wrap(value);
+        }
+        long slot = index.find(key.bytes());
+        if (slot < 0)
+            return null;
+        try {
+            return readValue(index.location(slot), index.valueLength(slot));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // The index knows the length, so the value is read in one go.
+    private ByteBuffer readValue(long location, int length) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(length);
+        readFully(segments.get(segmentOf(location)), value, offsetOf(location) + Integer.BYTES);
+        ((Buffer) value).flip();
+        return value;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + buf.position());
+            if (read < 0)
+                break;
+        }
+    }
+
+    // Writes the given changes as a single frame to the log, then updates the index.
+    private void append(Map<ByteArray, byte[]> changes, boolean sync) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<Integer> valueOffsets = new ArrayList<>(changes.size());
+        for (Map.Entry<ByteArray, byte[]> change : changes.entrySet()) {
+            byte[] key = change.getKey().bytes();
+            byte[] value = change.getValue();
+            payload.write(value == DELETED ? OP_DELETE : OP_PUT);
+            payload.write(key.length);
+            payload.write(key);
+            if (value != DELETED) {
+                valueOffsets.add(payload.size());
+                payload.write(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array());
+                payload.write(value);
+            }
+        }
+        long frameOffset = appendFrame(payload.toByteArray());
+        if (sync)
+            activeSegment.force(false);
+        int i = 0;
+        for (Map.Entry<ByteArray, byte[]> change : changes.entrySet()) {
+            byte[] value = change.getValue();
+            if (value == DELETED) {
+                removeFromIndex(change.getKey());
+            } else {
+                long valueOffset = frameOffset + FRAME_HEADER_BYTES + valueOffsets.get(i++);
+                addToIndex(change.getKey(), location(activeSegmentNumber, valueOffset), value.length,
+                        undoHeight(change.getKey().bytes(), ByteBuffer.wrap(value), 0));
+            }
+        }
+    }
+
+    // Appends a frame to the active segment, rolling over to a new segment if necessary, and returns its offset.
+    private long appendFrame(byte[] payload) throws IOException {
+        if (activeSegmentLength > 0 && activeSegmentLength + FRAME_HEADER_BYTES + payload.length > maxSegmentSize)
+            startSegment(activeSegmentNumber + 1);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        ((Buffer) frame).flip();
+        long offset = activeSegmentLength;
+        while (frame.hasRemaining())
+            activeSegment.write(frame, offset + frame.position());
+        activeSegmentLength += frame.capacity();
+        logBytes += frame.capacity();
+        return offset;
+    }
+
+    private void addToIndex(ByteArray key, long location, int valueLength, int undoHeight) throws IOException {
+        long slot = index.find(key.bytes());
+        if (slot >= 0) {
+            liveBytes -= Integer.BYTES + index.valueLength(slot);
+            forgetUndoHeight(key, index.undoHeight(slot));
+            index.update(slot, location, valueLength, undoHeight);
+        } else {
+            index.insert(key.bytes(), location, valueLength, undoHeight);
+        }
+        liveBytes += Integer.BYTES + valueLength;
+        if (undoHeight != NO_UNDO_HEIGHT)
+            undoKeysByHeight.computeIfAbsent(undoHeight, h -> new HashSet<>()).add(key);
+    }
+
+    private void removeFromIndex(ByteArray key) {
+        long slot = index.find(key.bytes());
+        if (slot < 0)
+            return;
+        liveBytes -= Integer.BYTES + index.valueLength(slot);
+        forgetUndoHeight(key, index.undoHeight(slot));
+        index.remove(slot);
+    }
+
+    private void forgetUndoHeight(ByteArray key, int undoHeight) {
+        Set<ByteArray> keys = undoKeysByHeight.get(undoHeight);
+        if (keys != null && keys.remove(key) && keys.isEmpty())
+            undoKeysByHeight.remove(undoHeight);
+    }
+
+    // Returns the height of an undoable block from the start of its value, or NO_UNDO_HEIGHT for other keys.
+    private static int undoHeight(byte[] key, ByteBuffer value, int offset) {
+        if (key[0] != TYPE_UNDO)
+            return NO_UNDO_HEIGHT;
+        return value.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(offset);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Opening, recovery and compaction
+
+    private void open() throws IOException, BlockStoreException {
+        TreeMap<Integer, File> segmentFiles = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    int number = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length(),
+                            name.length() - SEGMENT_FILE_SUFFIX.length()));
+                    segmentFiles.put(number, file);
+                }
+            }
+        }
+        int firstSegment = 0;
+        int replaySegment = 0;
+        long replayOffset = 0;
+        File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        boolean snapshotFound = snapshotFile.exists();
+        if (snapshotFound) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+            byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+            snapshot.get(magic);
+            if (!Arrays.equals(magic, SNAPSHOT_MAGIC))
+                throw new BlockStoreException("Index snapshot has unexpected magic header: " + snapshotFile);
+            firstSegment = snapshot.getInt();
+            replaySegment = snapshot.getInt();
+            replayOffset = snapshot.getLong();
+            liveBytes = snapshot.getLong();
+            int size = snapshot.getInt();
+            for (int i = 0; i < size; i++) {
+                int height = snapshot.getInt();
+                byte[] key = new byte[snapshot.get() & 0xFF];
+                snapshot.get(key);
+                undoKeysByHeight.computeIfAbsent(height, h -> new HashSet<>()).add(new ByteArray(key));
+            }
+            // Segments before the first one referenced by the snapshot have been compacted and are no longer needed.
+            for (File obsolete : segmentFiles.headMap(firstSegment).values())
+                Files.delete(obsolete.toPath());
+            segmentFiles = new TreeMap<>(segmentFiles.tailMap(firstSegment));
+        }
+        for (Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+            FileChannel channel = new RandomAccessFile(segmentFile.getValue(), "rw").getChannel();
+            segments.put(segmentFile.getKey(), channel);
+            logBytes += channel.size();
+        }
+        index = MappedLogIndex.open(directory);
+        if (!snapshotFound || !index.isCleanAt(replaySegment, replayOffset)) {
+            // The index doesn't match the snapshot, for example after a crash, so rebuild it from the whole log.
+            if (!segments.isEmpty())
+                log.info("Rebuilding index of full pruned block store in: {}", directory);
+            index.clear();
+            liveBytes = 0;
+            undoKeysByHeight.clear();
+            replaySegment = segments.isEmpty() ? firstSegment : segments.firstKey();
+            replayOffset = 0;
+        }
+        index.markInUse();
+        // With a clean index, this only discards an incomplete write after the end of the log the index covers.
+        for (Map.Entry<Integer, FileChannel> segment : segments.tailMap(replaySegment).entrySet()) {
+            int number = segment.getKey();
+            long start = number == replaySegment ? replayOffset : 0;
+            boolean last = number == segments.lastKey();
+            replay(number, segment.getValue(), start, last);
+        }
+        if (segments.isEmpty())
+            startSegment(Math.max(1, replaySegment));
+        else
+            activateSegment(segments.lastKey());
+    }
+
+    // Replays the frames of a segment into the index. A torn frame at the end of the last segment is truncated.
+    private void replay(int number, FileChannel channel, long start, boolean last)
+            throws IOException, BlockStoreException {
+        long size = channel.size();
+        long offset = start;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        while (offset < size) {
+            ((Buffer) header).clear();
+            readFully(channel, header, offset);
+            int length = header.getInt(0);
+            boolean valid = !header.hasRemaining() && length >= 0 && offset + FRAME_HEADER_BYTES + length <= size;
+            ByteBuffer payload = null;
+            if (valid) {
+                payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + FRAME_HEADER_BYTES);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                valid = (int) crc.getValue() == header.getInt(Integer.BYTES);
+            }
+            if (!valid) {
+                if (!last)
+                    throw new BlockStoreException(String.format(Locale.US,
+                            "Corrupted log segment %d at offset %d", number, offset));
+                log.warn("Discarding incomplete write at the end of the log: segment {}, offset {}, {} bytes", number,
+                        offset, size - offset);
+                channel.truncate(offset);
+                logBytes -= size - offset;
+                return;
+            }
+            ((Buffer) payload).rewind();
+            while (payload.hasRemaining()) {
+                byte op = payload.get();
+                byte[] key = new byte[payload.get() & 0xFF];
+                payload.get(key);
+                if (op == OP_PUT) {
+                    long valueOffset = offset + FRAME_HEADER_BYTES + payload.position();
+                    int valueLength = payload.getInt();
+                    int undoHeight = undoHeight(key, payload, payload.position());
+                    Buffers.skipBytes(payload, valueLength);
+                    addToIndex(new ByteArray(key), location(number, valueOffset), valueLength, undoHeight);
+                } else {
+                    removeFromIndex(new ByteArray(key));
+                }
+            }
+            offset += FRAME_HEADER_BYTES + length;
+        }
+    }
+
+    private void startSegment(int number) throws IOException {
+        // Unbatched writes aren't forced, so force them before leaving the segment. Snapshots then only need to force
+        // the active one.
+        if (activeSegment != null)
+            activeSegment.force(false);
+        File file = segmentFile(number);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        segments.put(number, channel);
+        activateSegment(number);
+    }
+
+    private void activateSegment(int number) throws IOException {
+        activeSegmentNumber = number;
+        activeSegment = segments.get(number);
+        activeSegmentLength = activeSegment.size();
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(Locale.US, "%s%08d%s", SEGMENT_FILE_PREFIX, number,
+                SEGMENT_FILE_SUFFIX));
+    }
+
+    private void maybeCompact() throws IOException {
+        if (logBytes > maxSegmentSize && logBytes > 2 * liveBytes)
+            compactInternal();
+    }
+
+    private void compactInternal() throws IOException {
+        long before = logBytes;
+        int firstNewSegment = activeSegmentNumber + 1;
+        startSegment(firstNewSegment);
+        Map<Integer, FileChannel> oldSegments = new HashMap<>(segments.headMap(firstNewSegment));
+        long oldBytes = logBytes;
+
+        // Copy live values, a frame at a time. Replaying these frames on top of the old segments is harmless, so a
+        // crash before the snapshot is written doesn't lose anything. Copying only points the keys to their new
+        // locations, it doesn't add or remove any, so the slots stay where they are.
+        LinkedHashMap<ByteArray, byte[]> chunk = new LinkedHashMap<>();
+        int chunkBytes = 0;
+        for (long slot = 0; slot < index.slotCount(); slot++) {
+            byte[] key = index.key(slot);
+            if (key == null)
+                continue;
+            byte[] bytes = readValue(index.location(slot), index.valueLength(slot)).array();
+            chunk.put(new ByteArray(key), bytes);
+            chunkBytes += bytes.length;
+            if (chunkBytes >= COMPACTION_FRAME_BYTES) {
+                append(chunk, false);
+                chunk.clear();
+                chunkBytes = 0;
+            }
+        }
+        if (!chunk.isEmpty())
+            append(chunk, false);
+        for (FileChannel segment : segments.tailMap(firstNewSegment).values())
+            segment.force(false);
+
+        segments.keySet().removeAll(oldSegments.keySet());
+        writeSnapshot();
+        for (Map.Entry<Integer, FileChannel> old : oldSegments.entrySet()) {
+            old.getValue().close();
+            Files.delete(segmentFile(old.getKey()).toPath());
+        }
+        logBytes -= oldBytes;
+        log.info("Compacted log from {} to {} bytes", before, logBytes);
+    }
+
+    // Atomically replaces the snapshot, which covers the log up to the end of the active segment.
+    private void writeSnapshot() throws IOException {
+        // The snapshot must not reference frames that could still be lost, which unbatched writes may be.
+        activeSegment.force(false);
+        int size = SNAPSHOT_MAGIC.length + 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+        int undoKeys = 0;
+        for (Set<ByteArray> keys : undoKeysByHeight.values()) {
+            for (ByteArray key : keys)
+                size += Integer.BYTES + 1 + key.bytes().length;
+            undoKeys += keys.size();
+        }
+        ByteBuffer snapshot = ByteBuffer.allocate(size);
+        snapshot.put(SNAPSHOT_MAGIC);
+        snapshot.putInt(segments.firstKey());
+        snapshot.putInt(activeSegmentNumber);
+        snapshot.putLong(activeSegmentLength);
+        snapshot.putLong(liveBytes);
+        snapshot.putInt(undoKeys);
+        for (Map.Entry<Integer, Set<ByteArray>> entry : undoKeysByHeight.entrySet()) {
+            for (ByteArray key : entry.getValue()) {
+                snapshot.putInt(entry.getKey());
+                snapshot.put((byte) key.bytes().length);
+                snapshot.put(key.bytes());
+            }
+        }
+        File temp = new File(directory, SNAPSHOT_FILE_NAME + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            raf.write(snapshot.array());
+            raf.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private StoredBlock readHead(ByteArray key) throws BlockStoreException {
+        ByteBuffer value = read(key);
+        if (value == null)
+            throw new BlockStoreException("Corrupted block store: missing chain head");
+        Sha256Hash hash = Sha256Hash.wrap(Buffers.readBytes(value, Sha256Hash.LENGTH));
+        StoredBlock block = get(hash);
+        if (block == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        return block;
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        try {
+            if (file != null) file.close();
+        } catch (IOException x) {
+            // swallow
+        }
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 40);
+    }
+
+    private static long offsetOf(long location) {
+        return location & ((1L << 40) - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Keys and values
+
+    private static ByteArray blockKey(Sha256Hash hash) {
+        return new ByteArray(ByteBuffer.allocate(1 + Sha256Hash.LENGTH).put(TYPE_BLOCK).put(hash.getBytes()).array());
+    }
+
+    private static ByteArray undoKey(Sha256Hash hash) {
+        return new ByteArray(ByteBuffer.allocate(1 + Sha256Hash.LENGTH).put(TYPE_UNDO).put(hash.getBytes()).array());
+    }
+
+    private static ByteArray utxoKey(Sha256Hash hash, long index) {
+        return new ByteArray(ByteBuffer.allocate(1 + Sha256Hash.LENGTH + Integer.BYTES).put(TYPE_UTXO)
+                .put(hash.getBytes()).putInt((int) index).array());
+    }
+
+    private static byte[] serializeBlock(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+        buf.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompactV2(buf);
+        return buf.array();
+    }
+
+    private static StoredBlock deserializeBlock(ByteBuffer value) throws BlockStoreException {
+        try {
+            return StoredBlock.deserializeCompactV2(value);
+        } catch (ProtocolException | BufferUnderflowException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // UTXO and undoable block values are little endian, like the P2P protocol whose var ints they use.
+    //
+    // UTXO value format:
+    //   8 bytes value in satoshis
+    //   4 bytes height
+    //   1 byte coinbase flag
+    //   length prefixed script bytes
+    //   length prefixed address string
+    private static byte[] serializeUTXO(UTXO out) {
+        byte[] script = out.getScript() != null ? out.getScript().program() : new byte[0];
+        String address = out.getAddress() != null ? out.getAddress() : "";
+        ByteBuffer buf = ByteBuffer.allocate(8 + 4 + 1 + Buffers.lengthPrefixedBytesSize(script) +
+                Buffers.lengthPrefixedStringSize(address)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putLong(out.getValue().value);
+        buf.putInt(out.getHeight());
+        buf.put((byte) (out.isCoinbase() ? 1 : 0));
+        Buffers.writeLengthPrefixedBytes(buf, script);
+        Buffers.writeLengthPrefixedString(buf, address);
+        return buf.array();
+    }
+
+    private static UTXO deserializeUTXO(Sha256Hash hash, long index, ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        Coin value = Coin.valueOf(buf.getLong());
+        int height = buf.getInt();
+        boolean coinbase = buf.get() == 1;
+        Script script = Script.parse(Buffers.readLengthPrefixedBytes(buf));
+        String address = Buffers.readLengthPrefixedString(buf);
+        return new UTXO(hash, index, value, height, coinbase, script, address);
+    }
+
+    // Undoable block value format:
+    //   4 bytes height
+    //   1 byte kind, 0 for transaction output changes or 1 for transactions
+    //   for changes: varint number of created outputs, the outputs, varint number of spent outputs, the outputs, each
+    //     as 32 bytes hash, 4 bytes index, the UTXO value format
+    //   for transactions: varint number of transactions, each as length prefixed serialized transaction
+    private static byte[] serializeUndoableBlock(int height, StoredUndoableBlock block) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] heightBytes = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(height).array();
+        out.write(heightBytes, 0, heightBytes.length);
+        TransactionOutputChanges changes = block.getTxOutChanges();
+        if (changes != null) {
+            out.write(0);
+            writeUTXOs(out, changes.txOutsCreated);
+            writeUTXOs(out, changes.txOutsSpent);
+        } else {
+            out.write(1);
+            List<Transaction> transactions = block.getTransactions();
+            writeBytes(out, VarInt.of(transactions.size()).serialize());
+            for (Transaction tx : transactions) {
+                byte[] txBytes = tx.serialize();
+                writeBytes(out, VarInt.of(txBytes.length).serialize());
+                writeBytes(out, txBytes);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static StoredUndoableBlock deserializeUndoableBlock(Sha256Hash hash, ByteBuffer buf)
+            throws ProtocolException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.getInt(); // height
+        if (buf.get() == 0) {
+            List<UTXO> created = readUTXOs(buf);
+            List<UTXO> spent = readUTXOs(buf);
+            return new StoredUndoableBlock(hash, new TransactionOutputChanges(created, spent));
+        } else {
+            int count = VarInt.read(buf).intValue();
+            List<Transaction> transactions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                transactions.add(Transaction.read(ByteBuffer.wrap(Buffers.readLengthPrefixedBytes(buf))));
+            return new StoredUndoableBlock(hash, transactions);
+        }
+    }
+
+    private static void writeUTXOs(ByteArrayOutputStream out, List<UTXO> utxos) {
+        writeBytes(out, VarInt.of(utxos.size()).serialize());
+        for (UTXO utxo : utxos) {
+            writeBytes(out, utxo.getHash().getBytes());
+            writeBytes(out, ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) utxo.getIndex()).array());
+            writeBytes(out, serializeUTXO(utxo));
+        }
+    }
+
+    private static List<UTXO> readUTXOs(ByteBuffer buf) {
+        int count = VarInt.read(buf).intValue();
+        List<UTXO> utxos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Sha256Hash hash = Sha256Hash.wrap(Buffers.readBytes(buf, Sha256Hash.LENGTH));
+            long index = buf.getInt() & 0xFFFFFFFFL;
+            utxos.add(deserializeUTXO(hash, index, buf));
+        }
+        return utxos;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An {@link SPVBlockStore} that additionally keeps an on-disk hash index next to the ring buffer, so that
+ * {@link #get(Sha256Hash)} no longer has to scan the ring backwards on a cache miss. This makes lookups O(1) regardless
+ * of capacity, which matters for stores holding hundreds of thousands of headers.
+ * <p>
+ * The index lives in a separate file (by default the ring file name with {@code .idx} appended). It is an
+ * open-addressing hash table with linear probing that maps a block hash to the slot of its record in the ring. Each
+ * table entry is a 4 byte slot number; the hash itself is not duplicated but read from the ring when probing. Entries
+ * for records that are overwritten by the ring wrapping around are removed using backward shift deletion, so the table
+ * never accumulates tombstones.
+ * <p>
+ * The index is only trusted if it was closed cleanly and matches the ring it belongs to. Otherwise, for example after a
+ * crash, a missing index file or a grown ring, it is rebuilt from the ring when the store is opened. The ring file
+ * format is unchanged, so a ring file can be freely used with both this class and {@link SPVBlockStore}.
+ */
+public class IndexedSPVBlockStore extends SPVBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(IndexedSPVBlockStore.class);
+
+    // Magic header for the index file.
+    static final byte[] INDEX_MAGIC = "SPVI".getBytes(StandardCharsets.US_ASCII);
+
+    // Index file format:
+    //   4 magic header bytes = "SPVI"
+    //   4 bytes number of table entries, always a power of two
+    //   4 bytes capacity of the ring this index belongs to
+    //   4 bytes clean flag, 1 if the index was closed cleanly and 0 while it is in use
+    //   4 bytes ring cursor at the time the index was closed
+    //
+    // Starting at INDEX_PROLOGUE_BYTES, the table:
+    //   4 bytes per entry, 0 for an empty entry, otherwise the ring slot of the record plus one
+    static final int INDEX_PROLOGUE_BYTES = 64;
+    private static final int INDEX_OFFSET_TABLE_SIZE = 4;
+    private static final int INDEX_OFFSET_CAPACITY = 8;
+    private static final int INDEX_OFFSET_CLEAN = 12;
+    private static final int INDEX_OFFSET_CURSOR = 16;
+
+    private final int capacity;
+    private final int tableSize;
+    private final int tableMask;
+    private final RandomAccessFile indexFile;
+    private volatile MappedByteBuffer index;
+    private final byte[] scratch = new byte[32];
+
+    /**
+     * Creates and initializes an indexed SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will
+     * create the given file and its index if they are missing. This operation will block on disk.
+     * @param file file to use for the block store
+     * @throws BlockStoreException if something goes wrong
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * Creates and initializes an indexed SPV block store that can hold a given amount of blocks. Will create the given
+     * file and its index if they are missing. This operation will block on disk.
+     * @param file file to use for the block store
+     * @param capacity custom capacity in number of block headers
+     * @param grow whether or not to migrate an existing block store of different capacity
+     * @throws BlockStoreException if something goes wrong
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file, int capacity, boolean grow)
+            throws BlockStoreException {
+        this(params, file, getIndexFile(file), capacity, grow);
+    }
+
+    /**
+     * Creates and initializes an indexed SPV block store that can hold a given amount of blocks, using a custom location
+     * for the index. Will create the given files if they are missing. This operation will block on disk.
+     * @param file file to use for the block store
+     * @param indexFile file to use for the hash index
+     * @param capacity custom capacity in number of block headers
+     * @param grow whether or not to migrate an existing block store of different capacity
+     * @throws BlockStoreException if something goes wrong
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file, File indexFile, int capacity, boolean grow)
+            throws BlockStoreException {
+        super(params, file, capacity, grow);
+        this.capacity = capacity;
+        this.tableSize = getTableSize(capacity);
+        this.tableMask = tableSize - 1;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(indexFile, "rw");
+            long expectedLength = getIndexFileSize(capacity);
+            boolean valid = raf.length() == expectedLength;
+            if (!valid)
+                raf.setLength(expectedLength);
+            FileChannel indexChannel = raf.getChannel();
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, expectedLength);
+            if (valid) {
+                byte[] magic = new byte[4];
+                ((Buffer) index).rewind();
+                index.get(magic);
+                valid = Arrays.equals(magic, INDEX_MAGIC)
+                        && index.getInt(INDEX_OFFSET_TABLE_SIZE) == tableSize
+                        && index.getInt(INDEX_OFFSET_CAPACITY) == capacity
+                        && index.getInt(INDEX_OFFSET_CLEAN) == 1
+                        && index.getInt(INDEX_OFFSET_CURSOR) == getRingCursor();
+            }
+            if (!valid) {
+                log.info("Rebuilding SPV block chain index: " + indexFile);
+                rebuildIndex();
+            }
+            // Mark as in use, so that a crash before close() causes a rebuild on the next open.
+            index.putInt(INDEX_OFFSET_CLEAN, 0);
+            index.force();
+            this.indexFile = raf;
+        } catch (IOException e) {
+            try {
+                if (raf != null) raf.close();
+                super.close();
+            } catch (IOException | BlockStoreException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the default location of the index belonging to the given ring file. */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /** Returns the size in bytes of the index file that is used for a ring of the given capacity. */
+    public static long getIndexFileSize(int capacity) {
+        return INDEX_PROLOGUE_BYTES + (long) getTableSize(capacity) * Integer.BYTES;
+    }
+
+    // Keep the load factor at or below 0.5, so that probe sequences stay short.
+    private static int getTableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (index == null) {
+                // Still in the constructor of the superclass, the index will be built from the ring afterwards.
+                super.put(block);
+                return;
+            }
+            int cursor = getRingCursor();
+            if (cursor == getFileSize(capacity)) {
+                // Wrapped around.
+                cursor = FILE_PROLOGUE_BYTES;
+            }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE_V2;
+            // The record about to be overwritten must leave the index first.
+            ((Buffer) buffer).position(cursor);
+            buffer.get(scratch);
+            if (!isZero(scratch))
+                removeFromIndex(Sha256Hash.wrap(scratch).hashCode(), slot);
+            super.put(block);
+            addToIndex(block.getHeader().getHash(), slot);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        if (hash.equals(Sha256Hash.ZERO_HASH)) {
+            // See superclass, our ring buffer contains all zeros at the beginning.
+            return null;
+        }
+
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (index == null)
+                return super.get(hash);
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null)
+                return cacheHit;
+
+            int slot = findInIndex(hash);
+            if (slot < 0)
+                return null;
+            ((Buffer) buffer).position(recordOffset(slot) + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompactV2(buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            final MappedByteBuffer index = this.index;
+            if (index != null) {
+                index.putInt(INDEX_OFFSET_CURSOR, getRingCursor());
+                index.putInt(INDEX_OFFSET_CLEAN, 1);
+                index.force();
+                this.index = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            }
+            indexFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+        super.close();
+    }
+
+    @Override
+    public void clear() throws Exception {
+        lock.lock();
+        try {
+            clearIndex();
+            super.clear();
+        } finally { lock.unlock(); }
+    }
+
+    private void rebuildIndex() {
+        clearIndex();
+        ((Buffer) index).rewind();
+        index.put(INDEX_MAGIC);
+        index.putInt(INDEX_OFFSET_TABLE_SIZE, tableSize);
+        index.putInt(INDEX_OFFSET_CAPACITY, capacity);
+        // Walk the ring from the oldest to the newest record, so that if a hash was stored twice the newest wins.
+        int firstSlot = (getRingCursor() - FILE_PROLOGUE_BYTES) / RECORD_SIZE_V2;
+        for (int i = 0; i < capacity; i++) {
+            int slot = (firstSlot + i) % capacity;
+            ((Buffer) buffer).position(recordOffset(slot));
+            buffer.get(scratch);
+            if (!isZero(scratch))
+                addToIndex(Sha256Hash.wrap(scratch.clone()), slot); // Probing reuses the scratch buffer.
+        }
+    }
+
+    private void clearIndex() {
+        for (int i = 0; i < tableSize; i++)
+            setEntry(i, 0);
+    }
+
+    private int findInIndex(Sha256Hash hash) {
+        byte[] target = hash.getBytes();
+        for (int i = hash.hashCode() & tableMask; ; i = (i + 1) & tableMask) {
+            int entry = getEntry(i);
+            if (entry == 0)
+                return -1;
+            int slot = entry - 1;
+            ((Buffer) buffer).position(recordOffset(slot));
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, target))
+                return slot;
+        }
+    }
+
+    private void addToIndex(Sha256Hash hash, int slot) {
+        byte[] target = hash.getBytes();
+        int i = hash.hashCode() & tableMask;
+        for (int entry = getEntry(i); entry != 0; entry = getEntry(i)) {
+            ((Buffer) buffer).position(recordOffset(entry - 1));
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, target))
+                break; // Same block stored again, point to the newer record.
+            i = (i + 1) & tableMask;
+        }
+        setEntry(i, slot + 1);
+    }
+
+    private void removeFromIndex(int hashCode, int slot) {
+        int i = hashCode & tableMask;
+        for (int entry = getEntry(i); entry != slot + 1; entry = getEntry(i)) {
+            if (entry == 0)
+                return; // Not indexed, e.g. because the same block was stored again later.
+            i = (i + 1) & tableMask;
+        }
+        // Backward shift deletion: move later entries of the probe sequence into the gap, if that doesn't take them
+        // before their home position.
+        int j = i;
+        while (true) {
+            j = (j + 1) & tableMask;
+            int entry = getEntry(j);
+            if (entry == 0)
+                break;
+            int home = recordHashCode(entry - 1) & tableMask;
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                setEntry(i, entry);
+                i = j;
+            }
+        }
+        setEntry(i, 0);
+    }
+
+    // Equal to Sha256Hash.hashCode() of the hash of the record, without allocating it.
+    private int recordHashCode(int slot) {
+        return buffer.getInt(recordOffset(slot) + 32 - Integer.BYTES);
+    }
+
+    private static int recordOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE_V2;
+    }
+
+    private int getEntry(int i) {
+        return index.getInt(INDEX_PROLOGUE_BYTES + i * Integer.BYTES);
+    }
+
+    private void setEntry(int i, int entry) {
+        index.putInt(INDEX_PROLOGUE_BYTES + i * Integer.BYTES, entry);
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes)
+            if (b != 0)
+                return false;
+        return true;
+    }
+}
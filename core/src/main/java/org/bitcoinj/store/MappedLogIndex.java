@@ -0,0 +1,394 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * The index of a {@link DiskFullPrunedBlockStore}: a memory-mapped hash table from each key to the location of its
+ * latest value in the log, together with the length of that value and, for undoable blocks, their height. With the
+ * length and height in the index, replacing or deleting a value and pruning undoable blocks never read the log, and
+ * as the table is a file rather than a heap map, neither its size nor opening the store depend on the heap.
+ * <p>
+ * The table uses linear probing with backward shift deletion, like {@link OffHeapUTXOMap}. Once it is three quarters
+ * full it is copied into a new file with twice as many slots; files are numbered, the one with the highest number is
+ * current. Like the index of {@link IndexedSPVBlockStore}, the table is only trusted if it was closed cleanly at the
+ * end of the log it belongs to. Otherwise, for example after a crash, the store rebuilds it from the log.
+ * <p>
+ * This class is not thread-safe.
+ */
+class MappedLogIndex {
+    private static final Logger log = LoggerFactory.getLogger(MappedLogIndex.class);
+
+    private static final byte[] MAGIC = "FPI1".getBytes(StandardCharsets.US_ASCII);
+    private static final String FILE_PREFIX = "index-";
+    private static final String FILE_SUFFIX = ".table";
+
+    // Index file format:
+    //   4 magic header bytes = "FPI1"
+    //   4 bytes clean flag, 1 if the index was closed cleanly and 0 while it is in use
+    //   8 bytes number of slots, always a power of two
+    //   8 bytes number of keys
+    //   4 bytes number of the segment and 8 bytes offset of the end of the log when the index was closed
+    //
+    // Starting at HEADER_BYTES, the slots:
+    //   1 byte key length, 0 for an empty slot
+    //   the key, padded to MAX_KEY_BYTES
+    //   2 bytes unused
+    //   8 bytes location of the value in the log
+    //   4 bytes value length
+    //   4 bytes height of an undoable block, or -1 for other keys
+    static final int MAX_KEY_BYTES = 37;
+    private static final int HEADER_BYTES = 64;
+    private static final int HEADER_CLEAN_OFFSET = 4;
+    private static final int HEADER_SLOT_COUNT_OFFSET = 8;
+    private static final int HEADER_SIZE_OFFSET = 16;
+    private static final int HEADER_SEGMENT_OFFSET = 24;
+    private static final int HEADER_LOG_OFFSET = 28;
+    private static final int SLOT_BYTES = 56;
+    private static final int SLOT_LOCATION_OFFSET = 40;
+    private static final int SLOT_LENGTH_OFFSET = 48;
+    private static final int SLOT_HEIGHT_OFFSET = 52;
+    private static final int SLOTS_PER_CHUNK_BITS = 24; // 896 MB per chunk
+    private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_BITS;
+    private static final long MIN_SLOT_COUNT = 1024;
+
+    private final File directory;
+    private int generation;
+    private RandomAccessFile file;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] slots;
+    private long slotCount;
+    private long slotMask;
+    private long size;
+
+    private MappedLogIndex(File directory, int generation, boolean create, long slotCount) throws IOException {
+        this.directory = directory;
+        map(generation, create, slotCount);
+    }
+
+    /**
+     * Opens the current index file in the given directory, or creates an empty index if there is none or it is
+     * unreadable. Older index files are deleted.
+     */
+    static MappedLogIndex open(File directory) throws IOException {
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] listed = directory.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                String name = file.getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX))
+                    files.put(Integer.parseInt(name.substring(FILE_PREFIX.length(),
+                            name.length() - FILE_SUFFIX.length())), file);
+            }
+        }
+        if (files.isEmpty())
+            return new MappedLogIndex(directory, 1, true, MIN_SLOT_COUNT);
+        int generation = files.lastKey();
+        for (File old : files.headMap(generation).values())
+            delete(old);
+        long slotCount = readSlotCount(files.get(generation));
+        if (slotCount < 0) {
+            log.warn("Ignoring unreadable index file: {}", files.get(generation));
+            return new MappedLogIndex(directory, generation + 1, true, MIN_SLOT_COUNT);
+        }
+        return new MappedLogIndex(directory, generation, false, slotCount);
+    }
+
+    // Returns the number of slots of the given index file, or -1 if it isn't a valid index file.
+    private static long readSlotCount(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_BYTES)
+                return -1;
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            raf.seek(HEADER_SLOT_COUNT_OFFSET);
+            long slotCount = raf.readLong();
+            boolean valid = Arrays.equals(magic, MAGIC) && slotCount >= MIN_SLOT_COUNT && Long.bitCount(slotCount) == 1
+                    && raf.length() == fileLength(slotCount);
+            return valid ? slotCount : -1;
+        }
+    }
+
+    /** Returns true if the index was closed cleanly when the log ended at the given segment and offset. */
+    boolean isCleanAt(int segment, long offset) {
+        return header.getInt(HEADER_CLEAN_OFFSET) == 1 && header.getInt(HEADER_SEGMENT_OFFSET) == segment
+                && header.getLong(HEADER_LOG_OFFSET) == offset;
+    }
+
+    /** Marks the index as in use, so that a crash before {@link #close(int, long)} causes a rebuild. */
+    void markInUse() {
+        header.putInt(HEADER_CLEAN_OFFSET, 0);
+        header.force();
+    }
+
+    /**
+     * Replaces this index by an empty one, with at least as many slots since it's going to be filled the same way
+     * again, and deletes its file.
+     */
+    void clear() throws IOException {
+        int oldGeneration = generation;
+        file.close();
+        map(oldGeneration + 1, true, slotCount);
+        delete(indexFile(oldGeneration));
+    }
+
+    /** Writes the index to disk and marks it as closed cleanly, at the given end of the log. */
+    void close(int segment, long offset) throws IOException {
+        for (MappedByteBuffer chunk : slots)
+            chunk.force();
+        header.putInt(HEADER_SEGMENT_OFFSET, segment);
+        header.putLong(HEADER_LOG_OFFSET, offset);
+        header.putInt(HEADER_CLEAN_OFFSET, 1);
+        header.force();
+        file.close();
+        header = null;
+        slots = null;
+    }
+
+    /** Returns the number of keys. */
+    long size() {
+        return size;
+    }
+
+    /** Returns the number of slots, to iterate over them with {@link #key(long)}. */
+    long slotCount() {
+        return slotCount;
+    }
+
+    /** Returns the slot of the given key, or -1 if it isn't in the index. */
+    long find(byte[] key) {
+        for (long i = home(ByteBuffer.wrap(key), 0, key.length); ; i = (i + 1) & slotMask) {
+            ByteBuffer chunk = slotChunk(i);
+            int pos = slotPosition(i);
+            int length = chunk.get(pos) & 0xFF;
+            if (length == 0)
+                return -1;
+            if (keyEquals(chunk, pos, key))
+                return i;
+        }
+    }
+
+    /** Returns the key in the given slot, or null if the slot is empty. */
+    @Nullable
+    byte[] key(long slot) {
+        ByteBuffer chunk = slotChunk(slot);
+        int pos = slotPosition(slot);
+        int length = chunk.get(pos) & 0xFF;
+        if (length == 0)
+            return null;
+        byte[] key = new byte[length];
+        for (int b = 0; b < length; b++)
+            key[b] = chunk.get(pos + 1 + b);
+        return key;
+    }
+
+    /** Returns the location in the log of the value of the key in the given slot. */
+    long location(long slot) {
+        return slotChunk(slot).getLong(slotPosition(slot) + SLOT_LOCATION_OFFSET);
+    }
+
+    /** Returns the length of the value of the key in the given slot. */
+    int valueLength(long slot) {
+        return slotChunk(slot).getInt(slotPosition(slot) + SLOT_LENGTH_OFFSET);
+    }
+
+    /** Returns the height of the undoable block in the given slot, or -1 if the key isn't one of an undoable block. */
+    int undoHeight(long slot) {
+        return slotChunk(slot).getInt(slotPosition(slot) + SLOT_HEIGHT_OFFSET);
+    }
+
+    /** Points the key in the given slot to a new value. */
+    void update(long slot, long location, int valueLength, int undoHeight) {
+        ByteBuffer chunk = slotChunk(slot);
+        int pos = slotPosition(slot);
+        chunk.putLong(pos + SLOT_LOCATION_OFFSET, location);
+        chunk.putInt(pos + SLOT_LENGTH_OFFSET, valueLength);
+        chunk.putInt(pos + SLOT_HEIGHT_OFFSET, undoHeight);
+    }
+
+    /** Adds a key that isn't in the index yet. This may move the keys to other slots. */
+    void insert(byte[] key, long location, int valueLength, int undoHeight) throws IOException {
+        checkArgument(key.length > 0 && key.length <= MAX_KEY_BYTES, () -> "invalid key length: " + key.length);
+        long slot = home(ByteBuffer.wrap(key), 0, key.length);
+        while ((slotChunk(slot).get(slotPosition(slot)) & 0xFF) != 0)
+            slot = (slot + 1) & slotMask;
+        ByteBuffer chunk = slotChunk(slot);
+        int pos = slotPosition(slot);
+        chunk.put(pos, (byte) key.length);
+        for (int b = 0; b < key.length; b++)
+            chunk.put(pos + 1 + b, key[b]);
+        update(slot, location, valueLength, undoHeight);
+        setSize(size + 1);
+        if (size * 4 > slotCount * 3)
+            grow();
+    }
+
+    /** Removes the key in the given slot. This may move other keys to other slots. */
+    void remove(long slot) {
+        long i = slot;
+        // Backward shift deletion: move later entries of the probe sequence into the gap, if that doesn't take them
+        // before their home position.
+        long j = i;
+        while (true) {
+            j = (j + 1) & slotMask;
+            ByteBuffer chunk = slotChunk(j);
+            int pos = slotPosition(j);
+            int length = chunk.get(pos) & 0xFF;
+            if (length == 0)
+                break;
+            long home = home(chunk, pos + 1, length);
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                copySlot(slotChunk(j), slotPosition(j), slotChunk(i), slotPosition(i));
+                i = j;
+            }
+        }
+        ByteBuffer chunk = slotChunk(i);
+        int pos = slotPosition(i);
+        for (int b = 0; b < SLOT_BYTES; b += Long.BYTES)
+            chunk.putLong(pos + b, 0);
+        setSize(size - 1);
+    }
+
+    // Copies all keys into a new index file with twice as many slots, which becomes the current one.
+    private void grow() throws IOException {
+        int oldGeneration = generation;
+        RandomAccessFile oldFile = file;
+        MappedByteBuffer[] oldSlots = slots;
+        long oldSlotCount = slotCount;
+        long oldSize = size;
+        map(oldGeneration + 1, true, oldSlotCount * 2);
+        for (long i = 0; i < oldSlotCount; i++) {
+            ByteBuffer oldChunk = oldSlots[(int) (i >>> SLOTS_PER_CHUNK_BITS)];
+            int oldPos = (int) (i & (SLOTS_PER_CHUNK - 1)) * SLOT_BYTES;
+            int length = oldChunk.get(oldPos) & 0xFF;
+            if (length == 0)
+                continue;
+            long slot = home(oldChunk, oldPos + 1, length);
+            while ((slotChunk(slot).get(slotPosition(slot)) & 0xFF) != 0)
+                slot = (slot + 1) & slotMask;
+            copySlot(oldChunk, oldPos, slotChunk(slot), slotPosition(slot));
+        }
+        setSize(oldSize);
+        oldFile.close();
+        delete(indexFile(oldGeneration));
+    }
+
+    // Maps the index file of the given generation, creating it empty with the given number of slots if requested.
+    private void map(int generation, boolean create, long slotCount) throws IOException {
+        File indexFile = indexFile(generation);
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            if (create) {
+                raf.setLength(0);
+                raf.setLength(fileLength(slotCount));
+            }
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            int chunks = (int) Math.max(1, slotCount >>> SLOTS_PER_CHUNK_BITS);
+            long chunkBytes = Math.min(slotCount, SLOTS_PER_CHUNK) * SLOT_BYTES;
+            MappedByteBuffer[] slots = new MappedByteBuffer[chunks];
+            for (int c = 0; c < chunks; c++)
+                slots[c] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + c * chunkBytes, chunkBytes);
+            if (create) {
+                ((Buffer) header).rewind();
+                header.put(MAGIC);
+                header.putLong(HEADER_SLOT_COUNT_OFFSET, slotCount);
+            }
+            this.generation = generation;
+            this.file = raf;
+            this.header = header;
+            this.slots = slots;
+            this.slotCount = slotCount;
+            this.slotMask = slotCount - 1;
+            this.size = header.getLong(HEADER_SIZE_OFFSET);
+        } catch (IOException x) {
+            raf.close();
+            throw x;
+        }
+    }
+
+    private void setSize(long size) {
+        this.size = size;
+        header.putLong(HEADER_SIZE_OFFSET, size);
+    }
+
+    private File indexFile(int generation) {
+        return new File(directory, String.format(Locale.US, "%s%08d%s", FILE_PREFIX, generation, FILE_SUFFIX));
+    }
+
+    private static long fileLength(long slotCount) {
+        return HEADER_BYTES + slotCount * SLOT_BYTES;
+    }
+
+    // On some platforms a file can't be deleted while it is still mapped. It is deleted when the store is opened next.
+    private static void delete(File file) {
+        if (!file.delete())
+            log.info("Could not delete old index file, will retry when opened next: {}", file);
+    }
+
+    private static boolean keyEquals(ByteBuffer chunk, int pos, byte[] key) {
+        if ((chunk.get(pos) & 0xFF) != key.length)
+            return false;
+        for (int b = 0; b < key.length; b++)
+            if (chunk.get(pos + 1 + b) != key[b])
+                return false;
+        return true;
+    }
+
+    // Keys mostly contain hashes, but block hashes start with zeros and outputs of the same transaction only differ in
+    // their index, so all bytes are mixed in.
+    private long home(ByteBuffer buf, int pos, int length) {
+        long h = 0xCBF29CE484222325L;
+        for (int b = 0; b < length; b++)
+            h = (h ^ (buf.get(pos + b) & 0xFF)) * 0x100000001B3L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h & slotMask;
+    }
+
+    private ByteBuffer slotChunk(long slot) {
+        return slots[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+    }
+
+    private static int slotPosition(long slot) {
+        return (int) (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_BYTES;
+    }
+
+    private static void copySlot(ByteBuffer from, int fromPos, ByteBuffer to, int toPos) {
+        for (int b = 0; b < SLOT_BYTES; b += Long.BYTES)
+            to.putLong(toPos + b, from.getLong(fromPos + b));
+    }
+}
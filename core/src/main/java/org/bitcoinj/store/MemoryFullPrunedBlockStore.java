@@ -187,6 +187,34 @@ class TransactionalHashMap<KeyType, ValueType> {
     }
 }
 
+/**
+ * The DB transaction-aware map of unspent outputs used by {@link MemoryFullPrunedBlockStore}, so that the outputs can
+ * be kept either on the heap or in direct memory.
+ */
+interface TransactionalUTXOMap {
+    void beginDatabaseBatchWrite();
+
+    void commitDatabaseBatchWrite();
+
+    void abortDatabaseBatchWrite();
+
+    @Nullable
+    UTXO get(StoredTransactionOutPoint key);
+
+    void put(StoredTransactionOutPoint key, UTXO value);
+
+    @Nullable
+    UTXO remove(StoredTransactionOutPoint key);
+
+    List<UTXO> values();
+}
+
+/**
+ * A {@link TransactionalUTXOMap} that keeps the outputs in a {@link TransactionalHashMap} on the heap.
+ */
+class HeapUTXOMap extends TransactionalHashMap<StoredTransactionOutPoint, UTXO> implements TransactionalUTXOMap {
+}
+
 /**
  * A Map with multiple key types that is DB per-thread-transaction-aware.
  * However, this class is not thread-safe.
@@ -256,12 +284,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    private TransactionalUTXOMap transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
     private NetworkParameters params;
+
+    private static final int DEFAULT_EXPECTED_UTXOS = 1024;
     
     /**
      * Set up the MemoryFullPrunedBlockStore
@@ -269,9 +298,20 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
      * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, false);
+    }
+
+    /**
+     * Set up the MemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param offHeapUTXOs If true, unspent outputs are kept in direct memory outside of the Java heap. This keeps the
+     *                     heap small and garbage collection pauses short for large UTXO sets.
+     */
+    public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, boolean offHeapUTXOs) {
         blockMap = new TransactionalHashMap<>();
         fullBlockMap = new TransactionalMultiKeyHashMap<>();
-        transactionOutputMap = new TransactionalHashMap<>();
+        transactionOutputMap = offHeapUTXOs ? new OffHeapUTXOMap(DEFAULT_EXPECTED_UTXOS) : new HeapUTXOMap();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
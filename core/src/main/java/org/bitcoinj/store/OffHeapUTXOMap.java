@@ -0,0 +1,489 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * A {@link TransactionalUTXOMap} that keeps the committed unspent outputs in direct (off-heap) memory, so that very
+ * large UTXO sets neither bloat the heap nor cause long garbage collection pauses.
+ * <p>
+ * Outpoints are stored in an open-addressing hash table with linear probing. Each slot holds the 32 byte transaction
+ * hash, the 4 byte output index and a reference into an arena of compact output records, so neither keys nor values
+ * are Java objects. Deleted slots are cleared with backward shift deletion, the table doubles once it is three quarters
+ * full, and the arena is compacted once more than half of it is taken by superseded records. {@link UTXO} objects are
+ * only created when an output is read.
+ * <p>
+ * Writes during a database batch go to a per-thread overlay on the heap, exactly like {@link TransactionalHashMap},
+ * and are applied to the off-heap table on commit.
+ * This class is not thread-safe.
+ */
+class OffHeapUTXOMap implements TransactionalUTXOMap {
+    // Slot format:
+    //   32 bytes transaction hash
+    //    4 bytes output index
+    //    4 bytes unused
+    //    8 bytes record reference: offset into the arena plus one, or zero for an empty slot
+    private static final int SLOT_BYTES = 48;
+    private static final int SLOT_INDEX_OFFSET = 32;
+    private static final int SLOT_REF_OFFSET = 40;
+    private static final int SLOTS_PER_CHUNK_BITS = 24; // 768 MB per chunk
+    private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_BITS;
+
+    // Record format:
+    //   8 bytes value
+    //   4 bytes height
+    //   1 byte flags, bit 0 is the coinbase flag
+    //   2 bytes script length, or 0xFFFF followed by a 4 bytes length for long scripts
+    //   the script program
+    //   2 bytes address length followed by the address in UTF-8
+    private static final int FLAG_COINBASE = 1;
+    private static final int LONG_LENGTH_MARKER = 0xFFFF;
+    static final int DEFAULT_ARENA_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private ByteBuffer[] slots;
+    private long slotCount;
+    private long slotMask;
+    private long size;
+
+    private final int arenaChunkBytes;
+    private List<ByteBuffer> arena = new ArrayList<>();
+    private long arenaUsed;
+    private long arenaLive;
+
+    private final ThreadLocal<HashMap<StoredTransactionOutPoint, UTXO>> tempMap = new ThreadLocal<>();
+    private final ThreadLocal<HashSet<StoredTransactionOutPoint>> tempSetRemoved = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<>();
+
+    /**
+     * @param expectedSize number of outputs to size the table for, it will grow beyond that as needed
+     */
+    OffHeapUTXOMap(long expectedSize) {
+        this(expectedSize, DEFAULT_ARENA_CHUNK_BYTES);
+    }
+
+    OffHeapUTXOMap(long expectedSize, int arenaChunkBytes) {
+        checkArgument(expectedSize > 0);
+        checkArgument(arenaChunkBytes >= 1024);
+        this.arenaChunkBytes = arenaChunkBytes;
+        long count = Long.highestOneBit(Math.max(16, expectedSize * 4 / 3) - 1) << 1;
+        allocateSlots(count);
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for (StoredTransactionOutPoint key : tempSetRemoved.get())
+                removeCommitted(key.getHash(), key.getIndex());
+        if (tempMap.get() != null)
+            for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : tempMap.get().entrySet())
+                putCommitted(entry.getValue());
+        abortDatabaseBatchWrite();
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    @Override
+    @Nullable
+    public UTXO get(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempMap.get() != null) {
+                UTXO value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return getCommitted(key.getHash(), key.getIndex());
+    }
+
+    @Override
+    public void put(StoredTransactionOutPoint key, UTXO value) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<>());
+            tempMap.get().put(key, value);
+        } else {
+            putCommitted(value);
+        }
+    }
+
+    @Override
+    @Nullable
+    public UTXO remove(StoredTransactionOutPoint key) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            UTXO retVal = getCommitted(key.getHash(), key.getIndex());
+            if (retVal != null) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<>());
+                tempSetRemoved.get().add(key);
+            }
+            if (tempMap.get() != null) {
+                UTXO tempVal = tempMap.get().remove(key);
+                if (tempVal != null)
+                    return tempVal;
+            }
+            return retVal;
+        } else {
+            UTXO retVal = getCommitted(key.getHash(), key.getIndex());
+            if (retVal != null)
+                removeCommitted(key.getHash(), key.getIndex());
+            return retVal;
+        }
+    }
+
+    @Override
+    public List<UTXO> values() {
+        List<UTXO> values = new ArrayList<>();
+        for (long i = 0; i < slotCount; i++) {
+            long ref = ref(i);
+            if (ref != 0) {
+                ByteBuffer slot = slotChunk(i);
+                int pos = slotPosition(i);
+                byte[] hash = new byte[Sha256Hash.LENGTH];
+                for (int b = 0; b < hash.length; b++)
+                    hash[b] = slot.get(pos + b);
+                long index = Integer.toUnsignedLong(slot.getInt(pos + SLOT_INDEX_OFFSET));
+                UTXO value = get(new StoredTransactionOutPoint(Sha256Hash.wrap(hash), index));
+                if (value != null)
+                    values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /** Returns the number of committed outputs. */
+    long size() {
+        return size;
+    }
+
+    /** Returns the number of bytes of direct memory used by the table and the arena. */
+    long offHeapBytes() {
+        return slotCount * SLOT_BYTES + (long) arena.size() * arenaChunkBytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // The committed, off-heap table
+
+    @Nullable
+    private UTXO getCommitted(Sha256Hash hash, long index) {
+        long slot = find(hash.getBytes(), (int) index);
+        return slot < 0 ? null : readRecord(hash, index, ref(slot) - 1);
+    }
+
+    private void putCommitted(UTXO utxo) {
+        byte[] hash = utxo.getHash().getBytes();
+        int index = (int) utxo.getIndex();
+        long record = writeRecord(utxo);
+        long slot = find(hash, index);
+        if (slot >= 0) {
+            arenaLive -= recordSize(ref(slot) - 1);
+            setRef(slot, record + 1);
+        } else {
+            slot = home(hash, index);
+            while (ref(slot) != 0)
+                slot = (slot + 1) & slotMask;
+            ByteBuffer chunk = slotChunk(slot);
+            int pos = slotPosition(slot);
+            for (int b = 0; b < hash.length; b++)
+                chunk.put(pos + b, hash[b]);
+            chunk.putInt(pos + SLOT_INDEX_OFFSET, index);
+            setRef(slot, record + 1);
+            size++;
+            if (size * 4 > slotCount * 3)
+                resize(slotCount * 2);
+        }
+        maybeCompactArena();
+    }
+
+    private void removeCommitted(Sha256Hash hash, long index) {
+        long i = find(hash.getBytes(), (int) index);
+        if (i < 0)
+            return;
+        arenaLive -= recordSize(ref(i) - 1);
+        size--;
+        // Backward shift deletion: move later entries of the probe sequence into the gap, if that doesn't take them
+        // before their home position.
+        long j = i;
+        while (true) {
+            j = (j + 1) & slotMask;
+            if (ref(j) == 0)
+                break;
+            long home = slotHome(j);
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                copySlot(j, i);
+                i = j;
+            }
+        }
+        setRef(i, 0);
+    }
+
+    private long find(byte[] hash, int index) {
+        for (long i = home(hash, index); ; i = (i + 1) & slotMask) {
+            if (ref(i) == 0)
+                return -1;
+            if (keyEquals(i, hash, index))
+                return i;
+        }
+    }
+
+    private boolean keyEquals(long slot, byte[] hash, int index) {
+        ByteBuffer chunk = slotChunk(slot);
+        int pos = slotPosition(slot);
+        if (chunk.getInt(pos + SLOT_INDEX_OFFSET) != index)
+            return false;
+        for (int b = 0; b < hash.length; b += Long.BYTES)
+            if (chunk.getLong(pos + b) != readLong(hash, b))
+                return false;
+        return true;
+    }
+
+    private long home(byte[] hash, int index) {
+        return mix(readLong(hash, Sha256Hash.LENGTH - Long.BYTES), index) & slotMask;
+    }
+
+    private long slotHome(long slot) {
+        ByteBuffer chunk = slotChunk(slot);
+        int pos = slotPosition(slot);
+        return mix(chunk.getLong(pos + Sha256Hash.LENGTH - Long.BYTES), chunk.getInt(pos + SLOT_INDEX_OFFSET))
+                & slotMask;
+    }
+
+    // Transaction hashes are uniformly distributed, but outputs of the same transaction must not cluster.
+    private static long mix(long hashBits, int index) {
+        long h = hashBits ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long l = 0;
+        for (int b = 0; b < Long.BYTES; b++)
+            l = (l << 8) | (bytes[offset + b] & 0xFF);
+        return l;
+    }
+
+    private void resize(long newSlotCount) {
+        ByteBuffer[] oldSlots = slots;
+        long oldSlotCount = slotCount;
+        allocateSlots(newSlotCount);
+        for (long i = 0; i < oldSlotCount; i++) {
+            ByteBuffer oldChunk = oldSlots[(int) (i >>> SLOTS_PER_CHUNK_BITS)];
+            int oldPos = (int) (i & (SLOTS_PER_CHUNK - 1)) * SLOT_BYTES;
+            if (oldChunk.getLong(oldPos + SLOT_REF_OFFSET) == 0)
+                continue;
+            long home = mix(oldChunk.getLong(oldPos + Sha256Hash.LENGTH - Long.BYTES),
+                    oldChunk.getInt(oldPos + SLOT_INDEX_OFFSET)) & slotMask;
+            long slot = home;
+            while (ref(slot) != 0)
+                slot = (slot + 1) & slotMask;
+            ByteBuffer chunk = slotChunk(slot);
+            int pos = slotPosition(slot);
+            for (int b = 0; b < SLOT_BYTES; b += Long.BYTES)
+                chunk.putLong(pos + b, oldChunk.getLong(oldPos + b));
+        }
+    }
+
+    private void allocateSlots(long count) {
+        int chunks = (int) Math.max(1, count >>> SLOTS_PER_CHUNK_BITS);
+        int chunkSlots = (int) Math.min(count, SLOTS_PER_CHUNK);
+        slots = new ByteBuffer[chunks];
+        for (int c = 0; c < chunks; c++)
+            slots[c] = ByteBuffer.allocateDirect(chunkSlots * SLOT_BYTES);
+        slotCount = count;
+        slotMask = count - 1;
+    }
+
+    private ByteBuffer slotChunk(long slot) {
+        return slots[(int) (slot >>> SLOTS_PER_CHUNK_BITS)];
+    }
+
+    private static int slotPosition(long slot) {
+        return (int) (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_BYTES;
+    }
+
+    private long ref(long slot) {
+        return slotChunk(slot).getLong(slotPosition(slot) + SLOT_REF_OFFSET);
+    }
+
+    private void setRef(long slot, long ref) {
+        slotChunk(slot).putLong(slotPosition(slot) + SLOT_REF_OFFSET, ref);
+    }
+
+    private void copySlot(long from, long to) {
+        ByteBuffer fromChunk = slotChunk(from);
+        int fromPos = slotPosition(from);
+        ByteBuffer toChunk = slotChunk(to);
+        int toPos = slotPosition(to);
+        for (int b = 0; b < SLOT_BYTES; b += Long.BYTES)
+            toChunk.putLong(toPos + b, fromChunk.getLong(fromPos + b));
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // The arena of output records
+
+    private long writeRecord(UTXO utxo) {
+        byte[] script = utxo.getScript() != null ? utxo.getScript().program() : new byte[0];
+        byte[] address = utxo.getAddress() != null ? utxo.getAddress().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        checkArgument(address.length < LONG_LENGTH_MARKER, () -> "address too long");
+        int length = 8 + 4 + 1 + lengthSize(script.length) + script.length + 2 + address.length;
+        checkArgument(length <= arenaChunkBytes, () -> "output too large: " + length);
+        int chunkIndex = (int) (arenaUsed / arenaChunkBytes);
+        int pos = (int) (arenaUsed % arenaChunkBytes);
+        if (pos + length > arenaChunkBytes) {
+            // Doesn't fit into the rest of this chunk, waste the remainder.
+            arenaUsed += arenaChunkBytes - pos;
+            chunkIndex++;
+            pos = 0;
+        }
+        if (chunkIndex == arena.size())
+            arena.add(ByteBuffer.allocateDirect(arenaChunkBytes));
+        ByteBuffer chunk = arena.get(chunkIndex);
+        long record = arenaUsed;
+        chunk.putLong(pos, utxo.getValue().value);
+        chunk.putInt(pos + 8, utxo.getHeight());
+        chunk.put(pos + 12, (byte) (utxo.isCoinbase() ? FLAG_COINBASE : 0));
+        pos += 13;
+        if (script.length < LONG_LENGTH_MARKER) {
+            chunk.putShort(pos, (short) script.length);
+            pos += 2;
+        } else {
+            chunk.putShort(pos, (short) LONG_LENGTH_MARKER);
+            chunk.putInt(pos + 2, script.length);
+            pos += 6;
+        }
+        for (byte b : script)
+            chunk.put(pos++, b);
+        chunk.putShort(pos, (short) address.length);
+        pos += 2;
+        for (byte b : address)
+            chunk.put(pos++, b);
+        arenaUsed += length;
+        arenaLive += length;
+        return record;
+    }
+
+    private UTXO readRecord(Sha256Hash hash, long index, long record) {
+        ByteBuffer chunk = arena.get((int) (record / arenaChunkBytes));
+        int pos = (int) (record % arenaChunkBytes);
+        Coin value = Coin.valueOf(chunk.getLong(pos));
+        int height = chunk.getInt(pos + 8);
+        boolean coinbase = (chunk.get(pos + 12) & FLAG_COINBASE) != 0;
+        pos += 13;
+        int scriptLength = Short.toUnsignedInt(chunk.getShort(pos));
+        pos += 2;
+        if (scriptLength == LONG_LENGTH_MARKER) {
+            scriptLength = chunk.getInt(pos);
+            pos += 4;
+        }
+        byte[] script = new byte[scriptLength];
+        for (int b = 0; b < scriptLength; b++)
+            script[b] = chunk.get(pos++);
+        byte[] address = new byte[Short.toUnsignedInt(chunk.getShort(pos))];
+        pos += 2;
+        for (int b = 0; b < address.length; b++)
+            address[b] = chunk.get(pos++);
+        return new UTXO(hash, index, value, height, coinbase, Script.parse(script),
+                new String(address, StandardCharsets.UTF_8));
+    }
+
+    private int recordSize(long record) {
+        return recordSize(arena, record);
+    }
+
+    private int recordSize(List<ByteBuffer> arena, long record) {
+        ByteBuffer chunk = arena.get((int) (record / arenaChunkBytes));
+        int start = (int) (record % arenaChunkBytes);
+        int pos = start + 13;
+        int scriptLength = Short.toUnsignedInt(chunk.getShort(pos));
+        pos += 2;
+        if (scriptLength == LONG_LENGTH_MARKER) {
+            scriptLength = chunk.getInt(pos);
+            pos += 4;
+        }
+        pos += scriptLength;
+        pos += 2 + Short.toUnsignedInt(chunk.getShort(pos));
+        return pos - start;
+    }
+
+    private static int lengthSize(int length) {
+        return length < LONG_LENGTH_MARKER ? 2 : 6;
+    }
+
+    // Copies all live records into a fresh arena, if more than half of the current one is garbage.
+    private void maybeCompactArena() {
+        if (arenaUsed <= arenaChunkBytes || arenaUsed - arenaLive <= arenaLive)
+            return;
+        List<ByteBuffer> oldArena = arena;
+        arena = new ArrayList<>();
+        arenaUsed = 0;
+        for (long i = 0; i < slotCount; i++) {
+            long ref = ref(i);
+            if (ref == 0)
+                continue;
+            long oldRecord = ref - 1;
+            ByteBuffer oldChunk = oldArena.get((int) (oldRecord / arenaChunkBytes));
+            int oldPos = (int) (oldRecord % arenaChunkBytes);
+            int length = recordSize(oldArena, oldRecord);
+            int chunkIndex = (int) (arenaUsed / arenaChunkBytes);
+            int pos = (int) (arenaUsed % arenaChunkBytes);
+            if (pos + length > arenaChunkBytes) {
+                arenaUsed += arenaChunkBytes - pos;
+                chunkIndex++;
+                pos = 0;
+            }
+            if (chunkIndex == arena.size())
+                arena.add(ByteBuffer.allocateDirect(arenaChunkBytes));
+            ByteBuffer chunk = arena.get(chunkIndex);
+            for (int b = 0; b < length; b++)
+                chunk.put(pos + b, oldChunk.get(oldPos + b));
+            setRef(i, arenaUsed + 1);
+            arenaUsed += length;
+        }
+        arenaLive = arenaUsed;
+    }
+}
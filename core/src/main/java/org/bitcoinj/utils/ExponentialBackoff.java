@@ -20,6 +20,7 @@ import org.bitcoinj.base.internal.TimeUtils;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Objects;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 
@@ -76,6 +77,19 @@ public class ExponentialBackoff implements Comparable<ExponentialBackoff> {
         trackSuccess();
     }
 
+    /**
+     * Restores a back off, e.g. one that was persisted.
+     *
+     * @param params    parameters of the back off
+     * @param backoff   current back off interval, see {@link #backoff()}
+     * @param retryTime next time to retry, see {@link #retryTime()}
+     */
+    public ExponentialBackoff(Params params, Duration backoff, Instant retryTime) {
+        this.params = params;
+        this.backoff = Objects.requireNonNull(backoff);
+        this.retryTime = Objects.requireNonNull(retryTime);
+    }
+
     /** Track a success - reset back off interval to the initial value */
     public final void trackSuccess() {
         backoff = params.initialInterval;
@@ -95,6 +109,11 @@ public class ExponentialBackoff implements Comparable<ExponentialBackoff> {
         return retryTime;
     }
 
+    /** Get the interval to wait after the next failure */
+    public Duration backoff() {
+        return backoff;
+    }
+
     @Override
     public int compareTo(ExponentialBackoff other) {
         // note that in this implementation compareTo() is not consistent with equals()
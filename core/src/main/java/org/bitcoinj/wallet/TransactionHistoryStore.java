@@ -0,0 +1,246 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.protobuf.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the transactions of a wallet that are fully spent and buried deep in the chain in a file, instead of in
+ * memory. Such transactions are only needed for browsing the history of the wallet, so once a store is set with
+ * {@link Wallet#setHistoryStore(TransactionHistoryStore)}, the wallet moves them to the store and reads them back
+ * from it in {@link Wallet#getTransaction(Sha256Hash)} and {@link Wallet#getTransactionsByTime()}.</p>
+ *
+ * <p>The file is a sequence of records, each made of the length of the transaction, its hash and update time, followed
+ * by the transaction in the protobuf format of the wallet. Only the hash, update time and position of each record are
+ * kept in memory. Transactions read from the store aren't connected to the other transactions of the wallet.</p>
+ *
+ * <p>Moved transactions are no longer in the wallet file, so the store has to be set again every time the wallet is
+ * loaded, see {@link #fileFor(File)}. This class is thread safe.</p>
+ */
+public class TransactionHistoryStore implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransactionHistoryStore.class);
+
+    /** Default depth in blocks a spent transaction must have before it is moved to the store. */
+    public static final int DEFAULT_MIN_DEPTH = 1000;
+
+    // Length of the transaction, its hash and update time in milliseconds.
+    private static final int RECORD_HEADER_LENGTH = 4 + Sha256Hash.LENGTH + 8;
+
+    private static class Record {
+        final long position; // of the transaction, after the header
+        final int length;
+        final long updateTime;
+
+        Record(long position, int length, long updateTime) {
+            this.position = position;
+            this.length = length;
+            this.updateTime = updateTime;
+        }
+    }
+
+    private final File file;
+    private final int minDepth;
+    private final FileChannel channel;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    // A transaction that was written more than once is found at its last position.
+    private final Map<Sha256Hash, Record> index = new HashMap<>();
+    private long size; // length of the records written so far
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist, with a minimum depth of
+     * {@link #DEFAULT_MIN_DEPTH}.
+     *
+     * @param file file of the store
+     * @throws IOException if the file can't be opened or read
+     */
+    public TransactionHistoryStore(File file) throws IOException {
+        this(file, DEFAULT_MIN_DEPTH);
+    }
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist. A partially written record at the end of the
+     * file is cut off.
+     *
+     * @param file     file of the store
+     * @param minDepth depth in blocks a spent transaction must have before it is moved to the store
+     * @throws IOException if the file can't be opened or read
+     */
+    public TransactionHistoryStore(File file, int minDepth) throws IOException {
+        checkArgument(minDepth > 0, () -> "minDepth must be positive: " + minDepth);
+        this.file = Objects.requireNonNull(file);
+        this.minDepth = minDepth;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            readIndex();
+        } catch (IOException x) {
+            channel.close();
+            throw x;
+        }
+    }
+
+    /** Returns the history store file that belongs next to the given wallet file. */
+    public static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".history");
+    }
+
+    private void readIndex() throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        long position = 0;
+        while (true) {
+            header.clear();
+            if (!readFully(header, position))
+                break;
+            header.flip();
+            int txLength = header.getInt();
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            header.get(hash);
+            long updateTime = header.getLong();
+            long txPosition = position + RECORD_HEADER_LENGTH;
+            if (txLength < 0 || txPosition + txLength > length)
+                break;
+            index.put(Sha256Hash.wrap(hash), new Record(txPosition, txLength, updateTime));
+            position = txPosition + txLength;
+        }
+        if (position < length) {
+            log.warn("Cutting off partially written transaction at the end of {}", file);
+            channel.truncate(position);
+        }
+        size = position;
+        log.info("Opened {} with {} transactions", file, index.size());
+    }
+
+    // Returns false if the end of the file is reached before the buffer is full.
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    /** Returns the depth in blocks a spent transaction must have before it is moved to the store. */
+    public int getMinDepth() {
+        return minDepth;
+    }
+
+    /** Returns the number of transactions in the store. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Returns true if the transaction with the given hash is in the store. */
+    public synchronized boolean contains(Sha256Hash hash) {
+        return index.containsKey(hash);
+    }
+
+    /**
+     * Writes the given transactions to the store and syncs them to disk, so they can be removed from the wallet. A
+     * transaction that is already in the store is replaced.
+     */
+    synchronized void add(Collection<WalletTransaction> transactions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        Map<Sha256Hash, Record> added = new LinkedHashMap<>();
+        for (WalletTransaction wtx : transactions) {
+            Transaction tx = wtx.getTransaction();
+            byte[] txBytes = WalletProtobufSerializer.transactionToProto(wtx).toByteArray();
+            long updateTime = tx.updateTime().map(Instant::toEpochMilli).orElse(0L);
+            output.writeInt(txBytes.length);
+            output.write(tx.getTxId().getBytes());
+            output.writeLong(updateTime);
+            output.write(txBytes);
+            added.put(tx.getTxId(), new Record(size + bytes.size() - txBytes.length, txBytes.length, updateTime));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        long end = size;
+        while (buffer.hasRemaining())
+            end += channel.write(buffer, end);
+        channel.force(false);
+        size = end;
+        index.putAll(added);
+    }
+
+    /**
+     * Reads the transaction with the given hash from the store. Its confidence is as it was when it was written.
+     *
+     * @return the transaction, or null if it isn't in the store
+     */
+    @Nullable
+    Transaction get(Sha256Hash hash) throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            Record record = index.get(hash);
+            if (record == null)
+                return null;
+            buffer = ByteBuffer.allocate(record.length);
+            if (!readFully(buffer, record.position))
+                throw new IOException("Transaction " + hash + " is cut off in " + file);
+        }
+        try {
+            return serializer.transactionFromProto(Protos.Transaction.parseFrom(buffer.array()));
+        } catch (UnreadableWalletException x) {
+            throw new IOException("Could not read transaction " + hash + " from " + file, x);
+        }
+    }
+
+    /** Returns the update time of every transaction in the store, with missing update times as the epoch. */
+    synchronized Map<Sha256Hash, Instant> updateTimes() {
+        Map<Sha256Hash, Instant> updateTimes = new HashMap<>(index.size());
+        for (Map.Entry<Sha256Hash, Record> entry : index.entrySet())
+            updateTimes.put(entry.getKey(), Instant.ofEpochMilli(entry.getValue().updateTime));
+        return updateTimes;
+    }
+
+    /** Removes all transactions from the store. */
+    synchronized void clear() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        index.clear();
+        size = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
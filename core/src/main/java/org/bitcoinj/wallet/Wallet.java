@@ -47,6 +47,7 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerFilterProvider;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
@@ -102,26 +103,29 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -133,6 +137,7 @@ import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
@@ -178,6 +183,11 @@ import static org.bitcoinj.base.internal.Preconditions.checkState;
  * thrashing when the wallet is changing very fast (e.g. due to a block chain sync). See
  * {@link Wallet#autosaveToFile(File, Duration, WalletFiles.Listener)}
  * for more information about this.</p>
+ *
+ * <p>Queries like {@link #getBalance(BalanceType)}, {@link #getTransactions(boolean)} and {@link #getUnspents()}
+ * never wait for the wallet to be updated by another thread, e.g. while a block is being processed. They are answered
+ * from an immutable copy of the wallet state, which the updating thread publishes when it is done, and before it
+ * notifies any listeners. Changes made by the calling thread itself are always reflected.</p>
  */
 public class Wallet extends BaseTaggableObject
     implements NewBestBlockListener, TransactionReceivedInBlockListener, PeerFilterProvider,
@@ -201,8 +211,8 @@ public class Wallet extends BaseTaggableObject
     //           entire transaction in memory even though for spending purposes we only really need the outputs, the
     //           reason being that this simplifies handling of re-orgs. It would be worth fixing this in future.
     // Spent:    Transactions that appeared in the best chain but don't have any spendable outputs. They're stored here
-    //           for history browsing/auditing reasons only and in future will probably be flushed out to some other
-    //           kind of cold storage or just removed.
+    //           for history browsing/auditing reasons only. If a history store is set, they are moved to it once they
+    //           are buried deep enough, see setHistoryStore().
     // Dead:     Transactions that we believe will never confirm get moved here, out of pending. Note that Bitcoin
     //           Core has no notion of dead-ness: the assumption is that double spends won't happen so there's no
     //           need to notify the user about them. We take a more pessimistic approach and try to track the fact that
@@ -219,8 +229,33 @@ public class Wallet extends BaseTaggableObject
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
+    // Used to speed up various calculations. Only change it via addUnspent(), removeUnspent() and clearUnspents(), so
+    // that the balances are kept up to date.
     protected final Set<TransactionOutput> myUnspents = new HashSet<>();
+    // Total value of myUnspents, which is the ESTIMATED balance.
+    @GuardedBy("lock") private Coin unspentValue = Coin.ZERO;
+    // The balances without the outputs of pending transactions, or empty if they must be calculated again. See
+    // keptBalances().
+    @GuardedBy("lock") private final Map<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+    // Queries from threads that don't hold the lock are answered from this view, see publishReadView().
+    private volatile ReadView vReadView = ReadView.EMPTY;
+    // What has changed since the read view was published.
+    @GuardedBy("lock") private final Set<Pool> changedPools = EnumSet.noneOf(Pool.class);
+    @GuardedBy("lock") private boolean unspentsChanged;
+    @GuardedBy("lock") private boolean balancesChanged;
+
+    // If auto saving with a journal, hashes of the transactions to write to it next. See WalletJournal.
+    @GuardedBy("lock") private boolean journaling;
+    @GuardedBy("lock") private final Set<Sha256Hash> journalChanges = new LinkedHashSet<>();
+    // Set by changes that are easier to save with a full rewrite of the wallet file, like a re-org.
+    @GuardedBy("lock") private boolean journalRewriteNeeded;
+    // Whether the keys or the extensions have to be written to the journal. The keys are changed with only the key
+    // chain group lock held, so that flag isn't guarded by the wallet lock.
+    private final AtomicBoolean journalKeysChanged = new AtomicBoolean();
+    @GuardedBy("lock") private boolean journalExtensionsChanged;
+
+    // If set, deeply buried spent transactions are moved here. It is read without the lock by getTransaction().
+    @Nullable private volatile TransactionHistoryStore vHistoryStore;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -527,16 +562,19 @@ public class Wallet extends BaseTaggableObject
             // the transaction has changed, as that confidence change is made by the networking code which
             // doesn't necessarily know at that point which wallets contain which transactions, so it's up
             // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
-            // so we'll queue up a wallet change event in other parts of the code.
+            // so we'll queue up a wallet change event in other parts of the code. The peers seen only matter to
+            // the balances for pending transactions, which are left out of the kept balances.
             if (reason == Listener.ChangeReason.SEEN_PEERS) {
                 lock.lock();
                 try {
                     checkBalanceFuturesLocked();
                     Transaction tx = getTransaction(confidence.getTransactionHash());
+                    if (tx != null)
+                        markForJournal(tx);
                     queueOnTransactionConfidenceChanged(tx);
                     maybeQueueOnWalletChanged();
                 } finally {
-                    lock.unlock();
+                    unlock();
                 }
             }
         };
@@ -597,7 +635,7 @@ public class Wallet extends BaseTaggableObject
             else
                 throw new IllegalStateException("Signer instance is not ready to be added into Wallet: " + signer.getClass());
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -606,7 +644,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return Collections.unmodifiableList(signers);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -624,7 +662,11 @@ public class Wallet extends BaseTaggableObject
     public DeterministicKey currentKey(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.currentKey(purpose);
+            int keys = keysIssued();
+            DeterministicKey key = keyChainGroup.currentKey(purpose);
+            if (keysIssued() != keys)
+                markKeysForJournal();
+            return key;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -644,7 +686,11 @@ public class Wallet extends BaseTaggableObject
     public Address currentAddress(KeyChain.KeyPurpose purpose) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.currentAddress(purpose);
+            int keys = keysIssued();
+            Address address = keyChainGroup.currentAddress(purpose);
+            if (keysIssued() != keys)
+                markKeysForJournal();
+            return address;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -683,6 +729,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keys = keyChainGroup.freshKeys(purpose, numberOfKeys);
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -708,6 +755,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             address = keyChainGroup.freshAddress(purpose);
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -735,6 +783,7 @@ public class Wallet extends BaseTaggableObject
         try {
             Instant keyRotationTime = vKeyRotationTime;
             address = keyChainGroup.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS, scriptType, keyRotationTime);
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -804,6 +853,7 @@ public class Wallet extends BaseTaggableObject
         try {
             Instant keyRotationTime = vKeyRotationTime;
             keyChainGroup.upgradeToDeterministic(outputScriptType, structure, keyRotationTime, aesKey);
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -847,6 +897,7 @@ public class Wallet extends BaseTaggableObject
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
+            markKeysChanged();
         }
     }
 
@@ -916,6 +967,7 @@ public class Wallet extends BaseTaggableObject
         } finally {
             keyChainGroupLock.unlock();
         }
+        markKeysChanged();
         saveNow();
         return result;
     }
@@ -929,13 +981,16 @@ public class Wallet extends BaseTaggableObject
 
     /** Takes a list of keys and a password, then encrypts and imports them in one step using the current keycrypter. */
     public int importKeysAndEncrypt(final List<ECKey> keys, CharSequence password) {
+        AesKey aesKey;
         keyChainGroupLock.lock();
         try {
             Objects.requireNonNull(getKeyCrypter(), "Wallet is not encrypted");
-            return importKeysAndEncrypt(keys, getKeyCrypter().deriveKey(password));
+            aesKey = getKeyCrypter().deriveKey(password);
         } finally {
             keyChainGroupLock.unlock();
         }
+        // Imports without holding the key chain group lock, as the balances are updated under the wallet lock.
+        return importKeysAndEncrypt(keys, aesKey);
     }
 
     /** Takes a list of keys and an AES key, then encrypts and imports them in one step using the current keycrypter. */
@@ -946,6 +1001,7 @@ public class Wallet extends BaseTaggableObject
             return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
         } finally {
             keyChainGroupLock.unlock();
+            markKeysChanged();
         }
     }
 
@@ -960,6 +1016,7 @@ public class Wallet extends BaseTaggableObject
         } finally {
             keyChainGroupLock.unlock();
         }
+        markKeysChanged();
     }
 
     /** See {@link DeterministicKeyChain#setLookaheadSize(int)} for more info on this. */
@@ -1147,7 +1204,7 @@ public class Wallet extends BaseTaggableObject
             saveNow();
             return true;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1283,6 +1340,7 @@ public class Wallet extends BaseTaggableObject
     private void markKeysAsUsed(Transaction tx) {
         keyChainGroupLock.lock();
         try {
+            int keys = keysIssued();
             for (TransactionOutput o : tx.getOutputs()) {
                 try {
                     Script script = o.getScriptPubKey();
@@ -1305,6 +1363,8 @@ public class Wallet extends BaseTaggableObject
                     log.info("Could not parse tx output script: {}", e.toString());
                 }
             }
+            if (keysIssued() != keys)
+                markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1349,6 +1409,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1367,6 +1428,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            markKeysForJournal();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1385,6 +1447,7 @@ public class Wallet extends BaseTaggableObject
             checkState(crypter != null, () ->
                     "not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            markKeysForJournal();
         } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
             throw new BadWalletEncryptionKeyException(e);
         } finally {
@@ -1404,6 +1467,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            markKeysForJournal();
         } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
             throw new BadWalletEncryptionKeyException(e);
         } finally {
@@ -1574,7 +1638,7 @@ public class Wallet extends BaseTaggableObject
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
+            unlock();
             if (stream != null) {
                 stream.close();
             }
@@ -1616,7 +1680,7 @@ public class Wallet extends BaseTaggableObject
         try {
             this.acceptRiskyTransactions = acceptRiskyTransactions;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1628,7 +1692,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return acceptRiskyTransactions;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1642,7 +1706,7 @@ public class Wallet extends BaseTaggableObject
         try {
             this.riskAnalyzer = Objects.requireNonNull(analyzer);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1654,7 +1718,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return riskAnalyzer;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1679,17 +1743,37 @@ public class Wallet extends BaseTaggableObject
      * @param eventListener callback to be informed when the auto-save thread does things, or null
      */
     public WalletFiles autosaveToFile(File f, Duration delay, @Nullable WalletFiles.Listener eventListener) {
+        return autosaveToFile(f, delay, false, eventListener);
+    }
+
+    /**
+     * <p>Sets up the wallet to auto-save itself to the given file, like
+     * {@link #autosaveToFile(File, Duration, WalletFiles.Listener)}, optionally with a journal.</p>
+     *
+     * <p>With a journal, an auto-save appends the transactions that changed to a journal file next to the wallet file,
+     * rather than rewriting the whole wallet file. Once the journal has grown large compared to the wallet file, the
+     * wallet file is rewritten and the journal started over. {@link #loadFromFile(File, WalletExtension...)} applies
+     * the journal when loading the wallet. Changes made directly to a {@link Transaction} object, like setting its
+     * memo, or to a key chain or extension object are only saved with the next rewrite.</p>
+     *
+     * @param f The destination file to save to.
+     * @param delay How much time to wait until saving the wallet on a background thread.
+     * @param journal whether to append changes to a journal
+     * @param eventListener callback to be informed when the auto-save thread does things, or null
+     */
+    public WalletFiles autosaveToFile(File f, Duration delay, boolean journal,
+                                      @Nullable WalletFiles.Listener eventListener) {
         lock.lock();
         try {
             checkState(vFileManager == null, () ->
                     "already auto saving this wallet");
-            WalletFiles manager = new WalletFiles(this, f, delay);
+            WalletFiles manager = new WalletFiles(this, f, delay, journal);
             if (eventListener != null)
                 manager.setListener(eventListener);
             vFileManager = manager;
             return manager;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1708,8 +1792,9 @@ public class Wallet extends BaseTaggableObject
             checkState(files != null, () ->
                     "auto saving not enabled");
             files.shutdownAndWait();
+            setJournaling(false);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1745,13 +1830,14 @@ public class Wallet extends BaseTaggableObject
         try {
             new WalletProtobufSerializer().writeWallet(this, f);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
     /**
      * Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
-     * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}
+     * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}. If the wallet was
+     * auto saved with a journal, the journal is applied too.
      *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
@@ -1775,11 +1861,15 @@ public class Wallet extends BaseTaggableObject
      * @throws UnreadableWalletException if there was a problem loading or parsing the file
      */
     public static Wallet loadFromFile(File file, WalletProtobufSerializer.WalletFactory factory, boolean forceReset, boolean ignoreMandatoryExtensions, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
-        try (FileInputStream stream = new FileInputStream(file)) {
-            return loadFromFileStream(stream, factory, forceReset, ignoreMandatoryExtensions, walletExtensions);
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not open file", e);
+        WalletProtobufSerializer loader = new WalletProtobufSerializer(factory);
+        if (ignoreMandatoryExtensions) {
+            loader.setRequireMandatoryExtensions(false);
         }
+        Wallet wallet = loader.readWallet(file, forceReset, walletExtensions);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
     }
 
     /**
@@ -1808,7 +1898,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = memoryTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<>();
             for (Transaction tx : transactions) {
@@ -1836,8 +1926,17 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getTxId());
                 }
             }
+
+            // The running total and the cached balances must match a full calculation.
+            for (BalanceType balanceType : BalanceType.values()) {
+                Coin kept = getBalance(balanceType);
+                Coin calculated = calculateBalance(balanceType);
+                if (!kept.equals(calculated)) {
+                    throw new IllegalStateException("Inconsistent " + balanceType + " balance: " + kept + " vs " + calculated);
+                }
+            }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -1942,7 +2041,7 @@ public class Wallet extends BaseTaggableObject
             receive(tx, block, blockType, relativityOffset);
             return true;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2018,7 +2117,7 @@ public class Wallet extends BaseTaggableObject
             // timestamp on the transaction and registers/runs event listeners.
             commitTx(cloneTx);
         } finally {
-            lock.unlock();
+            unlock();
         }
         // maybeRotateKeys() will ignore pending transactions so we don't bother calling it here (see the comments
         // in that function for an explanation of why).
@@ -2044,7 +2143,7 @@ public class Wallet extends BaseTaggableObject
             }
             return false;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2089,7 +2188,7 @@ public class Wallet extends BaseTaggableObject
             }
             return true;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2108,7 +2207,7 @@ public class Wallet extends BaseTaggableObject
                    tx.getValueSentToMe(this).signum() > 0 ||
                    !findDoubleSpendsAgainst(tx, transactions).isEmpty();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2208,7 +2307,7 @@ public class Wallet extends BaseTaggableObject
                 return;
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2236,6 +2335,7 @@ public class Wallet extends BaseTaggableObject
         // Inform the key chains that the issued keys were observed in a transaction, so they know to
         // calculate more keys for the next Bloom filters.
         markKeysAsUsed(tx);
+        markForJournal(tx);
 
         onWalletChangedSuppressions++;
 
@@ -2248,20 +2348,24 @@ public class Wallet extends BaseTaggableObject
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            markPoolsChanged(Pool.PENDING);
+        }
 
         if (bestChain) {
             boolean wasDead = dead.remove(txHash) != null;
-            if (wasDead)
+            if (wasDead) {
                 log.info("  <-dead");
+                markPoolsChanged(Pool.DEAD);
+            }
             if (wasPending) {
                 // Was pending and is now confirmed. Disconnect the outputs in case we spent any already: they will be
                 // re-connected by processTxFromBestChain below.
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2303,14 +2407,14 @@ public class Wallet extends BaseTaggableObject
                 // Consider dependency chains.
                 Set<Transaction> currentTxDependencies = new HashSet<>();
                 currentTxDependencies.add(tx);
-                addTransactionsDependingOn(currentTxDependencies, getTransactions(true));
+                addTransactionsDependingOn(currentTxDependencies, memoryTransactions(true));
                 currentTxDependencies.remove(tx);
                 List<Transaction> currentTxDependenciesSorted = sortTxnsByDependency(currentTxDependencies);
                 for (Transaction txDependency : currentTxDependenciesSorted) {
                     if (getConfidence(txDependency).getConfidenceType().equals(ConfidenceType.IN_CONFLICT)) {
                         if (isNotSpendingTxnsInConfidenceType(txDependency, ConfidenceType.IN_CONFLICT)) {
                             getConfidence(txDependency).setConfidenceType(ConfidenceType.PENDING);
-                            confidenceChanged.put(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
+                            markConfidenceChanged(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
                         }
                     }
                 }
@@ -2322,7 +2426,7 @@ public class Wallet extends BaseTaggableObject
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -2404,6 +2508,100 @@ public class Wallet extends BaseTaggableObject
         return false;
     }
 
+    // Remembers to notify the confidence listeners of the given transaction, once we are done changing things.
+    @GuardedBy("lock")
+    private void markConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        confidenceChanged.put(tx, reason);
+        // Only coinbases depend on their depth to be spent.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH || tx.isCoinBase())
+            markBalancesChanged();
+        // Depth changes aren't journaled, they are derived from the last seen block when the journal is replayed.
+        if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+            markForJournal(tx);
+    }
+
+    // Remembers to write the given transaction to the journal, along with the transactions it spends from in this
+    // wallet, as which outputs are spent is saved with them.
+    @GuardedBy("lock")
+    private void markForJournal(Transaction tx) {
+        if (!journaling)
+            return;
+        journalChanges.add(tx.getTxId());
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash parent = input.getOutpoint().hash();
+            if (transactions.containsKey(parent))
+                journalChanges.add(parent);
+        }
+    }
+
+    /**
+     * Starts or stops collecting the changes to write to the journal. Called by {@link WalletFiles} with the lock held,
+     * to stop right before it saves the whole wallet and to start right after.
+     */
+    @GuardedBy("lock")
+    void setJournaling(boolean journaling) {
+        this.journaling = journaling;
+        journalChanges.clear();
+        journalRewriteNeeded = false;
+        journalExtensionsChanged = false;
+        // Keys can change while the wallet is being saved, so only forget about them before saving.
+        if (!journaling)
+            journalKeysChanged.set(false);
+    }
+
+    // Keys were added, issued or changed in any other way, so the next journal entry has to carry the key chains.
+    private void markKeysForJournal() {
+        journalKeysChanged.set(true);
+    }
+
+    // Counts the issued deterministic keys, to tell whether a call that may issue keys did so. Imported keys are
+    // marked by the calls that import them, and the lookahead keys are derived again when the wallet is loaded.
+    @GuardedBy("keyChainGroupLock")
+    private int keysIssued() {
+        int keys = 0;
+        if (keyChainGroup.supportsDeterministicChains()) {
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains())
+                keys += chain.getIssuedExternalKeys() + chain.getIssuedInternalKeys();
+        }
+        return keys;
+    }
+
+    /**
+     * Returns whether the keys changed since the last call, so the next journal entry has to carry the key chains.
+     * Called by {@link WalletFiles} with the lock held.
+     */
+    @GuardedBy("lock")
+    boolean takeJournalKeysChanged() {
+        return journalKeysChanged.getAndSet(false);
+    }
+
+    /**
+     * Returns whether an extension was added or replaced since the last call, so the next journal entry has to carry
+     * the extensions. Called by {@link WalletFiles} with the lock held.
+     */
+    @GuardedBy("lock")
+    boolean takeJournalExtensionsChanged() {
+        boolean changed = journalExtensionsChanged;
+        journalExtensionsChanged = false;
+        return changed;
+    }
+
+    /**
+     * Returns the hashes of the transactions that were added, changed or removed since the last call, or null if the
+     * wallet changed in a way that is better saved by rewriting it completely. Called by {@link WalletFiles} with the
+     * lock held.
+     */
+    @GuardedBy("lock")
+    @Nullable
+    Set<Sha256Hash> takeJournalChanges() {
+        checkState(journaling);
+        if (journalRewriteNeeded)
+            return null;
+        Set<Sha256Hash> changes = new LinkedHashSet<>(journalChanges);
+        journalChanges.clear();
+        return changes;
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
@@ -2437,7 +2635,7 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenTime(block.getHeader().time());
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
+            Set<Transaction> transactions = memoryTransactions(true);
             for (Transaction tx : transactions) {
                 if (ignoreNextNewBlock.contains(tx.getTxId())) {
                     // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -2455,10 +2653,11 @@ public class Wallet extends BaseTaggableObject
                         // wouldn't mean anything different to just remembering peers anyway.
                         if (confidence.incrementDepthInBlocks() > Context.getOrCreate().getEventHorizon())
                             confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                        markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
             }
+            moveToHistoryStore();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -2471,7 +2670,7 @@ public class Wallet extends BaseTaggableObject
                 saveLater();
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -2498,6 +2697,8 @@ public class Wallet extends BaseTaggableObject
             log.info("  coinbase tx <-dead: confidence {}", tx.getTxId(),
                     getConfidence(tx).getConfidenceType().name());
             dead.remove(tx.getTxId());
+            markPoolsChanged(Pool.DEAD);
+            markForJournal(tx);
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -2614,7 +2815,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeUnspent(output));
                 }
             }
         }
@@ -2637,7 +2838,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2662,22 +2863,23 @@ public class Wallet extends BaseTaggableObject
             pending.remove(tx.getTxId());
             unspent.remove(tx.getTxId());
             spent.remove(tx.getTxId());
+            markPoolsChanged(Pool.PENDING, Pool.UNSPENT, Pool.SPENT);
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (getConfidence(connected).getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
                 maybeMovePool(connected, "kill");
             }
             getConfidence(tx).setOverridingTxId(overridingTx != null ? overridingTx.getTxId() : null);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2693,13 +2895,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2719,6 +2921,8 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getTxId(), context);
                 }
                 spent.put(tx.getTxId(), tx);
+                markPoolsChanged(Pool.UNSPENT, Pool.SPENT);
+                markForJournal(tx);
             }
         } else {
             if (spent.remove(tx.getTxId()) != null) {
@@ -2726,6 +2930,8 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getTxId(), context);
                 }
                 unspent.put(tx.getTxId(), tx);
+                markPoolsChanged(Pool.UNSPENT, Pool.SPENT);
+                markForJournal(tx);
             }
         }
     }
@@ -2774,7 +2980,7 @@ public class Wallet extends BaseTaggableObject
                 // Add tx to the dead pool and schedule confidence listener notifications.
                 log.info("->dead: {}", tx.getTxId());
                 getConfidence(tx).setConfidenceType(ConfidenceType.DEAD);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.DEAD, tx);
             } else if (!doubleSpendPendingTxns.isEmpty() ||
                 !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
@@ -2784,17 +2990,17 @@ public class Wallet extends BaseTaggableObject
                 log.info("->pending (IN_CONFLICT): {}", tx.getTxId());
                 addWalletTransaction(Pool.PENDING, tx);
                 doubleSpendPendingTxns.add(tx);
-                addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
+                addTransactionsDependingOn(doubleSpendPendingTxns, memoryTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     getConfidence(doubleSpendTx).setConfidenceType(ConfidenceType.IN_CONFLICT);
-                    confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                    markConfidenceChanged(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 }
             } else {
                 // No conflict detected.
                 // Add to the pending pool and schedule confidence listener notifications.
                 log.info("->pending: {}", tx.getTxId());
                 getConfidence(tx).setConfidenceType(ConfidenceType.PENDING);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
             }
             if (log.isInfoEnabled())
@@ -2823,7 +3029,7 @@ public class Wallet extends BaseTaggableObject
             informConfidenceListenersIfNotReorganizing();
             saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
         return true;
     }
@@ -3054,6 +3260,7 @@ public class Wallet extends BaseTaggableObject
 
     private void queueOnTransactionConfidenceChanged(final Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        publishReadView();
         for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
@@ -3069,6 +3276,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        publishReadView();
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(() -> registration.listener.onWalletChanged(Wallet.this));
         }
@@ -3076,6 +3284,7 @@ public class Wallet extends BaseTaggableObject
 
     protected void queueOnCoinsReceived(final Transaction tx, final Coin balance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        publishReadView();
         for (final ListenerRegistration<WalletCoinsReceivedEventListener> registration : coinsReceivedListeners) {
             registration.executor.execute(() -> registration.listener.onCoinsReceived(Wallet.this, tx, balance, newBalance));
         }
@@ -3083,6 +3292,7 @@ public class Wallet extends BaseTaggableObject
 
     protected void queueOnCoinsSent(final Transaction tx, final Coin prevBalance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        publishReadView();
         for (final ListenerRegistration<WalletCoinsSentEventListener> registration : coinsSentListeners) {
             registration.executor.execute(() -> registration.listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance));
         }
@@ -3091,6 +3301,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
+        publishReadView();
         for (final ListenerRegistration<WalletReorganizeEventListener> registration : reorganizeListeners) {
             registration.executor.execute(() -> registration.listener.onReorganize(Wallet.this));
         }
@@ -3109,28 +3320,40 @@ public class Wallet extends BaseTaggableObject
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Transactions that were moved to the history store are read
+     * back from it, see {@link #setHistoryStore(TransactionHistoryStore)}.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     * @throws UncheckedIOException if the history store can't be read
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
-        try {
-            Set<Transaction> all = new HashSet<>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
-        } finally {
-            lock.unlock();
+        Set<Transaction> all;
+        if (!lock.isHeldByCurrentThread()) {
+            all = allTransactions(vReadView.pools, includeDead);
+        } else {
+            all = memoryTransactions(includeDead);
         }
+        all.addAll(historyTransactions().values());
+        return all;
+    }
+
+    // All transactions of the wallet, without those that were moved to the history store.
+    @GuardedBy("lock")
+    private Set<Transaction> memoryTransactions(boolean includeDead) {
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
     }
 
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns a set of all WalletTransactions in the wallet, except those that were moved to the history store.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
+        if (!lock.isHeldByCurrentThread())
+            return allWalletTransactions(vReadView.pools);
         lock.lock();
         try {
             Set<WalletTransaction> all = new HashSet<>();
@@ -3140,7 +3363,7 @@ public class Wallet extends BaseTaggableObject
             addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
             return all;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3161,7 +3384,21 @@ public class Wallet extends BaseTaggableObject
         try {
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
         } finally {
-            lock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * Adds the given transactions like {@link #addWalletTransaction(WalletTransaction)}, but publishes them to queries
+     * from other threads only once, after all of them have been added.
+     */
+    void addWalletTransactions(List<WalletTransaction> wtxns) {
+        lock.lock();
+        try {
+            for (WalletTransaction wtx : wtxns)
+                addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+        } finally {
+            unlock();
         }
     }
 
@@ -3187,10 +3424,12 @@ public class Wallet extends BaseTaggableObject
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        markPoolsChanged(pool);
+        markForJournal(tx);
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -3199,7 +3438,8 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns all non-dead, active transactions ordered by recency.
+     * Returns all non-dead, active transactions ordered by recency. This includes transactions that were moved to the
+     * history store, which are read from it when the returned list is accessed.
      */
     public List<Transaction> getTransactionsByTime() {
         return getRecentTransactions(0, false);
@@ -3208,6 +3448,9 @@ public class Wallet extends BaseTaggableObject
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included.</p>
+     * <p>Transactions that were moved to the history store are included, but only read from it when the returned list
+     * is accessed, each time they are accessed. Accessing them throws an {@link UncheckedIOException} if the store
+     * can't be read.</p>
      * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
      * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
      * depending on how the wallet is implemented (e.g. if backed by a database).</p>
@@ -3216,14 +3459,19 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
+            TransactionHistoryStore store = vHistoryStore;
             // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
+            if (store != null)
+                size += store.size();
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            List<Transaction> all = new ArrayList<>(getTransactions(includeDead));
+            List<Transaction> all = new ArrayList<>(memoryTransactions(includeDead));
             // Order by update time.
             Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+            if (store != null && store.size() > 0)
+                return new HistoryList(all, store.updateTimes(), numTransactions);
             if (numTransactions == all.size()) {
                 return all;
             } else {
@@ -3231,21 +3479,185 @@ public class Wallet extends BaseTaggableObject
                 return all;
             }
         } finally {
-            lock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * Transactions of the wallet and of the history store merged by update time, in the order of
+     * {@link Transaction#SORT_TX_BY_UPDATE_TIME}. Transactions of the history store are only read when accessed.
+     */
+    private class HistoryList extends AbstractList<Transaction> {
+        // Each element is either a Transaction, or the hash of a transaction in the history store.
+        private final Object[] elements;
+
+        HistoryList(List<Transaction> sorted, Map<Sha256Hash, Instant> historyUpdateTimes, int maxSize) {
+            for (Transaction tx : sorted)
+                historyUpdateTimes.remove(tx.getTxId()); // was read back into the wallet
+            List<Map.Entry<Sha256Hash, Instant>> history = new ArrayList<>(historyUpdateTimes.entrySet());
+            history.sort(Map.Entry.<Sha256Hash, Instant>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey()));
+            elements = new Object[Math.min(maxSize, sorted.size() + history.size())];
+            int i = 0, j = 0;
+            for (int k = 0; k < elements.length; k++) {
+                boolean takeHistory;
+                if (i == sorted.size()) {
+                    takeHistory = true;
+                } else if (j == history.size()) {
+                    takeHistory = false;
+                } else {
+                    Transaction tx = sorted.get(i);
+                    Map.Entry<Sha256Hash, Instant> entry = history.get(j);
+                    int c = entry.getValue().compareTo(tx.updateTime().orElse(Instant.EPOCH));
+                    takeHistory = c > 0 || (c == 0 && entry.getKey().compareTo(tx.getTxId()) < 0);
+                }
+                elements[k] = takeHistory ? history.get(j++).getKey() : sorted.get(i++);
+            }
+        }
+
+        @Override
+        public Transaction get(int index) {
+            Object element = elements[index];
+            if (element instanceof Transaction)
+                return (Transaction) element;
+            Transaction tx = readFromHistoryStore((Sha256Hash) element);
+            if (tx == null)
+                throw new IllegalStateException("Transaction " + element + " is no longer in the history store");
+            return tx;
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
         }
     }
 
     /**
      * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * @throws UncheckedIOException if the transaction was moved to the history store and can't be read from it
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = lock.isHeldByCurrentThread() ? transactions.get(hash) : vReadView.transaction(hash);
+        return tx != null ? tx : readFromHistoryStore(hash);
+    }
+
+    /**
+     * <p>Sets the store that fully spent transactions are moved to once they are buried at least
+     * {@link TransactionHistoryStore#getMinDepth()} blocks deep, to keep them out of memory. This happens right away
+     * and then with every new best block. A transaction is only moved once all transactions spending its outputs are
+     * buried that deep as well.</p>
+     *
+     * <p>Moved transactions are read back from the store by {@link #getTransaction(Sha256Hash)},
+     * {@link #getTransactions(boolean)}, {@link #getTransactionsByTime()}, {@link #getTotalReceived()} and
+     * {@link #getTotalSent()}, which throw an {@link UncheckedIOException} if it can't be read. They aren't included in
+     * {@link #getWalletTransactions()} and are no longer saved with the wallet, so the same store has to be set again
+     * whenever the wallet is loaded. Triggers auto saving.</p>
+     *
+     * @param store store to move transactions to, or null to stop moving them
+     */
+    public void setHistoryStore(@Nullable TransactionHistoryStore store) {
         lock.lock();
         try {
-            return transactions.get(hash);
+            vHistoryStore = store;
+            if (moveToHistoryStore())
+                saveLater();
         } finally {
-            lock.unlock();
+            unlock();
+        }
+    }
+
+    /** Returns the store deeply buried spent transactions are moved to, or null if there is none. */
+    @Nullable
+    public TransactionHistoryStore getHistoryStore() {
+        return vHistoryStore;
+    }
+
+    // Moves the spent transactions that are buried deep enough to the history store, if there is one. Returns true if
+    // any transactions were moved.
+    @GuardedBy("lock")
+    private boolean moveToHistoryStore() {
+        TransactionHistoryStore store = vHistoryStore;
+        if (store == null)
+            return false;
+        List<WalletTransaction> settled = new ArrayList<>();
+        for (Transaction tx : spent.values()) {
+            if (isSettled(tx, store.getMinDepth()))
+                settled.add(new WalletTransaction(Pool.SPENT, tx));
+        }
+        if (settled.isEmpty())
+            return false;
+        try {
+            store.add(settled);
+        } catch (IOException x) {
+            // Keep the transactions in memory, we'll try again with the next block.
+            log.warn("Failed to move {} transactions to the history store", settled.size(), x);
+            return false;
         }
+        for (WalletTransaction wtx : settled) {
+            Transaction tx = wtx.getTransaction();
+            spent.remove(tx.getTxId());
+            transactions.remove(tx.getTxId());
+            ignoreNextNewBlock.remove(tx.getTxId());
+            getConfidence(tx).removeEventListener(txConfidenceListener);
+            markForJournal(tx);
+        }
+        markPoolsChanged(Pool.SPENT);
+        log.info("Moved {} transactions to the history store", settled.size());
+        return true;
+    }
+
+    // Whether the given spent transaction and all transactions spending its outputs are buried deep enough to not be
+    // affected by re-orgs anymore.
+    private boolean isSettled(Transaction tx, int minDepth) {
+        TransactionConfidence confidence = getConfidence(tx);
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getDepthInBlocks() < minDepth)
+            return false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null)
+                continue;
+            TransactionConfidence spenderConfidence = getConfidence(spentBy.getParentTransaction());
+            if (spenderConfidence.getConfidenceType() != ConfidenceType.BUILDING
+                    || spenderConfidence.getDepthInBlocks() < minDepth)
+                return false;
+        }
+        return true;
+    }
+
+    // Reads all transactions of the history store, if there is one.
+    private Map<Sha256Hash, Transaction> historyTransactions() {
+        TransactionHistoryStore store = vHistoryStore;
+        if (store == null || store.size() == 0)
+            return Collections.emptyMap();
+        Map<Sha256Hash, Transaction> history = new HashMap<>();
+        for (Sha256Hash hash : store.updateTimes().keySet()) {
+            Transaction tx = readFromHistoryStore(hash);
+            if (tx != null)
+                history.put(hash, tx);
+        }
+        return history;
+    }
+
+    // Reads the transaction with the given hash from the history store, with its depth updated to the last seen block.
+    @Nullable
+    private Transaction readFromHistoryStore(Sha256Hash hash) {
+        TransactionHistoryStore store = vHistoryStore;
+        if (store == null)
+            return null;
+        Transaction tx;
+        try {
+            tx = store.get(hash);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        if (tx == null)
+            return null;
+        TransactionConfidence confidence = getConfidence(tx);
+        int height = getLastBlockSeenHeight();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING && height >= confidence.getAppearedAtChainHeight())
+            confidence.setDepthInBlocks(height - confidence.getAppearedAtChainHeight() + 1);
+        return tx;
     }
 
     @Override
@@ -3265,7 +3677,7 @@ public class Wallet extends BaseTaggableObject
                     throw new RuntimeException("Unknown wallet transaction type " + pool);
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3284,7 +3696,7 @@ public class Wallet extends BaseTaggableObject
             saveLater();
             maybeQueueOnWalletChanged();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3303,7 +3715,7 @@ public class Wallet extends BaseTaggableObject
                 throw new UnsupportedOperationException();
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3313,7 +3725,17 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
-        myUnspents.clear();
+        markPoolsChanged(Pool.values());
+        clearUnspents();
+        journalRewriteNeeded = true;
+        TransactionHistoryStore store = vHistoryStore;
+        if (store != null) {
+            try {
+                store.clear();
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            }
+        }
     }
 
     /**
@@ -3333,7 +3755,7 @@ public class Wallet extends BaseTaggableObject
                             .collect(StreamUtils.toUnmodifiableList());
         } finally {
             keyChainGroupLock.unlock();
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3364,14 +3786,16 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addUnspent(output));
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        markPoolsChanged(Pool.PENDING);
+                        markForJournal(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3388,7 +3812,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
             }
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3411,12 +3835,14 @@ public class Wallet extends BaseTaggableObject
             }
             return result;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
+        if (!lock.isHeldByCurrentThread())
+            return vReadView.pools.get(pool).size();
         lock.lock();
         try {
             switch (pool) {
@@ -3431,7 +3857,7 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3451,17 +3877,19 @@ public class Wallet extends BaseTaggableObject
             }
             throw new RuntimeException("Unreachable");
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
     /** Returns a copy of the internal unspent outputs list */
     public List<TransactionOutput> getUnspents() {
+        if (!lock.isHeldByCurrentThread())
+            return new ArrayList<>(vReadView.unspents);
         lock.lock();
         try {
             return new ArrayList<>(myUnspents);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3553,7 +3981,7 @@ public class Wallet extends BaseTaggableObject
             return builder.toString();
         } finally {
             keyChainGroupLock.unlock();
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3594,7 +4022,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return Collections.unmodifiableCollection(pending.values());
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3634,7 +4062,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return lastBlockSeenHash;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3643,7 +4071,7 @@ public class Wallet extends BaseTaggableObject
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3652,7 +4080,7 @@ public class Wallet extends BaseTaggableObject
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3661,7 +4089,7 @@ public class Wallet extends BaseTaggableObject
         try {
             lastBlockSeenTime = Objects.requireNonNull(time);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3670,7 +4098,7 @@ public class Wallet extends BaseTaggableObject
         try {
             lastBlockSeenTime = null;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3686,7 +4114,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return Optional.ofNullable(lastBlockSeenTime);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3699,7 +4127,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return lastBlockSeenHeight;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3783,9 +4211,40 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. The balances are kept up to date
+     * as the wallet changes, except for the outputs of pending transactions: they become available when the
+     * transaction is seen on the network, which the wallet isn't necessarily told about, so they are added on every
+     * call. If a {@link UTXOProvider} is set, all balances are calculated on every call, as the provider can change
+     * without the wallet being told.
      */
     public Coin getBalance(BalanceType balanceType) {
+        if (!lock.isHeldByCurrentThread()) {
+            ReadView view = vReadView;
+            if (view.balances != null)
+                return balance(balanceType, view.balances, view.pendingCandidates(balanceType));
+        }
+        lock.lock();
+        try {
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            boolean excludeUnsignable = balanceType == BalanceType.AVAILABLE_SPENDABLE;
+            return balance(balanceType, keptBalances(), calculatePendingCandidates(excludeUnsignable));
+        } finally {
+            unlock();
+        }
+    }
+
+    // Returns the kept balance of the given type, adding the given outputs of pending transactions that the coin
+    // selector would pick right now for the AVAILABLE types.
+    private Coin balance(BalanceType balanceType, Map<BalanceType, Coin> kept, List<TransactionOutput> pendingCandidates) {
+        Coin balance = kept.get(balanceType);
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE)
+            balance = balance.add(coinSelector.select(BitcoinNetwork.MAX_MONEY, pendingCandidates).totalValue());
+        return balance;
+    }
+
+    // Calculates the balance from all spend candidates.
+    private Coin calculateBalance(BalanceType balanceType) {
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
@@ -3800,11 +4259,221 @@ public class Wallet extends BaseTaggableObject
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Returns the balances without the outputs of pending transactions, calculating them if something they depend on
+     * has changed since: the unspent outputs, which transactions are pending, the keys or the confidence of
+     * transactions. The wallet makes all confidence changes itself, apart from the peers seen, which only matter for
+     * pending transactions.
+     */
+    @GuardedBy("lock")
+    private Map<BalanceType, Coin> keptBalances() {
+        if (balances.isEmpty()) {
+            balances.put(BalanceType.ESTIMATED, unspentValue);
+            balances.put(BalanceType.ESTIMATED_SPENDABLE, calculateBalance(BalanceType.ESTIMATED_SPENDABLE));
+            balances.put(BalanceType.AVAILABLE, calculateAvailableBalance(false));
+            balances.put(BalanceType.AVAILABLE_SPENDABLE, calculateAvailableBalance(true));
+        }
+        return balances;
+    }
+
+    // Calculates the AVAILABLE balance from the spend candidates of transactions that aren't pending.
+    @GuardedBy("lock")
+    private Coin calculateAvailableBalance(boolean excludeUnsignable) {
+        List<TransactionOutput> candidates = calculateAllSpendCandidates(true, excludeUnsignable).stream()
+                .filter(output -> !pending.containsKey(output.getParentTransactionHash()))
+                .collect(StreamUtils.toUnmodifiableList());
+        return coinSelector.select(BitcoinNetwork.MAX_MONEY, candidates).totalValue();
+    }
+
+    // Returns the spend candidates of pending transactions.
+    @GuardedBy("lock")
+    private List<TransactionOutput> calculatePendingCandidates(boolean excludeUnsignable) {
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (Transaction tx : pending.values()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (myUnspents.contains(output) && (!excludeUnsignable || canSignFor(output.getScriptPubKey())))
+                    candidates.add(output);
+            }
+        }
+        return Collections.unmodifiableList(candidates);
+    }
+
+    // Records that the given pools have changed. Which transactions are pending matters to the kept balances.
+    @GuardedBy("lock")
+    private void markPoolsChanged(Pool... pools) {
+        Collections.addAll(changedPools, pools);
+        markBalancesChanged();
+    }
+
+    // Records that the kept balances must be calculated again.
+    @GuardedBy("lock")
+    private void markBalancesChanged() {
+        balances.clear();
+        balancesChanged = true;
+    }
+
+    // Records a change of the keys, which is made without the lock held, and publishes the balances it affects.
+    private void markKeysChanged() {
+        markKeysForJournal();
+        lock.lock();
+        try {
+            markBalancesChanged();
+        } finally {
+            unlock();
+        }
+    }
+
+    // Adds an output to myUnspents. Returns false if it was there already.
+    @GuardedBy("lock")
+    private boolean addUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        unspentValue = unspentValue.add(output.getValue());
+        unspentsChanged = true;
+        markBalancesChanged();
+        return true;
+    }
+
+    // Removes an output from myUnspents. Returns false if it wasn't there.
+    @GuardedBy("lock")
+    private boolean removeUnspent(@Nullable TransactionOutput output) {
+        if (output == null || !myUnspents.remove(output))
+            return false;
+        unspentValue = unspentValue.subtract(output.getValue());
+        unspentsChanged = true;
+        markBalancesChanged();
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void clearUnspents() {
+        myUnspents.clear();
+        unspentValue = Coin.ZERO;
+        unspentsChanged = true;
+        markBalancesChanged();
+    }
+
+    /**
+     * The state of the wallet for queries from threads that don't hold the lock. It is published by the thread that
+     * changed the wallet and never changes after that, so queries only have to read it. Each view shares the parts
+     * that haven't changed with the view before it.
+     */
+    private static class ReadView {
+        static final ReadView EMPTY = new ReadView(emptyPools(), Collections.emptyList(), zeroBalances(),
+                Collections.emptyList(), Collections.emptyList());
+
+        final Map<Pool, Map<Sha256Hash, Transaction>> pools;
+        final List<TransactionOutput> unspents;
+        // The kept balances, or null if a UTXO provider is set.
+        @Nullable final Map<BalanceType, Coin> balances;
+        // The spend candidates of pending transactions, all of them and those we can sign for.
+        final List<TransactionOutput> pendingCandidates;
+        final List<TransactionOutput> pendingSignableCandidates;
+
+        ReadView(Map<Pool, Map<Sha256Hash, Transaction>> pools, List<TransactionOutput> unspents,
+                 @Nullable Map<BalanceType, Coin> balances, List<TransactionOutput> pendingCandidates,
+                 List<TransactionOutput> pendingSignableCandidates) {
+            this.pools = pools;
+            this.unspents = unspents;
+            this.balances = balances;
+            this.pendingCandidates = pendingCandidates;
+            this.pendingSignableCandidates = pendingSignableCandidates;
+        }
+
+        List<TransactionOutput> pendingCandidates(BalanceType balanceType) {
+            return balanceType == BalanceType.AVAILABLE_SPENDABLE ? pendingSignableCandidates : pendingCandidates;
+        }
+
+        @Nullable
+        Transaction transaction(Sha256Hash hash) {
+            for (Map<Sha256Hash, Transaction> pool : pools.values()) {
+                Transaction tx = pool.get(hash);
+                if (tx != null)
+                    return tx;
+            }
+            return null;
+        }
+
+        private static Map<Pool, Map<Sha256Hash, Transaction>> emptyPools() {
+            Map<Pool, Map<Sha256Hash, Transaction>> pools = new EnumMap<>(Pool.class);
+            for (Pool pool : Pool.values())
+                pools.put(pool, Collections.emptyMap());
+            return Collections.unmodifiableMap(pools);
+        }
+
+        private static Map<BalanceType, Coin> zeroBalances() {
+            Map<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+            for (BalanceType balanceType : BalanceType.values())
+                balances.put(balanceType, Coin.ZERO);
+            return Collections.unmodifiableMap(balances);
+        }
+    }
+
+    private static Set<Transaction> allTransactions(Map<Pool, Map<Sha256Hash, Transaction>> pools, boolean includeDead) {
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(pools.get(Pool.UNSPENT).values());
+        all.addAll(pools.get(Pool.SPENT).values());
+        all.addAll(pools.get(Pool.PENDING).values());
+        if (includeDead)
+            all.addAll(pools.get(Pool.DEAD).values());
+        return all;
+    }
+
+    private static Set<WalletTransaction> allWalletTransactions(Map<Pool, Map<Sha256Hash, Transaction>> pools) {
+        Set<WalletTransaction> all = new HashSet<>();
+        pools.forEach((pool, txns) -> addWalletTransactionsToSet(all, pool, txns.values()));
+        return all;
+    }
+
+    // Releases the lock, publishing the read view first if this is the outermost hold, so a change is published as
+    // soon as it is done.
+    private void unlock() {
+        try {
+            if (lock.getHoldCount() == 1)
+                publishReadView();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Publishes the read view, if the wallet has changed since the last one. Only the pools and the unspent outputs
+     * that have changed are copied, and the balances are only calculated if something they depend on has changed. Must
+     * also be called before other threads are told about a change, as they may query the wallet.
+     */
+    @GuardedBy("lock")
+    private void publishReadView() {
+        if (changedPools.isEmpty() && !unspentsChanged && !balancesChanged)
+            return;
+        ReadView view = vReadView;
+        Map<Pool, Map<Sha256Hash, Transaction>> pools = view.pools;
+        if (!changedPools.isEmpty()) {
+            pools = new EnumMap<>(view.pools);
+            for (Pool pool : changedPools)
+                pools.put(pool, Collections.unmodifiableMap(new HashMap<>(getTransactionPool(pool))));
+            pools = Collections.unmodifiableMap(pools);
+        }
+        List<TransactionOutput> unspents = unspentsChanged ?
+                Collections.unmodifiableList(new ArrayList<>(myUnspents)) : view.unspents;
+        Map<BalanceType, Coin> balances = view.balances;
+        List<TransactionOutput> pendingCandidates = view.pendingCandidates;
+        List<TransactionOutput> pendingSignableCandidates = view.pendingSignableCandidates;
+        if (balancesChanged) {
+            balances = vUTXOProvider == null ? Collections.unmodifiableMap(new EnumMap<>(keptBalances())) : null;
+            pendingCandidates = calculatePendingCandidates(false);
+            pendingSignableCandidates = calculatePendingCandidates(true);
+        }
+        vReadView = new ReadView(pools, unspents, balances, pendingCandidates, pendingSignableCandidates);
+        changedPools.clear();
+        unspentsChanged = false;
+        balancesChanged = false;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -3818,7 +4487,7 @@ public class Wallet extends BaseTaggableObject
             CoinSelection selection = selector.select((Coin) network.maxMoney(), candidates);
             return selection.totalValue();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3865,7 +4534,7 @@ public class Wallet extends BaseTaggableObject
             }
             return future;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -3878,6 +4547,7 @@ public class Wallet extends BaseTaggableObject
             if (current.compareTo(req.value) >= 0) {
                 // Found one that's finished.
                 // Don't run any user-provided future listeners with our lock held.
+                publishReadView();
                 Threading.USER_THREAD.execute(() -> req.future.complete(current));
             }
         });
@@ -3889,13 +4559,15 @@ public class Wallet extends BaseTaggableObject
      * transaction whose inputs are also to our wallet, the input amounts are deducted from the outputs contribution, with a minimum of zero
      * contribution. The idea behind this is we avoid double counting money sent to us.
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
+     * @throws UncheckedIOException if the history store can't be read
      */
     public Coin getTotalReceived() {
         Coin total = Coin.ZERO;
 
         // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
         // than the outputs to us.
-        for (Transaction tx: transactions.values()) {
+        Map<Sha256Hash, Transaction> history = historyTransactions();
+        for (Transaction tx: withHistory(history)) {
             Coin txTotal = Coin.ZERO;
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isMine(this)) {
@@ -3903,7 +4575,7 @@ public class Wallet extends BaseTaggableObject
                 }
             }
             for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
+                TransactionOutput prevOut = connectedOutput(in, history);
                 if (prevOut != null && prevOut.isMine(this)) {
                     txTotal = txTotal.subtract(prevOut.getValue());
                 }
@@ -3922,11 +4594,13 @@ public class Wallet extends BaseTaggableObject
      * we multiply the sum of the output values by the proportion of satoshi coming in to our inputs. Essentially we treat
      * inputs as pooling into the transaction, becoming fungible and being equally distributed to all outputs.
      * @return the total amount of satoshis sent by us
+     * @throws UncheckedIOException if the history store can't be read
      */
     public Coin getTotalSent() {
         Coin total = Coin.ZERO;
 
-        for (Transaction tx: transactions.values()) {
+        Map<Sha256Hash, Transaction> history = historyTransactions();
+        for (Transaction tx: withHistory(history)) {
             // Count spent outputs to only if they were not to us. This means we don't count change outputs.
             Coin txOutputTotal = Coin.ZERO;
             for (TransactionOutput out : tx.getOutputs()) {
@@ -3938,7 +4612,7 @@ public class Wallet extends BaseTaggableObject
             // Count the input values to us
             Coin txOwnedInputsTotal = Coin.ZERO;
             for (TransactionInput in : tx.getInputs()) {
-                TransactionOutput prevOut = in.getConnectedOutput();
+                TransactionOutput prevOut = connectedOutput(in, history);
                 if (prevOut != null && prevOut.isMine(this)) {
                     txOwnedInputsTotal = txOwnedInputsTotal.add(prevOut.getValue());
                 }
@@ -3960,6 +4634,33 @@ public class Wallet extends BaseTaggableObject
         return total;
     }
 
+    // The transactions in memory followed by those read from the history store, skipping any that were read back into
+    // the wallet.
+    private Iterable<Transaction> withHistory(Map<Sha256Hash, Transaction> history) {
+        if (history.isEmpty())
+            return transactions.values();
+        List<Transaction> all = new ArrayList<>(transactions.values());
+        for (Transaction tx : history.values())
+            if (!transactions.containsKey(tx.getTxId()))
+                all.add(tx);
+        return all;
+    }
+
+    // The output spent by the input. Transactions read from the history store aren't connected to the other
+    // transactions, so while there are any the output is looked up by outpoint.
+    @Nullable
+    private TransactionOutput connectedOutput(TransactionInput input, Map<Sha256Hash, Transaction> history) {
+        TransactionOutput output = input.getConnectedOutput();
+        if (output != null || history.isEmpty())
+            return output;
+        TransactionOutPoint outpoint = input.getOutpoint();
+        Transaction parent = transactions.get(outpoint.hash());
+        if (parent == null)
+            parent = history.get(outpoint.hash());
+        return parent != null && outpoint.index() < parent.getOutputs().size() ? parent.getOutput(outpoint.index())
+                : null;
+    }
+
     //endregion
 
     // ***************************************************************************************************************
@@ -4100,7 +4801,7 @@ public class Wallet extends BaseTaggableObject
             commitTx(request.tx);
             return request.tx;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4455,7 +5156,7 @@ public class Wallet extends BaseTaggableObject
             req.completed = true;
             log.info("  completed: {}", req.tx);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4504,6 +5205,7 @@ public class Wallet extends BaseTaggableObject
 
             KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
 
+            PrecomputedTransactionData precomputedData = PrecomputedTransactionData.of(tx);
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
@@ -4519,7 +5221,7 @@ public class Wallet extends BaseTaggableObject
                     // we sign missing pieces (to check this would require either assuming any signatures are signing
                     // standard output types or a way to get processed signatures out of script execution)
                     txIn.getScriptSig().correctlySpends(tx, i, txIn.getWitness(), connectedOutput.getValue(),
-                            connectedOutput.getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+                            connectedOutput.getScriptPubKey(), Script.ALL_VERIFY_FLAGS, precomputedData);
                     log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                     continue;
                 } catch (ScriptException e) {
@@ -4545,7 +5247,7 @@ public class Wallet extends BaseTaggableObject
         } catch (KeyCrypterException.InvalidCipherText | KeyCrypterException.PublicPrivateMismatch e) {
             throw new BadWalletEncryptionKeyException(e);
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4593,7 +5295,7 @@ public class Wallet extends BaseTaggableObject
             }
             return candidates;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4689,7 +5391,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return coinSelector;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4702,7 +5404,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return vUTXOProvider;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4720,8 +5422,10 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.network() == network);
             this.vUTXOProvider = provider;
+            // The read view only has balances without a provider.
+            markBalancesChanged();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4831,7 +5535,7 @@ public class Wallet extends BaseTaggableObject
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
+            for (Transaction tx : memoryTransactions(true)) {
                 Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
                 if (appearsIn == null) continue;  // Pending.
                 for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
@@ -4875,13 +5579,15 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addUnspent(output));
                                 input.disconnect();
                             }
                         }
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        markPoolsChanged(Pool.UNSPENT, Pool.SPENT);
+                        journalRewriteNeeded = true;
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -4896,7 +5602,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("  ->pending {}", tx.getTxId());
 
                 getConfidence(tx).setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -4947,7 +5653,7 @@ public class Wallet extends BaseTaggableObject
             informConfidenceListenersIfNotReorganizing();
             saveLater();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -4958,7 +5664,7 @@ public class Wallet extends BaseTaggableObject
         for (Transaction tx : transactions) {
             if (getConfidence(tx).getConfidenceType() == ConfidenceType.BUILDING) {
                 getConfidence(tx).setDepthInBlocks(getConfidence(tx).getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                markConfidenceChanged(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
         }
     }
@@ -5003,7 +5709,7 @@ public class Wallet extends BaseTaggableObject
             return;
         bloomOutPoints.clear();
         keyChainGroupLock.unlock();
-        lock.unlock();
+        unlock();
     }
 
     /**
@@ -5123,9 +5829,10 @@ public class Wallet extends BaseTaggableObject
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            journalExtensionsChanged = true;
             saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -5140,10 +5847,11 @@ public class Wallet extends BaseTaggableObject
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            journalExtensionsChanged = true;
             saveNow();
             return extension;
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -5157,9 +5865,10 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             extensions.put(id, extension);
+            journalExtensionsChanged = true;
             saveNow();
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -5169,7 +5878,7 @@ public class Wallet extends BaseTaggableObject
         try {
             return Collections.unmodifiableMap(new HashMap<>(extensions));
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -5185,13 +5894,14 @@ public class Wallet extends BaseTaggableObject
             // This method exists partly to establish a lock ordering of wallet > extension.
             extension.deserializeWalletExtension(this, data);
             extensions.put(extension.getWalletExtensionID(), extension);
+            journalExtensionsChanged = true;
         } catch (Throwable throwable) {
             log.error("Error during extension deserialization", throwable);
             extensions.remove(extension.getWalletExtensionID());
             throw throwable;
         } finally {
             keyChainGroupLock.unlock();
-            lock.unlock();
+            unlock();
         }
     }
 
@@ -5399,7 +6109,7 @@ public class Wallet extends BaseTaggableObject
                 return;
             toBroadcast = pending.values().toArray(toBroadcast);
         } finally {
-            lock.unlock();
+            unlock();
         }
         // Now use it to upload any pending transactions we have that are marked as not being seen by any peers yet.
         // Don't hold the wallet lock whilst doing this, so if the broadcaster accesses the wallet at some point there
@@ -5502,7 +6212,7 @@ public class Wallet extends BaseTaggableObject
                 return CompletableFuture.completedFuture(txns);
         } finally {
             keyChainGroupLock.unlock();
-            lock.unlock();
+            unlock();
         }
         checkState(!lock.isHeldByCurrentThread());
         List<CompletableFuture<Transaction>> futures = new ArrayList<>(txns.size());
@@ -5591,6 +6301,7 @@ public class Wallet extends BaseTaggableObject
                     keyChainGroup.mergeActiveKeyChains(newChains, keyRotationTime);
                 }
             }
+            markKeysForJournal();
             saveNow();
         }
 
@@ -5648,7 +6359,7 @@ public class Wallet extends BaseTaggableObject
         } catch (VerificationException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally {
-            lock.unlock();
+            unlock();
         }
     }
     //endregion
@@ -17,13 +17,16 @@
 
 package org.bitcoinj.wallet;
 
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.Stopwatch;
 import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.protobuf.wallet.Protos;
 import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -31,6 +34,7 @@ import java.sql.Time;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -41,10 +45,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * <p>Optionally, changes are appended to a journal next to the wallet file instead, so that the cost of a save depends
+ * on the size of the change rather than the size of the wallet. See {@link WalletJournal}.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
 
+    // The wallet file is rewritten once the journal has grown larger than this fraction of it...
+    private static final int JOURNAL_REWRITE_FRACTION = 4;
+    // ...but not before the journal has reached this size.
+    private static final long JOURNAL_REWRITE_MIN_SIZE = 1024 * 1024;
+
     private final Wallet wallet;
     private final ScheduledThreadPoolExecutor executor;
     private final File file;
@@ -52,6 +64,15 @@ public class WalletFiles {
     private final Duration delay;
     private final Callable<Void> saver;
 
+    // The following fields are only used with the wallet locked.
+    @Nullable private final WalletJournal journal;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    // Header of the wallet as last written to the wallet file or journal.
+    @Nullable private Protos.Wallet journalHeader;
+    // Length and modification time of the wallet file when it was last written, to notice if anyone else rewrites it.
+    private long walletFileLength;
+    private long walletFileModified;
+
     private volatile Listener vListener;
 
     /**
@@ -76,6 +97,16 @@ public class WalletFiles {
      * depending on the urgency of the changes.
      */
     public WalletFiles(final Wallet wallet, File file, Duration delay) {
+        this(wallet, file, delay, false);
+    }
+
+    /**
+     * Initialize atomic and optionally delayed writing of the wallet file to disk, like
+     * {@link #WalletFiles(Wallet, File, Duration)}. If {@code journal} is true, the first save writes the whole wallet
+     * file and starts a journal next to it. Later saves append the changed transactions to the journal, until it has
+     * grown large enough to rewrite the wallet file.
+     */
+    public WalletFiles(final Wallet wallet, File file, Duration delay, boolean journal) {
         // An executor that starts up threads when needed and shuts them down later.
         this.executor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Wallet autosave thread", Thread.MIN_PRIORITY));
         this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
@@ -86,6 +117,7 @@ public class WalletFiles {
         this.file = Objects.requireNonNull(file);
         this.savePending = new AtomicBoolean();
         this.delay = Objects.requireNonNull(delay);
+        this.journal = journal ? new WalletJournal(WalletJournal.fileFor(file)) : null;
 
         this.saver = () -> {
             // Runs in an auto save thread.
@@ -136,6 +168,28 @@ public class WalletFiles {
         if (!directory.exists()) {
             throw new FileNotFoundException(directory.getPath() + " (wallet directory not found)");
         }
+        if (journal == null) {
+            saveWallet(directory);
+            log.info("Save completed in {}", watch);
+            return;
+        }
+        // Lock the wallet so that no change happens between saving it and starting to collect changes for the journal.
+        wallet.lock.lock();
+        try {
+            if (appendToJournal()) {
+                log.info("Journal append completed in {}, journal is {} bytes", watch, journal.size());
+                return;
+            }
+            wallet.setJournaling(false);
+            saveWallet(directory);
+            startJournal();
+            log.info("Save completed in {}, journal started", watch);
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private void saveWallet(File directory) throws IOException {
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
@@ -143,7 +197,44 @@ public class WalletFiles {
         wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
-        log.info("Save completed in {}", watch);
+    }
+
+    // Starts the journal for the wallet file that was just saved. Called with the wallet locked.
+    private void startJournal() throws IOException {
+        journal.start(Sha256Hash.of(file));
+        journalHeader = serializer.walletHeaderToProto(wallet);
+        walletFileLength = file.length();
+        walletFileModified = file.lastModified();
+        wallet.setJournaling(true);
+    }
+
+    /**
+     * Appends the changes since the last save to the journal. Returns false if the wallet file should be rewritten
+     * instead, because the journal isn't started, has grown too large or doesn't match the wallet file anymore, or
+     * because of the kind of change. Called with the wallet locked.
+     */
+    private boolean appendToJournal() throws IOException {
+        if (!journal.isStarted() || file.length() != walletFileLength || file.lastModified() != walletFileModified)
+            return false;
+        if (journal.size() > Math.max(JOURNAL_REWRITE_MIN_SIZE, walletFileLength / JOURNAL_REWRITE_FRACTION))
+            return false;
+        Set<Sha256Hash> changes = wallet.takeJournalChanges();
+        if (changes == null)
+            return false;
+        Protos.Wallet header = serializer.walletHeaderToProto(wallet);
+        Protos.JournalEntry.Builder entry = WalletJournal.headerChanges(journalHeader, header);
+        if (entry == null)
+            return false;
+        if (wallet.takeJournalKeysChanged())
+            entry.setKeys(Protos.JournalEntry.Keys.newBuilder().addAllKey(serializer.keysToProto(wallet)));
+        if (wallet.takeJournalExtensionsChanged())
+            entry.setExtensions(Protos.JournalEntry.Extensions.newBuilder().addAllExtension(
+                    serializer.extensionsToProto(wallet)));
+        if (changes.isEmpty() && entry.build().equals(Protos.JournalEntry.getDefaultInstance()))
+            return true;
+        journal.append(serializer.journalEntryToProto(wallet, changes, entry));
+        journalHeader = header;
+        return true;
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
@@ -0,0 +1,330 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.protobuf.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static org.bitcoinj.base.internal.Preconditions.checkState;
+
+/**
+ * <p>Journal of changes to a wallet, kept in a file next to the wallet file. Auto saving a wallet with a journal only
+ * appends what changed, instead of rewriting the whole wallet file, see {@link WalletFiles}.</p>
+ *
+ * <p>The journal is a sequence of length delimited {@link Protos.JournalEntry} messages. The first entry holds the
+ * hash of the wallet file the journal belongs to; a journal that doesn't belong to the wallet file is ignored. Each
+ * following entry holds the transactions that were added or changed, with their pool and confidence, and the hashes
+ * of removed transactions. The rest of the wallet is only recorded if it changed, in parts: the last seen block, which
+ * changes with every block, the keys, the extensions and everything else. The keys and extensions are recorded when
+ * the wallet marks them as changed, rather than by comparing them, which would mean serializing them on every save.
+ * Changes of depth aren't recorded, as they would touch every transaction on every block. Instead, the depth of a
+ * building transaction is increased by the number of blocks the wallet has seen since the transaction was written.</p>
+ *
+ * <p>Instances are not thread safe; {@link WalletFiles} only uses them with the wallet locked.</p>
+ */
+class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private final File file;
+    private long size = -1; // length of the entries written so far, or -1 if not started
+
+    WalletJournal(File file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    /** Returns the journal file that belongs next to the given wallet file. */
+    static File fileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /** Starts an empty journal for the wallet file with the given hash, replacing any previous journal. */
+    void start(Sha256Hash walletFileHash) throws IOException {
+        size = -1;
+        write(Protos.JournalEntry.newBuilder()
+                .setWalletFileHash(ByteString.copyFrom(walletFileHash.getBytes()))
+                .build(), 0);
+    }
+
+    /** Returns true if the journal was started and all entries since were written successfully. */
+    boolean isStarted() {
+        return size >= 0;
+    }
+
+    /** Returns the size of the journal file in bytes. */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends the given entry to the journal and syncs it to disk. If that fails, the journal has to be started again.
+     */
+    void append(Protos.JournalEntry entry) throws IOException {
+        checkState(isStarted(), () -> "journal not started");
+        try {
+            write(entry, size);
+        } catch (IOException x) {
+            size = -1; // the entry is lost, so the journal has to be started over
+            throw x;
+        }
+    }
+
+    /**
+     * Starts a journal entry with the parts of the wallet header that changed. The keys and extensions aren't part of
+     * the header, they are added to the entry when the wallet marks them as changed.
+     *
+     * @param previous header as of the previous entry, as returned by
+     *                 {@link WalletProtobufSerializer#walletHeaderToProto(Wallet)}
+     * @param current  header now
+     * @return the entry, which is empty if nothing changed, or null if the change can only be saved by rewriting the
+     * wallet file
+     */
+    @Nullable
+    static Protos.JournalEntry.Builder headerChanges(Protos.Wallet previous, Protos.Wallet current) {
+        Protos.JournalEntry.Builder entry = Protos.JournalEntry.newBuilder();
+        if (!lastSeenBlock(previous).equals(lastSeenBlock(current))) {
+            if (!current.hasLastSeenBlockHash())
+                return null; // an entry can't say the last seen block was cleared
+            entry.setLastSeenBlockHash(current.getLastSeenBlockHash());
+            entry.setLastSeenBlockHeight(current.getLastSeenBlockHeight());
+            if (current.hasLastSeenBlockTimeSecs())
+                entry.setLastSeenBlockTimeSecs(current.getLastSeenBlockTimeSecs());
+        }
+        Protos.Wallet rest = rest(current);
+        if (!rest(previous).equals(rest))
+            entry.setHeader(rest);
+        return entry;
+    }
+
+    // The last seen block fields of the header, in the form of a header.
+    private static Protos.Wallet lastSeenBlock(Protos.Wallet header) {
+        Protos.Wallet.Builder builder = Protos.Wallet.newBuilder().setNetworkIdentifier(header.getNetworkIdentifier());
+        copyLastSeenBlock(header, builder);
+        return builder.build();
+    }
+
+    private static void copyLastSeenBlock(Protos.Wallet from, Protos.Wallet.Builder to) {
+        if (from.hasLastSeenBlockHash())
+            to.setLastSeenBlockHash(from.getLastSeenBlockHash());
+        if (from.hasLastSeenBlockHeight())
+            to.setLastSeenBlockHeight(from.getLastSeenBlockHeight());
+        if (from.hasLastSeenBlockTimeSecs())
+            to.setLastSeenBlockTimeSecs(from.getLastSeenBlockTimeSecs());
+    }
+
+    // The header without the parts that are journaled separately.
+    private static Protos.Wallet rest(Protos.Wallet header) {
+        return header.toBuilder()
+                .clearLastSeenBlockHash()
+                .clearLastSeenBlockHeight()
+                .clearLastSeenBlockTimeSecs()
+                .clearKey()
+                .clearExtension()
+                .build();
+    }
+
+    // Applies the header changes of an entry, see headerChanges(), to the header.
+    private static Protos.Wallet applyHeaderChanges(Protos.Wallet header, Protos.JournalEntry entry) {
+        Protos.Wallet.Builder builder;
+        if (entry.hasHeader()) {
+            builder = entry.getHeader().toBuilder()
+                    .addAllKey(header.getKeyList())
+                    .addAllExtension(header.getExtensionList());
+            copyLastSeenBlock(header, builder);
+        } else {
+            builder = header.toBuilder();
+        }
+        if (entry.hasLastSeenBlockHash()) {
+            builder.setLastSeenBlockHash(entry.getLastSeenBlockHash());
+            builder.setLastSeenBlockHeight(entry.getLastSeenBlockHeight());
+            if (entry.hasLastSeenBlockTimeSecs())
+                builder.setLastSeenBlockTimeSecs(entry.getLastSeenBlockTimeSecs());
+            else
+                builder.clearLastSeenBlockTimeSecs();
+        }
+        if (entry.hasKeys())
+            builder.clearKey().addAllKey(entry.getKeys().getKeyList());
+        if (entry.hasExtensions())
+            builder.clearExtension().addAllExtension(entry.getExtensions().getExtensionList());
+        return builder.build();
+    }
+
+    // Writes the entry at the given position, cutting off anything after it such as a partially written entry.
+    private void write(Protos.JournalEntry entry, long position) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        entry.writeDelimitedTo(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+            long end = position;
+            while (buffer.hasRemaining())
+                end += channel.write(buffer, end);
+            channel.force(false);
+            size = end;
+        }
+    }
+
+    /**
+     * Reads the entries of the given journal. A partially written entry ends the journal. The wallet file is read
+     * separately, so that its transactions can be streamed, and the entries are then applied to it with
+     * {@link Changes#applyToHeader(Protos.Wallet)}, {@link Changes#applyToTransaction(Protos.Transaction)} and
+     * {@link Changes#transactions()}.
+     *
+     * @param journalFile journal to read
+     * @return the changes recorded in the journal, or null if the journal is empty
+     * @throws IOException if the journal can't be read
+     */
+    @Nullable
+    static Changes read(File journalFile) throws IOException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(journalFile))) {
+            Protos.JournalEntry first = readEntry(stream);
+            if (first == null)
+                return null;
+            Changes changes = new Changes(first.getWalletFileHash());
+            Protos.JournalEntry entry;
+            while ((entry = readEntry(stream)) != null)
+                changes.add(entry);
+            return changes;
+        }
+    }
+
+    /** The changes recorded in a journal, see {@link #read(File)}. */
+    static class Changes {
+        private final ByteString walletFileHash;
+        // The entries without their transactions, to apply to the header.
+        private final List<Protos.JournalEntry> headerChanges = new ArrayList<>();
+        // Latest version of each transaction written to the journal and not removed since.
+        private final Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        // Height of the last seen block when each transaction was written, if the journal had changed it by then.
+        private final Map<ByteString, Integer> writtenAtHeight = new HashMap<>();
+        // Hashes of all transactions written or removed, whose version in the wallet file is outdated.
+        private final Set<ByteString> outdated = new HashSet<>();
+        @Nullable private Integer lastSeenBlockHeight;
+        // Heights of the last seen block of the wallet file and after all entries, set by applyToHeader().
+        private int snapshotHeight = -1;
+        private int height = -1;
+
+        private Changes(ByteString walletFileHash) {
+            this.walletFileHash = walletFileHash;
+        }
+
+        private void add(Protos.JournalEntry entry) {
+            if (entry.hasLastSeenBlockHash())
+                lastSeenBlockHeight = entry.getLastSeenBlockHeight();
+            for (Protos.Transaction tx : entry.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                if (lastSeenBlockHeight != null)
+                    writtenAtHeight.put(tx.getHash(), lastSeenBlockHeight);
+                outdated.add(tx.getHash());
+            }
+            for (ByteString hash : entry.getRemovedTransactionHashList()) {
+                transactions.remove(hash);
+                writtenAtHeight.remove(hash);
+                outdated.add(hash);
+            }
+            headerChanges.add(entry.toBuilder().clearTransaction().clearRemovedTransactionHash().build());
+        }
+
+        /** Returns true if the journal belongs to the wallet file with the given hash. */
+        boolean belongsTo(byte[] walletFileHash) {
+            return this.walletFileHash.equals(ByteString.copyFrom(walletFileHash));
+        }
+
+        /** Returns the number of entries, not counting the first one that holds the wallet file hash. */
+        int size() {
+            return headerChanges.size();
+        }
+
+        /** Applies the entries to the header of the wallet file, that is the wallet file without its transactions. */
+        Protos.Wallet applyToHeader(Protos.Wallet header) {
+            snapshotHeight = header.getLastSeenBlockHeight();
+            for (Protos.JournalEntry entry : headerChanges)
+                header = applyHeaderChanges(header, entry);
+            height = header.getLastSeenBlockHeight();
+            return header;
+        }
+
+        /**
+         * Applies the entries to a transaction of the wallet file. Returns null if the journal removed the transaction
+         * or holds a later version of it, otherwise the transaction with its depth increased by the blocks seen since
+         * the wallet file was written. Only valid after {@link #applyToHeader(Protos.Wallet)}.
+         */
+        @Nullable
+        Protos.Transaction applyToTransaction(Protos.Transaction tx) {
+            if (outdated.contains(tx.getHash()))
+                return null;
+            return addDepth(tx, height - snapshotHeight);
+        }
+
+        /**
+         * Returns the transactions written to the journal, in their latest version and with their depth increased by
+         * the blocks seen since. Only valid after {@link #applyToHeader(Protos.Wallet)}.
+         */
+        List<Protos.Transaction> transactions() {
+            List<Protos.Transaction> result = new ArrayList<>(transactions.size());
+            for (Protos.Transaction tx : transactions.values()) {
+                int writtenAt = writtenAtHeight.getOrDefault(tx.getHash(), snapshotHeight);
+                result.add(addDepth(tx, height - writtenAt));
+            }
+            return result;
+        }
+    }
+
+    private static Protos.Transaction addDepth(Protos.Transaction tx, int blocks) {
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        if (blocks == 0 || confidence.getType() != Protos.TransactionConfidence.Type.BUILDING ||
+                !confidence.hasDepth())
+            return tx;
+        return tx.toBuilder()
+                .setConfidence(confidence.toBuilder().setDepth(confidence.getDepth() + blocks))
+                .build();
+    }
+
+    // Returns null at the end of the journal, which includes a partially written entry.
+    @Nullable
+    private static Protos.JournalEntry readEntry(InputStream stream) throws IOException {
+        try {
+            return Protos.JournalEntry.parseDelimitedFrom(stream);
+        } catch (InvalidProtocolBufferException x) {
+            log.warn("Ignoring partially written journal entry: {}", x.getMessage());
+            return null;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.bitcoinj.core.LockTime;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.Stopwatch;
 import org.bitcoinj.core.Services;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence;
@@ -41,6 +42,7 @@ import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.params.BitcoinNetworkParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.base.utils.Fiat;
 import org.bitcoinj.protobuf.wallet.Protos;
@@ -49,23 +51,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.UnaryOperator;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+import static org.bitcoinj.base.internal.Preconditions.checkState;
 
 /**
  * Serialize and de-serialize a wallet to a byte stream containing a
@@ -99,6 +117,7 @@ public class WalletProtobufSerializer {
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
 
     @FunctionalInterface
     public interface WalletFactory {
@@ -151,6 +170,16 @@ public class WalletProtobufSerializer {
         this.walletWriteBufferSize = walletWriteBufferSize;
     }
 
+    /**
+     * Change the number of threads used to decode transactions while reading a wallet. Default is the number of
+     * available processors. With a single thread, transactions are decoded on the calling thread.
+     * @param loadThreads - number of threads, at least 1
+     */
+    public void setLoadThreads(int loadThreads) {
+        checkArgument(loadThreads > 0, () -> "loadThreads must be positive: " + loadThreads);
+        this.loadThreads = loadThreads;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -179,18 +208,96 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = walletHeaderToProtoBuilder(wallet, true);
+        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+            Protos.Transaction txProto = makeTxProto(wtx);
+            walletBuilder.addTransaction(txProto);
+        }
+        return walletBuilder.build();
+    }
+
+    /**
+     * Converts everything but the transactions, keys and extensions of the given wallet to the object representation
+     * of the protocol buffers, as used for the header of a {@link Protos.JournalEntry}. The wallet marks the keys and
+     * extensions as changed itself, see {@link #keysToProto(Wallet)} and {@link #extensionsToProto(Wallet)}.
+     */
+    Protos.Wallet walletHeaderToProto(Wallet wallet) {
+        return walletHeaderToProtoBuilder(wallet, false).build();
+    }
+
+    /** Converts the keys of the given wallet to the object representation of the protocol buffers. */
+    List<Protos.Key> keysToProto(Wallet wallet) {
+        return wallet.serializeKeyChainGroupToProtobufInternal();
+    }
+
+    /** Converts the extensions of the given wallet to the object representation of the protocol buffers. */
+    List<Protos.Extension> extensionsToProto(Wallet wallet) {
+        List<Protos.Extension> extensions = new ArrayList<>();
+        for (WalletExtension extension : wallet.getExtensions().values()) {
+            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+            proto.setId(extension.getWalletExtensionID());
+            proto.setMandatory(extension.isWalletExtensionMandatory());
+            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+            extensions.add(proto.build());
+        }
+        return extensions;
+    }
+
+    /**
+     * Adds the given transactions of the wallet to a journal entry. Transactions that are no longer in the wallet
+     * are recorded as removed. The wallet must be locked.
+     *
+     * @param wallet       wallet the transactions belong to
+     * @param changed      hashes of the transactions that were added, changed or removed
+     * @param entryBuilder entry with the changes of the header, see {@link WalletJournal#headerChanges}
+     */
+    Protos.JournalEntry journalEntryToProto(Wallet wallet, Collection<Sha256Hash> changed,
+                                            Protos.JournalEntry.Builder entryBuilder) {
+        for (Sha256Hash hash : changed) {
+            WalletTransaction wtx = findWalletTransaction(wallet, hash);
+            if (wtx != null)
+                entryBuilder.addTransaction(makeTxProto(wtx));
+            else
+                entryBuilder.addRemovedTransactionHash(hashToByteString(hash));
+        }
+        return entryBuilder.build();
+    }
+
+    /** Converts the given transaction to the object representation of the protocol buffers, with its pool. */
+    static Protos.Transaction transactionToProto(WalletTransaction wtx) {
+        return makeTxProto(wtx);
+    }
+
+    /**
+     * Reads a transaction converted by {@link #transactionToProto(WalletTransaction)}, with its confidence but without
+     * connecting it to any other transaction.
+     */
+    Transaction transactionFromProto(Protos.Transaction txProto) throws UnreadableWalletException {
+        Transaction tx = decodeTransaction(txProto);
+        if (txProto.hasConfidence())
+            readConfidence(tx, txProto.getConfidence(), tx.getConfidence());
+        return tx;
+    }
+
+    @Nullable
+    private static WalletTransaction findWalletTransaction(Wallet wallet, Sha256Hash hash) {
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()) {
+            Transaction tx = wallet.getTransactionPool(pool).get(hash);
+            if (tx != null)
+                return new WalletTransaction(pool, tx);
+        }
+        return null;
+    }
+
+    private Protos.Wallet.Builder walletHeaderToProtoBuilder(Wallet wallet, boolean keysAndExtensions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.network().id());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
-        }
-
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobufInternal());
+        if (keysAndExtensions)
+            walletBuilder.addAllKey(keysToProto(wallet));
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -234,7 +341,8 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        if (keysAndExtensions)
+            walletBuilder.addAllExtension(extensionsToProto(wallet));
 
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
@@ -244,17 +352,7 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
-    }
-
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
+        return walletBuilder;
     }
 
     private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
@@ -444,17 +542,65 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
-        try {
-            Protos.Wallet walletProto = parseToProto(input);
+        LoadTimings timings = new LoadTimings();
+        try (TransactionDecoder decoder = new TransactionDecoder(forceReset)) {
+            Protos.Wallet walletProto = readStreaming(input, decoder);
+            timings.phaseDone("read");
             final String paramsID = walletProto.getNetworkIdentifier();
             Network network = BitcoinNetwork.fromIdString(paramsID).orElseThrow(() ->
                     new UnreadableWalletException("Unknown network parameters ID " + paramsID));
-            return readWallet(network, extensions, walletProto, forceReset);
+            return readWallet(network, extensions, walletProto, decoder, forceReset, timings);
         } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * <p>Loads a wallet from the given file, like {@link #readWallet(InputStream, boolean, WalletExtension[])}. If
+     * the wallet was auto saved with a journal, the changes recorded in the journal are applied as well.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(File file, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        File journalFile = WalletJournal.fileFor(file);
+        if (!journalFile.exists()) {
+            try (FileInputStream stream = new FileInputStream(file)) {
+                return readWallet(stream, forceReset, extensions);
+            } catch (IOException e) {
+                throw new UnreadableWalletException("Could not open file", e);
+            }
+        }
+        LoadTimings timings = new LoadTimings();
+        try (TransactionDecoder decoder = new TransactionDecoder(forceReset)) {
+            WalletJournal.Changes changes = WalletJournal.read(journalFile);
+            // The wallet file is streamed as without a journal, the journal only amends what was read from it.
+            MessageDigest digest = Sha256Hash.newDigest();
+            Protos.Wallet walletProto;
+            try (InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)),
+                    digest)) {
+                walletProto = readStreaming(stream, decoder);
+                byte[] rest = new byte[4096];
+                while (stream.read(rest) != -1) ; // include anything the parser didn't need in the hash
+            }
+            if (changes != null && changes.belongsTo(digest.digest())) {
+                walletProto = changes.applyToHeader(walletProto);
+                decoder.amend(changes::applyToTransaction);
+                for (Protos.Transaction txProto : changes.transactions())
+                    decoder.submit(txProto);
+                log.info("Applied {} journal entries to wallet file {}", changes.size(), file);
+            } else {
+                log.info("Ignoring journal {}, it doesn't belong to wallet file {}", journalFile, file);
+            }
+            timings.phaseDone("read");
+            final String paramsID = walletProto.getNetworkIdentifier();
+            Network network = BitcoinNetwork.fromIdString(paramsID).orElseThrow(() ->
+                    new UnreadableWalletException("Unknown network parameters ID " + paramsID));
+            return readWallet(network, extensions, walletProto, decoder, forceReset, timings);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not read wallet file and journal", e);
+        }
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -489,12 +635,25 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(Network network, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        LoadTimings timings = new LoadTimings();
+        try (TransactionDecoder decoder = new TransactionDecoder(forceReset)) {
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                decoder.submit(txProto);
+            return readWallet(network, extensions, walletProto, decoder, forceReset, timings);
+        }
+    }
+
+    // Transactions are taken from the decoder rather than from walletProto, which may have been read without them.
+    private Wallet readWallet(Network network, @Nullable WalletExtension[] extensions, Protos.Wallet walletProto,
+                              TransactionDecoder decoder, boolean forceReset, LoadTimings timings)
+            throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(network.id()))
             throw new UnreadableWalletException.WrongNetwork();
 
-        // Read the scrypt parameters that specify how encryption and decryption is performed.
+        // Read the scrypt parameters that specify how encryption and decryption is performed. The transactions are
+        // still being decoded by the loader threads meanwhile.
         KeyChainGroup keyChainGroup;
         if (walletProto.hasEncryptionParameters()) {
             Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
@@ -504,6 +663,7 @@ public class WalletProtobufSerializer {
             keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(network, walletProto.getKeyList(), keyChainFactory);
         }
         Wallet wallet = factory.create(network, keyChainGroup);
+        timings.phaseDone("keys");
 
         List<Script> scripts = new ArrayList<>();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -533,16 +693,22 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.clearLastBlockSeenTime();
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto);
+            // Collect the decoded transactions and insert them into the txMap.
+            List<DecodedTransaction> transactions = decoder.results();
+            for (DecodedTransaction decoded : transactions) {
+                ByteString hash = decoded.proto.getHash();
+                if (txMap.containsKey(hash))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+                txMap.put(hash, decoded.tx);
             }
+            timings.phaseDone("transactions");
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(txProto);
-                wallet.addWalletTransaction(wtx);
-            }
+            List<WalletTransaction> wtxns = new ArrayList<>(transactions.size());
+            for (DecodedTransaction decoded : transactions)
+                wtxns.add(connectTransactionOutputs(decoded.proto));
+            wallet.addWalletTransactions(wtxns);
+            timings.phaseDone("connect");
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -564,6 +730,7 @@ public class WalletProtobufSerializer {
         }
 
         loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+        timings.phaseDone("extensions");
 
         for (Protos.Tag tag : walletProto.getTagsList()) {
             wallet.setTag(tag.getTag(), tag.getData());
@@ -573,9 +740,10 @@ public class WalletProtobufSerializer {
             wallet.setVersion(walletProto.getVersion());
         }
 
+        log.info("Loaded wallet with {} transactions in {}", txMap.size(), timings);
+
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
-
         return wallet;
     }
 
@@ -628,7 +796,64 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto) throws UnreadableWalletException {
+    /**
+     * Reads the wallet from the given byte stream field by field. Transactions are handed to the decoder as soon as
+     * they are read, so they never have to be held as one message. Everything else is returned as the wallet, which
+     * therefore doesn't contain any transactions.
+     */
+    private static Protos.Wallet readStreaming(InputStream input, TransactionDecoder decoder) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        ByteString.Output header = ByteString.newOutput();
+        CodedOutputStream headerOutput = CodedOutputStream.newInstance(header);
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0)
+                break;
+            if (WireFormat.getTagFieldNumber(tag) == Protos.Wallet.TRANSACTION_FIELD_NUMBER
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+                decoder.submit(codedInput.readBytes());
+            else if (!copyField(tag, codedInput, headerOutput))
+                break;
+        }
+        headerOutput.flush();
+        return Protos.Wallet.parseFrom(header.toByteString());
+    }
+
+    // Copies the field with the given tag from the input to the output. Returns false if the tag ends a group.
+    private static boolean copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        int wireType = WireFormat.getTagWireType(tag);
+        if (wireType == WireFormat.WIRETYPE_END_GROUP)
+            return false;
+        output.writeUInt32NoTag(tag);
+        switch (wireType) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64NoTag(input.readRawVarint64());
+                return true;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64NoTag(input.readRawLittleEndian64());
+                return true;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytesNoTag(input.readBytes());
+                return true;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32NoTag(input.readRawLittleEndian32());
+                return true;
+            case WireFormat.WIRETYPE_START_GROUP:
+                int endTag = (WireFormat.getTagFieldNumber(tag) << 3) | WireFormat.WIRETYPE_END_GROUP;
+                int groupTag;
+                while ((groupTag = input.readTag()) != 0 && copyField(groupTag, input, output)) ;
+                if (groupTag != endTag)
+                    throw new IOException("Unterminated group in wallet: " + WireFormat.getTagFieldNumber(tag));
+                output.writeUInt32NoTag(endTag);
+                return true;
+            default:
+                throw new IOException("Invalid wire type in wallet: " + wireType);
+        }
+    }
+
+    // Builds the transaction from its protobuf. This doesn't touch any state, so it can be called on any thread.
+    private static Transaction decodeTransaction(Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = new Transaction();
 
         tx.setVersion(txProto.getVersion());
@@ -711,9 +936,131 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getTxId().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getTxId(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
+    }
+
+    private static class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    /**
+     * Decodes transactions on the loader threads while the rest of the wallet is being read, see
+     * {@link #setLoadThreads(int)}. The results are kept in the order the transactions were submitted.
+     */
+    private class TransactionDecoder implements AutoCloseable {
+        private final boolean skip;
+        @Nullable
+        private final ExecutorService executor;
+        private final List<Future<DecodedTransaction>> results = new ArrayList<>();
+        // Amendment of the first transactions submitted, see amend().
+        @Nullable
+        private UnaryOperator<Protos.Transaction> amendment;
+        private int amended;
+
+        // If skip is true, transactions aren't decoded at all.
+        TransactionDecoder(boolean skip) {
+            this.skip = skip;
+            this.executor = !skip && loadThreads > 1 ?
+                    Executors.newFixedThreadPool(loadThreads, new ContextPropagatingThreadFactory("wallet loader")) :
+                    null;
+        }
+
+        void submit(ByteString txBytes) {
+            submit(() -> Protos.Transaction.parseFrom(txBytes));
+        }
+
+        void submit(Protos.Transaction txProto) {
+            submit(() -> txProto);
+        }
+
+        private void submit(Callable<Protos.Transaction> txProto) {
+            if (skip)
+                return;
+            FutureTask<DecodedTransaction> task = new FutureTask<>(() -> {
+                Protos.Transaction proto = txProto.call();
+                return new DecodedTransaction(proto, decodeTransaction(proto));
+            });
+            results.add(task);
+            if (executor != null)
+                executor.execute(task);
+            else
+                task.run();
+        }
+
+        /**
+         * Amends the transactions submitted so far, once they are decoded. The amendment returns the transaction with
+         * its confidence changed, or null to drop it. It must not change anything else, as the transaction is decoded
+         * already.
+         */
+        void amend(UnaryOperator<Protos.Transaction> amendment) {
+            checkState(this.amendment == null, () -> "transactions already amended");
+            this.amendment = amendment;
+            this.amended = results.size();
+        }
+
+        /** Waits for all submitted transactions to be decoded and returns them, amended and in order. */
+        List<DecodedTransaction> results() throws UnreadableWalletException {
+            List<DecodedTransaction> decoded = new ArrayList<>(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                DecodedTransaction result = get(results.get(i));
+                if (i < amended) {
+                    Protos.Transaction proto = amendment.apply(result.proto);
+                    if (proto == null)
+                        continue;
+                    if (proto != result.proto)
+                        result = new DecodedTransaction(proto, result.tx);
+                }
+                decoded.add(result);
+            }
+            return decoded;
+        }
+
+        private DecodedTransaction get(Future<DecodedTransaction> result) throws UnreadableWalletException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnreadableWalletException("Interrupted while decoding transactions", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UnreadableWalletException)
+                    throw (UnreadableWalletException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new UnreadableWalletException("Could not parse transaction", cause);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    // Records how long each phase of loading a wallet took, for logging.
+    private static class LoadTimings {
+        private final Stopwatch total = Stopwatch.start();
+        private final StringJoiner phases = new StringJoiner(", ");
+        private Stopwatch phase = Stopwatch.start();
+
+        void phaseDone(String name) {
+            phases.add(name + " " + phase.stop());
+            phase = Stopwatch.start();
+        }
+
+        @Override
+        public String toString() {
+            return total.stop() + " (" + phases + ")";
+        }
     }
 
     private WalletTransaction connectTransactionOutputs(final Protos.Transaction txProto) throws UnreadableWalletException {
@@ -34,6 +34,7 @@ import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -84,6 +85,12 @@ public abstract class AbstractFullPrunedBlockChainTest {
         Context.propagate(new Context(100, Coin.ZERO, false, false));
     }
 
+    @After
+    public void tearDown() {
+        if (chain != null)
+            chain.close();
+    }
+
     public abstract FullPrunedBlockStore createStore(NetworkParameters params, int blockCount)
         throws BlockStoreException;
 
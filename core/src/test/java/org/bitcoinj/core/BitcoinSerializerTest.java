@@ -18,8 +18,10 @@
 package org.bitcoinj.core;
 
 import com.google.common.io.BaseEncoding;
+import org.bitcoinj.base.internal.Buffers;
 import org.bitcoinj.base.internal.ByteUtils;
 import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.junit.Test;
@@ -209,6 +211,35 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void serializeToPooledBuffers() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBufferPool pool = new ByteBufferPool(1024, 4096);
+        Transaction transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        ByteBuffer[] buffers = serializer.serialize(transaction, pool);
+        assertEquals(2, buffers.length);
+        assertEquals(24, buffers[0].remaining());
+        ByteBuffer joined = ByteBuffer.allocate(TRANSACTION_MESSAGE_BYTES.length);
+        for (ByteBuffer buf : buffers)
+            joined.put(buf);
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, joined.array());
+
+        // reused buffers must not leak their old content
+        ByteBuffer[] dirty = { pool.acquire(64), pool.acquire(64) };
+        for (ByteBuffer buf : dirty) {
+            byte[] garbage = new byte[64];
+            Arrays.fill(garbage, (byte) 0xff);
+            buf.put(garbage);
+        }
+        pool.release(dirty);
+        buffers = serializer.serialize(new VersionAck(), pool);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new VersionAck(), bos);
+        ByteBuffer header = buffers[0];
+        assertArrayEquals(bos.toByteArray(), Buffers.readBytes(header, header.remaining()));
+        assertFalse(buffers[1].hasRemaining());
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
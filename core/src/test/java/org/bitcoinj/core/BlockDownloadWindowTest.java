@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockDownloadWindowTest {
+    private static final Duration RTT = Duration.ofMillis(100);
+    private static final int BLOCK_SIZE = 1_000_000;
+
+    // Delivers blocks of BLOCK_SIZE back to back at the given rate, each with the given latency.
+    private static Instant deliver(BlockDownloadWindow window, Instant now, int count, Duration interval,
+                                   Duration latency) {
+        for (int i = 0; i < count; i++) {
+            now = now.plus(interval);
+            window.onDelivered(BLOCK_SIZE, latency, now);
+        }
+        return now;
+    }
+
+    @Test
+    public void growsOnFastLink() {
+        BlockDownloadWindow window = new BlockDownloadWindow(4, BlockDownloadWindow.DEFAULT_TARGET_QUEUE_DELAY);
+        window.setRoundTripTime(RTT);
+        // 100 MB/s, no queueing
+        deliver(window, Instant.EPOCH, 50, Duration.ofMillis(10), RTT);
+        assertTrue(window.getSize() > 4);
+        assertEquals(100_000_000, window.getThroughput(), 1_000_000);
+    }
+
+    @Test
+    public void neverExceedsMaximum() {
+        BlockDownloadWindow window = new BlockDownloadWindow(4, Duration.ofSeconds(60));
+        window.setRoundTripTime(RTT);
+        deliver(window, Instant.EPOCH, 1000, Duration.ofMillis(1), RTT);
+        assertEquals(BlockDownloadWindow.MAX_SIZE, window.getSize());
+    }
+
+    @Test
+    public void shrinksOnSlowLink() {
+        BlockDownloadWindow window = new BlockDownloadWindow(32, BlockDownloadWindow.DEFAULT_TARGET_QUEUE_DELAY);
+        window.setRoundTripTime(RTT);
+        // 100 kB/s, requests wait in a long queue
+        deliver(window, Instant.EPOCH, 20, Duration.ofSeconds(10), Duration.ofSeconds(30));
+        assertEquals(BlockDownloadWindow.MIN_SIZE, window.getSize());
+    }
+
+    @Test
+    public void stallHalvesWindow() {
+        BlockDownloadWindow window = new BlockDownloadWindow(32, BlockDownloadWindow.DEFAULT_TARGET_QUEUE_DELAY);
+        window.onStall();
+        assertEquals(16, window.getSize());
+        window.onStall();
+        assertEquals(8, window.getSize());
+        // Past the slow start threshold, the window grows by one per full window
+        window.setRoundTripTime(RTT);
+        deliver(window, Instant.EPOCH, 9, Duration.ofMillis(1), RTT);
+        assertEquals(9, window.getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialSizeOutOfRange() {
+        new BlockDownloadWindow(0, BlockDownloadWindow.DEFAULT_TARGET_QUEUE_DELAY);
+    }
+}
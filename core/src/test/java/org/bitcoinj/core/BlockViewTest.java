@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Difficulty;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlockViewTest {
+    private byte[] readBlock(String resource) throws IOException {
+        return ByteStreams.toByteArray(getClass().getResourceAsStream(resource));
+    }
+
+    @Test
+    public void witnessBlock() throws Exception {
+        byte[] bytes = readBlock("block481829.dat");
+        Block block = Block.read(ByteBuffer.wrap(bytes));
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        BlockView view = BlockView.read(payload);
+        assertFalse(payload.hasRemaining());
+
+        assertEquals(block.getHash(), view.getHash());
+        assertEquals(2020, view.getTransactionCount());
+        assertEquals(block.getMerkleRoot(), view.calculateMerkleRoot());
+        view.verifyMerkleRoot();
+        for (int i = 0; i < view.getTransactionCount(); i++) {
+            Transaction tx = block.getTransactions().get(i);
+            assertEquals(tx.getTxId(), view.getTxId(i));
+            assertEquals(tx.getWTxId(), view.getWTxId(i));
+            assertEquals(tx.messageSize(), view.getTransactionSize(i));
+        }
+        assertEquals("9c1ab453283035800c43eb6461eb46682b81be110a0cb89ee923882a5fd9daa4", view.getTxId(0).toString());
+        assertEquals("2bbda73aa4e561e7f849703994cc5e563e4bcf103fb0f6fef5ae44c95c7b83a6", view.getWTxId(0).toString());
+
+        Transaction tx = view.getTransaction(5);
+        assertEquals(block.getTransactions().get(5), tx);
+        assertSame(tx, view.getTransaction(5));
+
+        Block materialized = view.toBlock();
+        assertEquals(block.getHash(), materialized.getHash());
+        assertArrayEquals(bytes, materialized.serialize());
+    }
+
+    @Test
+    public void makeBlock() throws Exception {
+        byte[] bytes = readBlock("block481829.dat");
+        Block expected = Block.read(ByteBuffer.wrap(bytes));
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        Block block = new BitcoinSerializer(BitcoinNetwork.MAINNET).makeBlock(payload);
+        assertFalse(payload.hasRemaining());
+        assertEquals(expected.getHash(), block.getHash());
+        assertEquals(expected.getTransactions(), block.getTransactions());
+        for (int i = 0; i < block.getTransactions().size(); i++)
+            assertEquals(expected.getTransactions().get(i).getTxId(), block.getTransactions().get(i).getTxId());
+        assertArrayEquals(bytes, block.serialize());
+    }
+
+    @Test
+    public void legacyBlock() throws Exception {
+        byte[] bytes = readBlock("block481815.dat");
+        Block block = Block.read(ByteBuffer.wrap(bytes));
+        BlockView view = BlockView.read(ByteBuffer.wrap(bytes));
+        assertEquals(2097, view.getTransactionCount());
+        view.verifyMerkleRoot();
+        for (int i = 0; i < view.getTransactionCount(); i++)
+            assertEquals(view.getTxId(i), view.getWTxId(i));
+        assertEquals(block.getTransactions().get(2096).getTxId(), view.getTxId(2096));
+    }
+
+    @Test
+    public void directBuffer() throws Exception {
+        byte[] bytes = readBlock("block481829.dat");
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        ((Buffer) direct).flip();
+        BlockView view = BlockView.read(direct);
+        view.verifyMerkleRoot();
+        assertArrayEquals(bytes, view.toBlock().serialize());
+    }
+
+    @Test
+    public void headerOnly() {
+        Block header = new Block(1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, Instant.EPOCH,
+                Difficulty.EASIEST_DIFFICULTY_TARGET, 0, null);
+        BlockView view = BlockView.read(ByteBuffer.wrap(header.serialize()));
+        assertEquals(header.getHash(), view.getHash());
+        assertFalse(view.hasTransactions());
+        assertEquals(0, view.getTransactionCount());
+        assertFalse(view.toBlock().hasTransactions());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void wrongMerkleRoot() throws Exception {
+        byte[] bytes = readBlock("block481815.dat");
+        bytes[36] ^= 1; // first byte of the merkle root
+        BlockView view = BlockView.read(ByteBuffer.wrap(bytes));
+        assertTrue(view.hasTransactions());
+        view.verifyMerkleRoot();
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void hugeDeclaredTransactionsSize() {
+        Block header = new Block(1, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, Instant.EPOCH,
+                Difficulty.EASIEST_DIFFICULTY_TARGET, 0, null);
+        VarInt huge = VarInt.of(Integer.MAX_VALUE);
+        ByteBuffer buf = ByteBuffer.allocate(Block.HEADER_SIZE + huge.getSizeInBytes());
+        buf.put(header.serialize());
+        huge.write(buf);
+        ((Buffer) buf).rewind();
+        BlockView.read(buf);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncated() throws Exception {
+        byte[] bytes = readBlock("block481829.dat");
+        ByteBuffer buf = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        BlockView.read(buf);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.utils.ExponentialBackoff;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerAddressManagerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private static PeerAddress address(int a, int b, int c, int d) throws UnknownHostException {
+        return PeerAddress.inet(InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d }), 8333,
+                Services.of(Services.NODE_NETWORK), TimeUtils.currentTime());
+    }
+
+    @Test
+    public void triedAddressesComeFirst() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager();
+        PeerAddress source = address(1, 1, 1, 1);
+        PeerAddress a = address(10, 0, 0, 1);
+        PeerAddress b = address(10, 1, 0, 1);
+        assertTrue(manager.add(a, source));
+        assertTrue(manager.add(b, source));
+        assertEquals(2, manager.size());
+        assertEquals(0, manager.getTriedCount());
+
+        manager.markGood(b);
+        assertEquals(1, manager.getTriedCount());
+        assertNotNull(manager.getLastSuccess(b));
+        assertNull(manager.getLastSuccess(a));
+        List<PeerAddress> addresses = manager.getAddresses(10);
+        assertEquals(2, addresses.size());
+        assertEquals(b, addresses.get(0));
+        assertEquals(1, manager.getAddresses(1).size());
+    }
+
+    @Test
+    public void failingAddressesAreLeftOut() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager();
+        PeerAddress a = address(10, 0, 0, 1);
+        manager.add(a, null);
+        for (int i = 0; i < 3; i++)
+            manager.markFailed(a);
+        assertTrue(manager.getAddresses(10).isEmpty());
+        assertTrue(manager.getBackoff(a).retryTime().isAfter(TimeUtils.currentTime()));
+    }
+
+    @Test
+    public void oneSourceCannotFillTable() throws Exception {
+        PeerAddressManager manager = new PeerAddressManager();
+        PeerAddress source = address(1, 1, 1, 1);
+        for (int i = 0; i < 10_000; i++)
+            manager.add(address(10 + i / 65536, (i / 256) % 256, i % 256, 1), source);
+        assertTrue(manager.size() <= 64 * PeerAddressManager.BUCKET_SIZE);
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(tmpFolder.getRoot(), "peers.dat");
+        PeerAddressManager manager = new PeerAddressManager(file);
+        PeerAddress a = address(10, 0, 0, 1);
+        PeerAddress b = address(10, 1, 0, 1);
+        manager.add(a, null);
+        manager.add(b, a);
+        manager.markGood(a);
+        manager.markFailed(b);
+        ExponentialBackoff backoff = manager.getBackoff(b);
+        manager.save();
+
+        PeerAddressManager loaded = new PeerAddressManager(file);
+        assertEquals(2, loaded.size());
+        assertEquals(1, loaded.getTriedCount());
+        assertEquals(manager.getAddresses(10), loaded.getAddresses(10));
+        assertEquals(manager.getLastSuccess(a).toEpochMilli(), loaded.getLastSuccess(a).toEpochMilli());
+        assertEquals(backoff.retryTime().toEpochMilli(), loaded.getBackoff(b).retryTime().toEpochMilli());
+        assertEquals(backoff.backoff(), loaded.getBackoff(b).backoff());
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws Exception {
+        File file = new File(tmpFolder.getRoot(), "peers.dat");
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+        PeerAddressManager manager = new PeerAddressManager(file);
+        assertEquals(0, manager.size());
+        manager.add(address(10, 0, 0, 1), null);
+        manager.save();
+        assertEquals(1, new PeerAddressManager(file).size());
+    }
+}
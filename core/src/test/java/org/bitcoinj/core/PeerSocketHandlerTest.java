@@ -0,0 +1,252 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Before
+    public void setUp() {
+        // The worker threads of the decoder take over the context of the thread that starts them
+        Context.propagate(new Context());
+    }
+
+    private static class RecordingHandler extends PeerSocketHandler {
+        final List<Message> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done;
+
+        RecordingHandler(int expected) {
+            super(MAINNET, new InetSocketAddress(InetAddress.getLoopbackAddress(), 8333));
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            received.add(m);
+            done.countDown();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+
+    // Feeds the stream to the handler in chunks, compacting the read buffer like the network code does.
+    private List<Message> feed(byte[] stream, int bufferSize, int chunkSize) {
+        return feed(stream, bufferSize, chunkSize, null, 0);
+    }
+
+    private List<Message> feed(byte[] stream, int bufferSize, int chunkSize, MessageDecoder decoder,
+                               int expected) {
+        RecordingHandler handler = new RecordingHandler(expected);
+        handler.setMessageDecoder(decoder);
+        feed(handler, stream, bufferSize, chunkSize);
+        try {
+            assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return handler.received;
+    }
+
+    private static void feed(PeerSocketHandler handler, byte[] stream, int bufferSize, int chunkSize) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+        int offset = 0;
+        while (offset < stream.length) {
+            int length = Math.min(Math.min(chunkSize, buf.remaining()), stream.length - offset);
+            buf.put(stream, offset, length);
+            offset += length;
+            ((Buffer) buf).flip();
+            int consumed = handler.receiveBytes(buf);
+            assertTrue(consumed >= 0);
+            assertEquals(buf.position(), consumed);
+            buf.compact();
+        }
+        assertEquals(0, buf.position());
+    }
+
+    private static byte[] serialize(Message... messages) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message message : messages)
+            MAINNET.getDefaultSerializer().serialize(message, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void smallMessages() throws Exception {
+        Ping ping = Ping.of(1);
+        byte[] stream = serialize(ping, new VersionAck(), Pong.of(2), ping);
+        for (int chunkSize : new int[] { 1, 7, 32, 1000 }) {
+            List<Message> received = feed(stream, 64, chunkSize);
+            assertEquals(4, received.size());
+            assertEquals(1, ((Ping) received.get(0)).nonce());
+            assertTrue(received.get(1) instanceof VersionAck);
+            assertEquals(2, ((Pong) received.get(2)).nonce());
+        }
+    }
+
+    @Test
+    public void largeMessages() throws Exception {
+        byte[] blockBytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block481815.dat"));
+        Block block = Block.read(ByteBuffer.wrap(blockBytes));
+        byte[] stream = serialize(block, Ping.of(3), block);
+        ByteBufferPool pool = ByteBufferPool.shared();
+        long hitsBefore = pool.getHitCount();
+        for (int chunkSize : new int[] { 100, 4096, 65536 }) {
+            List<Message> received = feed(stream, 4096, chunkSize);
+            assertEquals(3, received.size());
+            assertEquals(block.getHash(), ((Block) received.get(0)).getHash());
+            assertEquals(3, ((Ping) received.get(1)).nonce());
+            assertEquals(block.getTransactions().size(), ((Block) received.get(2)).getTransactions().size());
+        }
+        // the payload buffers of the large messages were reused
+        assertTrue(pool.getHitCount() > hitsBefore);
+    }
+
+    @Test
+    public void decodeOffNetworkThread() throws Exception {
+        byte[] blockBytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block481815.dat"));
+        Block block = Block.read(ByteBuffer.wrap(blockBytes));
+        byte[] stream = serialize(Ping.of(1), block, Ping.of(2), block, Pong.of(3));
+        MessageDecoder decoder = new MessageDecoder(4, MessageDecoder.DEFAULT_MAX_QUEUED_BYTES);
+        try {
+            for (int chunkSize : new int[] { 7, 4096, 65536 }) {
+                List<Message> received = feed(stream, 4096, chunkSize, decoder, 5);
+                // messages are processed in the order they were received
+                assertEquals(5, received.size());
+                assertEquals(1, ((Ping) received.get(0)).nonce());
+                assertEquals(block.getHash(), ((Block) received.get(1)).getHash());
+                assertEquals(2, ((Ping) received.get(2)).nonce());
+                assertEquals(block.getHash(), ((Block) received.get(3)).getHash());
+                assertEquals(3, ((Pong) received.get(4)).nonce());
+            }
+            assertEquals(15, decoder.getDecodedCount());
+            assertEquals(0, decoder.getQueueDepth());
+            assertEquals(0, decoder.getQueuedBytes());
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    @Test
+    public void waitForPendingMessages() throws Exception {
+        byte[] stream = serialize(Ping.of(1), Ping.of(2), Ping.of(3), Ping.of(4), Ping.of(5));
+        // with room for a single pending message, reading waits for each message to be processed
+        MessageDecoder decoder = new MessageDecoder(2, MessageDecoder.DEFAULT_MAX_QUEUED_BYTES, 1);
+        try {
+            List<Message> received = feed(stream, 4096, 4096, decoder, 5);
+            assertEquals(5, received.size());
+            for (int i = 0; i < 5; i++)
+                assertEquals(i + 1, ((Ping) received.get(i)).nonce());
+            assertEquals(0, decoder.getQueueDepth());
+            assertEquals(0, decoder.getQueuedBytes());
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    @Test
+    public void pauseReadingWhileMessagesArePending() throws Exception {
+        byte[] stream = serialize(Ping.of(1), Ping.of(2), Ping.of(3), Ping.of(4), Ping.of(5));
+        CountDownLatch processing = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(5) {
+            @Override
+            protected void processMessage(Message m) {
+                try {
+                    processing.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.processMessage(m);
+            }
+        };
+        List<Boolean> pauses = Collections.synchronizedList(new ArrayList<>());
+        MessageDecoder decoder = new MessageDecoder(2, MessageDecoder.DEFAULT_MAX_QUEUED_BYTES, 2);
+        try {
+            handler.setMessageDecoder(decoder);
+            handler.setWriteTarget(new MessageWriteTarget() {
+                @Override
+                public CompletableFuture<Void> writeBytes(byte[] message) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public boolean setReadingPaused(boolean paused) {
+                    pauses.add(paused);
+                    return true;
+                }
+
+                @Override
+                public void closeConnection() {
+                }
+            });
+            // the network thread doesn't wait for the messages to be processed, but stops reading
+            feed(handler, stream, 4096, 4096);
+            assertEquals(Collections.singletonList(true), pauses);
+            // and resumes once they are
+            processing.countDown();
+            assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+            assertEquals(5, handler.received.size());
+            assertEquals(Arrays.asList(true, false), pauses);
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    @Test
+    public void decodeInlineWhenQueueIsFull() throws Exception {
+        byte[] stream = serialize(Ping.of(1), Ping.of(2), Ping.of(3), Ping.of(4));
+        // with no room in the queue, all but single payloads are decoded on the calling thread
+        MessageDecoder decoder = new MessageDecoder(1, 0);
+        try {
+            List<Message> received = feed(stream, 4096, 4096, decoder, 4);
+            assertEquals(4, received.size());
+            for (int i = 0; i < 4; i++)
+                assertEquals(i + 1, ((Ping) received.get(i)).nonce());
+            assertEquals(4, decoder.getDecodedCount());
+        } finally {
+            decoder.shutdown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrecomputedTransactionDataTest {
+    private static final ECKey KEY = new ECKey();
+
+    @Test
+    public void bip143Vector() throws Exception {
+        // test vector P2SH-P2WSH from the final example at:
+        // https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki#p2sh-p2wsh
+        String txHex = "01000000" // version
+                + "01" // num txIn
+                + "36641869ca081e70f394c6948e8af409e18b619df2ed74aa106c1ca29787b96e" + "01000000" + "00" + "ffffffff" // txIn
+                + "02" // num txOut
+                + "00e9a43500000000" + "1976a914" + "389ffce9cd9ae88dcc0631e88a821ffdbe9bfe26" + "88ac" // txOut
+                + "c0832f0500000000" + "1976a914" + "7480a33f950689af511e6e84c138dbbd3c3ee415" + "88ac" // txOut
+                + "00000000"; // nLockTime
+        Transaction tx = Transaction.read(ByteBuffer.wrap(ByteUtils.parseHex(txHex)));
+        ECKey pubKey = ECKey.fromPublicOnly(ByteUtils.parseHex(
+                "02d8b661b0b3302ee2f162b09e07a55ad5dfbe673a9f01d9f0c19617681024306b"));
+        Script script = Script.parse(ByteUtils.parseHex(
+                "56210307b8ae49ac90a048e9b53357a2354b3334e9c8bee813ecb98e99a7e07e8c3ba32103b28f0c28bfab54554ae8c658ac5c3e0ce6e79ad336331f78c428dd43eea8449b21034b8113d703413d57761b8b9781957b8c0ac1dfe69f492580ca4195f50376ba4a21033400f6afecb833092a9a21cfdf1ed1376e58c5d1f47de74683123987e967a8f42103a6d48b1131e94ba04d9737d61acdaa1322008af9602b3b14862c07a1789aac162102d8b661b0b3302ee2f162b09e07a55ad5dfbe673a9f01d9f0c19617681024306b56ae"));
+        Sha256Hash hash = PrecomputedTransactionData.of(tx).hashForWitnessSignature(0, script,
+                Coin.valueOf(987654321L), Transaction.SigHash.SINGLE, true);
+        TransactionSignature signature = TransactionSignature.decodeFromBitcoin(ByteUtils.parseHex(
+                "30440220525406a1482936d5a21888260dc165497a90a15669636d8edca6b9fe490d309c022032af0c646a34a44d1f4576bf6a4a74b67940f8faa84c7df9abe12a01a11e2b4783"), true, true);
+        assertTrue(pubKey.verify(hash, signature));
+    }
+
+    @Test
+    public void matchesTransactionForAllSigHashTypes() {
+        Transaction tx = createTransaction(3, 2);
+        PrecomputedTransactionData data = PrecomputedTransactionData.of(tx);
+        Script scriptCode = ScriptBuilder.createP2PKHOutputScript(KEY);
+        for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    assertEquals(tx.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, anyoneCanPay),
+                            data.hashForWitnessSignature(i, scriptCode, Coin.COIN, type, anyoneCanPay));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void snapshot() {
+        Transaction tx = createTransaction(2, 1);
+        PrecomputedTransactionData data = PrecomputedTransactionData.of(tx);
+        Script scriptCode = ScriptBuilder.createP2PKHOutputScript(KEY);
+        Sha256Hash before = data.hashForWitnessSignature(1, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+
+        // Signing doesn't invalidate the data.
+        tx.replaceInput(0, tx.getInput(0).withScriptSig(new ScriptBuilder().data(new byte[71]).build()));
+        assertEquals(before, tx.hashForWitnessSignature(1, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+
+        // Changing outputs does, but the snapshot is not affected.
+        tx.addOutput(Coin.CENT, KEY);
+        assertNotEquals(before, tx.hashForWitnessSignature(1, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+        assertEquals(before, data.hashForWitnessSignature(1, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false));
+    }
+
+    private static Transaction createTransaction(int inputs, int outputs) {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, ScriptBuilder.createEmpty());
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(Coin.COIN.multiply(i + 1), KEY);
+        return tx;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_RETURN;
+import static org.bitcoinj.script.ScriptOpCodes.OP_TRUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScriptVerificationEngineTest {
+    private static final Script ANYONE_CAN_SPEND = new ScriptBuilder().op(OP_TRUE).build();
+    private static final Script UNSPENDABLE = new ScriptBuilder().op(OP_RETURN).build();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.noneOf(VerifyFlag.class);
+
+    private ScriptVerificationEngine engine;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context());
+        engine = new ScriptVerificationEngine(2, 4);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void verifiesAcrossChunks() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        for (int i = 0; i < 10; i++)
+            addTransaction(batch, i + 1, -1);
+        batch.verify();
+        assertEquals(55, engine.getInputsVerified());
+        assertEquals(10, engine.getTransactionsVerified());
+        assertEquals(1, engine.getBatchesVerified());
+        assertTrue(engine.getInputsVerifiedPerSecond() > 0);
+    }
+
+    @Test
+    public void smallBatchVerifiedInline() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        addTransaction(batch, 2, -1);
+        batch.verify();
+        assertEquals(2, engine.getInputsVerified());
+    }
+
+    @Test
+    public void failure() {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        for (int i = 0; i < 10; i++)
+            addTransaction(batch, 5, i == 7 ? 3 : -1);
+        try {
+            batch.verify();
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e instanceof ScriptException);
+        }
+        assertEquals(0, engine.getInputsVerified());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        addTransaction(batch, 10, -1);
+        batch.cancel();
+        // The engine is still usable.
+        batch = engine.newBatch();
+        addTransaction(batch, 10, -1);
+        batch.verify();
+        assertEquals(10, engine.getInputsVerified());
+    }
+
+    @Test
+    public void segwitInputs() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction();
+        List<Script> prevOutScripts = new ArrayList<>();
+        List<Coin> prevOutValues = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new ScriptBuilder().build());
+            prevOutScripts.add(ScriptBuilder.createP2WPKHOutputScript(key));
+            prevOutValues.add(Coin.COIN);
+        }
+        tx.addOutput(Coin.COIN, ANYONE_CAN_SPEND);
+        for (int i = 0; i < 6; i++) {
+            TransactionSignature signature = tx.calculateWitnessSignature(i, key, null,
+                    ScriptBuilder.createP2PKHOutputScript(key), Coin.COIN, Transaction.SigHash.ALL, false);
+            tx.replaceInput(i, tx.getInput(i).withWitness(TransactionWitness.redeemP2WPKH(signature, key)));
+        }
+
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        batch.add(tx, prevOutScripts, prevOutValues, FLAGS);
+        batch.verify();
+        assertEquals(6, engine.getInputsVerified());
+
+        // The value is part of the signature hash.
+        prevOutValues.set(4, Coin.CENT);
+        ScriptVerificationEngine.Batch failing = engine.newBatch();
+        failing.add(tx, prevOutScripts, prevOutValues, FLAGS);
+        try {
+            failing.verify();
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishedBatch() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        addTransaction(batch, 1, -1);
+        batch.verify();
+        addTransaction(batch, 1, -1);
+    }
+
+    private static void addTransaction(ScriptVerificationEngine.Batch batch, int inputs, int failingInput) {
+        Transaction tx = new Transaction();
+        List<Script> prevOutScripts = new ArrayList<>();
+        for (int i = 0; i < inputs; i++) {
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i, new ScriptBuilder().build());
+            prevOutScripts.add(i == failingInput ? UNSPENDABLE : ANYONE_CAN_SPEND);
+        }
+        tx.addOutput(Coin.COIN, ANYONE_CAN_SPEND);
+        batch.add(tx, prevOutScripts, FLAGS);
+    }
+}
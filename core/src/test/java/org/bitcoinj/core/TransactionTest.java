@@ -33,6 +33,7 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptError;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptOpCodes;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.wallet.Wallet;
 import org.easymock.EasyMock;
@@ -48,6 +49,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
@@ -755,4 +757,90 @@ public class TransactionTest {
         Transaction tx = serializer.withProtocolVersion(protoVersionNoWitness).makeTransaction(ByteBuffer.wrap(ByteUtils.parseHex(txHex)));
         assertEquals(txHex, ByteUtils.formatHex(tx.serialize()));
     }
+
+    @Test
+    public void legacySigHashMatchesCopyingImplementation() {
+        Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            Transaction tx = new Transaction();
+            tx.setVersion(1 + random.nextInt(2));
+            int numInputs = 1 + random.nextInt(8);
+            for (int i = 0; i < numInputs; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                TransactionInput input = tx.addInput(Sha256Hash.wrap(hash), random.nextInt(4), randomScript(random));
+                tx.replaceInput(i, input.withSequence(random.nextInt() & 0xFFFFFFFFL));
+            }
+            int numOutputs = random.nextInt(5);
+            for (int i = 0; i < numOutputs; i++)
+                tx.addOutput(Coin.valueOf(random.nextInt(Integer.MAX_VALUE)), randomScript(random));
+            tx.setLockTime(random.nextInt() & 0xFFFFFFFFL);
+
+            for (int i = 0; i < numInputs; i++) {
+                byte[] connectedScript = randomScript(random).program();
+                for (int sigHashType = 0; sigHashType < 256; sigHashType += 1 + random.nextInt(16)) {
+                    for (int type : new int[] { sigHashType, 1, 2, 3, 0x81, 0x82, 0x83 })
+                        assertEquals(copyingHashForSignature(tx, i, connectedScript, (byte) type),
+                                tx.hashForSignature(i, connectedScript, (byte) type));
+                }
+            }
+        }
+    }
+
+    private static Script randomScript(Random random) {
+        ScriptBuilder builder = new ScriptBuilder();
+        int numChunks = random.nextInt(5);
+        for (int i = 0; i < numChunks; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    byte[] data = new byte[1 + random.nextInt(80)];
+                    random.nextBytes(data);
+                    builder.data(data);
+                    break;
+                case 1:
+                    builder.op(ScriptOpCodes.OP_CODESEPARATOR);
+                    break;
+                default:
+                    builder.op(ScriptOpCodes.OP_CHECKSIG);
+            }
+        }
+        return builder.build();
+    }
+
+    /** The signature hash algorithm as specified, by modifying a copy of the transaction. */
+    private static Sha256Hash copyingHashForSignature(Transaction tx, int inputIndex, byte[] connectedScript,
+                                                      byte sigHashType) {
+        Transaction copy = Transaction.read(ByteBuffer.wrap(tx.serialize()));
+        for (int i = 0; i < copy.getInputs().size(); i++)
+            copy.replaceInput(i, copy.getInput(i).withoutScriptBytes().withoutWitness());
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        copy.replaceInput(inputIndex, copy.getInput(inputIndex).withScriptBytes(connectedScript));
+        if ((sigHashType & 0x1f) == Transaction.SigHash.NONE.value) {
+            copy.clearOutputs();
+            for (int i = 0; i < copy.getInputs().size(); i++)
+                if (i != inputIndex)
+                    copy.replaceInput(i, copy.getInput(i).withSequence(0));
+        } else if ((sigHashType & 0x1f) == Transaction.SigHash.SINGLE.value) {
+            if (inputIndex >= copy.getOutputs().size())
+                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+            TransactionOutput signedOutput = copy.getOutput(inputIndex);
+            copy.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(copy, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+            copy.addOutput(new TransactionOutput(copy, signedOutput.getValue(), signedOutput.getScriptBytes()));
+            for (int i = 0; i < copy.getInputs().size(); i++)
+                if (i != inputIndex)
+                    copy.replaceInput(i, copy.getInput(i).withSequence(0));
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0) {
+            TransactionInput signedInput = copy.getInput(inputIndex);
+            copy.clearInputs();
+            copy.addInput(signedInput);
+        }
+        byte[] serialized = copy.serialize();
+        ByteBuffer buf = ByteBuffer.allocate(serialized.length + 4);
+        buf.put(serialized);
+        writeInt32LE(0x000000ff & sigHashType, buf);
+        return Sha256Hash.twiceOf(buf.array());
+    }
 }
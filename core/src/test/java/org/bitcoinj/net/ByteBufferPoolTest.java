@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void sizeClasses() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 4096);
+        ByteBuffer small = pool.acquire(0);
+        assertEquals(0, small.position());
+        assertEquals(0, small.limit());
+        assertEquals(64, small.capacity());
+        assertTrue(small.isDirect());
+        assertEquals(64, pool.acquire(64).capacity());
+        assertEquals(128, pool.acquire(65).capacity());
+        assertEquals(1024, pool.acquire(1000).capacity());
+        // larger than the largest size class
+        ByteBuffer large = pool.acquire(1025);
+        assertEquals(1025, large.capacity());
+        assertFalse(large.isDirect());
+        pool.release(large);
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(1, pool.getOversizedCount());
+    }
+
+    @Test
+    public void statistics() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 4096);
+        ByteBuffer buf = pool.acquire(100);
+        assertEquals(0, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        pool.release(buf);
+        pool.release(pool.acquire(120));
+        pool.acquire(100);
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getOversizedCount());
+    }
+
+    @Test
+    public void reuse() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 4096);
+        ByteBuffer buf = pool.acquire(100);
+        buf.put(new byte[100]);
+        pool.release(buf);
+        assertEquals(1, pool.getPooledCount());
+        ByteBuffer reused = pool.acquire(70);
+        assertSame(buf, reused);
+        assertEquals(0, reused.position());
+        assertEquals(70, reused.limit());
+        assertEquals(0, pool.getPooledCount());
+        // a different size class is not served from it
+        pool.release(reused);
+        assertNotSame(buf, pool.acquire(200));
+    }
+
+    @Test
+    public void retainedBytesAreBounded() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 2048);
+        ByteBuffer[] bufs = new ByteBuffer[5];
+        for (int i = 0; i < bufs.length; i++)
+            bufs[i] = pool.acquire(1024);
+        pool.release(bufs);
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 4096);
+        pool.release(ByteBuffer.allocate(128));
+        pool.release(ByteBuffer.allocateDirect(100));
+        assertEquals(0, pool.getPooledCount());
+    }
+}
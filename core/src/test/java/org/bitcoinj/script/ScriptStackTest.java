@@ -0,0 +1,73 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptStackTest {
+    private static final byte[] A = { 1 }, B = { 2 }, C = { 3 }, D = { 4 };
+
+    @Test
+    public void pushPopPeek() {
+        ScriptStack stack = new ScriptStack();
+        assertTrue(stack.isEmpty());
+        for (int i = 0; i < 100; i++)
+            stack.push(new byte[] { (byte) i });
+        assertEquals(100, stack.size());
+        assertEquals(99, stack.peek()[0]);
+        assertEquals(97, stack.peek(2)[0]);
+        for (int i = 99; i >= 0; i--)
+            assertEquals(i, stack.pop()[0]);
+        assertTrue(stack.isEmpty());
+    }
+
+    @Test
+    public void removeRollSwap() {
+        ScriptStack stack = new ScriptStack(Arrays.asList(A, B, C, D));
+        assertSame(B, stack.remove(2));
+        assertStack(stack, A, C, D);
+        stack.roll(2);
+        assertStack(stack, C, D, A);
+        stack.swap(0, 2);
+        assertStack(stack, A, D, C);
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        ScriptStack stack = new ScriptStack(Arrays.asList(A, B));
+        ScriptStack copy = stack.copy();
+        stack.pop();
+        copy.push(C);
+        assertStack(stack, A);
+        assertStack(copy, A, B, C);
+    }
+
+    private static void assertStack(ScriptStack stack, byte[]... expected) {
+        List<byte[]> actual = stack.toList();
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++)
+            assertArrayEquals(expected[i], actual.get(i));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_PUSHDATA1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the template fast paths of {@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin,
+ * Script, Set)} come to the same result as the general interpreter.
+ */
+public class ScriptTemplateTest {
+    private static final ECKey KEY = new ECKey();
+    private static final ECKey OTHER_KEY = new ECKey();
+
+    private static final List<Set<VerifyFlag>> FLAG_SETS = Arrays.asList(
+            EnumSet.noneOf(VerifyFlag.class),
+            EnumSet.of(VerifyFlag.P2SH),
+            EnumSet.of(VerifyFlag.P2SH, VerifyFlag.DERSIG),
+            EnumSet.of(VerifyFlag.STRICTENC, VerifyFlag.LOW_S),
+            EnumSet.of(VerifyFlag.MINIMALDATA),
+            Script.ALL_VERIFY_FLAGS);
+
+    @Test
+    public void p2pkhMatchesInterpreter() {
+        Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(KEY);
+        List<Script> scriptSigs = scriptSigs(scriptPubKey, true);
+        for (Script scriptSig : scriptSigs)
+            for (Set<VerifyFlag> flags : FLAG_SETS)
+                assertSameResult(scriptSig, scriptPubKey, flags);
+        assertNull(assertSameResult(scriptSigs.get(0), scriptPubKey, Script.ALL_VERIFY_FLAGS));
+    }
+
+    @Test
+    public void p2pkMatchesInterpreter() {
+        Script scriptPubKey = ScriptBuilder.createP2PKOutputScript(KEY);
+        List<Script> scriptSigs = scriptSigs(scriptPubKey, false);
+        for (Script scriptSig : scriptSigs)
+            for (Set<VerifyFlag> flags : FLAG_SETS)
+                assertSameResult(scriptSig, scriptPubKey, flags);
+        assertNull(assertSameResult(scriptSigs.get(0), scriptPubKey, Script.ALL_VERIFY_FLAGS));
+    }
+
+    @Test
+    public void p2pkhNonMinimalScriptPubKey() {
+        byte[] hash = KEY.getPubKeyHash();
+        Script scriptPubKey = new ScriptBuilder().op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_HASH160)
+                .addChunk(new ScriptChunk(OP_PUSHDATA1, hash)).op(ScriptOpCodes.OP_EQUALVERIFY)
+                .op(ScriptOpCodes.OP_CHECKSIG).build();
+        Transaction tx = createTransaction();
+        TransactionSignature sig = sign(tx, KEY, scriptPubKey, Transaction.SigHash.ALL.value);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, KEY);
+        for (Set<VerifyFlag> flags : FLAG_SETS)
+            assertSameResult(scriptSig, scriptPubKey, flags);
+    }
+
+    @Test
+    public void p2wpkh() {
+        Script scriptPubKey = ScriptBuilder.createP2WPKHOutputScript(KEY);
+        Transaction tx = createTransaction();
+        TransactionSignature sig = signWitness(tx, KEY);
+        Set<VerifyFlag> flags = Script.ALL_VERIFY_FLAGS;
+
+        ScriptBuilder.createEmpty().correctlySpends(tx, 0, TransactionWitness.redeemP2WPKH(sig, KEY), Coin.COIN,
+                scriptPubKey, flags);
+        assertFails(ScriptError.SCRIPT_ERR_EQUALVERIFY, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.redeemP2WPKH(sig, OTHER_KEY), Coin.COIN, scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_EVAL_FALSE, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.redeemP2WPKH(sig, KEY), Coin.CENT, scriptPubKey, flags));
+        // Like OP_CHECKSIG, a signature that isn't DER encoded is only an error of its own if encoding is enforced.
+        byte[] notDer = { 0x30, 0x00, 0x01 };
+        assertFails(ScriptError.SCRIPT_ERR_SIG_DER, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.of(notDer, KEY.getPubKey()), Coin.COIN, scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_EVAL_FALSE, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.of(notDer, KEY.getPubKey()), Coin.COIN, scriptPubKey,
+                EnumSet.noneOf(VerifyFlag.class)));
+        assertFails(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_MISMATCH, () -> ScriptBuilder.createEmpty()
+                .correctlySpends(tx, 0, TransactionWitness.of(sig.encodeToBitcoin(), KEY.getPubKey(), new byte[0]),
+                        Coin.COIN, scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_PUSH_SIZE, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.of(new byte[Script.MAX_SCRIPT_ELEMENT_SIZE + 1], KEY.getPubKey()), Coin.COIN,
+                scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, () -> ScriptBuilder.createEmpty().correctlySpends(tx, 0,
+                TransactionWitness.redeemP2WPKH(sig, KEY), null, scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_WITNESS_MALLEATED, () -> new ScriptBuilder().data(new byte[1]).build()
+                .correctlySpends(tx, 0, TransactionWitness.redeemP2WPKH(sig, KEY), Coin.COIN, scriptPubKey, flags));
+    }
+
+    @Test
+    public void p2shP2wpkh() {
+        Script redeemScript = ScriptBuilder.createP2WPKHOutputScript(KEY);
+        Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        Script scriptSig = new ScriptBuilder().data(redeemScript.program()).build();
+        Transaction tx = createTransaction();
+        TransactionSignature sig = signWitness(tx, KEY);
+        Set<VerifyFlag> flags = Script.ALL_VERIFY_FLAGS;
+
+        scriptSig.correctlySpends(tx, 0, TransactionWitness.redeemP2WPKH(sig, KEY), Coin.COIN, scriptPubKey, flags);
+        assertFails(ScriptError.SCRIPT_ERR_EQUALVERIFY, () -> scriptSig.correctlySpends(tx, 0,
+                TransactionWitness.redeemP2WPKH(sig, OTHER_KEY), Coin.COIN, scriptPubKey, flags));
+        assertFails(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_WITNESS_EMPTY, () -> scriptSig.correctlySpends(tx, 0,
+                TransactionWitness.EMPTY, Coin.COIN, scriptPubKey, flags));
+        Script otherScriptSig = new ScriptBuilder().data(ScriptBuilder.createP2WPKHOutputScript(OTHER_KEY).program())
+                .build();
+        assertFails(ScriptError.SCRIPT_ERR_EVAL_FALSE, () -> otherScriptSig.correctlySpends(tx, 0,
+                TransactionWitness.redeemP2WPKH(sig, KEY), Coin.COIN, scriptPubKey, flags));
+    }
+
+    /** Valid and invalid ways of spending the given scriptPubKey. */
+    private static List<Script> scriptSigs(Script scriptPubKey, boolean withKey) {
+        Transaction tx = createTransaction();
+        List<Script> scriptSigs = new ArrayList<>();
+        for (int sigHash : new int[] { 0x01, 0x02, 0x03, 0x81, 0x82, 0x83, 0x00, 0x05 }) {
+            TransactionSignature sig = sign(tx, KEY, scriptPubKey, sigHash);
+            scriptSigs.add(scriptSig(withKey, sig.encodeToBitcoin(), KEY.getPubKey()));
+        }
+        TransactionSignature sig = sign(tx, KEY, scriptPubKey, Transaction.SigHash.ALL.value);
+        byte[] sigBytes = sig.encodeToBitcoin();
+        // signature by another key, or for another key
+        scriptSigs.add(scriptSig(withKey, sign(tx, OTHER_KEY, scriptPubKey, 0x01).encodeToBitcoin(),
+                KEY.getPubKey()));
+        scriptSigs.add(scriptSig(withKey, sigBytes, OTHER_KEY.getPubKey()));
+        // high S
+        TransactionSignature highS = new TransactionSignature(sig.r, ECKey.ecDomainParameters().getN().subtract(sig.s),
+                sig.sighashFlags);
+        scriptSigs.add(scriptSig(withKey, highS.encodeToBitcoin(), KEY.getPubKey()));
+        // broken encodings
+        scriptSigs.add(scriptSig(withKey, Arrays.copyOf(sigBytes, sigBytes.length - 5), KEY.getPubKey()));
+        byte[] badLength = sigBytes.clone();
+        badLength[1]++;
+        scriptSigs.add(scriptSig(withKey, badLength, KEY.getPubKey()));
+        scriptSigs.add(scriptSig(withKey, new byte[0], KEY.getPubKey()));
+        scriptSigs.add(scriptSig(withKey, sigBytes, new byte[] { 2, 3 }));
+        // non-minimal push, extra pushes, no pushes
+        ScriptBuilder nonMinimal = new ScriptBuilder().addChunk(new ScriptChunk(OP_PUSHDATA1, sigBytes));
+        if (withKey)
+            nonMinimal.data(KEY.getPubKey());
+        scriptSigs.add(nonMinimal.build());
+        ScriptBuilder extra = new ScriptBuilder().number(7).data(sigBytes);
+        if (withKey)
+            extra.data(KEY.getPubKey());
+        scriptSigs.add(extra.build());
+        scriptSigs.add(new ScriptBuilder().smallNum(0).build());
+        scriptSigs.add(ScriptBuilder.createEmpty());
+        return scriptSigs;
+    }
+
+    private static Script scriptSig(boolean withKey, byte[] sig, byte[] pubKey) {
+        ScriptBuilder builder = new ScriptBuilder().data(sig);
+        if (withKey)
+            builder.data(pubKey);
+        return builder.build();
+    }
+
+    private static ScriptError assertSameResult(Script scriptSig, Script scriptPubKey, Set<VerifyFlag> flags) {
+        Transaction tx = createTransaction();
+        tx.replaceInput(0, tx.getInput(0).withScriptSig(scriptSig));
+        ScriptError expected = result(() -> scriptSig.correctlySpendsInterpreted(tx, 0, scriptPubKey, flags));
+        ScriptError actual = result(() -> scriptSig.correctlySpends(tx, 0, TransactionWitness.EMPTY, Coin.COIN,
+                scriptPubKey, flags));
+        assertEquals(scriptSig + " with " + flags, expected, actual);
+        return actual;
+    }
+
+    private static ScriptError result(Runnable verification) {
+        SignatureCache cache = SignatureCache.getDefault();
+        SignatureCache.setDefault(null);
+        try {
+            verification.run();
+            return null;
+        } catch (ScriptException e) {
+            return e.getError();
+        } finally {
+            SignatureCache.setDefault(cache);
+        }
+    }
+
+    private static void assertFails(ScriptError expected, Runnable verification) {
+        ScriptError actual = result(verification);
+        if (actual == null)
+            fail("expected " + expected);
+        assertEquals(expected, actual);
+    }
+
+    private static TransactionSignature sign(Transaction tx, ECKey key, Script scriptPubKey, int sigHash) {
+        Sha256Hash hash = tx.hashForSignature(0, scriptPubKey.program(), (byte) sigHash);
+        ECKey.ECDSASignature sig = key.sign(hash);
+        return new TransactionSignature(sig.r, sig.s, sigHash);
+    }
+
+    private static TransactionSignature signWitness(Transaction tx, ECKey key) {
+        Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key);
+        Sha256Hash hash = tx.hashForWitnessSignature(0, scriptCode, Coin.COIN, Transaction.SigHash.ALL, false);
+        return new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+    }
+
+    private static Transaction createTransaction() {
+        Transaction tx = new Transaction();
+        tx.addInput(Sha256Hash.of(new byte[] { 1 }), 0, ScriptBuilder.createEmpty());
+        tx.addInput(Sha256Hash.of(new byte[] { 2 }), 1, ScriptBuilder.createEmpty());
+        tx.addOutput(Coin.CENT, KEY);
+        tx.addOutput(Coin.CENT, OTHER_KEY);
+        return tx;
+    }
+}
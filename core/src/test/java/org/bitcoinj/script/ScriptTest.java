@@ -256,6 +256,60 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void numbersMatchMpiEncoding() {
+        long[] values = { 0, 1, -1, 16, 17, -17, 127, 128, -128, 255, -255, 256, 32767, 32768, -32768, 65535,
+                8388607, 8388608, -8388608, Integer.MAX_VALUE, -Integer.MAX_VALUE, 4294967295L, -4294967295L,
+                549755813887L, -549755813887L };
+        for (long value : values) {
+            byte[] expected = ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(value), false));
+            byte[] encoded = Script.encodeNumber(value);
+            assertArrayEquals("encode " + value, expected, encoded);
+            assertEquals("decode " + value, value, Script.castToLong(encoded, 5, true));
+        }
+        // negative zero
+        assertEquals(0, Script.castToLong(new byte[] { (byte) 0x80 }, 4, false));
+        assertEquals(0, Script.castToLong(new byte[] { 0, 0, (byte) 0x80 }, 4, false));
+    }
+
+    @Test
+    public void executeScriptUsesGivenStack() {
+        LinkedList<byte[]> stack = new LinkedList<>();
+        stack.add(new byte[] { 2 });
+        Script script = new ScriptBuilder().smallNum(3).op(ScriptOpCodes.OP_SWAP).op(ScriptOpCodes.OP_DUP).build();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        assertEquals(3, stack.size());
+        assertArrayEquals(new byte[] { 3 }, stack.get(0));
+        assertArrayEquals(new byte[] { 2 }, stack.get(1));
+        assertArrayEquals(new byte[] { 2 }, stack.get(2));
+    }
+
+    @Test
+    public void executeScriptReturnsCopiesOfConstants() {
+        Script script = new ScriptBuilder().smallNum(1).smallNum(1).op(ScriptOpCodes.OP_EQUAL).build();
+        LinkedList<byte[]> stack = new LinkedList<>();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        stack.getLast()[0] = 0;
+        stack.clear();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        assertArrayEquals(new byte[] { 1 }, stack.getLast());
+    }
+
+    @Test
+    public void nestedConditionals() {
+        // 1 IF 0 IF 2 ELSE 3 ENDIF 0 NOTIF 4 ENDIF ELSE 5 ENDIF leaves 3 4
+        Script script = new ScriptBuilder().smallNum(1).op(ScriptOpCodes.OP_IF)
+                .smallNum(0).op(ScriptOpCodes.OP_IF).smallNum(2).op(ScriptOpCodes.OP_ELSE).smallNum(3)
+                .op(ScriptOpCodes.OP_ENDIF)
+                .smallNum(0).op(ScriptOpCodes.OP_NOTIF).smallNum(4).op(ScriptOpCodes.OP_ENDIF)
+                .op(ScriptOpCodes.OP_ELSE).smallNum(5).op(ScriptOpCodes.OP_ENDIF).build();
+        LinkedList<byte[]> stack = new LinkedList<>();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        assertEquals(2, stack.size());
+        assertArrayEquals(new byte[] { 3 }, stack.get(0));
+        assertArrayEquals(new byte[] { 4 }, stack.get(1));
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
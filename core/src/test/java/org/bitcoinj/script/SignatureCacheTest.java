@@ -0,0 +1,94 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureCacheTest {
+    private static final ECKey KEY = new ECKey();
+    private static final ECKey OTHER_KEY = new ECKey();
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(new SignatureCache(SignatureCache.DEFAULT_MAX_ENTRIES));
+    }
+
+    @Test
+    public void cachesValidSignatures() {
+        SignatureCache cache = new SignatureCache(16);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = KEY.sign(hash);
+        assertTrue(cache.verify(hash, sig, KEY.getPubKey()));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash, sig, KEY.getPubKey()));
+        assertEquals(1, cache.getHits());
+        cache.clear();
+        assertTrue(cache.verify(hash, sig, KEY.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void doesNotCacheInvalidSignatures() {
+        SignatureCache cache = new SignatureCache(16);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = KEY.sign(hash);
+        assertFalse(cache.verify(hash, sig, OTHER_KEY.getPubKey()));
+        assertFalse(cache.verify(hash, sig, OTHER_KEY.getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 2 }), sig, KEY.getPubKey()));
+        assertEquals(0, cache.getHits());
+        // The valid triple is still a different entry.
+        assertTrue(cache.verify(hash, sig, KEY.getPubKey()));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        SignatureCache cache = new SignatureCache(2);
+        assertEquals(2, cache.getMaxEntries());
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash, KEY.sign(hash), KEY.getPubKey()));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(20, cache.getMisses());
+    }
+
+    @Test
+    public void scriptUsesDefaultCache() {
+        SignatureCache cache = new SignatureCache(16);
+        SignatureCache.setDefault(cache);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 3 });
+        ECKey.ECDSASignature sig = KEY.sign(hash);
+        assertTrue(SignatureCache.verifyWithDefault(hash, sig, KEY.getPubKey()));
+        assertTrue(SignatureCache.verifyWithDefault(hash, sig, KEY.getPubKey()));
+        assertEquals(1, cache.getHits());
+
+        SignatureCache.setDefault(null);
+        assertTrue(SignatureCache.verifyWithDefault(hash, sig, KEY.getPubKey()));
+        assertFalse(SignatureCache.verifyWithDefault(hash, sig, OTHER_KEY.getPubKey()));
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context());
+        directory = tmpFolder.newFolder();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        DiskFullPrunedBlockStore store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+
+        UTXO utxo = createUTXO(Sha256Hash.of(new byte[] { 1 }), 3);
+        store.addUnspentTransactionOutput(utxo);
+        store.close();
+
+        store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        assertEquals(genesis, store.getChainHead());
+        UTXO read = store.getTransactionOutput(utxo.getHash(), utxo.getIndex());
+        assertEquals(utxo, read);
+        assertEquals(utxo.getHeight(), read.getHeight());
+        assertEquals(utxo.getScript(), read.getScript());
+        assertEquals(utxo.getAddress(), read.getAddress());
+        assertTrue(store.hasUnspentOutputs(utxo.getHash(), 4));
+        assertFalse(store.hasUnspentOutputs(utxo.getHash(), 3));
+        store.removeUnspentTransactionOutput(utxo);
+        assertNull(store.getTransactionOutput(utxo.getHash(), utxo.getIndex()));
+        store.close();
+    }
+
+    @Test
+    public void batchIsInvisibleUntilCommitted() throws Exception {
+        DiskFullPrunedBlockStore store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        UTXO utxo = createUTXO(Sha256Hash.of(new byte[] { 2 }), 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(utxo);
+        assertEquals(utxo, store.getTransactionOutput(utxo.getHash(), 0));
+        UTXO[] seenByOtherThread = new UTXO[1];
+        Thread other = new Thread(() -> {
+            try {
+                seenByOtherThread[0] = store.getTransactionOutput(utxo.getHash(), 0);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(seenByOtherThread[0]);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(utxo.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(utxo);
+        store.commitDatabaseBatchWrite();
+        assertEquals(utxo, store.getTransactionOutput(utxo.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void tornWriteIsDiscarded() throws Exception {
+        DiskFullPrunedBlockStore store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        UTXO committed = createUTXO(Sha256Hash.of(new byte[] { 3 }), 0);
+        store.addUnspentTransactionOutput(committed);
+        store.close();
+        // Remove the snapshot and simulate a crash in the middle of writing a frame.
+        assertTrue(new File(directory, "index.snapshot").delete());
+        File segment = new File(directory, "segment-00000001.log");
+        long validLength = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(validLength);
+            raf.writeInt(1000);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        assertEquals(committed, store.getTransactionOutput(committed.getHash(), 0));
+        assertEquals(validLength, segment.length());
+        store.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        DiskFullPrunedBlockStore store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10, 4096);
+        UTXO survivor = createUTXO(Sha256Hash.of(new byte[] { 4 }), 7);
+        store.addUnspentTransactionOutput(survivor);
+        for (int i = 0; i < 200; i++) {
+            store.beginDatabaseBatchWrite();
+            UTXO utxo = createUTXO(Sha256Hash.of(new byte[] { 5, (byte) i }), i);
+            store.addUnspentTransactionOutput(utxo);
+            store.commitDatabaseBatchWrite();
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(utxo);
+            store.commitDatabaseBatchWrite();
+        }
+        assertTrue(store.getLogBytes() <= 2 * store.getLiveBytes() + 4096);
+        store.close();
+
+        store = new DiskFullPrunedBlockStore(UNITTEST, directory, 10, 4096);
+        assertEquals(survivor, store.getTransactionOutput(survivor.getHash(), 7));
+        assertNull(store.getTransactionOutput(Sha256Hash.of(new byte[] { 5, 0 }), 0));
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        store.close();
+    }
+
+    @Test
+    public void undoBlocksArePruned() throws Exception {
+        DiskFullPrunedBlockStore store = new DiskFullPrunedBlockStore(UNITTEST, directory, 2);
+        StoredBlock prev = store.getChainHead();
+        StoredBlock first = null;
+        for (int i = 0; i < 4; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            UTXO created = createUTXO(Sha256Hash.of(new byte[] { 6, (byte) i }), 0);
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                    new TransactionOutputChanges(Collections.singletonList(created), Collections.emptyList())));
+            store.setVerifiedChainHead(block);
+            if (first == null) {
+                first = block;
+                StoredUndoableBlock undo = store.getUndoBlock(block.getHeader().getHash());
+                assertEquals(created, undo.getTxOutChanges().txOutsCreated.get(0));
+            }
+            prev = block;
+        }
+        Sha256Hash firstHash = first.getHeader().getHash();
+        assertNull(store.getUndoBlock(firstHash));
+        assertEquals(first, store.getOnceUndoableStoredBlock(firstHash));
+        assertNotNull(store.getUndoBlock(prev.getHeader().getHash()));
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void twoStores_onSameDirectory() throws Exception {
+        new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+        new DiskFullPrunedBlockStore(UNITTEST, directory, 10);
+    }
+
+    private static UTXO createUTXO(Sha256Hash hash, long index) {
+        ECKey key = new ECKey();
+        return new UTXO(hash, index, Coin.COIN, 5, false,
+                ScriptBuilder.createOutputScript(key.toAddress(ScriptType.P2PKH, UNITTEST.network())),
+                key.toAddress(ScriptType.P2PKH, UNITTEST.network()).toString());
+    }
+}
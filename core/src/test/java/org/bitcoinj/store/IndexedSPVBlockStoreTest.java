@@ -0,0 +1,174 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Difficulty;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IndexedSPVBlockStoreTest {
+    private static final NetworkParameters TESTNET = TestNet3Params.get();
+    private File blockStoreFile;
+    private File indexFile;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TimeUtils.clearMockClock();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        Context.propagate(new Context());
+        blockStoreFile = File.createTempFile("spvblockstore", null);
+        blockStoreFile.delete();
+        blockStoreFile.deleteOnExit();
+        indexFile = IndexedSPVBlockStore.getIndexFile(blockStoreFile);
+        indexFile.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        indexFile.delete();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(TESTNET.getGenesisBlock(), genesis.getHeader());
+        List<StoredBlock> blocks = putBlocks(store, 100);
+        store.setChainHead(blocks.get(99));
+        store.close();
+        assertEquals(IndexedSPVBlockStore.getIndexFileSize(SPVBlockStore.DEFAULT_CAPACITY), indexFile.length());
+
+        store = new IndexedSPVBlockStore(TESTNET, blockStoreFile);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(blocks.get(99), store.getChainHead());
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        assertNull(store.get(Sha256Hash.of(new byte[] { 1 })));
+        store.close();
+    }
+
+    @Test
+    public void wrapAround() throws Exception {
+        final int capacity = 10;
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, capacity, false);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> blocks = putBlocks(store, 95);
+        store.close();
+
+        // Reopen, so that lookups are not served from the block cache.
+        store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, capacity, false);
+        assertNull(store.get(genesis.getHeader().getHash()));
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - capacity)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        store.close();
+    }
+
+    @Test
+    public void rebuildMissingIndex() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 50, false);
+        List<StoredBlock> blocks = putBlocks(store, 70);
+        store.close();
+        indexFile.delete();
+
+        store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 50, false);
+        // The genesis block and the oldest 20 blocks were overwritten.
+        for (int i = 20; i < blocks.size(); i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        assertNull(store.get(blocks.get(19).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void rebuildStaleIndex() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 50, false);
+        putBlocks(store, 10);
+        store.close();
+        // Modify the ring without the index.
+        SPVBlockStore plainStore = new SPVBlockStore(TESTNET, blockStoreFile, 50, false);
+        List<StoredBlock> blocks = putBlocks(plainStore, 10);
+        plainStore.close();
+
+        store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 50, false);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void grow() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 10, true);
+        List<StoredBlock> blocks = putBlocks(store, 5);
+        store.close();
+
+        store = new IndexedSPVBlockStore(TESTNET, blockStoreFile, 1000, true);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+        assertEquals(IndexedSPVBlockStore.getIndexFileSize(1000), indexFile.length());
+    }
+
+    @Test
+    public void clear() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(TESTNET, blockStoreFile);
+        List<StoredBlock> blocks = putBlocks(store, 3);
+        store.clear();
+        assertNull(store.get(blocks.get(0).getHeader().getHash()));
+        assertEquals(TESTNET.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        store.close();
+    }
+
+    private static List<StoredBlock> putBlocks(SPVBlockStore store, int count) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // Using a random nonce so that the block hashes are different across calls.
+            Block block = new Block(0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, Instant.EPOCH,
+                    Difficulty.EASIEST_DIFFICULTY_TARGET, (long) (Math.random() * 0xFFFFFFFFL),
+                    Collections.emptyList());
+            StoredBlock b = new StoredBlock(block, BigInteger.valueOf(i), i);
+            store.put(b);
+            blocks.add(b);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapUTXOMapTest {
+    private static final int SMALL_CHUNK = 4096;
+
+    @Test
+    public void putGetRemove() {
+        OffHeapUTXOMap map = new OffHeapUTXOMap(16, SMALL_CHUNK);
+        UTXO utxo = utxo(Sha256Hash.of(new byte[] { 1 }), 0, 1);
+        map.put(new StoredTransactionOutPoint(utxo), utxo);
+        assertEquals(1, map.size());
+        assertUTXOEquals(utxo, map.get(new StoredTransactionOutPoint(utxo)));
+        assertNull(map.get(new StoredTransactionOutPoint(utxo.getHash(), 1)));
+
+        // replace
+        UTXO replacement = utxo(utxo.getHash(), 0, 2);
+        map.put(new StoredTransactionOutPoint(replacement), replacement);
+        assertEquals(1, map.size());
+        assertUTXOEquals(replacement, map.get(new StoredTransactionOutPoint(utxo)));
+
+        assertUTXOEquals(replacement, map.remove(new StoredTransactionOutPoint(utxo)));
+        assertEquals(0, map.size());
+        assertNull(map.get(new StoredTransactionOutPoint(utxo)));
+        assertNull(map.remove(new StoredTransactionOutPoint(utxo)));
+    }
+
+    @Test
+    public void longScript() {
+        OffHeapUTXOMap map = new OffHeapUTXOMap(16, 128 * 1024);
+        byte[] program = new byte[70000];
+        Arrays.fill(program, (byte) ScriptOpCodes.OP_NOP);
+        UTXO utxo = new UTXO(Sha256Hash.of(new byte[] { 2 }), 3, Coin.COIN, 10, true, Script.parse(program), "");
+        map.put(new StoredTransactionOutPoint(utxo), utxo);
+        assertUTXOEquals(utxo, map.get(new StoredTransactionOutPoint(utxo)));
+    }
+
+    @Test
+    public void batch() {
+        OffHeapUTXOMap map = new OffHeapUTXOMap(16, SMALL_CHUNK);
+        UTXO committed = utxo(Sha256Hash.of(new byte[] { 1 }), 0, 1);
+        map.put(new StoredTransactionOutPoint(committed), committed);
+
+        map.beginDatabaseBatchWrite();
+        UTXO added = utxo(Sha256Hash.of(new byte[] { 2 }), 0, 2);
+        map.put(new StoredTransactionOutPoint(added), added);
+        assertUTXOEquals(committed, map.remove(new StoredTransactionOutPoint(committed)));
+        assertNull(map.get(new StoredTransactionOutPoint(committed)));
+        assertUTXOEquals(added, map.get(new StoredTransactionOutPoint(added)));
+        map.abortDatabaseBatchWrite();
+        assertUTXOEquals(committed, map.get(new StoredTransactionOutPoint(committed)));
+        assertNull(map.get(new StoredTransactionOutPoint(added)));
+
+        map.beginDatabaseBatchWrite();
+        map.put(new StoredTransactionOutPoint(added), added);
+        map.remove(new StoredTransactionOutPoint(committed));
+        assertEquals(1, map.size());
+        map.commitDatabaseBatchWrite();
+        assertEquals(1, map.size());
+        assertNull(map.get(new StoredTransactionOutPoint(committed)));
+        assertUTXOEquals(added, map.get(new StoredTransactionOutPoint(added)));
+    }
+
+    @Test
+    public void randomOperations() {
+        // Small table and arena chunks, so that resizing, probing collisions and arena compaction all happen.
+        OffHeapUTXOMap map = new OffHeapUTXOMap(16, SMALL_CHUNK);
+        Map<StoredTransactionOutPoint, UTXO> reference = new HashMap<>();
+        List<StoredTransactionOutPoint> keys = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            if (keys.isEmpty() || random.nextInt(3) != 0) {
+                Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) random.nextInt(), (byte) random.nextInt() });
+                UTXO utxo = utxo(hash, random.nextInt(4), random.nextInt(1000));
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(utxo);
+                if (reference.put(key, utxo) == null)
+                    keys.add(key);
+                map.put(key, utxo);
+            } else {
+                StoredTransactionOutPoint key = keys.remove(random.nextInt(keys.size()));
+                assertUTXOEquals(reference.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(reference.size(), map.size());
+        for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : reference.entrySet())
+            assertUTXOEquals(entry.getValue(), map.get(entry.getKey()));
+        assertEquals(reference.size(), map.values().size());
+        assertTrue(map.offHeapBytes() > 0);
+    }
+
+    private static UTXO utxo(Sha256Hash hash, long index, int height) {
+        byte[] pubKeyHash = new byte[20];
+        pubKeyHash[0] = (byte) height;
+        Script script = ScriptBuilder.createP2PKHOutputScript(pubKeyHash);
+        return new UTXO(hash, index, Coin.valueOf(height), height, height % 2 == 0, script, "address" + height);
+    }
+
+    private static void assertUTXOEquals(UTXO expected, UTXO actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.isCoinbase(), actual.isCoinbase());
+        assertEquals(expected.getScript(), actual.getScript());
+        assertEquals(expected.getAddress(), actual.getAddress());
+    }
+}
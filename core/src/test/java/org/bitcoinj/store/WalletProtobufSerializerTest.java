@@ -199,6 +199,33 @@ public class WalletProtobufSerializerTest {
         // assertEquals(doubleSpends.t2, t1.getConfidence().getOverridingTransaction());
     }
     
+    @Test
+    public void parallelLoad() throws Exception {
+        Coin total = Coin.ZERO;
+        for (int i = 1; i <= 50; i++) {
+            Coin value = Coin.valueOf(i, 0);
+            myWallet.receivePending(createFakeTx(TESTNET.network(), value, myAddress), null);
+            total = total.add(value);
+        }
+        Protos.Wallet walletProto = new WalletProtobufSerializer().walletToProto(myWallet);
+        // Write the transactions before everything else, the loader must not depend on the order of the fields.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Protos.Wallet.newBuilder().addAllTransaction(walletProto.getTransactionList()).buildPartial().writeTo(output);
+        walletProto.toBuilder().clearTransaction().build().writeTo(output);
+
+        for (int threads : new int[] { 1, 4 }) {
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            serializer.setLoadThreads(threads);
+            Wallet wallet = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+            assertEquals(50, wallet.getTransactions(true).size());
+            for (Transaction tx : myWallet.getTransactions(true))
+                assertArrayEquals(tx.serialize(), wallet.getTransaction(tx.getTxId()).serialize());
+            assertEquals(total, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            assertArrayEquals(myKey.getPubKey(), wallet.findKeyFromPubKeyHash(myKey.getPubKeyHash(), null).getPubKey());
+            assertEquals(WALLET_DESCRIPTION, wallet.getDescription());
+        }
+    }
+
     @Test
     public void testKeys() throws Exception {
         for (int i = 0 ; i < 20 ; i++) {
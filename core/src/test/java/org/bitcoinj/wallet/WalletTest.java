@@ -17,6 +17,7 @@
 
 package org.bitcoinj.wallet;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
@@ -580,6 +581,78 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void balanceFollowsWalletChanges() throws Exception {
+        // The ESTIMATED balance is kept between calls, so each change to the wallet must be reflected in the next query.
+        Transaction tx = createFakeTx(TESTNET, COIN, myAddress);
+        sendMoneyToWallet(null, tx);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        assertTrue(wallet.isConsistent());
+
+        // Confirming the transaction only changes its confidence.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, tx);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+        assertTrue(wallet.isConsistent());
+
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, valueOf(0, 10));
+        wallet.commitTx(spend);
+        assertEquals(valueOf(0, 90), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        assertTrue(wallet.isConsistent());
+
+        // The change becomes available once the spend is seen on the network, even before the wallet is told.
+        TransactionConfidence confidence = wallet.getTransaction(spend.getTxId()).getConfidence();
+        confidence.markBroadcastBy(PeerAddress.simple(InetAddress.getByAddress(new byte[]{1,2,3,4}), TESTNET_PARAMS.getPort()));
+        assertEquals(valueOf(0, 90), wallet.getBalance(BalanceType.AVAILABLE));
+        assertTrue(wallet.isConsistent());
+
+        wallet.reset();
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test(timeout = 10_000)
+    public void queriesDontWaitForWriter() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(1, wallet.getUnspents().size());
+
+        // Another thread receives a transaction and keeps holding the lock while it tells a listener.
+        CountDownLatch changed = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, (wallet, tx, prevBalance, newBalance) -> {
+            changed.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException x) {
+                throw new RuntimeException(x);
+            }
+        });
+        // A different value than the coins above, so that the fake input isn't a double spend of theirs.
+        Transaction tx = createFakeTx(TESTNET, valueOf(0, 50), myAddress);
+        Thread writer = new Thread(() -> wallet.receivePending(tx, null));
+        writer.start();
+        changed.await();
+        assertTrue(wallet.lock.isLocked());
+
+        // Queries are answered from the view published before the listener was told.
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(valueOf(1, 50), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(tx, wallet.getTransaction(tx.getTxId()));
+        assertEquals(1, wallet.getPoolSize(Pool.PENDING));
+        assertEquals(2, wallet.getUnspents().size());
+
+        finish.countDown();
+        writer.join();
+        assertEquals(valueOf(1, 50), wallet.getBalance(BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -1719,6 +1792,109 @@ public class WalletTest extends TestWithWallet {
         assertFalse("Wallet not saved after receivePending", hash2.equals(hash3));  // File has changed again.
     }
 
+    @Test
+    public void autosaveWithJournal() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        File journal = WalletJournal.fileFor(f);
+        journal.deleteOnExit();
+        // The first save writes the wallet file and starts the journal.
+        wallet.autosaveToFile(f, Duration.ZERO, true, null);
+        ECKey key = wallet.freshReceiveKey();
+        Sha256Hash walletFileHash = Sha256Hash.of(f);
+        long journalSize = journal.length();
+
+        // Later changes are appended to the journal only.
+        Transaction t1 = createFakeTx(valueOf(5, 0), key);
+        wallet.receivePending(t1, null);
+        assertEquals(walletFileHash, Sha256Hash.of(f));
+        assertTrue(journal.length() > journalSize);
+
+        // Confirm the transaction, then bury it under another block. Depth changes aren't journaled.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t1);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0));
+        Transaction t2 = wallet.createSend(OTHER_ADDRESS, valueOf(0, 10));
+        wallet.commitTx(t2);
+        wallet.saveNow();
+
+        // A block without wallet transactions only journals the last seen block, not the keys.
+        journalSize = journal.length();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.saveNow();
+        assertTrue(journal.length() > journalSize);
+        assertTrue(journal.length() - journalSize < 100);
+
+        // Issuing a key journals the keys.
+        wallet.freshReceiveKey();
+        wallet.saveNow();
+        wallet.shutdownAutosaveAndWait();
+        assertEquals(walletFileHash, Sha256Hash.of(f));
+
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertEquals(wallet.getTransactions(true), loaded.getTransactions(true));
+        for (Pool pool : Pool.values())
+            assertEquals(wallet.getPoolSize(pool), loaded.getPoolSize(pool));
+        assertEquals(wallet.getBalance(BalanceType.ESTIMATED), loaded.getBalance(BalanceType.ESTIMATED));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(3, loaded.getTransaction(t1.getTxId()).getConfidence().getDepthInBlocks());
+        assertEquals(wallet.getKeyChainGroupSize(), loaded.getKeyChainGroupSize());
+        assertEquals(wallet.getActiveKeyChain().getIssuedExternalKeys(),
+                loaded.getActiveKeyChain().getIssuedExternalKeys());
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void historyStore() throws Exception {
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        f.deleteOnExit();
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(1, 0));
+        Transaction t2 = wallet.createSend(OTHER_ADDRESS, valueOf(0, 50));
+        wallet.commitTx(t2);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, t2);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(3, t1.getConfidence().getDepthInBlocks());
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+        Coin totalReceived = wallet.getTotalReceived();
+        Coin totalSent = wallet.getTotalSent();
+
+        // t1 is buried deep enough, but t2 spending it isn't yet.
+        TransactionHistoryStore store = new TransactionHistoryStore(f, 3);
+        wallet.setHistoryStore(store);
+        assertEquals(0, store.size());
+        assertEquals(1, wallet.getPoolSize(Pool.SPENT));
+
+        // Now t1 is moved with the next block. t2 has change left, so it stays.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, store.size());
+        assertEquals(0, wallet.getPoolSize(Pool.SPENT));
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(1, Iterables.size(wallet.getWalletTransactions()));
+        assertEquals(totalReceived, wallet.getTotalReceived());
+        assertEquals(totalSent, wallet.getTotalSent());
+        assertEquals(valueOf(0, 50), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+
+        // It can still be looked up, with its depth following the chain.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t1copy = wallet.getTransaction(t1.getTxId());
+        assertArrayEquals(t1.serialize(), t1copy.serialize());
+        assertEquals(5, t1copy.getConfidence().getDepthInBlocks());
+        Set<Sha256Hash> byTime = new HashSet<>();
+        for (Transaction tx : wallet.getTransactionsByTime())
+            byTime.add(tx.getTxId());
+        assertEquals(new HashSet<>(Arrays.asList(t1.getTxId(), t2.getTxId())), byTime);
+        assertEquals(1, wallet.getRecentTransactions(1, false).size());
+
+        // The store keeps its transactions when it is reopened, and is cleared with the wallet.
+        store.close();
+        store = new TransactionHistoryStore(f, 3);
+        assertTrue(store.contains(t1.getTxId()));
+        wallet.setHistoryStore(store);
+        wallet.reset();
+        assertEquals(0, store.size());
+        assertNull(wallet.getTransaction(t1.getTxId()));
+        store.close();
+    }
+
     @Test
     public void autosaveDelayed() throws Exception {
         // Test that the wallet will save itself automatically when it changes, but not immediately and near-by
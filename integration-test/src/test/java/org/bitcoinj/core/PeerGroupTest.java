@@ -59,6 +59,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
@@ -367,6 +368,50 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        // Check that blocks are requested from all peers, and added to the chain in order.
+        peerGroup.setParallelBlockDownload(true);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        // Set up a little block chain.
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+        Block b2 = FakeTxBuilder.makeTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeTestBlock(b2);
+
+        // Headers are requested from the download peer first.
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        inbound(p1, new HeadersMessage(b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        pingAndWait(p1);
+
+        // Then the bodies are spread across both peers.
+        Map<Sha256Hash, InboundMessageQueuer> requestedFrom = new HashMap<>();
+        for (InboundMessageQueuer p : Arrays.asList(p1, p2)) {
+            Message m;
+            while ((m = outbound(p)) != null) {
+                if (m instanceof GetDataMessage) {
+                    for (InventoryItem item : ((GetDataMessage) m).getItems())
+                        requestedFrom.put(item.hash, p);
+                }
+            }
+        }
+        assertEquals(3, requestedFrom.size());
+        assertEquals(2, new HashSet<>(requestedFrom.values()).size());
+
+        // The blocks arrive out of order, but are added to the chain in order.
+        for (Block b : Arrays.asList(b3, b1, b2)) {
+            InboundMessageQueuer p = requestedFrom.get(b.getHash());
+            inbound(p, b);
+            pingAndWait(p);
+        }
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -518,6 +563,38 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void switchStalledDownloadPeer() throws Exception {
+        peerGroup.start();
+        List<Peer> switchedTo = new ArrayList<>();
+        peerGroup.addDownloadPeerSwitchedEventListener(Threading.SAME_THREAD,
+                (oldPeer, newPeer, bytesPerSecond) -> switchedTo.add(newPeer));
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+
+        // The fastest peer above the stall speed takes over, resuming from the chain head.
+        peerGroup.recordDownloadThroughput(peerOf(p1), 100);
+        peerGroup.recordDownloadThroughput(peerOf(p2), 5000);
+        peerGroup.recordDownloadThroughput(peerOf(p3), 2000);
+        assertTrue(peerGroup.switchDownloadPeer(peerOf(p1), 100, 1000));
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(p2);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getblocks.getLocator().getHashes().get(0));
+        assertEquals(Collections.singletonList(peerOf(p2)), switchedTo);
+        assertEquals(1, peerGroup.getDownloadPeerSwitchCount());
+
+        // Peers known to be slower than the stall speed are never chosen.
+        peerGroup.recordDownloadThroughput(peerOf(p3), 500);
+        assertFalse(peerGroup.switchDownloadPeer(peerOf(p2), 200, 1000));
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertEquals(1, switchedTo.size());
+        assertEquals(OptionalLong.of(100), peerGroup.getDownloadThroughput(peerOf(p1)));
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final Duration timeout = Duration.ofMillis(100);
@@ -544,6 +621,38 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(peerDisconnectedFuture.isDone()); // but should disconnect eventually
     }
 
+    @Test
+    public void raceConnections() throws Exception {
+        // Check that another address is tried while a connection attempt is pending, and that the attempt still
+        // pending is cancelled once enough peers are connected.
+        final List<InetSocketAddress> addresses = List.of(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), TCP_PORT_BASE),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), TCP_PORT_BASE + 1));
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            @Override
+            public List<InetSocketAddress> getPeers(long services, Duration unused) {
+                return addresses;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+        final BlockingQueue<Peer> disconnectedPeers = new LinkedBlockingQueue<>();
+        peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, (peer, peerCount) -> disconnectedPeers.add(peer));
+        peerGroup.setMaxConnections(1);
+        peerGroup.setConnectionRaceWidth(1);
+        peerGroup.start();
+
+        // The first attempt never completes its handshake, so the other address is raced against it.
+        newPeerWriteTargetQueue.take();
+        handleConnectToPeer(1);
+        Peer cancelled = disconnectedPeers.take();
+        assertEquals(1, peerGroup.numConnectedPeers());
+        assertNotEquals(peerGroup.getConnectedPeers().get(0), cancelled);
+        assertTrue(peerGroup.getPendingPeers().isEmpty());
+    }
+
     @Test
     @Ignore("disabled for now as this test is too flaky")
     public void peerPriority() throws Exception {
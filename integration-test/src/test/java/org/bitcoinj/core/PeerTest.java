@@ -80,7 +80,9 @@ public class PeerTest extends TestWithNetworkConnections {
     @Parameterized.Parameters
     public static Collection<ClientType[]> parameters() {
         return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.NIO_EVENT_LOOP_GROUP},
                              new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.VIRTUAL_THREAD_CLIENT_MANAGER},
                              new ClientType[] {ClientType.NIO_CLIENT},
                              new ClientType[] {ClientType.BLOCKING_CLIENT});
     }
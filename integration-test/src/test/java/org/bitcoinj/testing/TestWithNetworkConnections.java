@@ -36,9 +36,11 @@ import org.bitcoinj.net.BlockingClientManager;
 import org.bitcoinj.net.ClientConnectionManager;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.net.NioEventLoopGroup;
 import org.bitcoinj.net.NioServer;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.net.StreamConnectionFactory;
+import org.bitcoinj.net.VirtualThreadClientManager;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.store.BlockStore;
@@ -80,12 +82,15 @@ public class TestWithNetworkConnections {
     protected SocketAddress socketAddress;
 
     private final NioServer[] peerServers = new NioServer[PEER_SERVERS];
+    @Nullable private final NioEventLoopGroup serverWorkers;
     private final ClientConnectionManager channels;
     protected final BlockingQueue<InboundMessageQueuer> newPeerWriteTargetQueue = new LinkedBlockingQueue<>();
 
     public enum ClientType {
         NIO_CLIENT_MANAGER,
+        NIO_EVENT_LOOP_GROUP,
         BLOCKING_CLIENT_MANAGER,
+        VIRTUAL_THREAD_CLIENT_MANAGER,
         NIO_CLIENT,
         BLOCKING_CLIENT
     }
@@ -94,10 +99,17 @@ public class TestWithNetworkConnections {
         this.clientType = clientType;
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
             channels = new NioClientManager();
+        else if (clientType == ClientType.NIO_EVENT_LOOP_GROUP)
+            channels = new NioEventLoopGroup(2, NioEventLoopGroup.Assignment.ROUND_ROBIN);
         else if (clientType == ClientType.BLOCKING_CLIENT_MANAGER)
             channels = new BlockingClientManager();
+        else if (clientType == ClientType.VIRTUAL_THREAD_CLIENT_MANAGER)
+            channels = new VirtualThreadClientManager();
         else
             channels = null;
+        serverWorkers = clientType == ClientType.NIO_EVENT_LOOP_GROUP ?
+                new NioEventLoopGroup(2, NioEventLoopGroup.Assignment.LEAST_LOADED) :
+                null;
     }
 
     public void setUp() throws Exception {
@@ -119,7 +131,7 @@ public class TestWithNetworkConnections {
         blockChain = new BlockChain(UNITTEST, wallet, blockStore);
 
         startPeerServers();
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER) {
+        if (channels != null) {
             channels.startAsync();
             channels.awaitRunning();
         }
@@ -128,6 +140,8 @@ public class TestWithNetworkConnections {
     }
 
     protected void startPeerServers() throws IOException {
+        if (serverWorkers != null && !serverWorkers.isRunning())
+            serverWorkers.startAsync().awaitRunning();
         for (int i = 0 ; i < PEER_SERVERS ; i++) {
             startPeerServer(i);
         }
@@ -149,7 +163,7 @@ public class TestWithNetworkConnections {
                     }
                 };
             }
-        }, new InetSocketAddress(InetAddress.getLoopbackAddress(), TCP_PORT_BASE + i));
+        }, new InetSocketAddress(InetAddress.getLoopbackAddress(), TCP_PORT_BASE + i), serverWorkers);
         peerServers[i].startAsync();
         peerServers[i].awaitRunning();
     }
@@ -161,6 +175,8 @@ public class TestWithNetworkConnections {
     protected void stopPeerServers() {
         for (int i = 0 ; i < PEER_SERVERS ; i++)
             stopPeerServer(i);
+        if (serverWorkers != null)
+            serverWorkers.stopAsync().awaitTerminated();
     }
 
     protected void stopPeerServer(int i) {
@@ -178,7 +194,7 @@ public class TestWithNetworkConnections {
                     thisThread.interrupt();
             }
         });
-        if (clientType == ClientType.NIO_CLIENT_MANAGER || clientType == ClientType.BLOCKING_CLIENT_MANAGER)
+        if (channels != null)
             channels.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer);
         else if (clientType == ClientType.NIO_CLIENT)
             new NioClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2000), peer, Duration.ofMillis(100));
@@ -27,6 +27,7 @@ import org.bitcoinj.core.PrunedException;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.DiskFullPrunedBlockStore;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.store.MemoryFullPrunedBlockStore;
@@ -40,7 +41,7 @@ import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 /** Very thin wrapper around {@link BlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (mainnet|testnet|signet|regtest) (MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (mainnet|testnet|signet|regtest) (DiskFull|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       Does full verification if the store supports it");
         checkArgument(args.length == 2 || args.length == 3);
@@ -51,6 +52,10 @@ public class BlockImporter {
 
         BlockStore store;
         switch (args[1]) {
+            case "DiskFull":
+                checkArgument(args.length == 3);
+                store = new DiskFullPrunedBlockStore(params, new File(args[2]), 100);
+                break;
             case "MemFull":
                 checkArgument(args.length == 2);
                 store = new MemoryFullPrunedBlockStore(params, 100);
@@ -76,5 +81,7 @@ public class BlockImporter {
         
         for (Block block : loader)
             chain.add(block);
+        if (chain instanceof FullPrunedBlockChain)
+            ((FullPrunedBlockChain) chain).close();
     }
 }
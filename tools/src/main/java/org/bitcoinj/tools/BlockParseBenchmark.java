@@ -0,0 +1,156 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Difficulty;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockView;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.script.ScriptBuilder;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Compares parsing a block with {@link Block#read(ByteBuffer)}, which creates objects for every transaction, input,
+ * output and witness, against reading a {@link BlockView}. Both calculate all transaction IDs, as needed to check the
+ * merkle root.
+ */
+@CommandLine.Command(name = "block-parse-benchmark", usageHelpAutoWidth = true, sortOptions = false, description = "Benchmark eager block parsing against lazy block views.")
+public class BlockParseBenchmark implements Callable<Integer> {
+    @CommandLine.Option(names = "--file", description = "Serialized block to parse. Default: a generated block of segwit transactions")
+    private File file;
+    @CommandLine.Option(names = "--size", description = "Approximate size of the generated block in bytes. Default: ${DEFAULT-VALUE}")
+    private int size = 2_000_000;
+    @CommandLine.Option(names = "--warmup", description = "Warmup iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int warmup = 5;
+    @CommandLine.Option(names = "--iterations", description = "Measured iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int iterations = 10;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new BlockParseBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        byte[] bytes = file != null ? Files.readAllBytes(file.toPath()) : createBlock(size).serialize();
+
+        Result eager = measure(() -> {
+            for (Transaction tx : Block.read(ByteBuffer.wrap(bytes)).getTransactions())
+                tx.getTxId();
+        });
+        Result lazy = measure(() -> {
+            BlockView view = BlockView.read(ByteBuffer.wrap(bytes));
+            for (int i = 0; i < view.getTransactionCount(); i++)
+                view.getTxId(i);
+        });
+        int transactions = BlockView.read(ByteBuffer.wrap(bytes)).getTransactionCount();
+        System.out.println(String.format(Locale.US,
+                "%,d bytes, %,d transactions: eager %,8.2f ms %,9d KB allocated, lazy %,8.2f ms %,9d KB allocated, %.1fx faster",
+                bytes.length, transactions, eager.millis, eager.allocatedBytes / 1024, lazy.millis,
+                lazy.allocatedBytes / 1024, eager.millis / lazy.millis));
+        return 0;
+    }
+
+    private Result measure(Runnable task) {
+        for (int i = 0; i < warmup; i++)
+            task.run();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            task.run();
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new Result(nanos / 1e6 / iterations, allocated / iterations);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /** Creates a block of P2WPKH spends with two inputs and two outputs each, filled with random data. */
+    private static Block createBlock(int size) {
+        Random random = new Random(size);
+        List<Transaction> transactions = new ArrayList<>();
+        Transaction coinbase = Transaction.coinbase(new byte[] { 3, 1, 2, 3 });
+        coinbase.addOutput(Coin.FIFTY_COINS, ScriptBuilder.createOpReturnScript(new byte[32]));
+        transactions.add(coinbase);
+        int blockSize = Block.HEADER_SIZE + coinbase.messageSize();
+        while (blockSize < size) {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < 2; i++) {
+                byte[] signature = new byte[72];
+                byte[] pubKey = new byte[33];
+                random.nextBytes(signature);
+                random.nextBytes(pubKey);
+                TransactionOutPoint outpoint = new TransactionOutPoint(random.nextInt(4), randomHash(random));
+                tx.addInput(new TransactionInput(tx, new byte[0], outpoint)
+                        .withWitness(TransactionWitness.of(Arrays.asList(signature, pubKey))));
+            }
+            for (int i = 0; i < 2; i++) {
+                byte[] program = new byte[22];
+                random.nextBytes(program);
+                program[0] = 0;
+                program[1] = 20;
+                tx.addOutput(new TransactionOutput(tx, Coin.valueOf(random.nextInt(1_000_000)), program));
+            }
+            transactions.add(tx);
+            blockSize += tx.messageSize();
+        }
+        return new Block(Block.BLOCK_VERSION_BIP65, Sha256Hash.ZERO_HASH, null, Instant.ofEpochSecond(1_500_000_000),
+                Difficulty.EASIEST_DIFFICULTY_TARGET, 0, transactions);
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private static class Result {
+        final double millis;
+        final long allocatedBytes;
+
+        Result(double millis, long allocatedBytes) {
+            this.millis = millis;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+}
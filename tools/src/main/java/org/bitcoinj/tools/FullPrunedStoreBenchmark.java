@@ -0,0 +1,267 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Network;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.Stopwatch;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.script.SignatureCache;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.DiskFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bitcoinj.utils.BlockFileLoader;
+import org.bitcoinj.utils.BriefLogFormatter;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Connects blocks from block files (as written by Bitcoin Core) to a {@link FullPrunedBlockChain} and reports how many
+ * UTXO lookups, insertions and removals per second the {@link FullPrunedBlockStore} sustains while doing so.
+ */
+@CommandLine.Command(name = "full-pruned-store-benchmark", usageHelpAutoWidth = true, sortOptions = false, description = "Benchmark UTXO throughput of full pruned block stores.")
+public class FullPrunedStoreBenchmark implements Callable<Integer> {
+    enum StoreType { MEMORY, MEMORY_OFFHEAP, DISK }
+
+    @CommandLine.Parameters(description = "Block files to connect. Default: the block files of the reference client.")
+    private List<File> blockFiles = null;
+    @CommandLine.Option(names = "--net", description = "Network of the block files. Valid values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}")
+    private BitcoinNetwork net = BitcoinNetwork.MAINNET;
+    @CommandLine.Option(names = "--store", description = "Store to benchmark. Valid values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}")
+    private StoreType storeType = StoreType.DISK;
+    @CommandLine.Option(names = "--dir", description = "Directory for the disk store. Default: a temporary directory.")
+    private File directory = null;
+    @CommandLine.Option(names = "--undo-depth", description = "Number of undoable blocks to keep. Default: ${DEFAULT-VALUE}")
+    private int undoDepth = 100;
+    @CommandLine.Option(names = "--max-blocks", description = "Stop after connecting this many blocks. Default: all")
+    private int maxBlocks = Integer.MAX_VALUE;
+    @CommandLine.Option(names = "--report-interval", description = "Print intermediate results every so many blocks. Default: ${DEFAULT-VALUE}")
+    private int reportInterval = 10000;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new FullPrunedStoreBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        Context.propagate(new Context());
+        NetworkParameters params = NetworkParameters.of(net);
+        if (blockFiles == null)
+            blockFiles = BlockFileLoader.getReferenceClientBlockFileList();
+
+        FullPrunedBlockStore store;
+        if (storeType == StoreType.DISK) {
+            if (directory == null)
+                directory = Files.createTempDirectory("full-pruned-store-benchmark").toFile();
+            store = new DiskFullPrunedBlockStore(params, directory, undoDepth);
+        } else {
+            store = new MemoryFullPrunedBlockStore(params, undoDepth, storeType == StoreType.MEMORY_OFFHEAP);
+        }
+        CountingStore countingStore = new CountingStore(store);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, countingStore);
+
+        int blocks = 0;
+        Stopwatch watch = Stopwatch.start();
+        for (Block block : new BlockFileLoader(net, blockFiles)) {
+            chain.add(block);
+            blocks++;
+            if (blocks % reportInterval == 0)
+                report(blocks, watch.elapsed(), countingStore);
+            if (blocks >= maxBlocks)
+                break;
+        }
+        watch.stop();
+        System.out.println("Finished:");
+        report(blocks, watch.elapsed(), countingStore);
+        System.out.println("Script verification: " + chain.getScriptVerificationEngine());
+        System.out.println("Signature cache: " + SignatureCache.getDefault());
+        chain.close();
+        store.close();
+        return 0;
+    }
+
+    private static void report(int blocks, Duration elapsed, CountingStore store) {
+        double seconds = elapsed.toNanos() / 1e9;
+        System.out.println(String.format(Locale.US,
+                "%,d blocks in %.1f s (%.0f blocks/s), chain height %d",
+                blocks, seconds, blocks / seconds, store.chainHeight));
+        System.out.println(String.format(Locale.US,
+                "  lookups:    %,12d  %,10.0f/s wall  %,10.0f/s in store",
+                store.lookups, store.lookups / seconds, perSecond(store.lookups, store.lookupNanos)));
+        System.out.println(String.format(Locale.US,
+                "  insertions: %,12d  %,10.0f/s wall  %,10.0f/s in store",
+                store.insertions, store.insertions / seconds, perSecond(store.insertions, store.insertionNanos)));
+        System.out.println(String.format(Locale.US,
+                "  removals:   %,12d  %,10.0f/s wall  %,10.0f/s in store",
+                store.removals, store.removals / seconds, perSecond(store.removals, store.removalNanos)));
+        System.out.println(String.format(Locale.US,
+                "  commits:    %,12d  %,10.1f ms avg",
+                store.commits, store.commits == 0 ? 0 : store.commitNanos / 1e6 / store.commits));
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count / (nanos / 1e9);
+    }
+
+    /** Delegates to another store, counting and timing the UTXO operations. */
+    private static class CountingStore implements FullPrunedBlockStore {
+        private final FullPrunedBlockStore delegate;
+        long lookups, lookupNanos;
+        long insertions, insertionNanos;
+        long removals, removalNanos;
+        long commits, commitNanos;
+        int chainHeight;
+
+        CountingStore(FullPrunedBlockStore delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+            long start = System.nanoTime();
+            UTXO utxo = delegate.getTransactionOutput(hash, index);
+            lookupNanos += System.nanoTime() - start;
+            lookups++;
+            return utxo;
+        }
+
+        @Override
+        public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+            long start = System.nanoTime();
+            delegate.addUnspentTransactionOutput(out);
+            insertionNanos += System.nanoTime() - start;
+            insertions++;
+        }
+
+        @Override
+        public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+            long start = System.nanoTime();
+            delegate.removeUnspentTransactionOutput(out);
+            removalNanos += System.nanoTime() - start;
+            removals++;
+        }
+
+        @Override
+        public void commitDatabaseBatchWrite() throws BlockStoreException {
+            long start = System.nanoTime();
+            delegate.commitDatabaseBatchWrite();
+            commitNanos += System.nanoTime() - start;
+            commits++;
+        }
+
+        @Override
+        public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+            delegate.setVerifiedChainHead(chainHead);
+            chainHeight = chainHead.getHeight();
+        }
+
+        @Override
+        public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+            delegate.put(storedBlock, undoableBlock);
+        }
+
+        @Override
+        public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+            return delegate.getOnceUndoableStoredBlock(hash);
+        }
+
+        @Override
+        public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+            return delegate.getUndoBlock(hash);
+        }
+
+        @Override
+        public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+            return delegate.hasUnspentOutputs(hash, numOutputs);
+        }
+
+        @Override
+        public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+            return delegate.getVerifiedChainHead();
+        }
+
+        @Override
+        public void beginDatabaseBatchWrite() throws BlockStoreException {
+            delegate.beginDatabaseBatchWrite();
+        }
+
+        @Override
+        public void abortDatabaseBatchWrite() throws BlockStoreException {
+            delegate.abortDatabaseBatchWrite();
+        }
+
+        @Override
+        public void put(StoredBlock block) throws BlockStoreException {
+            delegate.put(block);
+        }
+
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            return delegate.get(hash);
+        }
+
+        @Override
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return delegate.getChainHead();
+        }
+
+        @Override
+        public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+            delegate.setChainHead(chainHead);
+        }
+
+        @Override
+        public void close() throws BlockStoreException {
+            delegate.close();
+        }
+
+        @Override
+        public Network network() {
+            return delegate.network();
+        }
+
+        @Override
+        public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+            return delegate.getOpenTransactionOutputs(keys);
+        }
+
+        @Override
+        public int getChainHeadHeight() throws UTXOProviderException {
+            return delegate.getChainHeadHeight();
+        }
+    }
+}
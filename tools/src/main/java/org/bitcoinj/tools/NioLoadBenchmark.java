@@ -0,0 +1,178 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerSocketHandler;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+import org.bitcoinj.net.ClientConnectionManager;
+import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.net.NioEventLoopGroup;
+import org.bitcoinj.net.NioServer;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import picocli.CommandLine;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures message throughput between many in-process fake peers and a {@link NioServer}. Each fake peer keeps a
+ * number of pings in flight, and the server answers every ping with a pong. Both sides deserialize and dispatch every
+ * message, as real peers do. The run is repeated with a single {@link NioClientManager} plus a single-threaded server,
+ * and with {@link NioEventLoopGroup}s on both sides.
+ */
+@CommandLine.Command(name = "nio-load-benchmark", usageHelpAutoWidth = true, sortOptions = false, description = "Benchmark NIO networking with many in-process peers.")
+public class NioLoadBenchmark implements Callable<Integer> {
+    @CommandLine.Option(names = "--peers", description = "Number of fake peers. Default: ${DEFAULT-VALUE}")
+    private int peers = 200;
+    @CommandLine.Option(names = "--in-flight", description = "Pings each peer keeps in flight. Default: ${DEFAULT-VALUE}")
+    private int inFlight = 4;
+    @CommandLine.Option(names = "--loops", description = "Event loops per group. Default: number of processors")
+    private int loops = Runtime.getRuntime().availableProcessors();
+    @CommandLine.Option(names = "--assignment", description = "Assignment of connections to event loops. Valid values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}")
+    private NioEventLoopGroup.Assignment assignment = NioEventLoopGroup.Assignment.ROUND_ROBIN;
+    @CommandLine.Option(names = "--seconds", description = "Measured duration of each run. Default: ${DEFAULT-VALUE}")
+    private int seconds = 10;
+    @CommandLine.Option(names = "--port", description = "Local port for the server. Default: ${DEFAULT-VALUE}")
+    private int port = 18444;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    public static void main(String[] args) {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int exitCode = new CommandLine(new NioLoadBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        Context.propagate(new Context());
+        double single = run(null, new NioClientManager(), "single selector");
+        double group = run(new NioEventLoopGroup(loops, assignment), new NioEventLoopGroup(loops, assignment),
+                String.format(Locale.US, "%d event loops, %s", loops, assignment));
+        System.out.println(String.format(Locale.US, "%.1fx the throughput of a single selector", group / single));
+        return 0;
+    }
+
+    private double run(@Nullable NioEventLoopGroup serverWorkers, ClientConnectionManager clients, String label)
+            throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        NioServer server = new NioServer((inetAddress, remotePort) -> new EchoPeer(inetAddress, remotePort), address,
+                serverWorkers);
+        if (serverWorkers != null)
+            serverWorkers.startAsync().awaitRunning();
+        server.startAsync().awaitRunning();
+        clients.startAsync().awaitRunning();
+        try {
+            AtomicLong pongs = new AtomicLong();
+            CountDownLatch connected = new CountDownLatch(peers);
+            FakePeer[] fakePeers = new FakePeer[peers];
+            for (int i = 0; i < peers; i++) {
+                fakePeers[i] = new FakePeer(address, pongs, connected);
+                clients.openConnection(address, fakePeers[i]);
+            }
+            if (!connected.await(30, TimeUnit.SECONDS))
+                throw new IllegalStateException("only " + (peers - connected.getCount()) + " peers connected");
+            Thread.sleep(1000); // warm up
+            long start = System.nanoTime();
+            long startPongs = pongs.get();
+            Thread.sleep(Duration.ofSeconds(seconds).toMillis());
+            double perSecond = (pongs.get() - startPongs) / ((System.nanoTime() - start) / 1e9);
+            for (FakePeer fakePeer : fakePeers)
+                fakePeer.running = false;
+            String distribution = clients instanceof NioEventLoopGroup ?
+                    ", peers per loop " + Arrays.toString(((NioEventLoopGroup) clients).getConnectedClientCounts()) :
+                    "";
+            System.out.println(String.format(Locale.US, "%s: %,d peers connected, %,.0f round trips/s%s", label,
+                    clients.getConnectedClientCount(), perSecond, distribution));
+            return perSecond;
+        } finally {
+            clients.stopAsync().awaitTerminated();
+            server.stopAsync().awaitTerminated();
+            if (serverWorkers != null)
+                serverWorkers.stopAsync().awaitTerminated();
+        }
+    }
+
+    /** Server side: answers every ping with a pong. */
+    private static class EchoPeer extends PeerSocketHandler {
+        EchoPeer(InetAddress inetAddress, int port) {
+            super(PARAMS, new InetSocketAddress(inetAddress, port));
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (m instanceof Ping)
+                sendMessage(((Ping) m).pong());
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+
+    /** Client side: keeps a number of pings in flight, sending a new one for every pong. */
+    private class FakePeer extends PeerSocketHandler {
+        private final AtomicLong pongs;
+        private final CountDownLatch connected;
+        volatile boolean running = true;
+
+        FakePeer(InetSocketAddress address, AtomicLong pongs, CountDownLatch connected) {
+            super(PARAMS, address);
+            this.pongs = pongs;
+            this.connected = connected;
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (m instanceof Pong) {
+                pongs.incrementAndGet();
+                if (running)
+                    sendMessage(Ping.random());
+            }
+        }
+
+        @Override
+        public void connectionOpened() {
+            for (int i = 0; i < inFlight; i++)
+                sendMessage(Ping.random());
+            connected.countDown();
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+}
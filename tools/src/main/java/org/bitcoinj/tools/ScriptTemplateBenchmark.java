@@ -0,0 +1,129 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.SignatureCache;
+import picocli.CommandLine;
+
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Compares verifying standard P2PKH and P2PK inputs with the template checks of
+ * {@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin, Script, Set)} against running them
+ * through the general script interpreter with {@link Script#executeScript(Transaction, long, Script, LinkedList, Set)}.
+ */
+@CommandLine.Command(name = "script-template-benchmark", usageHelpAutoWidth = true, sortOptions = false, description = "Benchmark verification of standard scripts.")
+public class ScriptTemplateBenchmark implements Callable<Integer> {
+    enum Template { P2PKH, P2PK }
+
+    @CommandLine.Option(names = "--template", description = "Script template to benchmark. Valid values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}")
+    private Template template = Template.P2PKH;
+    @CommandLine.Option(names = "--inputs", description = "Number of inputs of the transaction. Default: ${DEFAULT-VALUE}")
+    private int inputs = 100;
+    @CommandLine.Option(names = "--warmup", description = "Warmup iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int warmup = 3;
+    @CommandLine.Option(names = "--iterations", description = "Measured iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int iterations = 5;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new ScriptTemplateBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = template == Template.P2PKH ? ScriptBuilder.createP2PKHOutputScript(key) :
+                ScriptBuilder.createP2PKOutputScript(key);
+        Transaction tx = createTransaction(template, inputs, key, scriptPubKey);
+        Set<Script.VerifyFlag> flags = Script.ALL_VERIFY_FLAGS;
+
+        // The templates only leave non-standard scripts to the interpreter, so it's run directly for comparison.
+        Runnable interpreted = () -> {
+            for (int i = 0; i < inputs; i++) {
+                LinkedList<byte[]> stack = new LinkedList<>();
+                Script.executeScript(tx, i, tx.getInput(i).getScriptSig(), stack, flags);
+                Script.executeScript(tx, i, scriptPubKey, stack, flags);
+                if (stack.isEmpty() || stack.getLast().length == 0)
+                    throw new IllegalStateException("input " + i + " doesn't verify");
+            }
+        };
+        Runnable templated = () -> {
+            for (int i = 0; i < inputs; i++)
+                tx.getInput(i).getScriptSig().correctlySpends(tx, i, TransactionWitness.EMPTY, Coin.COIN,
+                        scriptPubKey, flags);
+        };
+
+        // Without a signature cache, ECDSA dominates. With a warm one, what's left is the cost of the script logic.
+        SignatureCache defaultCache = SignatureCache.getDefault();
+        SignatureCache.setDefault(null);
+        report("no signature cache", measure(interpreted), measure(templated));
+        SignatureCache.setDefault(new SignatureCache(SignatureCache.DEFAULT_MAX_ENTRIES));
+        report("warm signature cache", measure(interpreted), measure(templated));
+        SignatureCache.setDefault(defaultCache);
+        return 0;
+    }
+
+    private void report(String label, double interpretedMillis, double templatedMillis) {
+        System.out.println(String.format(Locale.US,
+                "%s, %s: interpreter %,10.0f inputs/s, templates %,10.0f inputs/s, %.1fx faster",
+                template, label, inputs / (interpretedMillis / 1000), inputs / (templatedMillis / 1000),
+                interpretedMillis / templatedMillis));
+    }
+
+    private double measure(Runnable task) {
+        for (int i = 0; i < warmup; i++)
+            task.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            task.run();
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    private static Transaction createTransaction(Template template, int inputs, ECKey key, Script scriptPubKey) {
+        Random random = new Random(inputs);
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            tx.addInput(Sha256Hash.wrap(hash), random.nextInt(4), ScriptBuilder.createEmpty());
+        }
+        tx.addOutput(Coin.COIN, key);
+        for (int i = 0; i < inputs; i++) {
+            TransactionSignature signature = tx.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL,
+                    false);
+            Script scriptSig = template == Template.P2PKH ? ScriptBuilder.createInputScript(signature, key) :
+                    ScriptBuilder.createInputScript(signature);
+            tx.replaceInput(i, tx.getInput(i).withScriptSig(scriptSig));
+        }
+        return tx;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import picocli.CommandLine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Compares computing legacy signature hashes for all inputs of large multi-input transactions with
+ * {@link Transaction#hashForSignature(int, byte[], byte)}, which streams the modified transaction into the digest,
+ * against the old approach of modifying and serializing a copy of the transaction for every input.
+ */
+@CommandLine.Command(name = "sighash-benchmark", usageHelpAutoWidth = true, sortOptions = false, description = "Benchmark legacy signature hash computation on large transactions.")
+public class SigHashBenchmark implements Callable<Integer> {
+    @CommandLine.Option(names = "--inputs", split = ",", description = "Input counts to benchmark. Default: ${DEFAULT-VALUE}")
+    private int[] inputCounts = { 10, 100, 1000 };
+    @CommandLine.Option(names = "--outputs", description = "Number of outputs. Default: ${DEFAULT-VALUE}")
+    private int outputs = 2;
+    @CommandLine.Option(names = "--warmup", description = "Warmup iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int warmup = 3;
+    @CommandLine.Option(names = "--iterations", description = "Measured iterations per measurement. Default: ${DEFAULT-VALUE}")
+    private int iterations = 5;
+    @CommandLine.Option(names = "--help", usageHelp = true, description = "Displays program options.")
+    private boolean help;
+
+    public static void main(String[] args) {
+        int exitCode = new CommandLine(new SigHashBenchmark()).execute(args);
+        System.exit(exitCode);
+    }
+
+    @Override
+    public Integer call() {
+        ECKey key = new ECKey();
+        byte[] connectedScript = ScriptBuilder.createP2PKHOutputScript(key).program();
+        for (int inputCount : inputCounts) {
+            Transaction tx = createTransaction(inputCount, outputs, key);
+            // Sanity check: both approaches must agree.
+            for (int i = 0; i < Math.min(inputCount, 10); i++)
+                if (!copyingHashForSignature(tx, i, connectedScript, (byte) 1).equals(
+                        tx.hashForSignature(i, connectedScript, (byte) 1)))
+                    throw new IllegalStateException("signature hashes differ at input " + i);
+
+            Result copying = measure(() -> {
+                for (int i = 0; i < inputCount; i++)
+                    copyingHashForSignature(tx, i, connectedScript, (byte) 1);
+            });
+            Result streaming = measure(() -> {
+                for (int i = 0; i < inputCount; i++)
+                    tx.hashForSignature(i, connectedScript, (byte) 1);
+            });
+            System.out.println(String.format(Locale.US,
+                    "%,6d inputs, %,9d bytes: copying %,10.2f ms %,12d KB allocated, streaming %,10.2f ms %,12d KB allocated, %.1fx faster",
+                    inputCount, tx.messageSize(), copying.millis, copying.allocatedBytes / 1024, streaming.millis,
+                    streaming.allocatedBytes / 1024, copying.millis / streaming.millis));
+        }
+        return 0;
+    }
+
+    private Result measure(Runnable task) {
+        for (int i = 0; i < warmup; i++)
+            task.run();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            task.run();
+        long nanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new Result(nanos / 1e6 / iterations, allocated / iterations);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private static Transaction createTransaction(int inputs, int outputs, ECKey key) {
+        Random random = new Random(inputs);
+        Transaction tx = new Transaction();
+        for (int i = 0; i < inputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            // A typical P2PKH input script: signature and public key.
+            byte[] signature = new byte[72];
+            random.nextBytes(signature);
+            Script scriptSig = new ScriptBuilder().data(signature).data(key.getPubKey()).build();
+            tx.addInput(Sha256Hash.wrap(hash), random.nextInt(4), scriptSig);
+        }
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(Coin.COIN, key.toAddress(ScriptType.P2PKH, BitcoinNetwork.MAINNET));
+        return tx;
+    }
+
+    /** The previous implementation: modifies and serializes a copy of the transaction, only SIGHASH_ALL. */
+    private static Sha256Hash copyingHashForSignature(Transaction tx, int inputIndex, byte[] connectedScript,
+                                                      byte sigHashType) {
+        Transaction copy = Transaction.read(ByteBuffer.wrap(tx.serialize()));
+        for (int i = 0; i < copy.getInputs().size(); i++) {
+            TransactionInput input = copy.getInput(i);
+            copy.replaceInput(i, input.withoutScriptBytes().withoutWitness());
+        }
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        copy.replaceInput(inputIndex, copy.getInput(inputIndex).withScriptBytes(connectedScript));
+        ByteBuffer buf = ByteBuffer.allocate(copy.messageSize() + 4);
+        buf.put(copy.serialize());
+        ByteUtils.writeInt32LE(0x000000ff & sigHashType, buf);
+        return Sha256Hash.twiceOf(buf.array());
+    }
+
+    private static class Result {
+        final double millis;
+        final long allocatedBytes;
+
+        Result(double millis, long allocatedBytes) {
+            this.millis = millis;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+}